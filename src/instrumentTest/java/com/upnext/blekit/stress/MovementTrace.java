@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.stress;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic movement of a device through a zone generated by {@link ZoneGenerator}, as a stream of ranging samples.
+ *
+ * The device walks at {@link #WALKING_SPEED} between random waypoints on the beacon grid. Every {@link #SCAN_PERIOD_MILLIS}
+ * it ranges all beacons within {@link #RANGE} meters, with RSSI following the log-distance path loss model
+ * with gaussian noise. Traces are reproducible for the same seed.
+ */
+public class MovementTrace {
+
+    /**
+     * Walking speed in meters per second.
+     */
+    public static final double WALKING_SPEED = 1.4;
+
+    /**
+     * Time between ranging samples in milliseconds.
+     */
+    public static final long SCAN_PERIOD_MILLIS = 1100;
+
+    /**
+     * Maximum distance of ranged beacons in meters.
+     */
+    public static final double RANGE = 30;
+
+    /**
+     * Measured power of generated advertisements (RSSI at 1 meter).
+     */
+    public static final int TX_POWER = -59;
+
+    private static final double PATH_LOSS_EXPONENT = 2.0;
+    private static final double RSSI_NOISE = 4.0;
+
+    /**
+     * Single ranging of a beacon.
+     */
+    public static class Sample {
+        /** Time since the start of the trace in milliseconds */
+        public final long time;
+        /** Index of the ranged beacon */
+        public final int beacon;
+        /** Received signal strength */
+        public final int rssi;
+
+        Sample(long time, int beacon, int rssi) {
+            this.time = time;
+            this.beacon = beacon;
+            this.rssi = rssi;
+        }
+    }
+
+    private final int beacons;
+    private final Random random;
+
+    /**
+     * @param beacons number of beacons of the zone
+     * @param seed seed of the random movement and noise
+     */
+    public MovementTrace( int beacons, long seed ) {
+        this.beacons = beacons;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Generates samples of given duration, ordered by time.
+     *
+     * @param durationMillis duration of the walk in milliseconds
+     * @return samples
+     */
+    public List<Sample> generate( long durationMillis ) {
+        final List<Sample> samples = new ArrayList<Sample>();
+        if( beacons<=0 ) return samples;
+
+        final int columns = ZoneGenerator.getColumns(beacons);
+        final int rows = (beacons + columns - 1) / columns;
+        final double width = (columns-1) * ZoneGenerator.BEACON_SPACING;
+        final double height = (rows-1) * ZoneGenerator.BEACON_SPACING;
+        final double step = WALKING_SPEED * SCAN_PERIOD_MILLIS / 1000;
+        final int reach = (int) Math.ceil(RANGE / ZoneGenerator.BEACON_SPACING);
+
+        double x = random.nextDouble() * width;
+        double y = random.nextDouble() * height;
+        double targetX = x;
+        double targetY = y;
+
+        for( long time=0; time<durationMillis; time+=SCAN_PERIOD_MILLIS ) {
+            double dx = targetX - x;
+            double dy = targetY - y;
+            double distance = Math.sqrt(dx*dx + dy*dy);
+            if( distance<step ) {
+                targetX = random.nextDouble() * width;
+                targetY = random.nextDouble() * height;
+                dx = targetX - x;
+                dy = targetY - y;
+                distance = Math.sqrt(dx*dx + dy*dy);
+            }
+            if( distance>0 ) {
+                final double move = Math.min(step, distance);
+                x += dx / distance * move;
+                y += dy / distance * move;
+            }
+
+            //only beacons of nearby grid cells can be in range
+            final int column = (int) Math.round(x / ZoneGenerator.BEACON_SPACING);
+            final int row = (int) Math.round(y / ZoneGenerator.BEACON_SPACING);
+            for( int r=Math.max(0, row-reach); r<=Math.min(rows-1, row+reach); r++ ) {
+                for( int c=Math.max(0, column-reach); c<=Math.min(columns-1, column+reach); c++ ) {
+                    final int index = r*columns + c;
+                    if( index>=beacons ) continue;
+                    final double[] position = ZoneGenerator.getPosition(index, beacons);
+                    final double d = Math.hypot(position[0]-x, position[1]-y);
+                    if( d<=RANGE ) {
+                        samples.add(new Sample(time, index, rssi(d)));
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableList(samples);
+    }
+
+    /**
+     * Builds advertisement of a beacon, as received in a scan record.
+     *
+     * @param proximityUuid proximity UUID
+     * @param major major
+     * @param minor minor
+     * @return scan record
+     */
+    public static byte[] toScanData( String proximityUuid, int major, int minor ) {
+        final String hex = proximityUuid.replace("-", "");
+        final byte[] data = new byte[30];
+        //flags
+        data[0] = 0x02;
+        data[1] = 0x01;
+        data[2] = 0x06;
+        //manufacturer specific data: Apple, iBeacon
+        data[3] = 0x1a;
+        data[4] = (byte) 0xff;
+        data[5] = 0x4c;
+        data[6] = 0x00;
+        data[7] = 0x02;
+        data[8] = 0x15;
+        for( int i=0; i<16; i++ ) {
+            data[9+i] = (byte) Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+        }
+        data[25] = (byte) (major >> 8);
+        data[26] = (byte) major;
+        data[27] = (byte) (minor >> 8);
+        data[28] = (byte) minor;
+        data[29] = (byte) TX_POWER;
+        return data;
+    }
+
+    private int rssi( double distance ) {
+        final double rssi = TX_POWER - 10 * PATH_LOSS_EXPONENT * Math.log10(Math.max(0.1, distance)) + random.nextGaussian() * RSSI_NOISE;
+        return (int) Math.round(rssi);
+    }
+}
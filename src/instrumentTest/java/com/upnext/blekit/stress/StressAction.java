@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.stress;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+
+import com.upnext.blekit.actions.BLEAction;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Action of generated triggers, counts how many times it was performed and does nothing else.
+ */
+public class StressAction extends BLEAction<Void> {
+
+    public static final String TYPE = "stress";
+
+    private static final AtomicLong performed = new AtomicLong();
+
+    /**
+     * @return number of times the action was performed in this process
+     */
+    public static long getPerformed() {
+        return performed.get();
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    public Class<Void> getParameterClass() {
+        return Void.class;
+    }
+
+    @Override
+    public void performInBackground(Context context) {
+        performed.incrementAndGet();
+    }
+
+    @Override
+    public void performInForeground(Activity activity) {
+        performed.incrementAndGet();
+    }
+
+    @Override
+    public boolean performsInForegroundOnMainThread() {
+        return false;
+    }
+
+    @Override
+    public int getMaxConcurrency() {
+        return 4;
+    }
+
+    @Override
+    public void processIntent(Intent intent, Activity activity) {
+        //no notifications
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.stress;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import com.radiusnetworks.ibeacon.IBeacon;
+import com.radiusnetworks.ibeacon.IBeaconManager;
+import com.radiusnetworks.ibeacon.MonitorNotifier;
+import com.radiusnetworks.ibeacon.RangeNotifier;
+import com.radiusnetworks.ibeacon.Region;
+import com.upnext.blekit.BLEKit;
+import com.upnext.blekit.BLEKitService;
+import com.upnext.blekit.ClientEventQueue;
+import com.upnext.blekit.model.Zone;
+import com.upnext.blekit.util.EventLatencies;
+import com.upnext.blekit.util.Histogram;
+import com.upnext.blekit.util.L;
+import com.upnext.blekit.util.Metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress test of beacon event processing with zones from {@link ZoneGenerator} and ranging from {@link MovementTrace}.
+ *
+ * Ranging samples are turned into advertisements and fed to the ranging and monitoring notifiers of
+ * {@link com.upnext.blekit.BLEKitService}, as the beacon library delivers scan results: ranging of the beacon region for every sample,
+ * region enter on the first sighting and region exit after {@link #EXIT_DELAY_MILLIS} without one, in trace time.
+ * The service filters and debounces them, tracks sightings in its {@link com.upnext.blekit.RegionBudget} and queues events
+ * in the {@link com.upnext.blekit.ClientEventQueue} of this application, which delivers them to the trigger engine.
+ * Samples are fed as fast as the application processes events, pausing while more than {@link #MAX_PENDING} of them are pending.
+ * Samples of all beacons are fed, regardless of regions registered by the budget.
+ *
+ * Every run reports events per second, 99th percentile of the event latency from ranging to trigger evaluation or dispatch,
+ * conflated and dropped events of the client queue, heap high-water mark and number of garbage collections.
+ *
+ * BLEKit has to be started in this process and its service connected to the beacon library. Runs reset
+ * {@link com.upnext.blekit.BLEKit#getEventLatencies()}, so they should not be mixed with real traffic.
+ * Runs block, so they must not be started on the main thread.
+ */
+public class StressDriver {
+
+    /**
+     * Maximum number of events queued by the service or sent to the application and not processed yet, before feeding pauses.
+     */
+    public static final int MAX_PENDING = 32;
+
+    /**
+     * Maximum time of waiting for the service and the application, in milliseconds.
+     */
+    public static final long TIMEOUT_MILLIS = 60000;
+
+    /**
+     * Time without sighting after which a region is exited, in trace time (as monitoring of the beacon library does).
+     */
+    public static final long EXIT_DELAY_MILLIS = 10000;
+
+    private static final long HEAP_SAMPLE_MILLIS = 20;
+    private static final String REGION_SUFFIX = "-stress";
+
+    //every run gets its own beacons, so that occurences of previous runs do not count
+    private static final AtomicInteger runs = new AtomicInteger();
+
+    private final Context context;
+    private final StubHttpServer stubServer = new StubHttpServer();
+
+    /**
+     * Result of a single run.
+     */
+    public static class Result {
+        /** Number of beacons of the zone */
+        public final int beacons;
+        /** Number of triggers of every beacon */
+        public final int triggers;
+        /** Number of ranging samples */
+        public final int samples;
+        /** Number of beacon events sent by the service to the application */
+        public final long events;
+        /** Number of beacon events processed by the application */
+        public final long processed;
+        /** Number of proximity events superseded in the client queue of the service */
+        public final long conflated;
+        /** Number of enter and leave events dropped by the client queue of the service */
+        public final long dropped;
+        /** Number of stress actions performed */
+        public final long actions;
+        /** Wall time of the run in milliseconds */
+        public final long durationMillis;
+        /** 99th percentile of event latency in microseconds */
+        public final long p99Micros;
+        /** 99th percentile latency of every stage in microseconds, by stage name */
+        public final Map<String, Long> stageP99Micros;
+        /** Largest heap usage observed in bytes */
+        public final long heapHighWater;
+        /** Number of garbage collections in the process during the run */
+        public final int gcCount;
+
+        Result(int beacons, int triggers, int samples, long events, long processed, long conflated, long dropped, long actions,
+               long durationMillis, long p99Micros, Map<String, Long> stageP99Micros, long heapHighWater, int gcCount) {
+            this.beacons = beacons;
+            this.triggers = triggers;
+            this.samples = samples;
+            this.events = events;
+            this.processed = processed;
+            this.conflated = conflated;
+            this.dropped = dropped;
+            this.actions = actions;
+            this.durationMillis = durationMillis;
+            this.p99Micros = p99Micros;
+            this.stageP99Micros = stageP99Micros;
+            this.heapHighWater = heapHighWater;
+            this.gcCount = gcCount;
+        }
+
+        /**
+         * @return processed events per second
+         */
+        public double getEventsPerSecond() {
+            return durationMillis>0 ? processed*1000.0/durationMillis : 0;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "beacons=" + beacons +
+                    ", triggers=" + triggers +
+                    ", samples=" + samples +
+                    ", events=" + events +
+                    ", processed=" + processed +
+                    ", conflated=" + conflated +
+                    ", dropped=" + dropped +
+                    ", actions=" + actions +
+                    ", durationMillis=" + durationMillis +
+                    ", eventsPerSecond=" + String.format("%.1f", getEventsPerSecond()) +
+                    ", p99Micros=" + p99Micros +
+                    ", stageP99Micros=" + stageP99Micros +
+                    ", heapHighWater=" + heapHighWater +
+                    ", gcCount=" + gcCount +
+                    '}';
+        }
+    }
+
+    /**
+     * @param context context of the application running BLEKit
+     */
+    public StressDriver( Context context ) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Runs the stress test at every given number of beacons.
+     *
+     * @param beacons numbers of beacons of the zone, one run for each
+     * @param triggers number of triggers of every beacon
+     * @param traceMillis duration of the movement trace of every run in milliseconds
+     * @return results in order of runs
+     * @throws IllegalStateException thrown if BLEKit was not started, the service is not connected or events were not processed within {@link #TIMEOUT_MILLIS}.
+     */
+    public List<Result> run( int[] beacons, int triggers, long traceMillis ) throws IllegalStateException {
+        final List<Result> results = new ArrayList<Result>(beacons.length);
+        for( int count : beacons ) {
+            final Result result = run(count, triggers, traceMillis);
+            L.d( result );
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Runs the stress test once.
+     *
+     * @param beacons number of beacons of the zone
+     * @param triggers number of triggers of every beacon
+     * @param traceMillis duration of the movement trace in milliseconds
+     * @return result
+     * @throws IllegalStateException thrown if BLEKit was not started, the service is not connected or events were not processed within {@link #TIMEOUT_MILLIS}.
+     */
+    public Result run( int beacons, int triggers, long traceMillis ) throws IllegalStateException {
+        if( !BLEKit.isStarted() ) {
+            throw new IllegalStateException( "BLEKit is not started" );
+        }
+        final IBeaconManager beaconManager = IBeaconManager.getInstanceForApplication(context);
+        final RangeNotifier rangeNotifier = beaconManager.getRangingNotifier();
+        final MonitorNotifier monitorNotifier = beaconManager.getMonitoringNotifier();
+        if( rangeNotifier==null || monitorNotifier==null ) {
+            throw new IllegalStateException( "BLEKitService is not connected to the beacon library" );
+        }
+        registerAction();
+
+        final int major = runs.incrementAndGet();
+        final ZoneGenerator generator = new ZoneGenerator(major, startStubServer());
+        final Zone zone = generator.generate("stress-" + major, beacons, triggers);
+        final List<MovementTrace.Sample> samples = new MovementTrace(beacons, major).generate(traceMillis);
+        final Feeder feeder = new Feeder(generator, beacons, rangeNotifier, monitorNotifier);
+
+        BLEKit.addZones(Collections.singletonList(zone));
+        try {
+            awaitMonitored(feeder.beaconIds);
+
+            final EventLatencies latencies = BLEKit.getEventLatencies();
+            latencies.reset();
+            final Progress progress = new Progress();
+            final long actionsBefore = StressAction.getPerformed();
+            System.gc();
+            //the global gc count advances only while allocations are counted
+            Debug.startAllocCounting();
+            final int gcBefore = Debug.getGlobalGcInvocationCount();
+
+            final HeapSampler heapSampler = new HeapSampler();
+            heapSampler.start();
+            final long start = SystemClock.elapsedRealtime();
+
+            try {
+                feeder.replay(samples, progress);
+                progress.awaitPending(0);
+            } finally {
+                heapSampler.interrupt();
+                Debug.stopAllocCounting();
+            }
+
+            final long duration = SystemClock.elapsedRealtime() - start;
+            final int gcCount = Debug.getGlobalGcInvocationCount() - gcBefore;
+            try {
+                heapSampler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            final Map<String, Long> stages = new LinkedHashMap<String, Long>();
+            for( Map.Entry<String, Histogram> entry : latencies.getStages().entrySet() ) {
+                stages.put(entry.getKey(), entry.getValue().getPercentile(99));
+            }
+            final Long p99 = stages.get(EventLatencies.TOTAL);
+            return new Result(beacons, triggers, samples.size(), progress.sent(), progress.processed(), progress.conflated(), progress.dropped(),
+                    StressAction.getPerformed()-actionsBefore, duration, p99!=null ? p99 : 0, stages, heapSampler.highWater, gcCount);
+        } finally {
+            //removal stops the service from sending events of beacons still present or leaving
+            BLEKit.removeZone(zone.id);
+        }
+    }
+
+    /**
+     * Stops the stub server of <code>httpOk</code> conditions.
+     */
+    public void close() {
+        stubServer.stop();
+    }
+
+    private void awaitMonitored( String[] beaconIds ) {
+        //the service answers added beacons with their current proximity once it monitors them
+        final long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MILLIS;
+        for( String beaconId : beaconIds ) {
+            while( !BLEKit.getCurrentBeaconStates().containsKey(beaconId) ) {
+                if( SystemClock.elapsedRealtime()>deadline ) {
+                    throw new IllegalStateException( "Beacons are not monitored by the service: " + beaconId );
+                }
+                SystemClock.sleep(10);
+            }
+        }
+    }
+
+    private void registerAction() {
+        if( BLEKit.getActionsFactory().get(StressAction.TYPE)==null ) {
+            BLEKit.getActionsFactory().addAction(new StressAction());
+        }
+    }
+
+    private String startStubServer() {
+        try {
+            stubServer.start();
+            return stubServer.getUrl();
+        } catch (IOException e) {
+            L.e( "Cannot start stub server, httpOk conditions are not generated", e );
+            return null;
+        }
+    }
+
+    /**
+     * Feeds ranging samples to the notifiers of the service.
+     */
+    private static class Feeder {
+        final String[] beaconIds;
+        final Region[] regions;
+        final byte[][] scanData;
+        final long[] lastSeen;
+        final Set<Integer> present = new HashSet<Integer>();
+        final RangeNotifier rangeNotifier;
+        final MonitorNotifier monitorNotifier;
+
+        Feeder(ZoneGenerator generator, int beacons, RangeNotifier rangeNotifier, MonitorNotifier monitorNotifier) {
+            this.beaconIds = new String[beacons];
+            this.regions = new Region[beacons];
+            this.scanData = new byte[beacons][];
+            this.lastSeen = new long[beacons];
+            this.rangeNotifier = rangeNotifier;
+            this.monitorNotifier = monitorNotifier;
+            for( int i=0; i<beacons; i++ ) {
+                beaconIds[i] = generator.getBeaconId(i);
+                regions[i] = new Region(beaconIds[i] + REGION_SUFFIX, ZoneGenerator.PROXIMITY_UUID, generator.getMajor(), i);
+                scanData[i] = MovementTrace.toScanData(ZoneGenerator.PROXIMITY_UUID, generator.getMajor(), i);
+            }
+        }
+
+        void replay( List<MovementTrace.Sample> samples, Progress progress ) {
+            long time = -1;
+            for( MovementTrace.Sample sample : samples ) {
+                if( sample.time!=time ) {
+                    time = sample.time;
+                    exit(time - EXIT_DELAY_MILLIS);
+                    progress.awaitPending(MAX_PENDING);
+                }
+
+                final IBeacon iBeacon = IBeacon.fromScanData(scanData[sample.beacon], sample.rssi);
+                if( iBeacon==null ) continue;
+                lastSeen[sample.beacon] = sample.time;
+
+                final Region region = regions[sample.beacon];
+                if( present.add(sample.beacon) ) {
+                    monitorNotifier.didEnterRegion(region);
+                }
+                //the service expects a list, as delivered by the beacon library
+                final Collection<IBeacon> ranged = new ArrayList<IBeacon>(1);
+                ranged.add(iBeacon);
+                rangeNotifier.didRangeBeaconsInRegion(ranged, region);
+            }
+        }
+
+        private void exit( long before ) {
+            final List<Integer> exited = new ArrayList<Integer>();
+            for( Integer beacon : present ) {
+                if( lastSeen[beacon]<before ) exited.add(beacon);
+            }
+            for( Integer beacon : exited ) {
+                present.remove(beacon);
+                monitorNotifier.didExitRegion(regions[beacon]);
+            }
+        }
+    }
+
+    /**
+     * Progress of events of this application through the service, since its creation.
+     */
+    private class Progress {
+        final Metrics.Counter processedCounter = Metrics.getInstance().counter("events.processed");
+        final long processedBefore = processedCounter.get();
+        final long sentBefore;
+        final long conflatedBefore;
+        final long droppedBefore;
+
+        Progress() {
+            final ClientEventQueue.Stats stats = getStats();
+            sentBefore = stats!=null ? stats.sent : 0;
+            conflatedBefore = stats!=null ? stats.conflated : 0;
+            droppedBefore = stats!=null ? stats.dropped : 0;
+        }
+
+        ClientEventQueue.Stats getStats() {
+            return BLEKitService.getEventQueueStats().get(context.getPackageName());
+        }
+
+        long sent() {
+            final ClientEventQueue.Stats stats = getStats();
+            return (stats!=null ? stats.sent : 0) - sentBefore;
+        }
+
+        long conflated() {
+            final ClientEventQueue.Stats stats = getStats();
+            return (stats!=null ? stats.conflated : 0) - conflatedBefore;
+        }
+
+        long dropped() {
+            final ClientEventQueue.Stats stats = getStats();
+            return (stats!=null ? stats.dropped : 0) - droppedBefore;
+        }
+
+        long processed() {
+            return processedCounter.get() - processedBefore;
+        }
+
+        long pending() {
+            final ClientEventQueue.Stats stats = getStats();
+            final long sent = (stats!=null ? stats.sent : 0) - sentBefore;
+            return (stats!=null ? stats.depth : 0) + sent - processed();
+        }
+
+        void awaitPending( int maxPending ) {
+            final long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MILLIS;
+            long pending;
+            while( (pending = pending())>maxPending ) {
+                if( SystemClock.elapsedRealtime()>deadline ) {
+                    throw new IllegalStateException( "Events are not processed, " + pending + " pending" );
+                }
+                SystemClock.sleep(1);
+            }
+        }
+    }
+
+    /**
+     * Samples heap usage until interrupted.
+     */
+    private static class HeapSampler extends Thread {
+        volatile long highWater;
+
+        HeapSampler() {
+            super("HeapSampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            final Runtime runtime = Runtime.getRuntime();
+            while( !isInterrupted() ) {
+                highWater = Math.max(highWater, runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(HEAP_SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            highWater = Math.max(highWater, runtime.totalMemory() - runtime.freeMemory());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.stress;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.radiusnetworks.ibeacon.IBeaconManager;
+import com.upnext.blekit.BLEKit;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs {@link StressDriver} against BLEKit and its service started in the test application.
+ */
+public class StressTest extends InstrumentationTestCase {
+
+    private static final String TAG = "StressTest";
+    private static final String START_ZONE_ID = "stress-start";
+    private static final int TRIGGERS = 5;
+    private static final long TRACE_MILLIS = 5 * 60 * 1000;
+
+    private Context context;
+    private StressDriver driver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        context = getInstrumentation().getTargetContext();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if( !BLEKit.isStarted() ) {
+                    BLEKit.create(context);
+                    BLEKit.addZones(Collections.singletonList(new ZoneGenerator(0, null).generate(START_ZONE_ID, 1, 1))).start(context);
+                }
+            }
+        });
+        awaitServiceConnected();
+        driver = new StressDriver(context);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        driver.close();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                BLEKit.removeZone(START_ZONE_ID);
+            }
+        });
+        super.tearDown();
+    }
+
+    public void testEventsAreProcessed() {
+        final List<StressDriver.Result> results = driver.run(new int[] { 10, 100 }, TRIGGERS, TRACE_MILLIS);
+        for( StressDriver.Result result : results ) {
+            Log.i( TAG, result.toString() );
+            assertTrue( "No events processed: " + result, result.processed>0 );
+        }
+    }
+
+    private void awaitServiceConnected() {
+        final IBeaconManager beaconManager = IBeaconManager.getInstanceForApplication(context);
+        final long deadline = SystemClock.elapsedRealtime() + StressDriver.TIMEOUT_MILLIS;
+        while( beaconManager.getRangingNotifier()==null ) {
+            assertTrue( "BLEKitService is not connected to the beacon library", SystemClock.elapsedRealtime()<deadline );
+            SystemClock.sleep(100);
+        }
+    }
+}
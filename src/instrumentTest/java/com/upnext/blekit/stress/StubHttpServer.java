@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.stress;
+
+import com.upnext.blekit.util.L;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal local HTTP server answering every request with <code>200 OK</code>, target of generated <code>httpOk</code> conditions.
+ * Requests are answered one at a time, connections are closed after every response.
+ */
+public class StubHttpServer {
+
+    private static final byte[] RESPONSE = ("HTTP/1.1 200 OK\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "Content-Length: 2\r\n" +
+            "Connection: close\r\n" +
+            "\r\n" +
+            "OK").getBytes();
+
+    private final AtomicLong requests = new AtomicLong();
+    private ServerSocket serverSocket;
+    private Thread thread;
+
+    /**
+     * Starts the server on a free port of the loopback interface.
+     *
+     * @throws IOException thrown if the server socket cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        if( serverSocket!=null ) return;
+
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final ServerSocket socket = serverSocket;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while( !socket.isClosed() ) {
+                    try {
+                        serve(socket.accept());
+                    } catch (IOException e) {
+                        if( !socket.isClosed() ) {
+                            L.e( "Stub request failed", e );
+                        }
+                    }
+                }
+            }
+        }, "StubHttpServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the server.
+     */
+    public synchronized void stop() {
+        if( serverSocket==null ) return;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            L.e( "Cannot close stub server", e );
+        }
+        serverSocket = null;
+        thread = null;
+    }
+
+    /**
+     * @return url of the server
+     * @throws IllegalStateException thrown if the server is not started
+     */
+    public synchronized String getUrl() throws IllegalStateException {
+        if( serverSocket==null ) {
+            throw new IllegalStateException( "Server is not started" );
+        }
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/ok";
+    }
+
+    /**
+     * @return number of requests answered
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    private void serve( Socket socket ) throws IOException {
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            String line;
+            //request line and headers, requests of httpOk conditions have no body
+            while( (line = reader.readLine())!=null && line.length()>0 ) {
+                //skip
+            }
+            final OutputStream out = socket.getOutputStream();
+            out.write(RESPONSE);
+            out.flush();
+            requests.incrementAndGet();
+        } finally {
+            socket.close();
+        }
+    }
+}
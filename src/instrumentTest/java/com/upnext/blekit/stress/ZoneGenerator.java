@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.stress;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.upnext.blekit.conditions.EnterCondition;
+import com.upnext.blekit.conditions.HttpOkCondition;
+import com.upnext.blekit.conditions.StaysCondition;
+import com.upnext.blekit.model.Action;
+import com.upnext.blekit.model.Beacon;
+import com.upnext.blekit.model.Condition;
+import com.upnext.blekit.model.Trigger;
+import com.upnext.blekit.model.Zone;
+import com.upnext.blekit.util.JsonParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates synthetic zones for stress testing.
+ *
+ * Beacons of a generated zone are laid out on a square grid {@link #BEACON_SPACING} meters apart, see {@link #getPosition(int, int)}.
+ * Every beacon has the requested number of triggers, their conditions cycle through:
+ * <ol>
+ *  <li><code>enter</code>
+ *  <li><code>stays</code> for {@link #STAYS_INTERVAL} seconds
+ *  <li><code>enter</code> with an occurence of 2
+ *  <li><code>httpOk</code> against the stub server (<code>enter</code> if no stub url was given)
+ *  <li><code>enter</code> with an expression on the occurence
+ * </ol>
+ * Actions of all triggers are {@link StressAction}s.
+ */
+public class ZoneGenerator {
+
+    /**
+     * Proximity UUID of generated beacons, lower case as beacon identifiers of the service.
+     */
+    public static final String PROXIMITY_UUID = "5a4bcfce-174e-4bac-a814-092e77f6b7e5";
+
+    /**
+     * Distance between neighbouring beacons in meters.
+     */
+    public static final double BEACON_SPACING = 10;
+
+    /**
+     * Interval of generated <code>stays</code> conditions in seconds.
+     */
+    public static final int STAYS_INTERVAL = 1;
+
+    private static final String EXPRESSION = "occurence % 2 == 1";
+    private static final int CONDITION_KINDS = 5;
+
+    private final int major;
+    private final String httpOkUrl;
+
+    /**
+     * @param major major of generated beacons, their minor is the beacon index
+     * @param httpOkUrl url checked by <code>httpOk</code> conditions, eg. {@link StubHttpServer#getUrl()}, may be <code>null</code>
+     */
+    public ZoneGenerator( int major, String httpOkUrl ) {
+        this.major = major;
+        this.httpOkUrl = httpOkUrl;
+    }
+
+    /**
+     * Generates a zone without location, so that it is always active.
+     *
+     * @param id zone identifier
+     * @param beacons number of beacons
+     * @param triggers number of triggers of every beacon
+     * @return zone
+     */
+    public Zone generate( String id, int beacons, int triggers ) {
+        final Zone zone = new Zone();
+        zone.id = id;
+        zone.name = "Stress " + beacons + "x" + triggers;
+        zone.version = 1;
+        zone.beacons = new ArrayList<Beacon>(beacons);
+
+        long triggerId = 1;
+        for( int i=0; i<beacons; i++ ) {
+            final Beacon beacon = new Beacon();
+            beacon.id = getBeaconId(i);
+            beacon.name = "beacon " + i;
+            beacon.triggers = new ArrayList<Trigger>(triggers);
+            for( int j=0; j<triggers; j++ ) {
+                beacon.triggers.add(trigger(triggerId++, j % CONDITION_KINDS));
+            }
+            zone.beacons.add(beacon);
+        }
+        return zone;
+    }
+
+    /**
+     * Serializes zones to JSON array, as accepted by {@link com.upnext.blekit.BLEKit#addZones(String)}.
+     *
+     * @param zones zones
+     * @return JSON
+     * @throws IllegalArgumentException thrown if zones cannot be serialized
+     */
+    public static String toJson( List<Zone> zones ) throws IllegalArgumentException {
+        try {
+            return JsonParser.getObjectMapper().writeValueAsString(zones);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException( "Cannot serialize zones", e );
+        }
+    }
+
+    /**
+     * @param index beacon index
+     * @return identifier of the beacon with given index
+     */
+    public String getBeaconId( int index ) {
+        return PROXIMITY_UUID + "+" + major + "+" + index;
+    }
+
+    /**
+     * @return major of generated beacons
+     */
+    public int getMajor() {
+        return major;
+    }
+
+    /**
+     * Returns position of a beacon on the grid.
+     *
+     * @param index beacon index
+     * @param beacons number of beacons
+     * @return x and y in meters
+     */
+    public static double[] getPosition( int index, int beacons ) {
+        final int columns = getColumns(beacons);
+        return new double[] { (index % columns) * BEACON_SPACING, (index / columns) * BEACON_SPACING };
+    }
+
+    /**
+     * @param beacons number of beacons
+     * @return number of columns of the beacon grid
+     */
+    public static int getColumns( int beacons ) {
+        return Math.max(1, (int) Math.ceil(Math.sqrt(beacons)));
+    }
+
+    private Trigger trigger( long id, int kind ) {
+        final Trigger trigger = new Trigger();
+        trigger.id = id;
+        trigger.name = "stress-" + id;
+        trigger.conditions = new ArrayList<Condition>(1);
+        trigger.action = new Action();
+        trigger.action.id = String.valueOf(id);
+        trigger.action.type = StressAction.TYPE;
+
+        final Condition condition = new Condition();
+        condition.id = id;
+        final ObjectNode parameters = JsonParser.getObjectMapper().createObjectNode();
+        switch( kind ) {
+            case 1:
+                condition.type = StaysCondition.TYPE;
+                parameters.put("interval", STAYS_INTERVAL);
+                break;
+            case 2:
+                condition.type = EnterCondition.TYPE;
+                parameters.put("occurence", 2);
+                break;
+            case 3:
+                if( httpOkUrl!=null ) {
+                    condition.type = HttpOkCondition.TYPE;
+                    parameters.put("url", httpOkUrl);
+                } else {
+                    condition.type = EnterCondition.TYPE;
+                }
+                break;
+            case 4:
+                condition.type = EnterCondition.TYPE;
+                condition.expression = EXPRESSION;
+                break;
+            default:
+                condition.type = EnterCondition.TYPE;
+                break;
+        }
+        condition.parameters = parameters;
+        trigger.conditions.add(condition);
+        return trigger;
+    }
+}
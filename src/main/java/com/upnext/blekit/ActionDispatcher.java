@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import android.content.Context;
+import android.os.Process;
+
+import com.upnext.blekit.actions.ActionFailedException;
+import com.upnext.blekit.actions.BLEAction;
+import com.upnext.blekit.util.L;
+import com.upnext.blekit.util.Metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Performs actions of triggers off the event processing thread.
+ *
+ * Every action type has its own bounded executor, so a slow action (eg. a Facebook check-in) never delays processing of
+ * beacon events nor actions of other types:
+ * <ul>
+ *  <li>at most {@link com.upnext.blekit.actions.BLEAction#getMaxConcurrency()} actions of a type run at the same time
+ *  <li>at most {@link #MAX_QUEUED} actions of a type wait in the queue, further ones are dropped
+ *  <li>a single attempt is interrupted after {@link com.upnext.blekit.actions.BLEAction#getTimeout()} ms
+ *  <li>an attempt failed with a retryable {@link com.upnext.blekit.actions.ActionFailedException} is repeated
+ *      up to {@link com.upnext.blekit.actions.BLEAction#getMaxRetries()} times, with exponential backoff
+ * </ul>
+ *
+ * Queue depths and counters per action type are available through {@link #getStats()}.
+ */
+public class ActionDispatcher {
+
+    /**
+     * Maximum number of queued actions per action type.
+     */
+    public static final int MAX_QUEUED = 32;
+
+    // First retry delay, doubled with every retry
+    private static final long BACKOFF_BASE = 1000;
+    // Maximum retry delay
+    private static final long BACKOFF_MAX = 60000;
+    // Idle executor threads are stopped after
+    private static final long KEEP_ALIVE = 30000;
+
+    private final Map<String, TypeExecutor> executors = new HashMap<String, TypeExecutor>();
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random();
+    private final Map<String, BLEAction> lastPerformed = new ConcurrentHashMap<String, BLEAction>();
+
+    private static final Metrics.Counter dispatched = Metrics.getInstance().counter("actions.dispatched");
+    private static final Metrics.Counter completed = Metrics.getInstance().counter("actions.completed");
+    private static final Metrics.Counter failed = Metrics.getInstance().counter("actions.failed");
+    private static final Metrics.Counter rejected = Metrics.getInstance().counter("actions.rejected");
+
+    public ActionDispatcher() {
+        ScheduledThreadPoolExecutor scheduledExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("BLEKit-actions-scheduler"));
+        scheduledExecutor.setKeepAliveTime(KEEP_ALIVE, TimeUnit.MILLISECONDS);
+        scheduledExecutor.allowCoreThreadTimeOut(true);
+        scheduler = scheduledExecutor;
+    }
+
+    /**
+     * Queues action for execution.
+     * Every execution performs a new instance of the action, so actions of the same type can run concurrently
+     * (see {@link com.upnext.blekit.BoundAction#isShared()}). Failure to instantiate the action counts as a failed action.
+     *
+     * @param action action bound to its parameters, may be <code>null</code> if there is no implementation of the action type
+     * @param context context, its application context is used for performing the action
+     * @param backgroundMode background mode at the time of dispatching
+     */
+    public void dispatch( BoundAction action, Context context, BackgroundMode backgroundMode ) {
+        if( action==null ) {
+            L.d("Did not find action implementation");
+            return;
+        }
+
+        Task task = new Task(getExecutor(action), action, context.getApplicationContext(),
+                new BackgroundMode(backgroundMode.activity, backgroundMode.inBackground));
+        dispatched.inc();
+        submit(task);
+    }
+
+    /**
+     * Returns the last performed instance of given action type.
+     * Used for processing intents of notifications created by actions, as the instance holds parameters of the action.
+     *
+     * @param type action type
+     * @return action instance or <code>null</code> if no action of given type was performed
+     */
+    public BLEAction getLastPerformed( String type ) {
+        return lastPerformed.get(type);
+    }
+
+    /**
+     * Returns statistics of all action types dispatched so far.
+     *
+     * @return statistics by action type
+     */
+    public synchronized Map<String, Stats> getStats() {
+        Map<String, Stats> stats = new HashMap<String, Stats>();
+        for( Map.Entry<String, TypeExecutor> entry : executors.entrySet() ) {
+            stats.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return stats;
+    }
+
+    private synchronized TypeExecutor getExecutor( BoundAction action ) {
+        TypeExecutor executor = executors.get(action.getType());
+        if( executor==null ) {
+            //a shared instance holds parameters of the invocation, it must not be performed concurrently
+            final int maxConcurrency = action.isShared() ? 1 : Math.max(1, action.getPrototype().getMaxConcurrency());
+            executor = new TypeExecutor(action.getType(), maxConcurrency);
+            executors.put(action.getType(), executor);
+        }
+        return executor;
+    }
+
+    private void submit( Task task ) {
+        try {
+            task.executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.executor.rejected.incrementAndGet();
+            rejected.inc();
+            L.e( "Action '" + task.action.getType() + "' dropped, " + task.executor.getQueue().size() + " actions queued" );
+        }
+    }
+
+    private void retry( final Task task, int attempt ) {
+        long delay = Math.min(BACKOFF_MAX, BACKOFF_BASE << (attempt-1));
+        //jitter, so that failed actions do not retry all at once
+        delay = delay/2 + (long) (random.nextDouble() * delay/2);
+        L.d( "retrying '" + task.action.getType() + "' in " + delay + " ms" );
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                submit(task);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Statistics of a single action type.
+     */
+    public static class Stats {
+        /** Number of actions waiting in the queue */
+        public final int queued;
+        /** Number of actions being performed */
+        public final int active;
+        /** Number of actions performed successfully */
+        public final long completed;
+        /** Number of actions that failed after all retries */
+        public final long failed;
+        /** Number of retried attempts */
+        public final long retried;
+        /** Number of attempts interrupted after timeout */
+        public final long timedOut;
+        /** Number of actions dropped because the queue was full */
+        public final long rejected;
+
+        Stats(int queued, int active, long completed, long failed, long retried, long timedOut, long rejected) {
+            this.queued = queued;
+            this.active = active;
+            this.completed = completed;
+            this.failed = failed;
+            this.retried = retried;
+            this.timedOut = timedOut;
+            this.rejected = rejected;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "queued=" + queued +
+                    ", active=" + active +
+                    ", completed=" + completed +
+                    ", failed=" + failed +
+                    ", retried=" + retried +
+                    ", timedOut=" + timedOut +
+                    ", rejected=" + rejected +
+                    '}';
+        }
+    }
+
+    private static class TypeExecutor extends ThreadPoolExecutor {
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong retried = new AtomicLong();
+        final AtomicLong timedOut = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+
+        TypeExecutor(String type, int maxConcurrency) {
+            super(maxConcurrency, maxConcurrency, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new NamedThreadFactory("BLEKit-action-" + type));
+            allowCoreThreadTimeOut(true);
+        }
+
+        Stats getStats() {
+            return new Stats(getQueue().size(), getActiveCount(), completed.get(), failed.get(), retried.get(), timedOut.get(), rejected.get());
+        }
+    }
+
+    private class Task implements Runnable {
+        final TypeExecutor executor;
+        final BoundAction action;
+        final Context context;
+        final BackgroundMode backgroundMode;
+        int attempt;
+
+        Task(TypeExecutor executor, BoundAction action, Context context, BackgroundMode backgroundMode) {
+            this.executor = executor;
+            this.action = action;
+            this.context = context;
+            this.backgroundMode = backgroundMode;
+        }
+
+        @Override
+        public void run() {
+            attempt++;
+            final Thread thread = Thread.currentThread();
+            final boolean[] timeout = new boolean[1];
+            BLEAction bleAction = null;
+            ScheduledFuture<?> watchdog = null;
+
+            try {
+                bleAction = action.newInstance();
+                watchdog = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (timeout) {
+                            if( timeout[0] ) return;
+                            timeout[0] = true;
+                        }
+                        L.e( "Action '" + action.getType() + "' timed out" );
+                        thread.interrupt();
+                    }
+                }, bleAction.getTimeout(), TimeUnit.MILLISECONDS);
+
+                lastPerformed.put(action.getType(), bleAction);
+                bleAction.performAction(context, backgroundMode);
+                executor.completed.incrementAndGet();
+                completed.inc();
+            } catch (ActionFailedException e) {
+                L.e( "Action '" + action.getType() + "' failed, attempt " + attempt, e );
+                if( e.isRetryable() && attempt<=bleAction.getMaxRetries() ) {
+                    executor.retried.incrementAndGet();
+                    retry(this, attempt);
+                } else {
+                    executor.failed.incrementAndGet();
+                    failed.inc();
+                }
+            } catch (RuntimeException e) {
+                L.e( "Action '" + action.getType() + "' failed", e );
+                executor.failed.incrementAndGet();
+                failed.inc();
+            } finally {
+                if( watchdog!=null ) {
+                    watchdog.cancel(false);
+                }
+                synchronized (timeout) {
+                    if( timeout[0] ) {
+                        executor.timedOut.incrementAndGet();
+                    }
+                    //no interrupt may arrive from now on
+                    timeout[0] = true;
+                }
+                //clear interrupt of a timed out attempt, so that it does not affect next action on this thread
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, name);
+        }
+    }
+}
@@ -34,9 +34,12 @@ import com.upnext.blekit.actions.YelpAction;
 import com.upnext.blekit.actions.facebook.FacebookCheckinAction;
 import com.upnext.blekit.actions.foursquare.FoursquareCheckinAction;
 import com.upnext.blekit.util.JsonParser;
+import com.upnext.blekit.util.L;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Factory providing actions ({@link com.upnext.blekit.actions.BLEAction}) for BLEKit.
@@ -51,7 +54,11 @@ import java.util.Map;
  *  <li>{@link com.upnext.blekit.actions.YelpAction}
  * </ul>
  *
+ * Basic actions are instantiated when they are first needed, so creating the factory does not load their classes.
+ *
  * To add a custom action to the factory, call {@link #addAction(com.upnext.blekit.actions.BLEAction)} passing your implementation as the parameter.
+ * The registered instance is performed for every trigger of its type, unless the action overrides
+ * {@link com.upnext.blekit.actions.BLEAction#getInstance()} to provide a new instance for every invocation.
  *
  * In case you want to overwrite a default action with the same type ({@link com.upnext.blekit.actions.BLEAction#getType()}, you have to remove it from the
  * factory first - {@link #remove(String)}, eg. to remove Facebook check-in action call:
@@ -70,7 +77,9 @@ import java.util.Map;
 public class ActionsFactory {
 
     private Map<String, BLEAction> actionsMap;
-    private JsonParser jsonParser = new JsonParser();
+    private Map<String, Class<? extends BLEAction>> basicActions = new HashMap<String, Class<? extends BLEAction>>();
+    private Set<String> sharedActions = new HashSet<String>();
+    private JsonParser jsonParser = JsonParser.getInstance();
 
     /**
      * Default constructor.
@@ -88,16 +97,19 @@ public class ActionsFactory {
      * @param action action implementation
      * @throws IllegalArgumentException thrown if action with given type already exists
      */
-    public void addAction(BLEAction action) throws IllegalArgumentException {
+    public synchronized void addAction(BLEAction action) throws IllegalArgumentException {
         if( action==null ) return;
-        if( actionsMap.containsKey( action.getType() ) ) {
+        if( actionsMap.containsKey( action.getType() ) || basicActions.containsKey( action.getType() ) ) {
             throw new IllegalArgumentException( "Action with given type already exists: " + action.getType() );
         }
         actionsMap.put(action.getType(), action);
+        if( !providesInstances(action) ) {
+            sharedActions.add(action.getType());
+        }
     }
 
     /**
-     * Returns action implementation of given type.
+     * Returns a new instance of action implementation of given type, with given parameters.
      *
      * @param type type of action (eg. alert, facebook-chekin, yelp, etc.)
      * @param parameters parameters specified in JSON configuration to be provided to condition
@@ -105,15 +117,27 @@ public class ActionsFactory {
      * @return action instance if found or null if not found
      */
     public BLEAction get( String type, JsonNode parameters ) {
-        BLEAction action = actionsMap.get(type);
+        BoundAction boundAction = bind(type, parameters);
+        return boundAction!=null ? boundAction.newInstance() : null;
+    }
+
+    /**
+     * Binds action implementation of given type to given parameters.
+     * Parameters are deserialized once, the returned bound action creates a new action instance for every invocation.
+     *
+     * @param type type of action (eg. alert, facebook-chekin, yelp, etc.)
+     * @param parameters parameters specified in JSON configuration to be provided to action
+     *
+     * @return bound action if found or null if not found
+     */
+    public BoundAction bind( String type, JsonNode parameters ) {
+        BLEAction action = get(type);
 
         if( action==null ) {
             return null;
         }
 
-        action.setParameters(jsonParser.parse(parameters, action.getParameterClass()));
-
-        return action;
+        return new BoundAction(action, jsonParser.parse(parameters, action.getParameterClass()), isShared(type));
     }
 
     /**
@@ -123,8 +147,15 @@ public class ActionsFactory {
      *
      * @return action instance if found or null if not found
      */
-    public BLEAction get( String type ) {
-        return actionsMap.get(type);
+    public synchronized BLEAction get( String type ) {
+        BLEAction action = actionsMap.get(type);
+        if( action==null && basicActions.containsKey(type) ) {
+            action = newInstance(basicActions.remove(type));
+            if( action!=null ) {
+                actionsMap.put(type, action);
+            }
+        }
+        return action;
     }
 
     /**
@@ -132,27 +163,53 @@ public class ActionsFactory {
      *
      * @param type action type
      */
-    public void remove( String type ) {
+    public synchronized void remove( String type ) {
         actionsMap.remove(type);
+        basicActions.remove(type);
+        sharedActions.remove(type);
     }
 
-    private void provideBasicActions() {
-        AlertAction alertAction = new AlertAction();
-        actionsMap.put(alertAction.getType(), alertAction);
-
-        ContentAction contentAction = new ContentAction();
-        actionsMap.put(contentAction.getType(), contentAction);
-
-        FacebookCheckinAction facebookCheckinAction = new FacebookCheckinAction();
-        actionsMap.put(facebookCheckinAction.getType(), facebookCheckinAction);
+    private synchronized boolean isShared( String type ) {
+        return sharedActions.contains(type);
+    }
 
-        FoursquareCheckinAction foursquareCheckinAction = new FoursquareCheckinAction();
-        actionsMap.put(foursquareCheckinAction.getType(), foursquareCheckinAction);
+    private void provideBasicActions() {
+        basicActions.put(AlertAction.TYPE, AlertAction.class);
+        basicActions.put(ContentAction.TYPE, ContentAction.class);
+        basicActions.put(FacebookCheckinAction.TYPE, FacebookCheckinAction.class);
+        basicActions.put(FoursquareCheckinAction.TYPE, FoursquareCheckinAction.class);
+        basicActions.put(NotificationAction.TYPE, NotificationAction.class);
+        basicActions.put(YelpAction.TYPE, YelpAction.class);
+    }
 
-        NotificationAction notificationAction = new NotificationAction();
-        actionsMap.put(notificationAction.getType(), notificationAction);
+    /**
+     * Checks whether action provides a new instance for every invocation.
+     * Actions relying on the default {@link com.upnext.blekit.actions.BLEAction#getInstance()} may be anonymous or configured
+     * through their constructor, so their registered instance is used instead.
+     */
+    private static boolean providesInstances( BLEAction action ) {
+        try {
+            if( action.getClass().getMethod("getInstance").getDeclaringClass()==BLEAction.class ) {
+                return false;
+            }
+            final BLEAction instance = action.getInstance();
+            return instance!=null && instance!=action;
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (RuntimeException e) {
+            L.e( "Could not instantiate action '" + action.getType() + "', the registered instance will be used", e );
+            return false;
+        }
+    }
 
-        YelpAction yelpAction = new YelpAction();
-        actionsMap.put(yelpAction.getType(), yelpAction);
+    private static BLEAction newInstance( Class<? extends BLEAction> actionClass ) {
+        try {
+            return actionClass.newInstance();
+        } catch (InstantiationException e) {
+            L.e( "Could not instantiate " + actionClass.getName(), e );
+        } catch (IllegalAccessException e) {
+            L.e( "Could not instantiate " + actionClass.getName(), e );
+        }
+        return null;
     }
 }
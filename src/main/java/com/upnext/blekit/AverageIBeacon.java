@@ -29,6 +29,7 @@ import com.radiusnetworks.ibeacon.IBeacon;
 
 /**
  * Beacon extension class which provides better sampling of results.
+ * Distance of every sample is estimated with {@link com.upnext.blekit.DistanceModel}.
  *
  *
  * @author Roman Wozniak (roman@up-next.com)
@@ -36,7 +37,14 @@ import com.radiusnetworks.ibeacon.IBeacon;
 public class AverageIBeacon extends IBeacon {
 
     public static final int SAMPLES_REQUIRED = 3;
-    public static final int RELATIVE_TX_POWER = -58;
+    /**
+     * @deprecated RSSI at 1 meter is resolved per beacon by {@link com.upnext.blekit.DistanceModel}
+     */
+    @Deprecated
+    public static final int RELATIVE_TX_POWER = DistanceModel.DEFAULT_TX_POWER;
+
+    private final DistanceModel model;
+    private final String beaconId;
 
     private int numSamples = 0;
 
@@ -45,10 +53,17 @@ public class AverageIBeacon extends IBeacon {
     private long lastSeen;
 
     public AverageIBeacon(IBeacon otherIBeacon) {
+        this(otherIBeacon, DistanceModel.getInstance());
+    }
+
+    public AverageIBeacon(IBeacon otherIBeacon, DistanceModel model) {
         super(otherIBeacon);
+        this.model = model;
+        beaconId = getProximityUuid() + "+" + getMajor() + "+" + getMinor();
         lastSeen = System.currentTimeMillis();
-        numSamples = 0;
-        if( accuracy<0 ) accuracy=0d;
+        //the first advertisement is the first sample
+        accuracy = distance(otherIBeacon);
+        numSamples = 1;
     }
 
     public int getNumSamples() {
@@ -60,10 +75,15 @@ public class AverageIBeacon extends IBeacon {
     }
 
     public void update( IBeacon otherIBeacon ) {
-        accuracy += calculateAccuracy( RELATIVE_TX_POWER, otherIBeacon.getRssi() );
+        accuracy += distance(otherIBeacon);
         numSamples++;
     }
 
+    private double distance( IBeacon iBeacon ) {
+        final double distance = model.distance(beaconId, iBeacon.getTxPower(), iBeacon.getRssi());
+        return distance<0 ? 0d : distance;
+    }
+
     public void approximate() {
         accuracy = accuracy/numSamples;
         numSamples = 1;
@@ -34,10 +34,12 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.location.LocationManager;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.upnext.blekit.actions.BLEAction;
 import com.upnext.blekit.conditions.BLECondition;
 import com.upnext.blekit.conditions.OccurenceCondition;
@@ -52,16 +54,34 @@ import com.upnext.blekit.model.Zone;
 import com.upnext.blekit.util.BeaconPreferences;
 import com.upnext.blekit.util.BeaconsDB;
 import com.upnext.blekit.util.JsonParser;
+import com.upnext.blekit.util.EventLatencies;
+import com.upnext.blekit.util.EventTrace;
 import com.upnext.blekit.util.L;
+import com.upnext.blekit.util.Metrics;
+import com.upnext.blekit.util.StartupTrace;
+import com.upnext.blekit.util.TriggerLimiter;
+import com.upnext.blekit.util.ZoneCache;
+import com.upnext.blekit.util.ZoneIndex;
+import com.upnext.blekit.util.ZoneSnapshot;
+import com.upnext.blekit.util.expression.ExpressionBudget;
 import com.upnext.blekit.util.http.HttpClient;
 import com.upnext.blekit.util.http.Response;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * Basic class used for BLEKit lifecycle management and configuration.
@@ -102,6 +122,15 @@ public class BLEKit {
     private static BLEKit _bleKit;
     private static ConditionsFactory mConditionsFactory;
     private static ActionsFactory mActionsFactory;
+    private static ActionDispatcher mActionDispatcher = new ActionDispatcher();
+    private static final StartupTrace mStartupTrace = new StartupTrace("BLEKit");
+
+    private static final Metrics.Counter mCommandsSent = Metrics.getInstance().counter("ipc.commands.sent");
+    private static final Metrics.Counter mIntentsReceived = Metrics.getInstance().counter("ipc.intents.received");
+    private static final Metrics.Counter mEventsProcessed = Metrics.getInstance().counter("events.processed");
+    private static final Metrics.Counter mTriggersEvaluated = Metrics.getInstance().counter("triggers.evaluated");
+    private static final Metrics.Counter mTriggersFired = Metrics.getInstance().counter("triggers.fired");
+    private static final EventLatencies mEventLatencies = new EventLatencies();
 
     private static String jsonUrl;
     private static String jsonContent;
@@ -113,27 +142,83 @@ public class BLEKit {
 
     private static BLEKitStateListener mStateListener;
     private static Map<String, Proximity> mCurrentBeaconsStates = new HashMap<String, Proximity>();
-    private static JsonParser jsonParser = new JsonParser();
 
     private static Intent mEventToProcess;
     private static Zone mCurrentZone = null;
+    /**
+     * Query parameter with version of the cached zone, sent when fetching zone from json url.
+     * Server may respond with a delta against that version, see {@link com.upnext.blekit.util.ZoneCache#DELTA_CONTENT_TYPE}.
+     */
+    private static final String ZONE_VERSION_PARAM = "zone_version";
+
+    /**
+     * Maximum fraction of the zone ttl by which its revalidation is advanced.
+     */
+    private static final double REFRESH_JITTER = 0.1;
+
+    /**
+     * Minimum delay of zone revalidation in milliseconds.
+     */
+    private static final long REFRESH_MIN_DELAY = 60*1000;
+
+    private static final Handler mRefreshHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if( _bleKit!=null && _bleKit.mBound && jsonUrl!=null ) {
+                _bleKit.fetchJson();
+            }
+        }
+    };
+    private static final Random mRandom = new Random();
+
+    private static ZoneSnapshot mZoneSnapshot = null;
+    private static volatile CompiledZone mCompiledZone = CompiledZone.compile((Zone) null, null);
+
+    private static ZoneIndex mZoneIndex = new ZoneIndex();
+    private static volatile Map<String, CompiledZone> mActiveZones = Collections.emptyMap();
+    private static boolean mHasLocation;
+    private static double mLatitude;
+    private static double mLongitude;
 
     private BeaconsDB beaconsDB;
+    private TriggerLimiter triggerLimiter;
+    private ZoneCache zoneCache;
     private Class targetActivityForNotifications;
     private boolean mBound;
+    private boolean mBeaconsSent;
     private Context mContext;
 
 
     private BLEKit(Context context) {
         mContext = context;
-        String zoneJson = BeaconPreferences.getLastZoneJson(context);
-        if( zoneJson!=null ) {
-            mCurrentZone = jsonParser.parse(zoneJson);
+        mConditionsFactory = new ConditionsFactory();
+        mActionsFactory = new ActionsFactory();
+
+        zoneCache = new ZoneCache(context);
+        ZoneSnapshot snapshot = zoneCache.readSnapshot();
+        if( snapshot!=null ) {
+            setCurrentZone(snapshot);
+        } else {
+            Zone zone = zoneCache.read();
+            if( zone!=null ) {
+                setCurrentZone(zone);
+            }
         }
 
+        //process restarted to handle a beacon event, zones added before are needed to process it
+        if( mZoneIndex.isEmpty() ) {
+            for( Zone zone : zoneCache.readAddedZones() ) {
+                if( zone!=null && zone.id!=null ) {
+                    mZoneIndex.put(zone);
+                }
+            }
+        }
+
+        mStartupTrace.mark("zone_loaded");
+
         beaconsDB = new BeaconsDB(context);
-        mConditionsFactory = new ConditionsFactory();
-        mActionsFactory = new ActionsFactory();
+        triggerLimiter = new TriggerLimiter(beaconsDB);
     }
 
     /**
@@ -149,6 +234,7 @@ public class BLEKit {
         L.d( "create" );
 
         _bleKit = new BLEKit(context);
+        mStartupTrace.mark("created");
 
         return _bleKit;
     }
@@ -165,17 +251,35 @@ public class BLEKit {
         checkInitialized();
         L.d( "start" );
 
-        if( jsonContent==null && jsonUrl==null ) {
-            throw new IllegalArgumentException( "You have to provide either jsonUrl or jsonContent" );
+        if( jsonContent==null && jsonUrl==null && mZoneIndex.isEmpty() ) {
+            throw new IllegalArgumentException( "You have to provide either jsonUrl, jsonContent or zones" );
         }
 
+        if( !mHasLocation ) {
+            refreshLocation(context);
+        }
+        updateActiveZones();
+
         if( jsonUrl!=null ) {
-            fetchJson();
-        } else {
-            _bleKit.updateZone(jsonContent);
+            if( mCurrentZone!=null && zoneCache.isFresh(jsonUrl, mCurrentZone.ttl) ) {
+                //cached zone is within its ttl, revalidate it when it expires
+                L.d( "cached zone is fresh" );
+                sendUpdateBeacons();
+                scheduleRefresh();
+            } else {
+                fetchJson();
+            }
+        } else if( jsonContent!=null ) {
+            _bleKit.updateZone(_bleKit.zoneCache.store(jsonContent));
+        }
+
+        if( !mBeaconsSent && !mActiveZones.isEmpty() ) {
+            //zone of json url is not available yet, start with zones near the device
+            sendStart();
         }
 
         mBound = true;
+        mStartupTrace.mark("started");
 
         if( mStateListener!=null ) {
             mStateListener.onBLEKitStarted();
@@ -229,12 +333,150 @@ public class BLEKit {
         jsonContent = content;
 
         if( _bleKit.mBound ) {
-            _bleKit.updateZone(jsonContent);
+            _bleKit.updateZone(_bleKit.zoneCache.store(jsonContent));
+        }
+
+        return _bleKit;
+    }
+
+    /**
+     * Adds zones to the zone provided with json url or content, replacing zones with the same identifiers.
+     *
+     * Zones are indexed by their location and radius (see {@link #setZoneRadiusUnit(double)}). Only zones near the last known location
+     * of the device are active - their beacons are scanned and their triggers processed, see {@link #setLocation(double, double)}.
+     * Zones without location are always active.
+     *
+     * Added zones are cached and loaded again by {@link #create(android.content.Context)} when the process is restarted,
+     * until they are removed with {@link #removeZone(String)}.
+     *
+     * @param zones zones, zones without an identifier are ignored
+     * @return BLEKit instance
+     * @throws IllegalStateException thrown if BLEKit was not initialized.
+     */
+    public static BLEKit addZones( Collection<Zone> zones ) throws IllegalStateException {
+        checkInitialized();
+
+        for( Zone zone : zones ) {
+            if( zone==null || zone.id==null ) {
+                L.d( "ignoring zone without id" );
+                continue;
+            }
+            mZoneIndex.put(zone);
+            _bleKit.triggerLimiter.prune(zone.id, zone);
         }
+        _bleKit.zoneCache.storeAddedZones(mZoneIndex.getZones());
+        _bleKit.updateActiveZones();
 
         return _bleKit;
     }
 
+    /**
+     * Adds zones from given JSON array to the zone provided with json url or content.
+     *
+     * @param content String containing JSON array of zones
+     * @return BLEKit instance
+     * @throws IllegalStateException thrown if BLEKit was not initialized.
+     * @throws IllegalArgumentException thrown if content is not a valid JSON array of zones.
+     * @see #addZones(java.util.Collection)
+     */
+    public static BLEKit addZones( String content ) throws IllegalStateException, IllegalArgumentException {
+        checkInitialized();
+
+        List<Zone> zones = content!=null ? JsonParser.getInstance().parseZones(content) : null;
+        if( zones==null ) {
+            throw new IllegalArgumentException( "Content is not a valid JSON array of zones" );
+        }
+        return addZones(zones);
+    }
+
+    /**
+     * Removes zone added with {@link #addZones(java.util.Collection)}.
+     *
+     * @param zoneId zone identifier
+     * @return BLEKit instance
+     * @throws IllegalStateException thrown if BLEKit was not initialized.
+     */
+    public static BLEKit removeZone( String zoneId ) throws IllegalStateException {
+        checkInitialized();
+
+        if( mZoneIndex.remove(zoneId)!=null ) {
+            _bleKit.triggerLimiter.prune(zoneId, null);
+            _bleKit.zoneCache.storeAddedZones(mZoneIndex.getZones());
+            _bleKit.updateActiveZones();
+        }
+        return _bleKit;
+    }
+
+    /**
+     * Sets last known (coarse) location of the device, activating zones near it and deactivating the others.
+     * If not set, the last known location of the device is read on start, provided the application holds a location permission.
+     *
+     * @param latitude latitude
+     * @param longitude longitude
+     * @return BLEKit instance
+     * @throws IllegalStateException thrown if BLEKit was not initialized.
+     */
+    public static BLEKit setLocation( double latitude, double longitude ) throws IllegalStateException {
+        checkInitialized();
+
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mHasLocation = true;
+        _bleKit.updateActiveZones();
+
+        return _bleKit;
+    }
+
+    /**
+     * Sets distance from the zone boundary within which a zone is active.
+     * Default is {@link com.upnext.blekit.util.ZoneIndex#DEFAULT_ACTIVATION_DISTANCE} km.
+     *
+     * @param distance distance in kilometers
+     * @return BLEKit instance
+     * @throws IllegalStateException thrown if BLEKit was not initialized.
+     */
+    public static BLEKit setZoneActivationDistance( double distance ) throws IllegalStateException {
+        checkInitialized();
+        reindexZones(new ZoneIndex(distance, mZoneIndex.getRadiusUnit()));
+        return _bleKit;
+    }
+
+    /**
+     * Sets unit of {@link com.upnext.blekit.model.Zone#radius} of added zones, as the zone format does not define it.
+     * Default is {@link com.upnext.blekit.util.ZoneIndex#DEFAULT_RADIUS_UNIT} (meters).
+     *
+     * @param kilometers unit in kilometers, eg. {@link com.upnext.blekit.util.ZoneIndex#RADIUS_KILOMETERS} for zones with radius in kilometers
+     * @return BLEKit instance
+     * @throws IllegalStateException thrown if BLEKit was not initialized.
+     * @throws IllegalArgumentException thrown if the unit is not positive
+     */
+    public static BLEKit setZoneRadiusUnit( double kilometers ) throws IllegalStateException, IllegalArgumentException {
+        checkInitialized();
+        reindexZones(new ZoneIndex(mZoneIndex.getActivationDistance(), kilometers));
+        return _bleKit;
+    }
+
+    private static void reindexZones( ZoneIndex zoneIndex ) {
+        for( Zone zone : mZoneIndex.getZones() ) {
+            zoneIndex.put(zone);
+        }
+        mZoneIndex = zoneIndex;
+        _bleKit.updateActiveZones();
+    }
+
+    /**
+     * Returns zones added with {@link #addZones(java.util.Collection)} that are currently active.
+     *
+     * @return active zones
+     */
+    public static List<Zone> getActiveZones() {
+        final List<Zone> zones = new ArrayList<Zone>();
+        for( CompiledZone compiled : mActiveZones.values() ) {
+            zones.add(compiled.getSource());
+        }
+        return zones;
+    }
+
     /**
      * If a JSON url was provided previously (and was valid), then it is fetched again and all actions are triggered.
      *
@@ -274,6 +516,11 @@ public class BLEKit {
         L.d("stop");
         mCurrentBeaconsStates = new HashMap<String, Proximity>();
 
+        if( _bleKit!=null ) {
+            _bleKit.beaconsDB.checkpoint();
+        }
+        cancelRefresh();
+
         if( _bleKit!=null && _bleKit.mBound ) {
 
             _bleKit.sendStop();
@@ -311,6 +558,7 @@ public class BLEKit {
     public BLEKit addAction( BLEAction action ) throws IllegalStateException {
         checkStarted();
         mActionsFactory.addAction(action);
+        compileZone();
         return _bleKit;
     }
 
@@ -337,6 +585,39 @@ public class BLEKit {
         }
     }
 
+    /**
+     * Sets execution budget for condition expressions evaluated by JavaScript engine (Rhino).
+     * Evaluation exceeding the budget is aborted and the condition is not met.
+     * An expression exceeding its budget repeatedly is disabled until next zone update.
+     *
+     * Defaults are {@link com.upnext.blekit.util.expression.ExpressionBudget#DEFAULT_MAX_MILLIS} ms and
+     * {@link com.upnext.blekit.util.expression.ExpressionBudget#DEFAULT_MAX_INSTRUCTIONS} instructions.
+     *
+     * @param maxMillis maximum wall-clock time of a single evaluation in milliseconds
+     * @param maxInstructions maximum number of interpreter instructions of a single evaluation
+     * @return BLEKit instance
+     * @see com.upnext.blekit.util.expression.ExpressionBudget
+     */
+    public static BLEKit setExpressionBudget( long maxMillis, int maxInstructions ) {
+        ExpressionBudget.configure( maxMillis, maxInstructions, ExpressionBudget.getMaxStrikes() );
+        return _bleKit;
+    }
+
+    /**
+     * Sets how beacon events counted by occurence conditions are written to the local database.
+     * By default they are queued and written in batches on a background thread.
+     *
+     * @param durability durability mode
+     * @return BLEKit instance
+     * @throws IllegalStateException thrown if BLEKit was not initialized.
+     * @see com.upnext.blekit.util.BeaconsDB.Durability
+     */
+    public static BLEKit setEventsDurability( BeaconsDB.Durability durability ) throws IllegalStateException {
+        checkInitialized();
+        _bleKit.beaconsDB.setDurability(durability);
+        return _bleKit;
+    }
+
     /**
      * Sets listener for beacon events {@link com.upnext.blekit.BeaconEvent}
      * Events will arrive despite the current configuration (so you might have only a 'leave' condition with action defined in configuration and at the same time receive notifications of proximity events through this listener).
@@ -385,6 +666,68 @@ public class BLEKit {
         return mConditionsFactory;
     }
 
+    /**
+     * Returns action of given trigger of the current zone, bound to its parameters.
+     *
+     * @param trigger trigger of the current zone
+     * @return bound action or <code>null</code> if there is no implementation of the action type
+     */
+    public static BoundAction getBoundAction( Trigger trigger ) {
+        BoundAction boundAction = mCompiledZone.getAction(trigger);
+        if( boundAction==null ) {
+            for( CompiledZone compiled : mActiveZones.values() ) {
+                boundAction = compiled.getAction(trigger);
+                if( boundAction!=null ) break;
+            }
+        }
+        if( boundAction==null && trigger.action!=null && mActionsFactory!=null ) {
+            //trigger of a previous zone
+            boundAction = mActionsFactory.bind(trigger.action.type, trigger.action.parameters);
+        }
+        return boundAction;
+    }
+
+    /**
+     * Returns metrics of the library in this process, eg. trigger evaluations, condition evaluation times,
+     * database and HTTP latencies and dispatched actions.
+     * When the service runs in this process, its metrics (ranging callbacks, registered regions, sent events) are included.
+     *
+     * @return metrics registry
+     */
+    public static Metrics getMetrics() {
+        return Metrics.getInstance();
+    }
+
+    /**
+     * Returns latencies of beacon event processing stages, from ranging in the service to dispatch of trigger actions.
+     * Latencies are available overall, per zone and per trigger.
+     *
+     * @return event latencies
+     */
+    public static EventLatencies getEventLatencies() {
+        return mEventLatencies;
+    }
+
+    /**
+     * Returns startup phase timings of BLEKit in this process, measured from loading of the BLEKit class.
+     * Includes time to first beacon event ({@link com.upnext.blekit.util.StartupTrace#FIRST_EVENT})
+     * and to first dispatched action ({@link com.upnext.blekit.util.StartupTrace#FIRST_TRIGGER}).
+     *
+     * @return startup trace
+     */
+    public static StartupTrace getStartupTrace() {
+        return mStartupTrace;
+    }
+
+    /**
+     * Returns dispatcher performing actions of triggers, eg. for monitoring its queues.
+     *
+     * @return action dispatcher
+     */
+    public static ActionDispatcher getActionDispatcher() {
+        return mActionDispatcher;
+    }
+
     /**
      * Returns actions factory.
      * Useful when you want to remove any actions provided by default or get an implementation by type.
@@ -407,6 +750,7 @@ public class BLEKit {
     public static BLEKit removeActionByType( String actionType ) throws IllegalStateException {
         checkInitialized();
         mActionsFactory.remove(actionType);
+        compileZone();
         return _bleKit;
     }
 
@@ -502,7 +846,11 @@ public class BLEKit {
         String type = intent.getStringExtra("type");
         if( type==null ) return;
 
-        BLEAction action = mActionsFactory.get(type);
+        //the instance that created the notification, it holds the parameters
+        BLEAction action = mActionDispatcher.getLastPerformed(type);
+        if( action==null ) {
+            action = mActionsFactory.get(type);
+        }
         if( action!=null ) {
             action.processIntent( intent, activity );
         }
@@ -543,27 +891,56 @@ public class BLEKit {
      */
     private void fetchJson() {
         L.d(".");
-        FetchJsonAsyncTask task = new FetchJsonAsyncTask();
+        cancelRefresh();
+        FetchJsonAsyncTask task = new FetchJsonAsyncTask( mCurrentZone!=null ? mCurrentZone.version : 0 );
         task.execute( jsonUrl );
     }
 
+    /**
+     * Schedules revalidation of the zone when its ttl expires.
+     * The delay is shortened by a random fraction of the ttl, so that devices which fetched the zone
+     * at the same time do not revalidate it at the same time.
+     */
+    private void scheduleRefresh() {
+        cancelRefresh();
+        if( jsonUrl==null || mCurrentZone==null || mCurrentZone.ttl<=0 ) return;
+
+        final long ttl = mCurrentZone.ttl*1000;
+        final long age = Math.max(0, zoneCache.getAge(jsonUrl));
+        final long jitter = (long) (mRandom.nextDouble() * ttl * REFRESH_JITTER);
+        //failed revalidation leaves the zone stale, do not retry it immediately
+        final long delay = Math.max(REFRESH_MIN_DELAY, ttl - age - jitter);
+        L.d( "zone refresh in " + delay + " ms" );
+        mRefreshHandler.postDelayed(mRefreshRunnable, delay);
+    }
+
+    private static void cancelRefresh() {
+        mRefreshHandler.removeCallbacks(mRefreshRunnable);
+    }
+
     private static void fetchJsonLocal() {
         L.d(".");
-        AsyncTask<String, Void, JsonNode> task = new AsyncTask<String, Void, JsonNode>() {
+        AsyncTask<String, Void, Zone> task = new AsyncTask<String, Void, Zone>() {
 
             @Override
-            protected JsonNode doInBackground(String... params) {
+            protected Zone doInBackground(String... params) {
                 L.d( "fetching from " + params[0] );
                 HttpClient client = new HttpClient( params[0] );
-                Response<JsonNode> response = client.get( JsonNode.class, null );
+                Response<Zone> response = client.get( new HttpClient.BodyReader<Zone>() {
+                    @Override
+                    public Zone read(InputStream input, String contentType) throws IOException {
+                        return JsonParser.getReader(Zone.class).readValue(input);
+                    }
+                }, null, null );
                 return response.getBody();
             }
 
             @Override
-            protected void onPostExecute(JsonNode s) {
-                L.d( "fetched " + s );
-                if( s!=null ) {
-                    mCurrentZone = jsonParser.parse(s+"");
+            protected void onPostExecute(Zone zone) {
+                L.d( "fetched " + zone );
+                if( zone!=null ) {
+                    setCurrentZone(zone);
+                    ExpressionBudget.reset();
                 }
             }
         };
@@ -625,25 +1002,137 @@ public class BLEKit {
         }
     }
 
-    private void updateZone(String zoneJson) {
-        if( zoneJson==null ) return;
+    private static void setCurrentZone( Zone zone ) {
+        mCurrentZone = zone;
+        mZoneSnapshot = null;
+        compileZone();
+    }
+
+    private static void setCurrentZone( ZoneSnapshot snapshot ) {
+        mCurrentZone = snapshot.getZone();
+        mZoneSnapshot = snapshot;
+        compileZone();
+    }
+
+    private static void applyZone( Zone zone, ZoneDiff diff ) {
+        mCompiledZone = mCompiledZone.apply(zone, diff);
+        mCurrentZone = zone;
+        mZoneSnapshot = null;
+    }
+
+    private static void compileZone() {
+        if( mZoneSnapshot!=null ) {
+            mCompiledZone = CompiledZone.compile(mZoneSnapshot, mActionsFactory);
+        } else {
+            mCompiledZone = CompiledZone.compile(mCurrentZone, mActionsFactory);
+        }
+
+        final Map<String, CompiledZone> activeZones = new LinkedHashMap<String, CompiledZone>();
+        for( Map.Entry<String, CompiledZone> entry : mActiveZones.entrySet() ) {
+            activeZones.put(entry.getKey(), CompiledZone.compile(entry.getValue().getSource(), mActionsFactory));
+        }
+        mActiveZones = activeZones;
+    }
+
+    /**
+     * Activates zones near the last known location and deactivates the others.
+     * Zones that stay active keep their compiled state, changed beacons are sent to the service as a delta.
+     */
+    private void updateActiveZones() {
+        final Set<String> before = mBeaconsSent ? activeBeaconIds() : null;
+        final Set<String> changed = new HashSet<String>();
+
+        final List<Zone> zones = mHasLocation ? mZoneIndex.query(mLatitude, mLongitude) : mZoneIndex.getUnlocated();
+        final Map<String, CompiledZone> activeZones = new LinkedHashMap<String, CompiledZone>();
+        for( Zone zone : zones ) {
+            CompiledZone compiled = mActiveZones.get(zone.id);
+            if( compiled==null ) {
+                compiled = CompiledZone.compile(zone, mActionsFactory);
+            } else if( compiled.getSource()!=zone ) {
+                //zone replaced while active
+                final ZoneDiff diff = ZoneDiff.compute(compiled.getZone(), zone);
+                compiled = compiled.apply(zone, diff);
+                changed.addAll(diff.getChangedBeaconIds());
+            }
+            activeZones.put(zone.id, compiled);
+        }
+        mActiveZones = activeZones;
+        L.d( activeZones.size() + " of " + mZoneIndex.size() + " zones active" );
+
+        if( before==null ) return;
+
+        final Set<String> after = activeBeaconIds();
+        final List<String> added = new ArrayList<String>(after);
+        added.removeAll(before);
+        //sent again with their new trigger counts and tx power
+        changed.retainAll(before);
+        added.addAll(changed);
+        final List<String> removed = new ArrayList<String>(before);
+        removed.removeAll(after);
+        if( !added.isEmpty() || !removed.isEmpty() ) {
+            sendUpdateBeaconsDelta(added, removed);
+        }
+    }
+
+    private static void refreshLocation( Context context ) {
+        final LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        if( locationManager==null ) return;
+
+        android.location.Location last = null;
+        try {
+            for( String provider : locationManager.getProviders(true) ) {
+                android.location.Location location = locationManager.getLastKnownLocation(provider);
+                if( location!=null && (last==null || location.getTime()>last.getTime()) ) {
+                    last = location;
+                }
+            }
+        } catch (SecurityException e) {
+            L.d( "no location permission" );
+        }
+
+        if( last!=null ) {
+            mLatitude = last.getLatitude();
+            mLongitude = last.getLongitude();
+            mHasLocation = true;
+        }
+    }
+
+    private void updateZone(Zone newZone) {
+        if( newZone==null ) return;
 
-        final Zone newZone = jsonParser.parse(zoneJson);
-        BeaconPreferences.setLastZoneJson(mContext, zoneJson);
         L.d( "updateZone: " + newZone );
 
+        //expressions disabled for exceeding their budget get another chance with the new zone
+        ExpressionBudget.reset();
+
+        //limits of triggers removed from the zone are not needed anymore
+        if( mCurrentZone!=null && mCurrentZone.id!=null && !mCurrentZone.id.equals(newZone.id) && mZoneIndex.get(mCurrentZone.id)==null ) {
+            triggerLimiter.prune(mCurrentZone.id, null);
+        }
+        triggerLimiter.prune(newZone.id, newZone);
+
         if( mCurrentZone!=null ) {
 
-            if( newZone!=null ) {
-                sendUpdateBeacons( newZone.beacons );
-            }
+            final ZoneDiff diff = ZoneDiff.compute(mCurrentZone, newZone);
+            L.d( "zone changes: " + diff );
 
-            mCurrentZone = newZone;
+            applyZone(newZone, diff);
+
+            if( !mBeaconsSent ) {
+                sendUpdateBeacons();
+            } else if( !diff.isEmpty() ) {
+                //changed beacons are sent again with their trigger counts and tx power, beacons of active zones stay monitored
+                final List<String> added = new ArrayList<String>(diff.getAddedBeaconIds());
+                added.addAll(diff.getChangedBeaconIds());
+                final List<String> removed = new ArrayList<String>(diff.getRemovedBeaconIds());
+                removed.removeAll(activeBeaconIds());
+                sendUpdateBeaconsDelta( added, removed );
+            }
 
         } else {
 
-            mCurrentZone = newZone;
-            sendStart( mCurrentZone.beacons );
+            setCurrentZone(newZone);
+            sendStart();
 
         }
 
@@ -652,19 +1141,29 @@ public class BLEKit {
         }
     }
 
-    private void sendUpdateBeacons( List<Beacon> beacons ) {
+    private void sendUpdateBeacons() {
         Intent intent = getServiceIntent();
         intent.putExtra(BLEKitService.Extra.EXTRA_COMMAND, BLEKitService.Extra.COMMAND_UPDATE_BEACONS);
-        intent.putStringArrayListExtra(BLEKitService.Extra.EXTRA_BEACONS_LIST, beaconsToIds(beacons));
+        putBeacons(intent, BLEKitService.Extra.EXTRA_BEACONS_LIST, activeBeaconIds());
+        sendCommandToService(intent);
+        mBeaconsSent = true;
+    }
+
+    private void sendUpdateBeaconsDelta( List<String> added, List<String> removed ) {
+        Intent intent = getServiceIntent();
+        intent.putExtra(BLEKitService.Extra.EXTRA_COMMAND, BLEKitService.Extra.COMMAND_UPDATE_BEACONS_DELTA);
+        putBeacons(intent, BLEKitService.Extra.EXTRA_BEACONS_ADDED, added);
+        intent.putStringArrayListExtra(BLEKitService.Extra.EXTRA_BEACONS_REMOVED, new ArrayList<String>(removed));
         sendCommandToService(intent);
     }
 
-    private void sendStart( List<Beacon> beacons ) {
+    private void sendStart() {
         Intent intent = getServiceIntent();
         intent.putExtra(BLEKitService.Extra.EXTRA_COMMAND, BLEKitService.Extra.COMMAND_START_SCAN);
         intent.putExtra(BLEKitService.Extra.EXTRA_BACKGROUND_MODE, mBackgroundMode.inBackground);
-        intent.putStringArrayListExtra(BLEKitService.Extra.EXTRA_BEACONS_LIST, beaconsToIds(beacons));
+        putBeacons(intent, BLEKitService.Extra.EXTRA_BEACONS_LIST, activeBeaconIds());
         sendCommandToService(intent);
+        mBeaconsSent = true;
     }
 
     private void sendSetBackgroundMode( BackgroundMode backgroundMode ) {
@@ -678,6 +1177,7 @@ public class BLEKit {
         Intent intent = getServiceIntent();
         intent.putExtra(BLEKitService.Extra.EXTRA_COMMAND, BLEKitService.Extra.COMMAND_STOP_SCAN);
         sendCommandToService(intent);
+        mBeaconsSent = false;
     }
 
     private Intent getServiceIntent() {
@@ -687,33 +1187,102 @@ public class BLEKit {
     private void sendCommandToService(Intent intent) {
         intent.putExtra(BLEKitService.Extra.EXTRA_CLIENT_APP_PACKAGE, mContext.getPackageName());
         mContext.startService(intent);
+        mCommandsSent.inc();
     }
 
 
-    private ArrayList<String> beaconsToIds( List<Beacon> beacons ) {
-        ArrayList<String> ids = new ArrayList<String>();
-        for( Beacon beacon : beacons ) {
-            ids.add(beacon.id.toLowerCase());
+    /**
+     * Puts beacon identifiers together with numbers of their triggers, used by the service for ranking beacons,
+     * and their configured RSSI at 1 meter, used for estimating distance.
+     */
+    private static void putBeacons( Intent intent, String name, Collection<String> beaconIds ) {
+        final ArrayList<String> ids = new ArrayList<String>(beaconIds);
+        final int[] triggers = new int[ids.size()];
+        final int[] txPowers = new int[ids.size()];
+        for( int i=0; i<triggers.length; i++ ) {
+            triggers[i] = mCompiledZone.getTriggerCount(ids.get(i));
+            txPowers[i] = mCompiledZone.getTxPower(ids.get(i));
+            for( CompiledZone compiled : mActiveZones.values() ) {
+                triggers[i] += compiled.getTriggerCount(ids.get(i));
+                if( txPowers[i]==0 ) txPowers[i] = compiled.getTxPower(ids.get(i));
+            }
+        }
+        intent.putStringArrayListExtra(name, ids);
+        intent.putExtra(BLEKitService.Extra.EXTRA_BEACONS_TRIGGERS, triggers);
+        intent.putExtra(BLEKitService.Extra.EXTRA_BEACONS_TX_POWERS, txPowers);
+    }
+
+    /**
+     * @return identifiers of beacons of the current zone and all active zones, taken from the snapshot index on cold start
+     */
+    private static Set<String> activeBeaconIds() {
+        Set<String> ids = new LinkedHashSet<String>(mCompiledZone.getBeaconIds());
+        for( CompiledZone compiled : mActiveZones.values() ) {
+            ids.addAll(compiled.getBeaconIds());
         }
         return ids;
     }
 
 
-    private class FetchJsonAsyncTask extends AsyncTask<String, Void, JsonNode> {
+    private class FetchJsonAsyncTask extends AsyncTask<String, Void, Response<Zone>> {
+
+        private final long cachedVersion;
+
+        FetchJsonAsyncTask(long cachedVersion) {
+            this.cachedVersion = cachedVersion;
+        }
 
         @Override
-        protected JsonNode doInBackground(String... params) {
-            L.d( "fetching from " + params[0] );
-            HttpClient client = new HttpClient( params[0] );
-            Response<JsonNode> response = client.get( JsonNode.class, null );
-            return response.getBody();
+        protected Response<Zone> doInBackground(String... params) {
+            final String url = params[0];
+            final Map<String, String> headers = zoneCache.getConditionalHeaders(url);
+            final long version = zoneCache.getAge(url)>=0 ? cachedVersion : 0;
+
+            Response<Zone> response = fetchZone( url, version, headers );
+            if( version>0 && !response.hasError() && !response.hasBody() ) {
+                //delta did not apply to the cached zone, fetch the whole zone
+                response = fetchZone( url, 0, null );
+            }
+
+            if( response.hasBody() ) {
+                zoneCache.setFetched( url, response.getHeader("ETag"), response.getHeader("Last-Modified") );
+            } else if( response.isNotModified() ) {
+                zoneCache.setRevalidated();
+            }
+            return response;
+        }
+
+        private Response<Zone> fetchZone(String url, long version, Map<String, String> headers) {
+            L.d( "fetching from " + url + ", cached version " + version + ", " + headers );
+            HttpClient client = new HttpClient( url );
+            Map<String, String> params = null;
+            if( version>0 ) {
+                //lets the server respond with a delta against the cached zone
+                params = new HashMap<String, String>();
+                params.put( ZONE_VERSION_PARAM, String.valueOf(version) );
+            }
+            //parsed while downloading, raw bytes go straight to the cache
+            return client.get( new HttpClient.BodyReader<Zone>() {
+                @Override
+                public Zone read(InputStream input, String contentType) throws IOException {
+                    return zoneCache.update(input, contentType);
+                }
+            }, null, params, headers );
         }
 
         @Override
-        protected void onPostExecute(JsonNode s) {
-            L.d( "fetched " + s );
-            if( s!=null ) {
-                updateZone(s+"");
+        protected void onPostExecute(Response<Zone> response) {
+            L.d( "fetched " + response );
+            if( response.hasBody() ) {
+                updateZone(response.getBody());
+            } else if( response.isNotModified() ) {
+                //keep the compiled zone
+                if( !mBeaconsSent && mCurrentZone!=null ) {
+                    sendUpdateBeacons();
+                }
+            }
+            if( mBound ) {
+                scheduleRefresh();
             }
         }
     }
@@ -723,6 +1292,8 @@ public class BLEKit {
     protected interface Extra {
         public static final String EXTRA_BEACON_EVENT = "com.upnext.blekit.extra.BEACON_EVENT";
         public static final String EXTRA_BEACON_ID = "com.upnext.blekit.extra.BEACON_ID";
+        /** Trace of the beacon event, see {@link com.upnext.blekit.util.EventTrace#toArray()} (optional) */
+        public static final String EXTRA_EVENT_TRACE = "com.upnext.blekit.extra.EVENT_TRACE";
 
         public static final String EXTRA_CLIENT_ADD = "com.upnext.blekit.extra.CLIENT_ADD";
         public static final String EXTRA_CLIENT_REMOVE = "com.upnext.blekit.extra.CLIENT_REMOVE";
@@ -738,6 +1309,7 @@ public class BLEKit {
      */
     protected static void processServiceEvent(Intent intent, Context ctx) {
         L.d(".");
+        mIntentsReceived.inc();
 
         BLEKitClient clientAdd = intent.getParcelableExtra(Extra.EXTRA_CLIENT_ADD);
         if( clientAdd!=null ) {
@@ -774,14 +1346,24 @@ public class BLEKit {
         String event = intent.getStringExtra(Extra.EXTRA_BEACON_EVENT);
         if( event!=null ) {
             L.d(". event " + event );
+            mStartupTrace.mark(StartupTrace.FIRST_EVENT);
             BeaconEvent beaconEvent = BeaconEvent.valueOf( event );
             String beaconId = intent.getStringExtra(Extra.EXTRA_BEACON_ID);
+            final EventTrace trace = EventTrace.fromArray(intent.getLongArrayExtra(Extra.EXTRA_EVENT_TRACE));
 
             mCurrentBeaconsStates.put( beaconId, Proximity.fromBeaconEvent(beaconEvent) );
 
-            for( Beacon beacon : getBeaconsFromZone(beaconId) ) {
-                _bleKit.processTriggersForBeacon( beacon, beaconEvent, ctx );
+            final CompiledZone currentZone = mCompiledZone;
+            for( Beacon beacon : currentZone.getBeacons(beaconId) ) {
+                _bleKit.processTriggersForBeacon( beacon, currentZone.getZone(), beaconEvent, trace, ctx );
+            }
+            for( CompiledZone activeZone : mActiveZones.values() ) {
+                for( Beacon beacon : activeZone.getBeacons(beaconId) ) {
+                    _bleKit.processTriggersForBeacon( beacon, activeZone.getZone(), beaconEvent, trace, ctx );
+                }
             }
+            mEventLatencies.recordEvent(trace);
+            mEventsProcessed.inc();
         }
 
         mEventToProcess = null;
@@ -795,20 +1377,7 @@ public class BLEKit {
         }
     }
 
-    private static List<Beacon> getBeaconsFromZone( String beaconId ) {
-        List<Beacon> beacons = new ArrayList<Beacon>();
-        if( mCurrentZone==null || mCurrentZone.beacons==null ) {
-            return beacons;
-        }
-        for( Beacon beacon : mCurrentZone.beacons ) {
-            if( beacon.id.equalsIgnoreCase(beaconId) ) {
-                beacons.add(beacon);
-            }
-        }
-        return beacons;
-    }
-
-    private void processTriggersForBeacon(Beacon beacon, BeaconEvent beaconEvent, Context ctx) {
+    private void processTriggersForBeacon(Beacon beacon, Zone zone, BeaconEvent beaconEvent, EventTrace eventTrace, Context ctx) {
         L.d( "Processing for beacon '" + beacon.name + "' " + beaconEvent );
 
         if( mBeaconEventListener!=null ) {
@@ -816,31 +1385,35 @@ public class BLEKit {
         }
 
         final ConditionsFactory conditionsFactory = BLEKit.getConditionsFactory();
-        final ActionsFactory actionsFactory = BLEKit.getActionsFactory();
 
         for(Trigger trigger : beacon.triggers) {
             L.d( "Processing trigger '" + trigger.name + "'" );
-            boolean conditionsMet = allConditionsMet( trigger, conditionsFactory, beaconEvent, beacon, ctx );
+            mTriggersEvaluated.inc();
+            if( !triggerLimiter.canFire(zone!=null ? zone.id : null, trigger) ) {
+                L.d( "Trigger '" + trigger.name + "' is over its limits" );
+                continue;
+            }
 
-            if( !conditionsMet ) continue;
+            final EventTrace trace = eventTrace!=null ? eventTrace.copy() : null;
+            boolean conditionsMet = allConditionsMet( trigger, conditionsFactory, beaconEvent, beacon, zone, ctx );
+            if( trace!=null ) trace.mark(EventTrace.Stage.EVALUATED);
 
-            //all conditions met
-            performAction(actionsFactory, trigger, ctx);
-        }
-    }
+            if( !conditionsMet ) {
+                mEventLatencies.recordTrigger(trace, zone!=null ? zone.id : null, trigger.id);
+                continue;
+            }
 
-    private void performAction(final ActionsFactory actionsFactory, Trigger trigger, Context ctx) {
-        BLEAction bleAction = actionsFactory.get( trigger.action.type, trigger.action.parameters );
-        if( bleAction==null ) {
-            L.d("Did not find action implementation for type '" + trigger.action.type + "'");
-            return;
+            //all conditions met
+            mActionDispatcher.dispatch(getBoundAction(trigger), ctx, mBackgroundMode);
+            if( trace!=null ) trace.mark(EventTrace.Stage.DISPATCHED);
+            mEventLatencies.recordTrigger(trace, zone!=null ? zone.id : null, trigger.id);
+            triggerLimiter.fired(zone!=null ? zone.id : null, trigger);
+            mTriggersFired.inc();
+            mStartupTrace.mark(StartupTrace.FIRST_TRIGGER);
         }
-
-        L.d("." + mBackgroundMode.inBackground);
-        bleAction.performAction(ctx, mBackgroundMode);
     }
 
-    private boolean allConditionsMet(Trigger trigger, final ConditionsFactory conditionsFactory, BeaconEvent beaconEvent, Beacon beacon, Context ctx) {
+    private boolean allConditionsMet(Trigger trigger, final ConditionsFactory conditionsFactory, BeaconEvent beaconEvent, Beacon beacon, Zone zone, Context ctx) {
         boolean conditionsMet = true;
         for (Condition condition : trigger.conditions) {
 
@@ -851,14 +1424,18 @@ public class BLEKit {
                 break;
             } else {
 
-                bleCondition.setZone(mCurrentZone);
+                bleCondition.setZone(zone);
                 bleCondition.setBeacon(beacon);
                 bleCondition.setTrigger(trigger);
 
                 increaseOccurence(bleCondition, beacon.id);
             }
 
-            if( !bleCondition.conditionMet() ) {
+            final long start = System.nanoTime();
+            final boolean met = bleCondition.conditionMet();
+            conditionsFactory.getLatency(condition.type).record((System.nanoTime()-start)/1000);
+
+            if( !met ) {
                 L.d( "Condition not met: '" + condition.type + "'" );
                 conditionsMet = false;
                 break;
@@ -31,7 +31,9 @@ import android.content.Intent;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.upnext.blekit.util.EventTrace;
 import com.upnext.blekit.util.L;
+import com.upnext.blekit.util.Metrics;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -46,6 +48,8 @@ import java.util.Set;
  */
 public class BLEKitClient implements Parcelable {
 
+    private static final Metrics.Counter mIntentsSent = Metrics.getInstance().counter("ipc.intents.sent");
+
     private String packageName;
     private boolean inBackground;
     private Set<String> monitoredBeaconIDs;
@@ -98,11 +102,27 @@ public class BLEKitClient implements Parcelable {
      * @param beaconId beacon that triggered the event
      */
     public void call(Context context, BeaconEvent event, String beaconId) {
+        call(context, event, beaconId, null);
+    }
+
+    /**
+     * Sends an intent with beacon event and its trace to the application.
+     *
+     * @param context context
+     * @param event beacon event
+     * @param beaconId beacon that triggered the event
+     * @param trace trace of the event, may be <code>null</code>
+     */
+    public void call(Context context, BeaconEvent event, String beaconId, EventTrace trace) {
         L.d(". " + event + " " + beaconId);
         final Intent intent = prepareIntent();
         intent.putExtra(BLEKit.Extra.EXTRA_BEACON_EVENT, event.name());
         intent.putExtra(BLEKit.Extra.EXTRA_BEACON_ID, beaconId);
+        if( trace!=null ) {
+            intent.putExtra(BLEKit.Extra.EXTRA_EVENT_TRACE, trace.mark(EventTrace.Stage.FANNED_OUT).toArray());
+        }
         context.startService(intent);
+        mIntentsSent.inc();
     }
 
     /**
@@ -116,6 +136,7 @@ public class BLEKitClient implements Parcelable {
         final Intent intent = prepareIntent();
         intent.putExtra(dataName, data);
         context.startService(intent);
+        mIntentsSent.inc();
     }
 
     /**
@@ -130,6 +151,7 @@ public class BLEKitClient implements Parcelable {
         final Intent intent = prepareIntent();
         intent.putExtra(dataName, data);
         context.startService(intent);
+        mIntentsSent.inc();
     }
 
     private Intent prepareIntent() {
@@ -28,6 +28,7 @@ package com.upnext.blekit;
 import android.app.IntentService;
 import android.content.Intent;
 
+import com.upnext.blekit.util.EventTrace;
 import com.upnext.blekit.util.L;
 
 /**
@@ -45,6 +46,18 @@ public class BLEKitIntentProcessor extends IntentService {
     @Override
     protected void onHandleIntent(Intent intent) {
         L.d( getPackageName() );
+        final EventTrace trace = intent!=null ? EventTrace.fromArray(intent.getLongArrayExtra(BLEKit.Extra.EXTRA_EVENT_TRACE)) : null;
+        if( trace!=null ) {
+            intent.putExtra(BLEKit.Extra.EXTRA_EVENT_TRACE, trace.mark(EventTrace.Stage.RECEIVED).toArray());
+        }
         BLEKit.processServiceEvent(intent, this);
+
+        if( intent!=null && intent.hasExtra(BLEKit.Extra.EXTRA_BEACON_EVENT) ) {
+            //lets the service send the next event
+            Intent ack = new Intent( BLEKitService.ACTION );
+            ack.putExtra(BLEKitService.Extra.EXTRA_COMMAND, BLEKitService.Extra.COMMAND_EVENT_PROCESSED);
+            ack.putExtra(BLEKitService.Extra.EXTRA_CLIENT_APP_PACKAGE, getPackageName());
+            startService(ack);
+        }
     }
 }
@@ -44,9 +44,14 @@ import com.radiusnetworks.ibeacon.Region;
 import com.upnext.blekit.model.Beacon;
 import com.upnext.blekit.model.CurrentBeaconProximity;
 import com.upnext.blekit.util.BeaconPreferences;
+import com.upnext.blekit.util.EventTrace;
 import com.upnext.blekit.util.L;
+import com.upnext.blekit.util.Metrics;
 import com.upnext.blekit.util.Rand;
+import com.upnext.blekit.util.StartupTrace;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -55,6 +60,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Service responsible for beacon scanning.
@@ -70,12 +76,20 @@ public class BLEKitService extends Service implements IBeaconConsumer {
         public static final String EXTRA_CLIENT_APP_PACKAGE = "com.upnext.blekit.client_app_package";
         public static final String EXTRA_BACKGROUND_MODE = "com.upnext.blekit.background_mode";
         public static final String EXTRA_BEACONS_LIST = "com.upnext.blekit.beacons_list";
+        public static final String EXTRA_BEACONS_ADDED = "com.upnext.blekit.beacons_added";
+        public static final String EXTRA_BEACONS_REMOVED = "com.upnext.blekit.beacons_removed";
+        /** Number of triggers of beacons in {@link #EXTRA_BEACONS_LIST} or {@link #EXTRA_BEACONS_ADDED}, in the same order (optional) */
+        public static final String EXTRA_BEACONS_TRIGGERS = "com.upnext.blekit.beacons_triggers";
+        /** RSSI at 1 meter of beacons in {@link #EXTRA_BEACONS_LIST} or {@link #EXTRA_BEACONS_ADDED}, in the same order, 0 if not configured (optional) */
+        public static final String EXTRA_BEACONS_TX_POWERS = "com.upnext.blekit.beacons_tx_powers";
 
         public static final int COMMAND_START_SCAN = 1;
         public static final int COMMAND_STOP_SCAN = 2;
         public static final int COMMAND_SET_BACKGROUND_MODE = 3;
         public static final int COMMAND_UPDATE_BEACONS = 4;
         public static final int COMMAND_HEALTHCHECK = 5;
+        public static final int COMMAND_UPDATE_BEACONS_DELTA = 6;
+        public static final int COMMAND_EVENT_PROCESSED = 7;
     }
 
 
@@ -92,6 +106,22 @@ public class BLEKitService extends Service implements IBeaconConsumer {
 
     private Map<String, BLEKitClient> clients = new HashMap<String, BLEKitClient>();
 
+    private RegionBudget mRegionBudget = new RegionBudget(Config.MAX_MONITORED_REGIONS);
+    private Set<String> mRegisteredBeaconIds = new HashSet<String>();
+    private static volatile RegionBudget.Stats mRegionStats;
+
+    private static final Map<String, ClientEventQueue> mEventQueues = new ConcurrentHashMap<String, ClientEventQueue>();
+
+    private static volatile StartupTrace mStartupTrace;
+
+    private static final Metrics.Counter mRangingCallbacks = Metrics.getInstance().counter("ranging.callbacks");
+    private static final Metrics.Counter[] mEventsSent = new Metrics.Counter[BeaconEvent.values().length];
+    static {
+        for( BeaconEvent event : BeaconEvent.values() ) {
+            mEventsSent[event.ordinal()] = Metrics.getInstance().counter("events.sent." + event.name());
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -104,6 +134,10 @@ public class BLEKitService extends Service implements IBeaconConsumer {
         int command = intent.getIntExtra(Extra.EXTRA_COMMAND, -1);
         L.d(". " + command );
 
+        final List<String> beaconIds = intent.getStringArrayListExtra(command==Extra.COMMAND_UPDATE_BEACONS_DELTA ? Extra.EXTRA_BEACONS_ADDED : Extra.EXTRA_BEACONS_LIST);
+        setTriggerCounts(beaconIds, intent.getIntArrayExtra(Extra.EXTRA_BEACONS_TRIGGERS));
+        setTxPowers(beaconIds, intent.getIntArrayExtra(Extra.EXTRA_BEACONS_TX_POWERS));
+
         switch (command) {
 
             case Extra.COMMAND_START_SCAN:
@@ -132,8 +166,22 @@ public class BLEKitService extends Service implements IBeaconConsumer {
                 );
                 break;
 
+            case Extra.COMMAND_UPDATE_BEACONS_DELTA:
+                updateBeaconsDelta(
+                        intent.getStringExtra(Extra.EXTRA_CLIENT_APP_PACKAGE),
+                        intent.getStringArrayListExtra(Extra.EXTRA_BEACONS_ADDED),
+                        intent.getStringArrayListExtra(Extra.EXTRA_BEACONS_REMOVED)
+                );
+                break;
+
+            case Extra.COMMAND_EVENT_PROCESSED:
+                eventProcessed(intent.getStringExtra(Extra.EXTRA_CLIENT_APP_PACKAGE));
+                break;
+
             case Extra.COMMAND_HEALTHCHECK:
                 discardOldBeacons();
+                rotateRegions();
+                sendQueuedEvents();
                 break;
 
             default:
@@ -143,6 +191,58 @@ public class BLEKitService extends Service implements IBeaconConsumer {
         return START_STICKY;
     }
 
+    /**
+     * Returns coverage statistics of regions registered for scanning.
+     *
+     * @return statistics or <code>null</code> if the service did not register any regions yet
+     * @see com.upnext.blekit.RegionBudget
+     */
+    public static RegionBudget.Stats getRegionStats() {
+        return mRegionStats;
+    }
+
+    /**
+     * Returns statistics of outbound event queues of clients.
+     *
+     * @return statistics by client package name
+     * @see com.upnext.blekit.ClientEventQueue
+     */
+    public static Map<String, ClientEventQueue.Stats> getEventQueueStats() {
+        final Map<String, ClientEventQueue.Stats> stats = new HashMap<String, ClientEventQueue.Stats>();
+        for( Map.Entry<String, ClientEventQueue> entry : mEventQueues.entrySet() ) {
+            stats.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Returns startup phase timings of the service, measured from its creation.
+     * Includes time to first scan ({@link com.upnext.blekit.util.StartupTrace#FIRST_SCAN})
+     * and to first event sent to a client ({@link com.upnext.blekit.util.StartupTrace#FIRST_EVENT}).
+     *
+     * @return startup trace or <code>null</code> if the service was not created in this process
+     */
+    public static StartupTrace getStartupTrace() {
+        return mStartupTrace;
+    }
+
+    private void setTriggerCounts(List<String> beaconIds, int[] counts) {
+        if( beaconIds==null || counts==null || counts.length!=beaconIds.size() ) return;
+
+        for( int i=0; i<counts.length; i++ ) {
+            mRegionBudget.setTriggerCount(beaconIds.get(i).toLowerCase(), counts[i]);
+        }
+    }
+
+    private void setTxPowers(List<String> beaconIds, int[] txPowers) {
+        if( beaconIds==null || txPowers==null || txPowers.length!=beaconIds.size() ) return;
+
+        for( int i=0; i<txPowers.length; i++ ) {
+            //0 - no tx_power in the zone, calibration of the beacon on this device stays
+            DistanceModel.getInstance().setConfiguredTxPower(beaconIds.get(i), txPowers[i]!=0 ? txPowers[i] : null);
+        }
+    }
+
     private void updateBeacons(String packageName, ArrayList<String> beaconIds) {
         if( packageName==null ) return;
 
@@ -153,6 +253,45 @@ public class BLEKitService extends Service implements IBeaconConsumer {
         }
     }
 
+    private void updateBeaconsDelta(String packageName, List<String> added, List<String> removed) {
+        L.d(". +" + added + " -" + removed);
+        final BLEKitClient client = packageName!=null ? clients.get(packageName) : null;
+        if( client==null ) {
+            //client sends its whole beacon list when it starts
+            return;
+        }
+
+        final Set<String> beaconIDs = new HashSet<String>(client.getMonitoredBeaconIDs());
+        if( removed!=null ) {
+            beaconIDs.removeAll(removed);
+        }
+        if( added!=null ) {
+            beaconIDs.addAll(added);
+        }
+        client.setMonitoredBeaconIDs(beaconIDs);
+
+        if( removed!=null && !removed.isEmpty() ) {
+            removeBeaconsFromScan(new HashSet<String>(removed));
+        }
+
+        if( added!=null && !added.isEmpty() ) {
+            Set<String> idsToAdd = new HashSet<String>(added);
+            idsToAdd.removeAll(mMonitoredBeaconIds.keySet());
+            if( !idsToAdd.isEmpty() ) {
+                for( String id : idsToAdd ) {
+                    mMonitoredBeaconIds.put(id.toLowerCase(), Proximity.UNKNOWN);
+                }
+                startScanningZoneForBeaconIds(idsToAdd);
+            }
+
+            for( String beaconId : added ) {
+                if( mMonitoredBeaconIds.containsKey(beaconId) ) {
+                    client.call( this, BLEKit.Extra.EXTRA_CURRENT_BEACON_PROXIMITY, new CurrentBeaconProximity(beaconId, mMonitoredBeaconIds.get(beaconId)));
+                }
+            }
+        }
+    }
+
     private void processStartCommand( String packageName, boolean inBackground, List<String> beaconIDs ) {
         L.d(".");
         if( packageName==null || beaconIDs==null || beaconIDs.isEmpty() ) {
@@ -244,15 +383,21 @@ public class BLEKitService extends Service implements IBeaconConsumer {
 
             if(!idFound) {
                 mMonitoredBeaconIds.remove(idToRemove);
+                mRegionBudget.remove(idToRemove);
                 stopScanningZoneForBeaconId(idToRemove);
             }
         }
+        //freed regions go to beacons waiting for them
+        updateRegisteredBeacons();
     }
 
 
     private void processStopCommand( String packageName ) {
         L.d(".");
         final BLEKitClient client = clients.remove(packageName);
+        if( packageName!=null ) {
+            mEventQueues.remove(packageName);
+        }
         if( client!=null ) {
             Set<String> idsToRemove = new HashSet<String>(client.getMonitoredBeaconIDs());
             removeBeaconsFromScan(idsToRemove);
@@ -302,22 +447,33 @@ public class BLEKitService extends Service implements IBeaconConsumer {
     }
 
 
+    private static class DelayedEvent {
+        final Region region;
+        final EventTrace trace;
+
+        DelayedEvent(Region region, EventTrace trace) {
+            this.region = region;
+            this.trace = trace;
+        }
+    }
+
     class EnterLeaveDelayedHandler extends Handler {
         @Override
         public void handleMessage(Message msg) {
-            Region region = (Region) msg.obj;
+            final DelayedEvent delayed = (DelayedEvent) msg.obj;
+            final Region region = delayed.region;
 
             if( msg.what == BeaconEvent.REGION_ENTER.ordinal() ) {
 
                 if( !mRegionsToLeave.remove(region.getUniqueId()) ) {
-                    processEvent(BeaconEvent.REGION_ENTER, region);
+                    processEvent(BeaconEvent.REGION_ENTER, region, delayed.trace.mark(EventTrace.Stage.DEBOUNCED));
                 }
 
             } else if( msg.what == BeaconEvent.REGION_LEAVE.ordinal() ) {
 
                 if( mRegionsToLeave.remove(region.getUniqueId()) ) {
                     mMonitoredRegionsUniqueIds.remove(region.getUniqueId());
-                    processEvent(BeaconEvent.REGION_LEAVE, region);
+                    processEvent(BeaconEvent.REGION_LEAVE, region, delayed.trace.mark(EventTrace.Stage.DEBOUNCED));
                 }
 
             } else {
@@ -327,11 +483,13 @@ public class BLEKitService extends Service implements IBeaconConsumer {
     }
 
     private void stopScanningZoneForBeaconId( String beaconId ) {
-        List<Beacon> beacons = new ArrayList<Beacon>();
-        Beacon b = new Beacon();
-        b.id = beaconId;
-        beacons.add( b );
-        stopScanningZones(beacons);
+        if( mRegisteredBeaconIds.remove(beaconId) ) {
+            List<Beacon> beacons = new ArrayList<Beacon>();
+            Beacon b = new Beacon();
+            b.id = beaconId;
+            beacons.add( b );
+            stopScanningZones(beacons);
+        }
         persistBeaconStates();
     }
 
@@ -373,20 +531,71 @@ public class BLEKitService extends Service implements IBeaconConsumer {
 
         mMonitoredRegionsUniqueIds.clear();
         mMonitoredBeaconIds.clear();
+        mRegisteredBeaconIds.clear();
     }
 
     private void startScanningZoneForBeaconIds( Set<String> beaconIds ) {
-        L.d(".");
-        List<Beacon> beacons = new ArrayList<Beacon>();
-        for( String id : beaconIds ) {
-            Beacon b = new Beacon();
-            b.id = id;
-            beacons.add( b );
-        }
-        startScanningZones(beacons);
+        L.d(". " + beaconIds.size());
+        //beacons are already in mMonitoredBeaconIds, the budget decides which of them get a region
+        updateRegisteredBeacons();
         persistBeaconStates();
     }
 
+    /**
+     * Registers regions of beacons selected by the region budget and unregisters the others.
+     */
+    private void updateRegisteredBeacons() {
+        if( !mBeaconManagerConnected ) return;
+
+        final Set<String> present = new HashSet<String>();
+        for( Map.Entry<String, Proximity> entry : mMonitoredBeaconIds.entrySet() ) {
+            if( entry.getValue()!=null && entry.getValue()!=Proximity.UNKNOWN ) {
+                present.add(entry.getKey());
+            }
+        }
+        final Set<String> foreground = new HashSet<String>();
+        for( BLEKitClient client : clients.values() ) {
+            if( !client.isInBackground() && client.getMonitoredBeaconIDs()!=null ) {
+                foreground.addAll(client.getMonitoredBeaconIDs());
+            }
+        }
+
+        final Set<String> selected = mRegionBudget.select(mMonitoredBeaconIds.keySet(), present, foreground, System.currentTimeMillis());
+        mRegionStats = mRegionBudget.getStats();
+
+        final List<Beacon> toStop = new ArrayList<Beacon>();
+        for( String beaconId : mRegisteredBeaconIds ) {
+            if( !selected.contains(beaconId) ) {
+                Beacon b = new Beacon();
+                b.id = beaconId;
+                toStop.add( b );
+            }
+        }
+        final List<Beacon> toStart = new ArrayList<Beacon>();
+        for( String beaconId : selected ) {
+            if( !mRegisteredBeaconIds.contains(beaconId) ) {
+                Beacon b = new Beacon();
+                b.id = beaconId;
+                toStart.add( b );
+            }
+        }
+        if( toStop.isEmpty() && toStart.isEmpty() ) return;
+
+        L.d( "regions -" + toStop.size() + " +" + toStart.size() + ", " + mRegionStats );
+        stopScanningZones(toStop);
+        startScanningZones(toStart);
+        mRegisteredBeaconIds.retainAll(selected);
+        mRegisteredBeaconIds.addAll(selected);
+    }
+
+    private void rotateRegions() {
+        final long now = System.currentTimeMillis();
+        if( mRegionStats==null || mRegionStats.rotating==0 || now-mRegionBudget.getLastRotation()<Config.REGION_ROTATION_MILLIS ) return;
+
+        mRegionBudget.rotate(now);
+        updateRegisteredBeacons();
+    }
+
     private void startScanningZones(List<Beacon> beacons) {
         L.d(". " + mBeaconManagerConnected);
         if( beacons==null || !mBeaconManagerConnected ) return;
@@ -399,6 +608,7 @@ public class BLEKitService extends Service implements IBeaconConsumer {
             try {
                 iBeaconManager.startMonitoringBeaconsInRegion( region );
                 iBeaconManager.startRangingBeaconsInRegion( region );
+                mStartupTrace.mark(StartupTrace.FIRST_SCAN);
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
@@ -418,16 +628,17 @@ public class BLEKitService extends Service implements IBeaconConsumer {
     public void onIBeaconServiceConnect() {
         L.d( "onIBeaconServiceConnect" );
         mBeaconManagerConnected = true;
+        mStartupTrace.mark("beacon_manager_connected");
 
         iBeaconManager.setMonitorNotifier(new MonitorNotifier() {
             @Override
             public void didEnterRegion(Region region) {
-                sendDelayedEnter(region);
+                sendDelayedEnter(region, new EventTrace().mark(EventTrace.Stage.RANGED));
             }
 
             @Override
             public void didExitRegion(Region region) {
-                sendDelayedLeave(region);
+                sendDelayedLeave(region, new EventTrace().mark(EventTrace.Stage.RANGED));
             }
 
             @Override
@@ -439,10 +650,13 @@ public class BLEKitService extends Service implements IBeaconConsumer {
         iBeaconManager.setRangeNotifier( new RangeNotifier() {
             @Override
             public void didRangeBeaconsInRegion(Collection<IBeacon> iBeacons, Region region) {
+                mRangingCallbacks.inc();
+                final EventTrace trace = new EventTrace().mark(EventTrace.Stage.RANGED);
 
                 //cancel any leave events that are in the leave queue
                 if( iBeacons!=null && !iBeacons.isEmpty() ) {
                     mRegionsToLeave.remove(region.getUniqueId());
+                    mRegionBudget.sighted(regionToBeaconId(region), System.currentTimeMillis());
                 }
 
                 //precaution for cached beacon proximities
@@ -474,7 +688,7 @@ public class BLEKitService extends Service implements IBeaconConsumer {
                         averageBeacon.approximate();
 
                         if( averageBeacon.proximityChanged() ) {
-                            processProximity(averageBeacon.getProximity(), region);
+                            processProximity(averageBeacon.getProximity(), region, trace.mark(EventTrace.Stage.FILTERED));
 
                             averageBeacon.setPrevProximity(averageBeacon.getProximity());
                         }
@@ -510,7 +724,7 @@ public class BLEKitService extends Service implements IBeaconConsumer {
             final AverageIBeacon averageBeacon = mMonitoredRegionsUniqueIds.get( uniqueId );
             if(averageBeacon!=null && averageBeacon.getLastSeen()<(System.currentTimeMillis()-Config.LEAVE_MSG_DELAY_MILLIS) && !mRegionsToLeave.contains(uniqueId)) {
                 final Region region = new Region( uniqueId, averageBeacon.getProximityUuid(), averageBeacon.getMajor(), averageBeacon.getMinor() );
-                sendDelayedLeave( region );
+                sendDelayedLeave( region, new EventTrace().mark(EventTrace.Stage.RANGED) );
             }
 
             if(averageBeacon==null) {
@@ -519,27 +733,27 @@ public class BLEKitService extends Service implements IBeaconConsumer {
                         final Beacon beacon = new Beacon();
                         beacon.id = beaconId;
                         final Region region = new Region( uniqueId, beacon.getProximityUid(), beacon.getMajor(), beacon.getMinor() );
-                        sendDelayedLeave( region );
+                        sendDelayedLeave( region, new EventTrace().mark(EventTrace.Stage.RANGED) );
                     }
                 }
             }
         }
     }
 
-    private void sendDelayedLeave( Region region ) {
+    private void sendDelayedLeave( Region region, EventTrace trace ) {
         L.d(". " + region.getUniqueId());
         Message msg = Message.obtain();
         msg.what = BeaconEvent.REGION_LEAVE.ordinal();
-        msg.obj = region;
+        msg.obj = new DelayedEvent(region, trace.mark(EventTrace.Stage.FILTERED));
         mEnterLeaveHandler.sendMessageDelayed( msg, Config.LEAVE_MSG_DELAY_MILLIS );
         mRegionsToLeave.add( region.getUniqueId() );
     }
 
-    private void sendDelayedEnter( Region region ) {
+    private void sendDelayedEnter( Region region, EventTrace trace ) {
         L.d(".");
         Message msg = Message.obtain();
         msg.what = BeaconEvent.REGION_ENTER.ordinal();
-        msg.obj = region;
+        msg.obj = new DelayedEvent(region, trace.mark(EventTrace.Stage.FILTERED));
         mEnterLeaveHandler.sendMessage(msg);
     }
 
@@ -560,7 +774,17 @@ public class BLEKitService extends Service implements IBeaconConsumer {
      */
     @Override
     public void onCreate() {
-        startHealthcheck();
+        mStartupTrace = new StartupTrace("BLEKitService");
+        registerGauges();
+
+        //critical path - binding connects asynchronously (see onIBeaconServiceConnect), state is restored meanwhile
+        iBeaconManager = IBeaconManager.getInstanceForApplication(this);
+        iBeaconManager.bind(this);
+        mStartupTrace.mark("beacon_manager_bound");
+
+        mMonitoredBeaconIds = BeaconPreferences.getMonitoredBeacons(this);
+        DistanceModel.getInstance().restore(this);
+        mStartupTrace.mark("states_restored");
 
         Set<BLEKitClient> runningClients = BeaconPreferences.getRunningClients(this);
         if( runningClients!=null ) {
@@ -568,16 +792,23 @@ public class BLEKitService extends Service implements IBeaconConsumer {
                 clients.put( client.getPackageName(), client );
             }
         }
-
-        mMonitoredBeaconIds = BeaconPreferences.getMonitoredBeacons(this);
+        mStartupTrace.mark("clients_restored");
 
         L.d("added " + (runningClients != null ? runningClients.size() : 0) + " packages and " + mMonitoredBeaconIds.size() + " beacons");
-        for( String id : mMonitoredBeaconIds.keySet() ) {
-            L.d( id + " " + mMonitoredBeaconIds.get(id) );
-        }
 
-        iBeaconManager = IBeaconManager.getInstanceForApplication(this);
-        iBeaconManager.bind(this);
+        //deferred until the first command was handled
+        new Handler().post(new Runnable() {
+            @Override
+            public void run() {
+                startHealthcheck();
+                if( L.DEBUG_ENABLED ) {
+                    for( String id : mMonitoredBeaconIds.keySet() ) {
+                        L.d( id + " " + mMonitoredBeaconIds.get(id) );
+                    }
+                }
+                mStartupTrace.mark("deferred_started");
+            }
+        });
     }
 
     /**
@@ -588,10 +819,53 @@ public class BLEKitService extends Service implements IBeaconConsumer {
         L.d("onDestroy");
         super.onDestroy();
         stopScanningZones();
+        mEventQueues.clear();
         iBeaconManager.unBind(this);
         mBeaconManagerConnected = false;
     }
 
+    /**
+     * Prints metrics, region and client queue statistics and startup trace of the service,
+     * eg. <code>adb shell dumpsys activity service com.upnext.blekit.BLEKitService</code>.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("BLEKitService");
+        writer.println("Startup: " + mStartupTrace);
+        writer.println("Regions: " + mRegionStats);
+        writer.println("Clients:");
+        for( Map.Entry<String, ClientEventQueue.Stats> entry : getEventQueueStats().entrySet() ) {
+            writer.println("  " + entry.getKey() + " " + entry.getValue());
+        }
+        Metrics.getInstance().dump(writer);
+        writer.flush();
+    }
+
+    private void registerGauges() {
+        final Metrics metrics = Metrics.getInstance();
+        metrics.gauge("regions.registered", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                //regions selected by the budget stay registered after their beacons leave
+                return mRegisteredBeaconIds.size();
+            }
+        });
+        metrics.gauge("beacons.monitored", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mMonitoredBeaconIds.size();
+            }
+        });
+        metrics.gauge("clients", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return clients.size();
+            }
+        });
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -600,7 +874,7 @@ public class BLEKitService extends Service implements IBeaconConsumer {
         return null;
     }
 
-    private void processProximity(final int newProximity, final Region region) {
+    private void processProximity(final int newProximity, final Region region, final EventTrace trace) {
         BeaconEvent event = BeaconEvent.fromIBeaconProximity(newProximity);
 
         final String beaconId = regionToBeaconId(region);
@@ -611,10 +885,10 @@ public class BLEKitService extends Service implements IBeaconConsumer {
             return;
         }
 
-        sendEventToClients( event, region, beaconId );
+        sendEventToClients( event, region, beaconId, trace );
     }
 
-    private void processEvent( final BeaconEvent beaconEvent, final Region region ) {
+    private void processEvent( final BeaconEvent beaconEvent, final Region region, final EventTrace trace ) {
         final String beaconId = regionToBeaconId(region);
 
         final Proximity oldProximity = mMonitoredBeaconIds.get(beaconId);
@@ -624,11 +898,11 @@ public class BLEKitService extends Service implements IBeaconConsumer {
             return;
         }
 
-        sendEventToClients( beaconEvent, region, beaconId );
+        sendEventToClients( beaconEvent, region, beaconId, trace );
     }
 
 
-    private void sendEventToClients( final BeaconEvent event, final Region region, final String beaconId ) {
+    private void sendEventToClients( final BeaconEvent event, final Region region, final String beaconId, final EventTrace trace ) {
         L.d( event.name() + " " + region.getMajor()+"-"+region.getMinor() );
 
         final Proximity newProximity = Proximity.fromBeaconEvent(event);
@@ -639,17 +913,56 @@ public class BLEKitService extends Service implements IBeaconConsumer {
         }
 
         mMonitoredBeaconIds.put( beaconId, newProximity );
-        persistBeaconStates();
+        BeaconPreferences.setMonitoredBeacon(this, beaconId, newProximity);
 
         for( String pkg : clients.keySet() ) {
             BLEKitClient client = clients.get(pkg);
             L.d("." + pkg);
             if(client!=null && isAnyBeaconInRegion(client.getMonitoredBeaconIDs(), region)) {
-                client.call( this, event, beaconId );
+                final ClientEventQueue queue = getEventQueue(pkg);
+                queue.offer( event, beaconId, trace.copy() );
+                sendQueuedEvents( client, queue );
+                mEventsSent[event.ordinal()].inc();
+                mStartupTrace.mark(StartupTrace.FIRST_EVENT);
+            }
+        }
+    }
+
+    private ClientEventQueue getEventQueue( String packageName ) {
+        ClientEventQueue queue = mEventQueues.get(packageName);
+        if( queue==null ) {
+            queue = new ClientEventQueue();
+            mEventQueues.put(packageName, queue);
+        }
+        return queue;
+    }
+
+    private void sendQueuedEvents( BLEKitClient client, ClientEventQueue queue ) {
+        final long now = System.currentTimeMillis();
+        ClientEventQueue.Entry entry;
+        while( (entry = queue.poll(now))!=null ) {
+            client.call( this, entry.event, entry.beaconId, entry.trace );
+        }
+    }
+
+    private void sendQueuedEvents() {
+        for( Map.Entry<String, ClientEventQueue> entry : mEventQueues.entrySet() ) {
+            final BLEKitClient client = clients.get(entry.getKey());
+            if( client!=null ) {
+                sendQueuedEvents( client, entry.getValue() );
             }
         }
     }
 
+    private void eventProcessed( String packageName ) {
+        final BLEKitClient client = packageName!=null ? clients.get(packageName) : null;
+        if( client==null ) return;
+
+        final ClientEventQueue queue = getEventQueue(packageName);
+        queue.acknowledged();
+        sendQueuedEvents( client, queue );
+    }
+
     private String regionToBeaconId( Region region ) {
         if( region==null ) return null;
         return region.getProximityUuid() + "+" + region.getMajor() + "+" + region.getMinor();
@@ -677,6 +990,6 @@ public class BLEKitService extends Service implements IBeaconConsumer {
         intent.putExtra( Extra.EXTRA_COMMAND, Extra.COMMAND_HEALTHCHECK );
         PendingIntent pintent = PendingIntent.getService(this, 0, intent, 0);
         AlarmManager alarm = (AlarmManager)getSystemService(Context.ALARM_SERVICE);
-        alarm.setRepeating(AlarmManager.RTC_WAKEUP, new Date().getTime(), Config.HEALTHCHECK_REPEAT_SECONDS*1000, pintent);
+        alarm.setRepeating(AlarmManager.RTC_WAKEUP, new Date().getTime() + Config.HEALTHCHECK_REPEAT_SECONDS*1000, Config.HEALTHCHECK_REPEAT_SECONDS*1000, pintent);
     }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import com.upnext.blekit.actions.BLEAction;
+
+/**
+ * Action of a trigger bound to its parameters.
+ *
+ * Parameters are deserialized once, when the zone is compiled. Every invocation gets its own action instance
+ * (see {@link com.upnext.blekit.actions.BLEAction#getInstance()}), so any number of bound actions can be performed concurrently.
+ * Custom actions that do not provide instances are shared - the registered instance is performed, one invocation at a time.
+ * Parameters object is shared by all instances and must not be modified by actions.
+ */
+public final class BoundAction {
+
+    private final BLEAction prototype;
+    private final Object parameters;
+    private final boolean shared;
+
+    BoundAction(BLEAction prototype, Object parameters, boolean shared) {
+        this.prototype = prototype;
+        this.parameters = parameters;
+        this.shared = shared;
+    }
+
+    /**
+     * @return action type
+     */
+    public String getType() {
+        return prototype.getType();
+    }
+
+    /**
+     * @return action registered in {@link com.upnext.blekit.ActionsFactory}, used for its configuration (eg. timeout)
+     */
+    public BLEAction getPrototype() {
+        return prototype;
+    }
+
+    /**
+     * @return <code>true</code> if every invocation performs the registered action instead of a new instance
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Creates a new action instance with bound parameters, the registered action if it is shared.
+     *
+     * @return action instance
+     */
+    @SuppressWarnings("unchecked")
+    public BLEAction newInstance() {
+        BLEAction instance = shared ? prototype : prototype.getInstance();
+        instance.setParameters(parameters);
+        return instance;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "BoundAction{" +
+                "type='" + getType() + '\'' +
+                ", parameters=" + parameters +
+                ", shared=" + shared +
+                '}';
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import com.upnext.blekit.util.EventTrace;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Outbound queue of beacon events of a single client of {@link com.upnext.blekit.BLEKitService}.
+ *
+ * Client acknowledges every processed event, at most {@link #MAX_IN_FLIGHT} events are sent and not acknowledged.
+ * Events waiting for the client are ordered and conflated, so that a slow client gets fresh state instead of a backlog:
+ * <ul>
+ *  <li>{@link com.upnext.blekit.BeaconEvent#REGION_ENTER} and {@link com.upnext.blekit.BeaconEvent#REGION_LEAVE} go ahead
+ *      of proximity updates, at most {@link #MAX_REGION_EVENTS} of them wait, further ones drop the oldest
+ *  <li>a proximity update replaces a waiting update of the same beacon
+ *  <li>{@link com.upnext.blekit.BeaconEvent#REGION_LEAVE} drops waiting proximity updates of the beacon
+ * </ul>
+ * Clients that never acknowledged an event (eg. older library versions) get events as soon as they occur.
+ * An acknowledgement missing for {@link #ACK_TIMEOUT_MILLIS} is assumed lost.
+ */
+public final class ClientEventQueue {
+
+    /**
+     * Maximum number of events sent to the client and not acknowledged yet.
+     */
+    static final int MAX_IN_FLIGHT = 2;
+
+    /**
+     * Maximum number of enter and leave events waiting for the client.
+     */
+    static final int MAX_REGION_EVENTS = 64;
+
+    /**
+     * Time after which a missing acknowledgement is assumed lost.
+     */
+    static final long ACK_TIMEOUT_MILLIS = 5000;
+
+    private final LinkedList<Entry> regionEvents = new LinkedList<Entry>();
+    private final Map<String, Entry> proximityEvents = new LinkedHashMap<String, Entry>();
+
+    private boolean acknowledging;
+    private int inFlight;
+    private long lastSent;
+
+    private long sent;
+    private long conflated;
+    private long dropped;
+    private long ackTimeouts;
+
+    /**
+     * Event waiting for the client.
+     */
+    static class Entry {
+        final BeaconEvent event;
+        final String beaconId;
+        final EventTrace trace;
+
+        Entry(BeaconEvent event, String beaconId, EventTrace trace) {
+            this.event = event;
+            this.beaconId = beaconId;
+            this.trace = trace;
+        }
+    }
+
+    /**
+     * Queues event for the client.
+     *
+     * @param event beacon event
+     * @param beaconId beacon identifier
+     * @param trace trace of the event, may be <code>null</code>
+     */
+    synchronized void offer( BeaconEvent event, String beaconId, EventTrace trace ) {
+        if( isRegionEvent(event) ) {
+            if( event==BeaconEvent.REGION_LEAVE && proximityEvents.remove(beaconId)!=null ) {
+                conflated++;
+            }
+            if( regionEvents.size()>=MAX_REGION_EVENTS ) {
+                regionEvents.removeFirst();
+                dropped++;
+            }
+            regionEvents.add(new Entry(event, beaconId, trace));
+        } else if( proximityEvents.put(beaconId, new Entry(event, beaconId, trace))!=null ) {
+            conflated++;
+        }
+    }
+
+    /**
+     * Takes next event that may be sent to the client now.
+     *
+     * @param now current time
+     * @return event or <code>null</code> if there are none or the client did not acknowledge previous events
+     */
+    synchronized Entry poll( long now ) {
+        if( acknowledging && inFlight>=MAX_IN_FLIGHT ) {
+            if( now-lastSent<ACK_TIMEOUT_MILLIS ) return null;
+            ackTimeouts++;
+            inFlight = 0;
+        }
+
+        Entry entry = regionEvents.poll();
+        if( entry==null && !proximityEvents.isEmpty() ) {
+            final Iterator<Entry> iterator = proximityEvents.values().iterator();
+            entry = iterator.next();
+            iterator.remove();
+        }
+        if( entry==null ) return null;
+
+        inFlight++;
+        lastSent = now;
+        sent++;
+        return entry;
+    }
+
+    /**
+     * Records acknowledgement of an event processed by the client.
+     */
+    synchronized void acknowledged() {
+        acknowledging = true;
+        inFlight = Math.max(0, inFlight-1);
+    }
+
+    /**
+     * @return statistics of this queue
+     */
+    public synchronized Stats getStats() {
+        return new Stats(regionEvents.size() + proximityEvents.size(), acknowledging ? inFlight : 0, sent, conflated, dropped, ackTimeouts);
+    }
+
+    private static boolean isRegionEvent( BeaconEvent event ) {
+        return event==BeaconEvent.REGION_ENTER || event==BeaconEvent.REGION_LEAVE;
+    }
+
+    /**
+     * Statistics of a client event queue.
+     */
+    public static class Stats {
+        /** Number of events waiting for the client */
+        public final int depth;
+        /** Number of events sent and not acknowledged yet */
+        public final int inFlight;
+        /** Number of events sent */
+        public final long sent;
+        /** Number of proximity updates superseded by newer events before sending */
+        public final long conflated;
+        /** Number of enter and leave events dropped because the queue was full */
+        public final long dropped;
+        /** Number of acknowledgements assumed lost */
+        public final long ackTimeouts;
+
+        Stats(int depth, int inFlight, long sent, long conflated, long dropped, long ackTimeouts) {
+            this.depth = depth;
+            this.inFlight = inFlight;
+            this.sent = sent;
+            this.conflated = conflated;
+            this.dropped = dropped;
+            this.ackTimeouts = ackTimeouts;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "depth=" + depth +
+                    ", inFlight=" + inFlight +
+                    ", sent=" + sent +
+                    ", conflated=" + conflated +
+                    ", dropped=" + dropped +
+                    ", ackTimeouts=" + ackTimeouts +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import com.upnext.blekit.model.Beacon;
+import com.upnext.blekit.model.Trigger;
+import com.upnext.blekit.model.Zone;
+import com.upnext.blekit.util.ZoneSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Zone prepared for processing beacon events, built once per zone update.
+ *
+ * Holds beacons indexed by identifier and actions of all triggers bound to their parameters
+ * (see {@link com.upnext.blekit.BoundAction}).
+ *
+ * A zone compiled from a {@link com.upnext.blekit.util.ZoneSnapshot} uses the index of the snapshot
+ * and binds actions when they are first needed, so that compiling it does not depend on the size of the zone.
+ */
+final class CompiledZone {
+
+    private final Zone zone;
+    private final Zone source;
+    private final ZoneSnapshot snapshot;
+    private final ActionsFactory actionsFactory;
+    private final Map<String, List<Beacon>> beaconsById = new LinkedHashMap<String, List<Beacon>>();
+    private final Map<Trigger, BoundAction> actions = new IdentityHashMap<Trigger, BoundAction>();
+
+    private CompiledZone(Zone zone, Zone source, ZoneSnapshot snapshot, ActionsFactory actionsFactory) {
+        this.zone = zone;
+        this.source = source;
+        this.snapshot = snapshot;
+        this.actionsFactory = actionsFactory;
+    }
+
+    /**
+     * Compiles given zone.
+     *
+     * @param zone zone, may be <code>null</code>
+     * @param actionsFactory factory providing action implementations
+     * @return compiled zone
+     */
+    static CompiledZone compile( Zone zone, ActionsFactory actionsFactory ) {
+        CompiledZone compiled = new CompiledZone(zone, zone, null, actionsFactory);
+        if( zone==null || zone.beacons==null ) return compiled;
+
+        for( Beacon beacon : zone.beacons ) {
+            if( beacon.id==null ) continue;
+            compiled.add(beacon, null);
+        }
+        return compiled;
+    }
+
+    /**
+     * Compiles zone of given snapshot, beacons are decoded and their actions bound lazily.
+     *
+     * @param snapshot zone snapshot
+     * @param actionsFactory factory providing action implementations
+     * @return compiled zone
+     */
+    static CompiledZone compile( ZoneSnapshot snapshot, ActionsFactory actionsFactory ) {
+        return new CompiledZone(snapshot.getZone(), snapshot.getZone(), snapshot, actionsFactory);
+    }
+
+    /**
+     * Compiles new version of this zone, applying only the difference: beacons that did not change keep their
+     * compiled state and are reused in the new zone, actions of unchanged triggers keep their bound parameters.
+     * The compiled zone is a copy of the new zone holding the reused beacons, the new zone is not modified.
+     *
+     * @param newZone new zone
+     * @param diff difference between zone of this compiled zone and the new zone
+     * @return compiled new zone
+     */
+    CompiledZone apply( Zone newZone, ZoneDiff diff ) {
+        if( snapshot!=null || zone==null || newZone==null || newZone.beacons==null ) {
+            return compile(newZone, actionsFactory);
+        }
+
+        final Zone zone = copyOf(newZone);
+        final CompiledZone compiled = new CompiledZone(zone, newZone, null, actionsFactory);
+        compiled.beaconsById.putAll(beaconsById);
+        compiled.actions.putAll(actions);
+
+        //triggers of changed beacons by id, so that unchanged triggers keep their bound actions
+        final Map<Long, BoundTrigger> previousTriggers = new HashMap<Long, BoundTrigger>();
+        for( String key : diff.getRemovedBeaconIds() ) {
+            compiled.remove(key, previousTriggers);
+        }
+        for( String key : diff.getChangedBeaconIds() ) {
+            compiled.remove(key, previousTriggers);
+        }
+
+        final Map<String, Integer> occurences = new HashMap<String, Integer>();
+        for( Beacon beacon : newZone.beacons ) {
+            if( beacon==null || beacon.id==null ) {
+                zone.beacons.add(beacon);
+                continue;
+            }
+            final String key = beacon.id.toLowerCase(Locale.US);
+
+            if( diff.getChangedBeaconIds().contains(key) || !beaconsById.containsKey(key) ) {
+                compiled.add(beacon, previousTriggers);
+                zone.beacons.add(beacon);
+            } else {
+                //unchanged, the compiled zone takes over the compiled beacon
+                Integer occurence = occurences.get(key);
+                occurence = occurence==null ? 0 : occurence+1;
+                occurences.put(key, occurence);
+                zone.beacons.add(beaconsById.get(key).get(occurence));
+            }
+        }
+        return compiled;
+    }
+
+    private static Zone copyOf( Zone zone ) {
+        final Zone copy = new Zone();
+        copy.id = zone.id;
+        copy.name = zone.name;
+        copy.version = zone.version;
+        copy.ttl = zone.ttl;
+        copy.radius = zone.radius;
+        copy.location = zone.location;
+        copy.beacons = new ArrayList<Beacon>(zone.beacons.size());
+        return copy;
+    }
+
+    private void add( Beacon beacon, Map<Long, BoundTrigger> previousTriggers ) {
+        final String key = beacon.id.toLowerCase(Locale.US);
+        List<Beacon> beacons = beaconsById.get(key);
+        if( beacons==null ) {
+            beacons = new ArrayList<Beacon>(1);
+            beaconsById.put(key, beacons);
+        }
+        beacons.add(beacon);
+
+        if( beacon.triggers==null ) return;
+        for( Trigger trigger : beacon.triggers ) {
+            if( trigger.action==null ) continue;
+
+            BoundAction boundAction = null;
+            final BoundTrigger previous = previousTriggers!=null ? previousTriggers.get(trigger.id) : null;
+            if( previous!=null && ZoneDiff.sameAction(previous.trigger.action, trigger.action) ) {
+                boundAction = previous.action;
+            }
+            if( boundAction==null ) {
+                boundAction = actionsFactory.bind(trigger.action.type, trigger.action.parameters);
+            }
+            if( boundAction!=null ) {
+                actions.put(trigger, boundAction);
+            }
+        }
+    }
+
+    private void remove( String key, Map<Long, BoundTrigger> previousTriggers ) {
+        final List<Beacon> beacons = beaconsById.remove(key);
+        if( beacons==null ) return;
+        for( Beacon beacon : beacons ) {
+            if( beacon.triggers==null ) continue;
+            for( Trigger trigger : beacon.triggers ) {
+                previousTriggers.put(trigger.id, new BoundTrigger(trigger, actions.remove(trigger)));
+            }
+        }
+    }
+
+    private static class BoundTrigger {
+        final Trigger trigger;
+        final BoundAction action;
+
+        BoundTrigger(Trigger trigger, BoundAction action) {
+            this.trigger = trigger;
+            this.action = action;
+        }
+    }
+
+    /**
+     * @return zone holding the compiled beacons, used for processing events
+     */
+    Zone getZone() {
+        return zone;
+    }
+
+    /**
+     * @return zone this zone was compiled from, the same as {@link #getZone()} unless it was compiled with {@link #apply(com.upnext.blekit.model.Zone, ZoneDiff)}
+     */
+    Zone getSource() {
+        return source;
+    }
+
+    /**
+     * @param beaconId beacon identifier, case insensitive
+     * @return beacons with given identifier, empty list if there are none
+     */
+    List<Beacon> getBeacons( String beaconId ) {
+        if( beaconId==null ) return Collections.emptyList();
+        if( snapshot!=null ) return snapshot.getBeacons(beaconId);
+        List<Beacon> beacons = beaconsById.get(beaconId.toLowerCase(Locale.US));
+        if( beacons==null ) return Collections.emptyList();
+        return beacons;
+    }
+
+    /**
+     * Returns identifiers of beacons, from the index of the snapshot if this zone was compiled from one.
+     *
+     * @return distinct lowercase beacon identifiers
+     */
+    Collection<String> getBeaconIds() {
+        if( snapshot!=null ) return snapshot.getBeaconIds();
+        return beaconsById.keySet();
+    }
+
+    /**
+     * @param beaconId beacon identifier, case insensitive
+     * @return number of triggers of beacons with given identifier
+     */
+    int getTriggerCount( String beaconId ) {
+        if( snapshot!=null ) return snapshot.getTriggerCount(beaconId);
+        int count = 0;
+        for( Beacon beacon : getBeacons(beaconId) ) {
+            if( beacon.triggers!=null ) count += beacon.triggers.size();
+        }
+        return count;
+    }
+
+    /**
+     * @param beaconId beacon identifier, case insensitive
+     * @return configured RSSI at 1 meter of the first beacon with given identifier which has one, 0 if none has
+     */
+    int getTxPower( String beaconId ) {
+        if( snapshot!=null ) return snapshot.getTxPower(beaconId);
+        for( Beacon beacon : getBeacons(beaconId) ) {
+            if( beacon.tx_power!=null ) return beacon.tx_power;
+        }
+        return 0;
+    }
+
+    /**
+     * @param trigger trigger of this zone
+     * @return bound action of the trigger or <code>null</code> if there is no implementation of its action type
+     */
+    BoundAction getAction( Trigger trigger ) {
+        if( snapshot==null ) return actions.get(trigger);
+
+        synchronized (actions) {
+            if( actions.containsKey(trigger) ) return actions.get(trigger);
+            BoundAction boundAction = null;
+            if( trigger.action!=null ) {
+                boundAction = actionsFactory.bind(trigger.action.type, trigger.action.parameters);
+            }
+            actions.put(trigger, boundAction);
+            return boundAction;
+        }
+    }
+}
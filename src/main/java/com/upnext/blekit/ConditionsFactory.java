@@ -36,8 +36,10 @@ import com.upnext.blekit.conditions.EnterCondition;
 import com.upnext.blekit.conditions.HttpOkCondition;
 import com.upnext.blekit.conditions.LeaveCondition;
 import com.upnext.blekit.conditions.StaysCondition;
+import com.upnext.blekit.util.Histogram;
 import com.upnext.blekit.util.JsonParser;
 import com.upnext.blekit.util.L;
+import com.upnext.blekit.util.Metrics;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -56,6 +58,8 @@ import java.util.Map;
  *  <li>{@link com.upnext.blekit.conditions.StaysCondition}
  * </ul>
  *
+ * Basic conditions are instantiated when they are first needed, so creating the factory does not load their classes.
+ *
  * To add a custom condition to the factory, call {@link #addCondition(com.upnext.blekit.conditions.BLECondition)} passing your implementation as the parameter.
  *
  * In case you want to overwrite a default condition with the same type ({@link com.upnext.blekit.conditions.BLECondition#getType()}, you have to remove it from the
@@ -75,7 +79,9 @@ import java.util.Map;
 public class ConditionsFactory {
 
     private Map<String, BLECondition> conditionsMap;
-    private JsonParser jsonParser = new JsonParser();
+    private Map<String, Class<? extends BLECondition>> basicConditions = new HashMap<String, Class<? extends BLECondition>>();
+    private Map<String, Histogram> latencies = new HashMap<String, Histogram>();
+    private JsonParser jsonParser = JsonParser.getInstance();
 
     /**
      * Default constructor.
@@ -93,9 +99,9 @@ public class ConditionsFactory {
      * @param condition condition implementation
      * @throws IllegalArgumentException thrown if condition with given type already exists
      */
-    public void addCondition( BLECondition condition ) {
+    public synchronized void addCondition( BLECondition condition ) {
         if( condition==null ) return;
-        if( conditionsMap.containsKey( condition.getType() ) ) {
+        if( conditionsMap.containsKey( condition.getType() ) || basicConditions.containsKey( condition.getType() ) ) {
             throw new IllegalArgumentException( "Condition with given type already exists: " + condition.getType() );
         }
         conditionsMap.put( condition.getType(), condition );
@@ -113,7 +119,7 @@ public class ConditionsFactory {
      * @return condition instance if found or null if not found
      */
     public BLECondition get( String type, BeaconEvent beaconEvent, JsonNode parameters, String expression, Context context ) {
-        BLECondition condition = conditionsMap.get(type);
+        BLECondition condition = get(type);
 
         if( condition==null || !condition.isValidForEvent(beaconEvent) ) {
             return null;
@@ -136,8 +142,32 @@ public class ConditionsFactory {
      *
      * @return condition instance if found or null if not found
      */
-    public BLECondition get( String type ) {
-        return conditionsMap.get(type);
+    public synchronized BLECondition get( String type ) {
+        BLECondition condition = conditionsMap.get(type);
+        if( condition==null && basicConditions.containsKey(type) ) {
+            condition = newInstance(basicConditions.remove(type));
+            if( condition!=null ) {
+                conditionsMap.put(type, condition);
+            }
+        }
+        return condition;
+    }
+
+    /**
+     * Returns histogram of evaluation times (in microseconds) of conditions of given type,
+     * registered in {@link com.upnext.blekit.util.Metrics} as <code>conditions.&lt;type&gt;.us</code>.
+     * Histograms are cached per type, so that evaluating a condition does not look up the registry.
+     *
+     * @param type type of condition
+     * @return histogram
+     */
+    public synchronized Histogram getLatency( String type ) {
+        Histogram histogram = latencies.get(type);
+        if( histogram==null ) {
+            histogram = Metrics.getInstance().histogram("conditions." + type + ".us");
+            latencies.put(type, histogram);
+        }
+        return histogram;
     }
 
     /**
@@ -145,30 +175,29 @@ public class ConditionsFactory {
      *
      * @param type action type
      */
-    public void remove( String type ) {
+    public synchronized void remove( String type ) {
         conditionsMap.remove(type);
+        basicConditions.remove(type);
     }
 
     private void provideBasicConditions() {
-        final EnterCondition enterCondition = new EnterCondition();
-        conditionsMap.put(enterCondition.getType(), enterCondition);
-
-        final LeaveCondition leaveCondition = new LeaveCondition();
-        conditionsMap.put(leaveCondition.getType(), leaveCondition);
-
-        final CameFarCondition cameFarCondition = new CameFarCondition();
-        conditionsMap.put(cameFarCondition.getType(), cameFarCondition);
-
-        final CameNearCondition cameNearCondition = new CameNearCondition();
-        conditionsMap.put(cameNearCondition.getType(), cameNearCondition);
-
-        final CameImmediateCondition cameImmediateCondition = new CameImmediateCondition();
-        conditionsMap.put(cameImmediateCondition.getType(), cameImmediateCondition);
-
-        final HttpOkCondition httpOkCondition = new HttpOkCondition();
-        conditionsMap.put(httpOkCondition.getType(), httpOkCondition);
+        basicConditions.put(EnterCondition.TYPE, EnterCondition.class);
+        basicConditions.put(LeaveCondition.TYPE, LeaveCondition.class);
+        basicConditions.put(CameFarCondition.TYPE, CameFarCondition.class);
+        basicConditions.put(CameNearCondition.TYPE, CameNearCondition.class);
+        basicConditions.put(CameImmediateCondition.TYPE, CameImmediateCondition.class);
+        basicConditions.put(HttpOkCondition.TYPE, HttpOkCondition.class);
+        basicConditions.put(StaysCondition.TYPE, StaysCondition.class);
+    }
 
-        final StaysCondition staysCondition = new StaysCondition();
-        conditionsMap.put(staysCondition.getType(), staysCondition);
+    private static BLECondition newInstance( Class<? extends BLECondition> conditionClass ) {
+        try {
+            return conditionClass.newInstance();
+        } catch (InstantiationException e) {
+            L.e( "Could not instantiate " + conditionClass.getName(), e );
+        } catch (IllegalAccessException e) {
+            L.e( "Could not instantiate " + conditionClass.getName(), e );
+        }
+        return null;
     }
 }
@@ -50,4 +50,14 @@ public final class Config {
      */
     protected static final long LEAVE_MSG_DELAY_MILLIS = 15000;
 
+    /**
+     * Maximum number of regions registered for scanning at the same time, see {@link com.upnext.blekit.RegionBudget}.
+     */
+    protected static final int MAX_MONITORED_REGIONS = RegionBudget.DEFAULT_MAX_REGIONS;
+
+    /**
+     * Regions of lower ranked beacons rotate every this amount of milliseconds, when there are more beacons than regions.
+     */
+    protected static final long REGION_ROTATION_MILLIS = 60000;
+
 }
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import android.content.Context;
+
+import com.upnext.blekit.util.BeaconPreferences;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Log-distance path loss model estimating distance of a beacon from its RSSI:
+ * <pre>
+ *     distance = 10 ^ ((txPower - (rssi + rssiOffset)) / (10 * pathLossExponent))
+ * </pre>
+ * where <code>txPower</code> is RSSI of the beacon at 1 meter. It is taken, in order of precedence, from calibration
+ * of the beacon on this device ({@link #calibrateBeacon(String, java.util.List)}), from the zone configuration
+ * (<code>tx_power</code> in zone JSON), from the measured power in the advertisement, or {@link #DEFAULT_TX_POWER}.
+ * Calibration is measured on site, so it wins over the configured value; both are kept, so that clearing one does not
+ * lose the other. <code>rssiOffset</code> corrects the receiver of this device, see {@link #calibrateDevice(String, java.util.List)}.
+ *
+ * Used by {@link com.upnext.blekit.AverageIBeacon} in the process running {@link com.upnext.blekit.BLEKitService}.
+ */
+public final class DistanceModel {
+
+    /**
+     * RSSI at 1 meter of beacons without configured or advertised measured power.
+     */
+    public static final int DEFAULT_TX_POWER = -58;
+
+    /**
+     * Path loss exponent of free space.
+     */
+    public static final double DEFAULT_PATH_LOSS_EXPONENT = 2.0;
+
+    // Advertised measured power outside of this range is considered invalid
+    private static final int MIN_TX_POWER = -100;
+    private static final int MAX_TX_POWER = -20;
+
+    private static final DistanceModel instance = new DistanceModel();
+
+    private final Map<String, Integer> configuredTxPowers = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Integer> calibratedTxPowers = new ConcurrentHashMap<String, Integer>();
+    private volatile double pathLossExponent = DEFAULT_PATH_LOSS_EXPONENT;
+    private volatile double rssiOffset;
+
+    /**
+     * Distance and received signal strength of a beacon, recorded for calibration.
+     */
+    public static class Sample {
+        /** Real distance from the beacon in meters */
+        public final double distance;
+        /** Received signal strength */
+        public final double rssi;
+
+        public Sample(double distance, double rssi) {
+            this.distance = distance;
+            this.rssi = rssi;
+        }
+    }
+
+    /**
+     * Parameters fitted to calibration samples.
+     */
+    public static class Fit {
+        /** RSSI at 1 meter */
+        public final double txPower;
+        /** Path loss exponent */
+        public final double pathLossExponent;
+        /** Root mean square error of RSSI predicted by the fit */
+        public final double rmse;
+        /** Number of samples */
+        public final int samples;
+
+        Fit(double txPower, double pathLossExponent, double rmse, int samples) {
+            this.txPower = txPower;
+            this.pathLossExponent = pathLossExponent;
+            this.rmse = rmse;
+            this.samples = samples;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "Fit{" +
+                    "txPower=" + txPower +
+                    ", pathLossExponent=" + pathLossExponent +
+                    ", rmse=" + rmse +
+                    ", samples=" + samples +
+                    '}';
+        }
+    }
+
+    /**
+     * Creates model with default parameters.
+     */
+    public DistanceModel() {
+    }
+
+    /**
+     * @return model used by the service in this process
+     */
+    public static DistanceModel getInstance() {
+        return instance;
+    }
+
+    /**
+     * Estimates distance of a beacon.
+     *
+     * @param beaconId beacon identifier (proximityUUID+major+minor)
+     * @param advertisedTxPower measured power from the advertisement, 0 if not available
+     * @param rssi received signal strength
+     * @return distance in meters or -1 if rssi is not available
+     */
+    public double distance( String beaconId, int advertisedTxPower, double rssi ) {
+        if( rssi==0 ) return -1;
+        final double txPower = getTxPower(beaconId, advertisedTxPower);
+        return Math.pow(10, (txPower - (rssi + rssiOffset)) / (10 * pathLossExponent));
+    }
+
+    /**
+     * Returns RSSI at 1 meter used for a beacon.
+     *
+     * @param beaconId beacon identifier (proximityUUID+major+minor), may be <code>null</code>
+     * @param advertisedTxPower measured power from the advertisement, 0 if not available
+     * @return RSSI at 1 meter
+     */
+    public int getTxPower( String beaconId, int advertisedTxPower ) {
+        if( beaconId!=null ) {
+            final String key = beaconId.toLowerCase();
+            final Integer calibrated = calibratedTxPowers.get(key);
+            if( calibrated!=null ) return calibrated;
+            final Integer configured = configuredTxPowers.get(key);
+            if( configured!=null ) return configured;
+        }
+        if( advertisedTxPower>=MIN_TX_POWER && advertisedTxPower<=MAX_TX_POWER ) return advertisedTxPower;
+        return DEFAULT_TX_POWER;
+    }
+
+    /**
+     * Sets RSSI at 1 meter of a beacon from the zone configuration, overriding the measured power it advertises.
+     * Calibration of the beacon is not affected.
+     *
+     * @param beaconId beacon identifier (proximityUUID+major+minor)
+     * @param txPower RSSI at 1 meter or <code>null</code> if the beacon has no configured value
+     */
+    public void setConfiguredTxPower( String beaconId, Integer txPower ) {
+        setTxPower(configuredTxPowers, beaconId, txPower);
+    }
+
+    /**
+     * Sets RSSI at 1 meter of a beacon calibrated on this device, overriding the configured and advertised one.
+     *
+     * @param beaconId beacon identifier (proximityUUID+major+minor)
+     * @param txPower RSSI at 1 meter or <code>null</code> to clear the calibration
+     */
+    public void setCalibratedTxPower( String beaconId, Integer txPower ) {
+        setTxPower(calibratedTxPowers, beaconId, txPower);
+    }
+
+    /**
+     * @return copy of RSSI at 1 meter of beacons calibrated on this device, by lower case beacon identifier
+     */
+    public Map<String, Integer> getCalibratedTxPowers() {
+        return new HashMap<String, Integer>(calibratedTxPowers);
+    }
+
+    private static void setTxPower( Map<String, Integer> txPowers, String beaconId, Integer txPower ) {
+        if( beaconId==null ) return;
+        if( txPower==null ) {
+            txPowers.remove(beaconId.toLowerCase());
+        } else {
+            txPowers.put(beaconId.toLowerCase(), txPower);
+        }
+    }
+
+    /**
+     * @return path loss exponent, 2 in free space, higher indoors
+     */
+    public double getPathLossExponent() {
+        return pathLossExponent;
+    }
+
+    /**
+     * @param pathLossExponent path loss exponent, 2 in free space, higher indoors
+     * @throws IllegalArgumentException thrown if the exponent is not positive
+     */
+    public void setPathLossExponent( double pathLossExponent ) throws IllegalArgumentException {
+        if( !(pathLossExponent>0) ) {
+            throw new IllegalArgumentException( "Path loss exponent must be positive: " + pathLossExponent );
+        }
+        this.pathLossExponent = pathLossExponent;
+    }
+
+    /**
+     * @return offset added to RSSI measured by this device
+     */
+    public double getRssiOffset() {
+        return rssiOffset;
+    }
+
+    /**
+     * @param rssiOffset offset added to RSSI measured by this device
+     */
+    public void setRssiOffset( double rssiOffset ) {
+        this.rssiOffset = rssiOffset;
+    }
+
+    /**
+     * Fits RSSI at 1 meter and path loss exponent to samples (least squares of RSSI against log distance).
+     *
+     * @param samples samples at two or more different distances
+     * @return fit
+     * @throws IllegalArgumentException thrown if samples do not cover at least two different distances
+     */
+    public static Fit fit( List<Sample> samples ) throws IllegalArgumentException {
+        int n = 0;
+        double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+        for( Sample sample : samples ) {
+            if( !(sample.distance>0) ) continue;
+            final double x = Math.log10(sample.distance);
+            n++;
+            sumX += x;
+            sumY += sample.rssi;
+            sumXX += x*x;
+            sumXY += x*sample.rssi;
+        }
+        final double denominator = n*sumXX - sumX*sumX;
+        if( n<2 || Math.abs(denominator)<1e-9 ) {
+            throw new IllegalArgumentException( "Samples at two or more different distances are required" );
+        }
+
+        //rssi = txPower - 10 * exponent * log10(distance)
+        final double slope = (n*sumXY - sumX*sumY) / denominator;
+        final double txPower = (sumY - slope*sumX) / n;
+        final double exponent = -slope / 10;
+
+        double squares = 0;
+        for( Sample sample : samples ) {
+            if( !(sample.distance>0) ) continue;
+            final double error = sample.rssi - (txPower + slope*Math.log10(sample.distance));
+            squares += error*error;
+        }
+        return new Fit(txPower, exponent, Math.sqrt(squares/n), n);
+    }
+
+    /**
+     * Calibrates a beacon - fits samples recorded by this device and sets calibrated RSSI at 1 meter of the beacon,
+     * corrected by the current RSSI offset. The fitted path loss exponent is returned, not applied.
+     *
+     * @param beaconId beacon identifier (proximityUUID+major+minor)
+     * @param samples samples at two or more different distances
+     * @return fit
+     * @throws IllegalArgumentException thrown if samples do not cover at least two different distances
+     */
+    public Fit calibrateBeacon( String beaconId, List<Sample> samples ) throws IllegalArgumentException {
+        final Fit fit = fit(samples);
+        setCalibratedTxPower(beaconId, (int) Math.round(fit.txPower + rssiOffset));
+        return fit;
+    }
+
+    /**
+     * Calibrates this device - sets RSSI offset so that samples of a beacon with known RSSI at 1 meter
+     * (calibrated, configured or {@link #DEFAULT_TX_POWER}) match the model on average.
+     *
+     * @param beaconId identifier of the reference beacon (proximityUUID+major+minor)
+     * @param samples samples of the reference beacon
+     * @return new RSSI offset
+     * @throws IllegalArgumentException thrown if there are no samples
+     */
+    public double calibrateDevice( String beaconId, List<Sample> samples ) throws IllegalArgumentException {
+        final int txPower = getTxPower(beaconId, 0);
+        int n = 0;
+        double sum = 0;
+        for( Sample sample : samples ) {
+            if( !(sample.distance>0) ) continue;
+            final double expected = txPower - 10 * pathLossExponent * Math.log10(sample.distance);
+            sum += expected - sample.rssi;
+            n++;
+        }
+        if( n==0 ) {
+            throw new IllegalArgumentException( "No samples" );
+        }
+        rssiOffset = sum / n;
+        return rssiOffset;
+    }
+
+    /**
+     * Restores path loss exponent, RSSI offset and calibrated RSSI at 1 meter of beacons saved with {@link #save(android.content.Context)}.
+     *
+     * @param context context
+     */
+    public void restore( Context context ) {
+        final Double exponent = BeaconPreferences.getPathLossExponent(context);
+        if( exponent!=null && exponent>0 ) {
+            pathLossExponent = exponent;
+        }
+        final Double offset = BeaconPreferences.getRssiOffset(context);
+        if( offset!=null ) {
+            rssiOffset = offset;
+        }
+        calibratedTxPowers.clear();
+        calibratedTxPowers.putAll(BeaconPreferences.getCalibratedTxPowers(context));
+    }
+
+    /**
+     * Saves path loss exponent, RSSI offset and calibrated RSSI at 1 meter of beacons of this device, eg. after calibration.
+     * Configured RSSI at 1 meter belongs to the zone configuration (<code>tx_power</code>) and is not saved.
+     *
+     * @param context context
+     */
+    public void save( Context context ) {
+        BeaconPreferences.setPathLossExponent(context, pathLossExponent);
+        BeaconPreferences.setRssiOffset(context, rssiOffset);
+        BeaconPreferences.setCalibratedTxPowers(context, calibratedTxPowers);
+    }
+}
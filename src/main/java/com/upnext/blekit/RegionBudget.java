@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caps the number of regions registered with the iBeacon library.
+ *
+ * Scanning slows down with every monitored region, so when clients ask for more beacons than {@link #getMaxRegions()},
+ * only the best ranked ones are registered permanently and the remaining slots rotate through the rest:
+ * <ul>
+ *  <li>beacons currently in range are always registered, so that leaving them is detected
+ *  <li>beacons are ranked by number of their triggers, recent sightings and priority of clients monitoring them
+ *      (beacons of clients in foreground rank higher)
+ *  <li>{@link #ROTATING_FRACTION} of the slots is given to the other beacons in turns, every {@link #rotate(long)}
+ * </ul>
+ * Not thread safe, used on the main thread of {@link com.upnext.blekit.BLEKitService}.
+ */
+public final class RegionBudget {
+
+    /**
+     * Default maximum number of registered regions.
+     */
+    static final int DEFAULT_MAX_REGIONS = 20;
+
+    /**
+     * Fraction of the slots rotating through lower ranked beacons.
+     */
+    static final double ROTATING_FRACTION = 0.25;
+
+    // Sightings count half as much after this time
+    private static final long SIGHTING_HALF_LIFE = 10*60*1000;
+    // Rank multiplier of beacons monitored by a client in foreground
+    private static final double FOREGROUND_PRIORITY = 2;
+
+    private final int maxRegions;
+    private final Map<String, Integer> triggers = new HashMap<String, Integer>();
+    private final Map<String, Sighting> sightings = new HashMap<String, Sighting>();
+
+    private String rotationCursor;
+    private String nextRotationCursor;
+    private long rotations;
+    private long lastRotation;
+    private Stats stats = new Stats(0, 0, 0, 0, 0, 0);
+
+    private static class Sighting {
+        double score;
+        long at;
+    }
+
+    RegionBudget( int maxRegions ) {
+        this.maxRegions = Math.max(1, maxRegions);
+    }
+
+    int getMaxRegions() {
+        return maxRegions;
+    }
+
+    /**
+     * Sets number of triggers of a beacon, as reported by the last client.
+     *
+     * @param beaconId beacon identifier
+     * @param count number of triggers
+     */
+    void setTriggerCount( String beaconId, int count ) {
+        triggers.put(beaconId, count);
+    }
+
+    /**
+     * Records a sighting of a beacon.
+     *
+     * @param beaconId beacon identifier
+     * @param now current time
+     */
+    void sighted( String beaconId, long now ) {
+        Sighting sighting = sightings.get(beaconId);
+        if( sighting==null ) {
+            sighting = new Sighting();
+            sightings.put(beaconId, sighting);
+        }
+        sighting.score = decay(sighting, now) + 1;
+        sighting.at = now;
+    }
+
+    /**
+     * Forgets a beacon no client monitors anymore.
+     *
+     * @param beaconId beacon identifier
+     */
+    void remove( String beaconId ) {
+        triggers.remove(beaconId);
+        sightings.remove(beaconId);
+    }
+
+    /**
+     * Moves the rotating slots to the next lower ranked beacons, takes effect with the next {@link #select}.
+     *
+     * @param now current time
+     */
+    void rotate( long now ) {
+        rotationCursor = nextRotationCursor;
+        rotations++;
+        lastRotation = now;
+    }
+
+    /**
+     * @return time of the last rotation, 0 if there was none
+     */
+    long getLastRotation() {
+        return lastRotation;
+    }
+
+    /**
+     * Selects beacons to register.
+     *
+     * @param candidates identifiers of all beacons monitored by clients
+     * @param present identifiers of beacons currently in range
+     * @param foreground identifiers of beacons monitored by clients in foreground
+     * @param now current time
+     * @return identifiers of beacons to register, at most {@link #getMaxRegions()} unless more beacons are in range
+     */
+    Set<String> select( Collection<String> candidates, final Set<String> present, Set<String> foreground, long now ) {
+        if( candidates.size()<=maxRegions ) {
+            stats = new Stats(candidates.size(), candidates.size(), countPresent(candidates, present), 0, rotations, 0);
+            nextRotationCursor = null;
+            return new HashSet<String>(candidates);
+        }
+
+        final Map<String, Double> ranks = new HashMap<String, Double>();
+        for( String beaconId : candidates ) {
+            ranks.put(beaconId, rank(beaconId, foreground, now));
+        }
+
+        final List<String> ranked = new ArrayList<String>(candidates);
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                final boolean lhsPresent = present.contains(lhs);
+                if( lhsPresent!=present.contains(rhs) ) return lhsPresent ? -1 : 1;
+                final int byRank = Double.compare(ranks.get(rhs), ranks.get(lhs));
+                return byRank!=0 ? byRank : lhs.compareTo(rhs);
+            }
+        });
+
+        final int pinned = countPresent(candidates, present);
+        final int rotating = Math.max(1, (int) Math.round(maxRegions*ROTATING_FRACTION));
+        final int fixed = Math.max(pinned, maxRegions-rotating);
+        final Set<String> selected = new HashSet<String>(ranked.subList(0, Math.min(fixed, ranked.size())));
+
+        //rest in a stable order, so that the rotation visits every beacon
+        final List<String> rest = new ArrayList<String>(ranked.subList(selected.size(), ranked.size()));
+        Collections.sort(rest);
+        final int slots = Math.min(rest.size(), Math.max(0, maxRegions-selected.size()));
+        int start = 0;
+        if( rotationCursor!=null ) {
+            start = Collections.binarySearch(rest, rotationCursor);
+            if( start<0 ) start = -start-1;
+        }
+        for( int i=0; i<slots; i++ ) {
+            selected.add(rest.get((start+i) % rest.size()));
+        }
+        nextRotationCursor = rest.isEmpty() ? null : rest.get((start+slots) % rest.size());
+
+        final int turns = slots>0 ? (rest.size()+slots-1)/slots : 0;
+        stats = new Stats(candidates.size(), selected.size(), pinned, slots, rotations, turns);
+        return selected;
+    }
+
+    /**
+     * @return statistics of the last selection
+     */
+    Stats getStats() {
+        return stats;
+    }
+
+    private double rank( String beaconId, Set<String> foreground, long now ) {
+        final Integer count = triggers.get(beaconId);
+        final Sighting sighting = sightings.get(beaconId);
+        double rank = count!=null ? Math.max(1, count) : 1;
+        rank *= 1 + (sighting!=null ? decay(sighting, now) : 0);
+        if( foreground.contains(beaconId) ) {
+            rank *= FOREGROUND_PRIORITY;
+        }
+        return rank;
+    }
+
+    private static double decay( Sighting sighting, long now ) {
+        final long elapsed = Math.max(0, now-sighting.at);
+        return sighting.score * Math.pow(0.5, (double) elapsed/SIGHTING_HALF_LIFE);
+    }
+
+    private static int countPresent( Collection<String> candidates, Set<String> present ) {
+        int count = 0;
+        for( String beaconId : candidates ) {
+            if( present.contains(beaconId) ) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Coverage statistics of region selection.
+     */
+    public static class Stats {
+        /** Number of beacons monitored by clients */
+        public final int candidates;
+        /** Number of registered regions */
+        public final int registered;
+        /** Number of registered beacons in range */
+        public final int pinned;
+        /** Number of slots rotating through lower ranked beacons */
+        public final int rotating;
+        /** Number of rotations so far */
+        public final long rotations;
+        /** Number of rotations needed to register every lower ranked beacon once, 0 if all beacons are registered */
+        public final int rotationCycle;
+
+        Stats(int candidates, int registered, int pinned, int rotating, long rotations, int rotationCycle) {
+            this.candidates = candidates;
+            this.registered = registered;
+            this.pinned = pinned;
+            this.rotating = rotating;
+            this.rotations = rotations;
+            this.rotationCycle = rotationCycle;
+        }
+
+        /**
+         * @return fraction of monitored beacons that are registered
+         */
+        public double getCoverage() {
+            return candidates>0 ? (double) registered/candidates : 1;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "candidates=" + candidates +
+                    ", registered=" + registered +
+                    ", pinned=" + pinned +
+                    ", rotating=" + rotating +
+                    ", rotations=" + rotations +
+                    ", rotationCycle=" + rotationCycle +
+                    ", coverage=" + getCoverage() +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import com.upnext.blekit.model.Action;
+import com.upnext.blekit.model.Beacon;
+import com.upnext.blekit.model.Condition;
+import com.upnext.blekit.model.Location;
+import com.upnext.blekit.model.Trigger;
+import com.upnext.blekit.model.TriggerLimits;
+import com.upnext.blekit.model.Zone;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Structural difference between two zones.
+ *
+ * Beacons are matched by their identifier (case insensitive). A beacon identifier is changed if any of its beacons
+ * or their triggers differ - beacons with the same identifier are compared in zone order.
+ * Beacons without identifier are ignored, as they are never monitored.
+ */
+final class ZoneDiff {
+
+    private final List<String> added = new ArrayList<String>();
+    private final List<String> removed = new ArrayList<String>();
+    private final Set<String> changed = new HashSet<String>();
+
+    private ZoneDiff() {
+    }
+
+    /**
+     * Computes difference between zones.
+     *
+     * @param oldZone previous zone
+     * @param newZone new zone
+     * @return difference
+     */
+    static ZoneDiff compute( Zone oldZone, Zone newZone ) {
+        final ZoneDiff diff = new ZoneDiff();
+        final Map<String, List<Beacon>> oldBeacons = groupById(oldZone);
+        final Map<String, List<Beacon>> newBeacons = groupById(newZone);
+
+        for( Map.Entry<String, List<Beacon>> entry : newBeacons.entrySet() ) {
+            final List<Beacon> previous = oldBeacons.get(entry.getKey());
+            if( previous==null ) {
+                diff.added.add(entry.getKey());
+            } else if( !sameBeacons(previous, entry.getValue()) ) {
+                diff.changed.add(entry.getKey());
+            }
+        }
+        for( String id : oldBeacons.keySet() ) {
+            if( !newBeacons.containsKey(id) ) {
+                diff.removed.add(id);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * @return identifiers of beacons present only in the new zone, lowercase
+     */
+    List<String> getAddedBeaconIds() {
+        return added;
+    }
+
+    /**
+     * @return identifiers of beacons present only in the old zone, lowercase
+     */
+    List<String> getRemovedBeaconIds() {
+        return removed;
+    }
+
+    /**
+     * @return identifiers of beacons present in both zones, but with different content, lowercase
+     */
+    Set<String> getChangedBeaconIds() {
+        return changed;
+    }
+
+    /**
+     * @return <code>true</code> if set of monitored beacon identifiers differs
+     */
+    boolean hasBeaconIdChanges() {
+        return !added.isEmpty() || !removed.isEmpty();
+    }
+
+    /**
+     * @return <code>true</code> if beacons of both zones are the same
+     */
+    boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    /**
+     * Checks whether actions are equal, so that action bound to the parameters of one may be used for the other.
+     *
+     * @param lhs action
+     * @param rhs action
+     * @return <code>true</code> if actions are equal
+     */
+    static boolean sameAction( Action lhs, Action rhs ) {
+        if( lhs==rhs ) return true;
+        if( lhs==null || rhs==null ) return false;
+        return equal(lhs.id, rhs.id) && equal(lhs.type, rhs.type) && equal(lhs.parameters, rhs.parameters);
+    }
+
+    static String key( Beacon beacon ) {
+        return beacon.id.toLowerCase(Locale.US);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "ZoneDiff{" +
+                "added=" + added +
+                ", removed=" + removed +
+                ", changed=" + changed +
+                '}';
+    }
+
+    private static Map<String, List<Beacon>> groupById( Zone zone ) {
+        final Map<String, List<Beacon>> groups = new LinkedHashMap<String, List<Beacon>>();
+        if( zone==null || zone.beacons==null ) return groups;
+
+        for( Beacon beacon : zone.beacons ) {
+            if( beacon==null || beacon.id==null ) continue;
+            final String key = key(beacon);
+            List<Beacon> group = groups.get(key);
+            if( group==null ) {
+                group = new ArrayList<Beacon>(1);
+                groups.put(key, group);
+            }
+            group.add(beacon);
+        }
+        return groups;
+    }
+
+    private static boolean sameBeacons( List<Beacon> lhs, List<Beacon> rhs ) {
+        if( lhs.size()!=rhs.size() ) return false;
+        for( int i=0; i<lhs.size(); i++ ) {
+            if( !sameBeacon(lhs.get(i), rhs.get(i)) ) return false;
+        }
+        return true;
+    }
+
+    private static boolean sameBeacon( Beacon lhs, Beacon rhs ) {
+        if( !equal(lhs.id, rhs.id) || !equal(lhs.name, rhs.name) || !equal(lhs.description, rhs.description) ) return false;
+        if( !sameLocation(lhs.location, rhs.location) || !equal(lhs.tx_power, rhs.tx_power) ) return false;
+
+        if( lhs.triggers==rhs.triggers ) return true;
+        if( lhs.triggers==null || rhs.triggers==null || lhs.triggers.size()!=rhs.triggers.size() ) return false;
+        for( int i=0; i<lhs.triggers.size(); i++ ) {
+            if( !sameTrigger(lhs.triggers.get(i), rhs.triggers.get(i)) ) return false;
+        }
+        return true;
+    }
+
+    private static boolean sameTrigger( Trigger lhs, Trigger rhs ) {
+        if( lhs.id!=rhs.id || !equal(lhs.name, rhs.name) || !equal(lhs.comment, rhs.comment) ) return false;
+        if( !sameAction(lhs.action, rhs.action) || !sameLimits(lhs.limits, rhs.limits) ) return false;
+
+        if( lhs.conditions==rhs.conditions ) return true;
+        if( lhs.conditions==null || rhs.conditions==null || lhs.conditions.size()!=rhs.conditions.size() ) return false;
+        for( int i=0; i<lhs.conditions.size(); i++ ) {
+            if( !sameCondition(lhs.conditions.get(i), rhs.conditions.get(i)) ) return false;
+        }
+        return true;
+    }
+
+    private static boolean sameCondition( Condition lhs, Condition rhs ) {
+        return lhs.id==rhs.id && equal(lhs.type, rhs.type) && equal(lhs.parameters, rhs.parameters) && equal(lhs.expression, rhs.expression);
+    }
+
+    private static boolean sameLimits( TriggerLimits lhs, TriggerLimits rhs ) {
+        if( lhs==rhs ) return true;
+        if( lhs==null || rhs==null ) return false;
+        return lhs.min_interval==rhs.min_interval && lhs.max_count==rhs.max_count && lhs.window==rhs.window;
+    }
+
+    private static boolean sameLocation( Location lhs, Location rhs ) {
+        if( lhs==rhs ) return true;
+        if( lhs==null || rhs==null ) return false;
+        return lhs.latitude==rhs.latitude && lhs.longitude==rhs.longitude;
+    }
+
+    private static boolean equal( Object lhs, Object rhs ) {
+        return lhs==null ? rhs==null : lhs.equals(rhs);
+    }
+}
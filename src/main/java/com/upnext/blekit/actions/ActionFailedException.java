@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.actions;
+
+/**
+ * Thrown by an action when it could not be performed.
+ *
+ * Retryable failures (eg. network errors) are performed again by {@link com.upnext.blekit.ActionDispatcher},
+ * up to {@link com.upnext.blekit.actions.BLEAction#getMaxRetries()} times with exponential backoff.
+ */
+public class ActionFailedException extends RuntimeException {
+
+    private final boolean retryable;
+
+    /**
+     * @param message failure description
+     * @param retryable <code>true</code> if performing the action again may succeed
+     */
+    public ActionFailedException(String message, boolean retryable) {
+        super(message);
+        this.retryable = retryable;
+    }
+
+    /**
+     * @param message failure description
+     * @param cause cause of the failure
+     * @param retryable <code>true</code> if performing the action again may succeed
+     */
+    public ActionFailedException(String message, Throwable cause, boolean retryable) {
+        super(message, cause);
+        this.retryable = retryable;
+    }
+
+    /**
+     * @return <code>true</code> if performing the action again may succeed
+     */
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
@@ -31,6 +31,8 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.upnext.blekit.BLEKit;
@@ -38,6 +40,8 @@ import com.upnext.blekit.BackgroundMode;
 import com.upnext.blekit.util.JsonParser;
 import com.upnext.blekit.util.L;
 
+import java.util.concurrent.CountDownLatch;
+
 /**
  * Base abstract class for custom BLEKit actions.
  *
@@ -47,6 +51,13 @@ import com.upnext.blekit.util.L;
  */
 public abstract class BLEAction<T> {
 
+    /**
+     * Default timeout of a single attempt to perform an action, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    private static Handler mainHandler;
+
     protected T parameters;
 
     /**
@@ -66,6 +77,25 @@ public abstract class BLEAction<T> {
         this.parameters = parameters;
     }
 
+    /**
+     * Returns a new instance of this action, used for every invocation of the action.
+     *
+     * Default implementation calls the public no-argument constructor of the action class.
+     * Custom actions registered with {@link com.upnext.blekit.BLEKit#addAction(BLEAction)} get new instances only if they
+     * override this method, otherwise the registered instance is performed for every invocation, one at a time.
+     *
+     * @return action instance
+     */
+    public BLEAction<T> getInstance() {
+        try {
+            return getClass().newInstance();
+        } catch (InstantiationException e) {
+            throw new IllegalStateException( "Cannot instantiate " + getClass() + ", override getInstance()", e );
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException( "Cannot instantiate " + getClass() + ", override getInstance()", e );
+        }
+    }
+
     /**
      * Returns parameter class.
      * If this action does not support parameters, then Void.class should be returned.
@@ -101,34 +131,109 @@ public abstract class BLEAction<T> {
      */
     public abstract void processIntent( Intent intent, Activity activity );
 
+    /**
+     * Returns the maximum number of actions of this type performed at the same time by {@link com.upnext.blekit.ActionDispatcher}.
+     * Default is 1, actions of the same type are performed one after another.
+     *
+     * @return maximum concurrency
+     */
+    public int getMaxConcurrency() {
+        return 1;
+    }
+
+    /**
+     * Returns the maximum time of a single attempt to perform this action, in milliseconds.
+     * When exceeded, the thread performing the action is interrupted.
+     *
+     * @return timeout in milliseconds
+     */
+    public long getTimeout() {
+        return DEFAULT_TIMEOUT;
+    }
+
+    /**
+     * Returns how many times the action is performed again after it failed with a retryable {@link com.upnext.blekit.actions.ActionFailedException}.
+     * Default is 0, override for actions depending on network.
+     *
+     * @return maximum number of retries
+     */
+    public int getMaxRetries() {
+        return 0;
+    }
+
+    /**
+     * Returns <code>true</code> if {@link #performInForeground(android.app.Activity)} has to be called on the main thread (default),
+     * eg. because it shows a dialog or starts an activity.
+     * Actions that perform blocking work in foreground should return <code>false</code> and post UI changes themselves.
+     *
+     * @return <code>true</code> if foreground action has to be performed on the main thread
+     */
+    public boolean performsInForegroundOnMainThread() {
+        return true;
+    }
+
     /**
      * Performs action (either in foreground or background, @see {@link com.upnext.blekit.BLEKit#setBackgroundMode(boolean, android.app.Activity)}).
      *
      * If an attempt to perform action in foreground fails (eg. IllegalStateException is thrown), then it is performed in background.
      *
+     * Foreground action is performed on the main thread if required (see {@link #performsInForegroundOnMainThread()}),
+     * the calling thread waits until it is done.
+     *
      * @param context context
      * @param backgroundMode background mode
      */
-    public final void performAction(Context context, BackgroundMode backgroundMode) {
+    public final void performAction(final Context context, BackgroundMode backgroundMode) {
 
         if( backgroundMode.inBackground || backgroundMode.activity==null || backgroundMode.activity.isDestroyed() || backgroundMode.activity.isFinishing() ) {
 
             performInBackground(context);
 
+        } else if( !performsInForegroundOnMainThread() || Looper.myLooper()==Looper.getMainLooper() ) {
+
+            performInForegroundOrBackground(context, backgroundMode.activity);
+
         } else {
 
+            final Activity activity = backgroundMode.activity;
+            final CountDownLatch done = new CountDownLatch(1);
+            getMainHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        performInForegroundOrBackground(context, activity);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
             try {
-                performInForeground( backgroundMode.activity );
-            } catch (IllegalStateException exc) {
-                L.d("No longer in foreground, performing action in background");
-                // happens when a fragment cannot be displayed "java.lang.IllegalStateException: Can not perform this action after onSaveInstanceState"
-                // so as a fallback we perform the action in background
-                performInBackground(context);
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
 
         }
     }
 
+    private void performInForegroundOrBackground(Context context, Activity activity) {
+        try {
+            performInForeground( activity );
+        } catch (IllegalStateException exc) {
+            L.d("No longer in foreground, performing action in background");
+            // happens when a fragment cannot be displayed "java.lang.IllegalStateException: Can not perform this action after onSaveInstanceState"
+            // so as a fallback we perform the action in background
+            performInBackground(context);
+        }
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if( mainHandler==null ) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mainHandler;
+    }
+
     /**
      * Helper method for deserializing JSON into desired Object
      *
@@ -137,8 +242,7 @@ public abstract class BLEAction<T> {
      * @return deserialized obect instance
      */
     public static <T>T getParametersFromJson(JsonNode parameters, Class parameterClass) {
-        JsonParser jsonParser = new JsonParser();
-        return (T) jsonParser.parse( parameters, parameterClass );
+        return (T) JsonParser.getInstance().parse( parameters, parameterClass );
     }
 
     /**
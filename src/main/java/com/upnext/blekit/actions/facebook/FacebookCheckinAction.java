@@ -31,14 +31,20 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.widget.Toast;
 
+import com.facebook.FacebookRequestError;
 import com.facebook.HttpMethod;
 import com.facebook.Request;
+import com.facebook.RequestBatch;
 import com.facebook.Response;
 import com.facebook.Session;
 import com.upnext.blekit.R;
+import com.upnext.blekit.actions.ActionFailedException;
 import com.upnext.blekit.actions.BLEAction;
 import com.upnext.blekit.util.L;
 
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
 import java.util.List;
 
 /**
@@ -63,6 +69,7 @@ public class FacebookCheckinAction extends BLEAction<FacebookCheckinActionParams
 
     public static final String TYPE = "facebook-checkin";
     public static final int NOTIFICATION_ID = 2454234;
+    public static final int MAX_RETRIES = 3;
 
     protected static String applicationId;
 
@@ -197,31 +204,76 @@ public class FacebookCheckinAction extends BLEAction<FacebookCheckinActionParams
 
         params.putString("place", parameters.place_id+"");
 
-        new Request(
-                session,
-                "/me/feed",
-                params,
-                HttpMethod.POST,
-                new Request.Callback() {
-                    public void onCompleted(Response response) {
-                        L.d("finished " + response);
-                        if( response.getError()!=null ) {
-                            L.d("error " + response.getError().getErrorMessage());
-                        } else {
-                            if( context instanceof Activity ) {
-                                ((Activity)context).runOnUiThread( new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        showSuccessfulToast(context);
-                                    }
-                                });
-                            } else {
-                                displayNotification(  context);
-                            }
-                        }
+        RequestBatch batch = new RequestBatch( new Request(session, "/me/feed", params, HttpMethod.POST) );
+        batch.setTimeout( (int) getTimeout() );
+        Response response = Request.executeBatchAndWait(batch).get(0);
+
+        L.d("finished " + response);
+        FacebookRequestError error = response.getError();
+        if( error!=null ) {
+            L.d("error " + error.getErrorMessage());
+            if( isRetryable(error) ) {
+                throw new ActionFailedException( "Check-in failed: " + error.getErrorMessage(), error.getException(), true );
+            }
+        } else {
+            if( context instanceof Activity ) {
+                ((Activity)context).runOnUiThread( new Runnable() {
+                    @Override
+                    public void run() {
+                        showSuccessfulToast(context);
                     }
-                }
-        ).executeAndWait();
+                });
+            } else {
+                displayNotification(  context);
+            }
+        }
+    }
+
+    /**
+     * Posting to the feed is not idempotent, so only requests known not to have been published are retried:
+     * throttled ones and those that failed before reaching the server.
+     *
+     * @param error request error
+     * @return <code>true</code> if check-in can be safely performed again
+     */
+    protected boolean isRetryable(FacebookRequestError error) {
+        switch (error.getCategory()) {
+            case THROTTLING:
+                return true;
+            case CLIENT:
+                return isNotSent(error.getException());
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isNotSent(Throwable e) {
+        for( Throwable cause = e; cause!=null; cause = cause.getCause() ) {
+            if( cause instanceof UnknownHostException || cause instanceof ConnectException || cause instanceof NoRouteToHostException ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check-in is a network request, failed attempts are retried.
+     *
+     * @return maximum number of retries
+     */
+    @Override
+    public int getMaxRetries() {
+        return MAX_RETRIES;
+    }
+
+    /**
+     * Check-in is performed on the calling thread also in foreground, only the toast is shown on the main thread.
+     *
+     * @return <code>false</code>
+     */
+    @Override
+    public boolean performsInForegroundOnMainThread() {
+        return false;
     }
 
     protected void showSuccessfulToast(final Context context) {
@@ -33,6 +33,7 @@ import com.upnext.blekit.model.Trigger;
 import com.upnext.blekit.model.Zone;
 import com.upnext.blekit.util.ExpressionEvaluator;
 import com.upnext.blekit.util.L;
+import com.upnext.blekit.util.expression.ExpressionBinding;
 
 import java.util.Map;
 
@@ -78,6 +79,9 @@ public abstract class BLECondition<T> {
      *
      * If {@link com.upnext.blekit.conditions.BLECondition#expression} is <code>null</code>, then regular check will take place - {@link #evaluate()} will be called.
      *
+     * Expression variables from {@link #getExpressionBindings()} are computed only if the expression references them,
+     * {@link #getExpressionParameters()} is called only if the expression references a variable not provided otherwise.
+     *
      * @return <code>true</code> if condition is met, <code>false</code> otherwise
      */
     public boolean conditionMet() {
@@ -88,7 +92,10 @@ public abstract class BLECondition<T> {
             evaluator.setZone(zone);
             evaluator.setExpression(expression);
             evaluator.putProperty("trigger", new Helper(getType()));
-            evaluator.putProperties( getExpressionParameters() );
+            evaluator.putBindings( getExpressionBindings() );
+            if( evaluator.referencesUnboundVariables() ) {
+                evaluator.putProperties( getExpressionParameters() );
+            }
 
             return evaluator.eval();
         }
@@ -167,6 +174,32 @@ public abstract class BLECondition<T> {
         return null;
     }
 
+    /**
+     * Method for providing additional expression parameters that are expensive to compute.
+     * Unlike {@link #getExpressionParameters()}, values are provided by {@link com.upnext.blekit.util.expression.ExpressionBinding}s
+     * and each binding is resolved only if the expression references its name (references are detected when the expression is compiled).
+     *
+     * Example:
+     * <pre>
+     * {@code
+     * protected Map<String, ExpressionBinding> getExpressionBindings() {
+     *     Map<String, ExpressionBinding> bindings = new HashMap<String, ExpressionBinding>();
+     *     bindings.put( "visits", new ExpressionBinding() {
+     *         public Object resolve() {
+     *             return countVisits(); //not called for expressions not using 'visits'
+     *         }
+     *     });
+     *     return bindings;
+     * }
+     * }
+     * </pre>
+     *
+     * @return lazy expression parameters
+     */
+    protected Map<String, ExpressionBinding> getExpressionBindings() {
+        return null;
+    }
+
     /**
      * Sets an expression for this condition.
      *
@@ -28,6 +28,7 @@ package com.upnext.blekit.conditions;
 import com.upnext.blekit.EventOccurenceUnit;
 import com.upnext.blekit.util.BeaconsDB;
 import com.upnext.blekit.util.L;
+import com.upnext.blekit.util.expression.ExpressionBinding;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -95,14 +96,19 @@ public abstract class OccurenceCondition extends BLECondition<OccurenceParams> {
      * {@inheritDoc}
      *
      * Provides only 'occurence' parameter which is the TOTAL count of events.
+     * The count is queried only for expressions referencing 'occurence'.
      */
     @Override
-    protected Map<String, Object> getExpressionParameters() {
-        Map<String, Object> myParamsMap = new HashMap<String, Object>();
+    protected Map<String, ExpressionBinding> getExpressionBindings() {
+        Map<String, ExpressionBinding> myBindingsMap = new HashMap<String, ExpressionBinding>();
 
-        int count = beaconsDB.getNumOccurencesForBeaconInTime(beaconEvent, beaconId, EventOccurenceUnit.TOTAL);
-        myParamsMap.put( "occurence", count );
+        myBindingsMap.put( "occurence", new ExpressionBinding() {
+            @Override
+            public Object resolve() {
+                return beaconsDB.getNumOccurencesForBeaconInTime(beaconEvent, beaconId, EventOccurenceUnit.TOTAL);
+            }
+        });
 
-        return myParamsMap;
+        return myBindingsMap;
     }
 }
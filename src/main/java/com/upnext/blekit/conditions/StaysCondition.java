@@ -26,13 +26,12 @@
 package com.upnext.blekit.conditions;
 
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 
-import com.upnext.blekit.ActionsFactory;
 import com.upnext.blekit.BLEKit;
 import com.upnext.blekit.BackgroundMode;
 import com.upnext.blekit.BeaconEvent;
-import com.upnext.blekit.actions.BLEAction;
 import com.upnext.blekit.model.Beacon;
 import com.upnext.blekit.util.L;
 
@@ -65,6 +64,11 @@ public class StaysCondition extends BLECondition<StaysParams> {
     }
 
     class StaysHandler extends Handler {
+        StaysHandler() {
+            //conditions are evaluated on a worker thread that may not outlive the delay
+            super(Looper.getMainLooper());
+        }
+
         @Override
         public void handleMessage(Message msg) {
             Beacon beacn = (Beacon) msg.obj;
@@ -84,12 +88,7 @@ public class StaysCondition extends BLECondition<StaysParams> {
 
     private void processEvent(StaysCondition condition) {
         L.d( "starting to process after stayed for " + condition.parameters.interval );
-        final ActionsFactory actionsFactory = BLEKit.getActionsFactory();
-        BLEAction bleAction = actionsFactory.get( condition.trigger.action.type, condition.trigger.action.parameters );
-        if( bleAction==null ) {
-            L.d("Did not find action implementation for type '" + condition.trigger.action.type + "'");
-        }
-        bleAction.performAction( condition.context, new BackgroundMode(null, false) );
+        BLEKit.getActionDispatcher().dispatch( BLEKit.getBoundAction(condition.trigger), condition.context, new BackgroundMode(null, false) );
     }
 
     /**
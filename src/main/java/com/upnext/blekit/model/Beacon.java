@@ -46,6 +46,7 @@ import java.util.regex.Pattern;
  *             "latitude":52.2353,
  *             "longitude":21.0114
  *          },
+ *          "tx_power":-59,
  *          "triggers":[]
  *       }
  *    ]
@@ -80,6 +81,11 @@ public class Beacon {
      */
     public Location location;
 
+    /**
+     * RSSI of the beacon at 1 meter, overrides the measured power it advertises; calibration on the device overrides it (optional)
+     */
+    public Integer tx_power;
+
     /**
      * Beacon triggers
      */
@@ -181,6 +187,7 @@ public class Beacon {
                 ", description='" + description + '\'' +
                 ", name='" + name + '\'' +
                 ", location=" + location +
+                ", tx_power=" + tx_power +
                 ", triggers=" + triggers +
                 '}';
     }
@@ -41,7 +41,8 @@ import java.util.List;
  *                "name":"Show alert",
  *                "comment":"Show notification alert",
  *                "action":{},
- *                "conditions":[]
+ *                "conditions":[],
+ *                "limits":{}
  *             }
  *          ]
  *       }
@@ -79,6 +80,11 @@ public class Trigger {
      */
     public List<Condition> conditions;
 
+    /**
+     * Trigger limits, optional
+     */
+    public TriggerLimits limits;
+
     /**
      * {@inheritDoc}
      */
@@ -90,6 +96,7 @@ public class Trigger {
                 ", comment='" + comment + '\'' +
                 ", action=" + action +
                 ", conditions=" + conditions +
+                ", limits=" + limits +
                 '}';
     }
 }
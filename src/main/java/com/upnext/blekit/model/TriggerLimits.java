@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.model;
+
+/**
+ * BLEKit trigger limits model deserialized from JSON configuration.
+ * Limits how often the trigger can fire its action, zero values mean no limit.
+ * Example (at most once every 5 minutes and 3 times a day):
+ * <pre>
+ * {@code
+ * {
+ *    "min_interval":300,
+ *    "max_count":3,
+ *    "window":86400
+ * }
+ * }
+ * </pre>
+ */
+public class TriggerLimits {
+
+    /**
+     * Minimum time between two firings, in seconds
+     */
+    public long min_interval;
+
+    /**
+     * Maximum number of firings within the window
+     */
+    public int max_count;
+
+    /**
+     * Window for max_count, in seconds
+     */
+    public long window;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "TriggerLimits{" +
+                "min_interval=" + min_interval +
+                ", max_count=" + max_count +
+                ", window=" + window +
+                '}';
+    }
+}
@@ -63,6 +63,12 @@ public class Zone {
      */
     public String name;
 
+    /**
+     * Zone version, increased by the server with every change of the zone.
+     * Zero if the server does not version zones.
+     */
+    public long version;
+
     /**
      * Zone TTL
      */
@@ -91,6 +97,7 @@ public class Zone {
         return "Zone{" +
                 "id='" + id + '\'' +
                 ", name='" + name + '\'' +
+                ", version=" + version +
                 ", ttl=" + ttl +
                 ", radius=" + radius +
                 ", location=" + location +
@@ -26,6 +26,7 @@
 package com.upnext.blekit.util;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteException;
 
 import com.sentaca.dbpreferences.DatabaseBasedSharedPreferences;
 import com.upnext.blekit.BLEKitClient;
@@ -40,6 +41,8 @@ import java.util.Set;
 /**
  * Persistence layer for beacons data.
  *
+ * Clients of the service and states of monitored beacons are kept in {@link com.upnext.blekit.util.StateStore}.
+ *
  * @author Roman Wozniak (roman@up-next.com)
  */
 public class BeaconPreferences {
@@ -47,13 +50,24 @@ public class BeaconPreferences {
     private static DatabaseBasedSharedPreferences mPrefs;
 
     private static final String LAST_ZONE_JSON = "last_zone_json";
+    private static final String ZONE_URL = "zone_url";
+    private static final String ZONE_ETAG = "zone_etag";
+    private static final String ZONE_LAST_MODIFIED = "zone_last_modified";
+    private static final String ZONE_FETCHED_AT = "zone_fetched_at";
     private static final String TARGET_ACTIVITY_FOR_NOTIFICATIONS = "target_activity_for_notifications";
+    private static final String PATH_LOSS_EXPONENT = "path_loss_exponent";
+    private static final String RSSI_OFFSET = "rssi_offset";
+    private static final String CALIBRATED_TX_POWERS = "calibrated_tx_powers";
+    private static final String SEPARATOR_TX_POWER = "=";
 
+    // Clients and beacon states stored as delimited strings before they moved to StateStore
     private static final String RUNNING_CLIENTS = "running_clients";
     private static final String SEPARATOR_CLIENT_VALUES = "#";
     private static final String SEPARATOR_BEACON_VALUES = ",";
-
     private static final String MONITORED_BEACONS = "monitored_beacons";
+    private static final String STATE_STORE_MIGRATED = "state_store_migrated";
+
+    private static boolean mStoreMigrated;
 
     private static DatabaseBasedSharedPreferences getPrefs(Context context) {
         if(mPrefs==null) {
@@ -63,95 +77,54 @@ public class BeaconPreferences {
     }
 
     public static Set<BLEKitClient> getRunningClients( Context context ) {
-        Set<String> clients = getPrefs(context).getStringSet(RUNNING_CLIENTS);
-        Set<BLEKitClient> result = new HashSet<BLEKitClient>();
-        if( clients!=null ) {
-            for( String clientString : clients ) {
-                String[] vals = clientString.split(SEPARATOR_CLIENT_VALUES);
-
-                String pkg = vals[0];
-                String inBg = vals[1];
-                String beacons = vals[2];
-
-                BLEKitClient c = new BLEKitClient(pkg, Boolean.valueOf(inBg), beaconsFromString(beacons));
-                result.add(c);
-            }
-        }
-        return result;
+        return getStore(context).getClients();
     }
 
-    private static Set<String> beaconsFromString(String beacons) {
-        Set<String> result = new HashSet<String>();
-        if(beacons!=null) {
-            Collections.addAll(result, beacons.split(SEPARATOR_BEACON_VALUES));
-        }
-        return result;
+    public static void setRunningClients( Context context, Set<BLEKitClient> clients ) {
+        getStore(context).setClients(clients);
     }
 
-    private static String beaconsToString(Set<String> beacons) {
-        StringBuffer buf = new StringBuffer();
-        for( String beacon : beacons ) {
-            buf.append(beacon).append(SEPARATOR_BEACON_VALUES);
-        }
-        if( buf.length()>0 ) {
-            buf.deleteCharAt(buf.length()-1);
-        }
-        return buf.toString();
+    public static void addClient( Context context, BLEKitClient clientToAdd ) {
+        getStore(context).addClient(clientToAdd);
     }
 
-    public static void setRunningClients( Context context, Set<BLEKitClient> clients ) {
-        Set<String> clientsSet = new HashSet<String>();
-        for( BLEKitClient client : clients ) {
-            clientsSet.add(
-                    client.getPackageName() + SEPARATOR_CLIENT_VALUES +
-                            client.isInBackground() + SEPARATOR_CLIENT_VALUES +
-                            beaconsToString(client.getMonitoredBeaconIDs())
-            );
-        }
+    public static void removeClient( Context context, String clientPackage ) {
+        getStore(context).removeClient(clientPackage);
+    }
 
-        getPrefs(context).putStringSet(RUNNING_CLIENTS, clientsSet );
+    public static String getLastZoneJson( Context context ) {
+        return getPrefs(context).getString(LAST_ZONE_JSON, null);
     }
 
-    public static void addClient( Context context, BLEKitClient clientToAdd ) {
-        Set<BLEKitClient> current = getRunningClients(context);
-        if( current==null ) {
-            current = new HashSet<BLEKitClient>();
-        }
+    public static void setLastZoneJson( Context context, String json ) {
+        getPrefs(context).putString(LAST_ZONE_JSON, json);
+    }
 
-        boolean pkgFound = false;
-        for( BLEKitClient client : current ) {
-            if( client.getPackageName().equals(clientToAdd.getPackageName()) ) {
-                pkgFound = true;
-            }
-        }
+    public static String getZoneUrl( Context context ) {
+        return getPrefs(context).getString(ZONE_URL, null);
+    }
 
-        if( !pkgFound ) {
-            current.add(clientToAdd);
-            setRunningClients(context, current);
-        }
+    public static String getZoneETag( Context context ) {
+        return getPrefs(context).getString(ZONE_ETAG, null);
     }
 
-    public static void removeClient( Context context, String clientPackage ) {
-        Set<BLEKitClient> current = getRunningClients(context);
-        if( current==null ) {
-            return;
-        }
+    public static String getZoneLastModified( Context context ) {
+        return getPrefs(context).getString(ZONE_LAST_MODIFIED, null);
+    }
 
-        for( BLEKitClient client : current ) {
-            if( client.getPackageName().equals(clientPackage) ) {
-                current.remove(client);
-                setRunningClients(context, current);
-                return;
-            }
-        }
+    public static long getZoneFetchedAt( Context context ) {
+        return getPrefs(context).getLong(ZONE_FETCHED_AT, 0);
     }
 
-    public static String getLastZoneJson( Context context ) {
-        return getPrefs(context).getString(LAST_ZONE_JSON, null);
+    public static void setZoneValidators( Context context, String url, String etag, String lastModified, long fetchedAt ) {
+        getPrefs(context).putString(ZONE_URL, url);
+        getPrefs(context).putString(ZONE_ETAG, etag);
+        getPrefs(context).putString(ZONE_LAST_MODIFIED, lastModified);
+        getPrefs(context).putLong(ZONE_FETCHED_AT, fetchedAt);
     }
 
-    public static void setLastZoneJson( Context context, String json ) {
-        getPrefs(context).putString(LAST_ZONE_JSON, json);
+    public static void setZoneFetchedAt( Context context, long fetchedAt ) {
+        getPrefs(context).putLong(ZONE_FETCHED_AT, fetchedAt);
     }
 
     public static String getTargetActivityForNotifications( Context context ) {
@@ -162,26 +135,146 @@ public class BeaconPreferences {
         getPrefs(context).putString(TARGET_ACTIVITY_FOR_NOTIFICATIONS, activity);
     }
 
-    public static Map<String, Proximity> getMonitoredBeacons(Context context) {
-        final Set<String> values = getPrefs(context).getStringSet(MONITORED_BEACONS);
-        final Map<String, Proximity> result = new HashMap<String, Proximity>();
-        if( values!=null ) {
-            for( String value : values ) {
-                final String[] split = value.split(SEPARATOR_BEACON_VALUES);
-                final String beaconId = split[0];
-                final Proximity proximity = Proximity.valueOf(split[1]);
-                result.put(beaconId, proximity);
+    public static Double getPathLossExponent( Context context ) {
+        return parseDouble(getPrefs(context).getString(PATH_LOSS_EXPONENT, null));
+    }
+
+    public static void setPathLossExponent( Context context, double exponent ) {
+        getPrefs(context).putString(PATH_LOSS_EXPONENT, String.valueOf(exponent));
+    }
+
+    public static Double getRssiOffset( Context context ) {
+        return parseDouble(getPrefs(context).getString(RSSI_OFFSET, null));
+    }
+
+    public static void setRssiOffset( Context context, double offset ) {
+        getPrefs(context).putString(RSSI_OFFSET, String.valueOf(offset));
+    }
+
+    public static Map<String, Integer> getCalibratedTxPowers( Context context ) {
+        final Map<String, Integer> result = new HashMap<String, Integer>();
+        final Set<String> values = getPrefs(context).getStringSet(CALIBRATED_TX_POWERS);
+        if( values==null ) return result;
+        for( String value : values ) {
+            final int separator = value.lastIndexOf(SEPARATOR_TX_POWER);
+            if( separator<=0 ) continue;
+            try {
+                result.put(value.substring(0, separator), Integer.valueOf(value.substring(separator+1)));
+            } catch (NumberFormatException e) {
+                L.e( "Invalid tx power " + value, e );
             }
         }
         return result;
     }
 
+    public static void setCalibratedTxPowers( Context context, Map<String, Integer> txPowers ) {
+        final Set<String> values = new HashSet<String>();
+        for( Map.Entry<String, Integer> entry : txPowers.entrySet() ) {
+            values.add(entry.getKey() + SEPARATOR_TX_POWER + entry.getValue());
+        }
+        getPrefs(context).putStringSet(CALIBRATED_TX_POWERS, values);
+    }
+
+    private static Double parseDouble( String value ) {
+        if( value==null ) return null;
+        try {
+            return Double.valueOf(value);
+        } catch (NumberFormatException e) {
+            L.e( "Invalid number " + value, e );
+            return null;
+        }
+    }
+
+    public static Map<String, Proximity> getMonitoredBeacons(Context context) {
+        return getStore(context).getBeaconStates();
+    }
+
+    /**
+     * Stores proximities of monitored beacons, only beacons whose proximity changed are written.
+     *
+     * @param context context
+     * @param monitoredBeacons proximities by beacon identifier
+     */
     public static void setMonitoredBeacons(Context context, Map<String, Proximity> monitoredBeacons) {
         if( monitoredBeacons==null || monitoredBeacons.isEmpty() ) return;
-        final Set<String> values = new HashSet<String>();
-        for( String beacondId : monitoredBeacons.keySet() ) {
-            values.add( beacondId + SEPARATOR_BEACON_VALUES + monitoredBeacons.get(beacondId).name() );
+        getStore(context).setBeaconStates(monitoredBeacons);
+    }
+
+    /**
+     * Stores proximity of a single monitored beacon.
+     *
+     * @param context context
+     * @param beaconId beacon identifier
+     * @param proximity proximity
+     */
+    public static void setMonitoredBeacon(Context context, String beaconId, Proximity proximity) {
+        getStore(context).putBeaconState(beaconId, proximity);
+    }
+
+    /**
+     * Returns store of clients and beacon states, migrating values stored as delimited strings by previous versions on first use.
+     * Old values are cleared only after the migrated rows were written, a failed migration is retried in the next process.
+     */
+    private static synchronized StateStore getStore(Context context) {
+        final StateStore store = StateStore.getInstance(context);
+        if( !mStoreMigrated ) {
+            final DatabaseBasedSharedPreferences prefs = getPrefs(context);
+            if( !prefs.getBoolean(STATE_STORE_MIGRATED, false) ) {
+                try {
+                    migrate(prefs, store);
+                    prefs.putBoolean(STATE_STORE_MIGRATED, true);
+                } catch (SQLiteException e) {
+                    L.e( "Cannot migrate clients and beacon states", e );
+                }
+            }
+            mStoreMigrated = true;
+        }
+        return store;
+    }
+
+    private static void migrate(DatabaseBasedSharedPreferences prefs, StateStore store) throws SQLiteException {
+        final Set<BLEKitClient> clients = new HashSet<BLEKitClient>();
+        final Set<String> clientValues = prefs.getStringSet(RUNNING_CLIENTS);
+        if( clientValues!=null ) {
+            for( String clientString : clientValues ) {
+                String[] vals = clientString.split(SEPARATOR_CLIENT_VALUES);
+                if( vals.length<2 ) continue;
+
+                String pkg = vals[0];
+                String inBg = vals[1];
+                String beacons = vals.length>2 ? vals[2] : null;
+
+                clients.add(new BLEKitClient(pkg, Boolean.valueOf(inBg), beaconsFromString(beacons)));
+            }
         }
-        getPrefs(context).putStringSet(MONITORED_BEACONS, values);
+
+        final Map<String, Proximity> states = new HashMap<String, Proximity>();
+        final Set<String> stateValues = prefs.getStringSet(MONITORED_BEACONS);
+        if( stateValues!=null ) {
+            for( String value : stateValues ) {
+                final String[] split = value.split(SEPARATOR_BEACON_VALUES);
+                if( split.length<2 ) continue;
+                try {
+                    states.put(split[0], Proximity.valueOf(split[1]));
+                } catch (IllegalArgumentException e) {
+                    L.e( "Cannot migrate state of " + split[0], e );
+                }
+            }
+        }
+
+        if( clients.isEmpty() && states.isEmpty() ) return;
+
+        //written synchronously, so that old values are never cleared before the rows replacing them are stored
+        store.importState(clients, states);
+        prefs.putStringSet(RUNNING_CLIENTS, new HashSet<String>());
+        prefs.putStringSet(MONITORED_BEACONS, new HashSet<String>());
+    }
+
+    private static Set<String> beaconsFromString(String beacons) {
+        Set<String> result = new HashSet<String>();
+        if( beacons!=null && beacons.length()>0 ) {
+            Collections.addAll(result, beacons.split(SEPARATOR_BEACON_VALUES));
+        }
+        return result;
     }
 }
@@ -29,27 +29,132 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 import com.upnext.blekit.BeaconEvent;
 import com.upnext.blekit.EventOccurenceUnit;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Local database used for storing BLEKit entities like events for counting their occurences.
  *
+ * Occurences are counted by in-memory counters (see {@link com.upnext.blekit.util.OccurenceCounters}), which are
+ * checkpointed to a file every {@link #CHECKPOINT_INTERVAL} ms and rebuilt from the events table on first start.
+ *
+ * The database runs in WAL mode and keeps a single connection open for the lifetime of this object,
+ * inserts and counts use precompiled statements.
+ *
+ * Storage is bounded by periodic compaction (see {@link #compact()}): events older than {@link #RAW_RETENTION} are rolled up
+ * into hourly aggregates, hourly aggregates older than {@link #HOURLY_RETENTION} into daily ones, and daily aggregates older
+ * than {@link #DAILY_RETENTION} into a single all-time aggregate per beacon and event.
+ *
+ * By default events are written behind: queued in memory and stored in batches on a background thread
+ * (see {@link com.upnext.blekit.util.BeaconsDB.Durability}).
+ *
  * @author Roman Wozniak (roman@up-next.com)
  */
 public class BeaconsDB extends SQLiteOpenHelper {
 
     // Database Version
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 4;
     // Database Name
     private static final String DATABASE_NAME = "BeaconsDB";
 
+    // Occurence counters checkpoint file, in app's files dir
+    private static final String COUNTERS_FILE_NAME = "blekit_occurences.bin";
+    // Minimum interval between two counter checkpoints
+    private static final long CHECKPOINT_INTERVAL = 60*1000;
+    // Interval between two background compactions
+    private static final long COMPACTION_INTERVAL = 6*60*60*1000;
+    // Number of queued events flushed right away
+    private static final int FLUSH_MAX_EVENTS = 20;
+    // Maximum time an event stays queued
+    private static final long FLUSH_DELAY = 2000;
+    // Delay before storing events again after a failed flush
+    private static final long FLUSH_RETRY_DELAY = 30*1000;
+    // Maximum number of queued events kept after failed flushes, the oldest ones are dropped
+    private static final int MAX_PENDING_EVENTS = 1000;
+
+    /**
+     * Durability of stored events.
+     */
+    public enum Durability {
+        /**
+         * Every event is stored synchronously by the caller, in its own transaction.
+         */
+        IMMEDIATE,
+
+        /**
+         * Events are queued and stored on a background thread in a single transaction,
+         * after {@link #FLUSH_MAX_EVENTS} events or {@link #FLUSH_DELAY} ms.
+         * Events queued when the process is killed are lost. Events of a failed flush (eg. disk full) are queued again,
+         * up to {@link #MAX_PENDING_EVENTS} events.
+         */
+        BATCHED,
+
+        /**
+         * Same as {@link #BATCHED}, but committed transactions are not synced to disk one by one (<code>PRAGMA synchronous=NORMAL</code>).
+         * Recently committed events may be also lost on power loss.
+         */
+        BATCHED_NO_SYNC
+    }
+
+    private final File countersFile;
+    private volatile boolean inMemoryCountersEnabled = true;
+    private volatile long lastCheckpoint;
+    private volatile Durability durability = Durability.BATCHED;
+
+    //guards queued events and in-memory counters, never held while waiting for the database
+    private final Object queueLock = new Object();
+    private List<PendingEvent> pending = new ArrayList<PendingEvent>();
+    private List<PendingEvent> flushing;
+    private OccurenceCounters counters;
+    private boolean countersDirty;
+    //set after a failed flush, until the scheduled retry succeeds
+    private volatile boolean flushFailed;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private SQLiteDatabase database;
+    private SQLiteStatement insertStatement;
+
+    private static final Histogram occurencesLatency = Metrics.getInstance().histogram("db.occurences.us");
+    private static final Histogram flushLatency = Metrics.getInstance().histogram("db.flush.us");
+    private static final Metrics.Counter flushFailures = Metrics.getInstance().counter("db.flush.failures");
+    private static final Metrics.Counter droppedEvents = Metrics.getInstance().counter("db.events.dropped");
+    private SQLiteStatement countStatement;
+
+    private volatile long lastCompaction;
+    private Handler backgroundHandler;
+
     public BeaconsDB(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+        countersFile = new File(context.getFilesDir(), COUNTERS_FILE_NAME);
     }
 
     /**
@@ -63,45 +168,272 @@ public class BeaconsDB extends SQLiteOpenHelper {
                 KEY_BEACON_ID + " TEXT, "+
                 KEY_DATE + " INTEGER )";
         db.execSQL(CREATE_BEACON_EVENTS_TABLE);
+        createBeaconEventsIndex(db);
+        createRollupsTable(db);
+        createTriggerStatesTable(db);
     }
 
     /**
+     * Migrates the schema step by step, keeping stored events.
+     *
      * {@inheritDoc}
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_BEACON_EVENTS);
-        this.onCreate(db);
+        if( oldVersion<2 ) {
+            createBeaconEventsIndex(db);
+        }
+        if( oldVersion<3 ) {
+            createRollupsTable(db);
+        }
+        if( oldVersion<4 ) {
+            createTriggerStatesTable(db);
+        }
+    }
+
+    /**
+     * Version 2: index for counting occurences of an event for a beacon in time.
+     */
+    private void createBeaconEventsIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_BEACON_EVENTS + " ON " + TABLE_BEACON_EVENTS +
+                " (" + KEY_BEACON_ID + ", " + KEY_EVENT + ", " + KEY_DATE + ")");
+    }
+
+    /**
+     * Version 3: aggregated counts of compacted events.
+     */
+    private void createRollupsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_ROLLUPS + " ( " +
+                KEY_BEACON_ID + " TEXT NOT NULL, " +
+                KEY_EVENT + " TEXT NOT NULL, " +
+                KEY_PERIOD_START + " INTEGER NOT NULL, " +
+                KEY_PERIOD + " INTEGER NOT NULL, " +
+                KEY_COUNT + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + KEY_BEACON_ID + ", " + KEY_EVENT + ", " + KEY_PERIOD_START + ", " + KEY_PERIOD + ") )");
+    }
+
+    /**
+     * Version 4: rate limiting state of triggers, keyed by zone and trigger as trigger ids are unique only within a zone.
+     */
+    private void createTriggerStatesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_TRIGGER_STATES + " ( " +
+                KEY_ZONE_ID + " TEXT NOT NULL, " +
+                KEY_TRIGGER_ID + " INTEGER NOT NULL, " +
+                KEY_LAST_FIRED + " INTEGER NOT NULL, " +
+                KEY_TOKENS + " REAL NOT NULL, " +
+                KEY_LAST_REFILL + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + KEY_ZONE_ID + ", " + KEY_TRIGGER_ID + ") )");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close() {
+        flush();
+        if( insertStatement!=null ) {
+            insertStatement.close();
+            insertStatement = null;
+        }
+        if( countStatement!=null ) {
+            countStatement.close();
+            countStatement = null;
+        }
+        database = null;
+        super.close();
+    }
+
+    /**
+     * Returns the connection shared by all operations, opening it on first use.
+     */
+    private synchronized SQLiteDatabase getDatabase() {
+        if( database==null || !database.isOpen() ) {
+            database = getWritableDatabase();
+            applyDurability(database);
+            insertStatement = database.compileStatement("INSERT INTO " + TABLE_BEACON_EVENTS +
+                    " (" + KEY_EVENT + ", " + KEY_BEACON_ID + ", " + KEY_DATE + ") VALUES (?, ?, ?)");
+            countStatement = database.compileStatement("SELECT " +
+                    "(SELECT count(*) FROM " + TABLE_BEACON_EVENTS + " WHERE " +
+                    KEY_BEACON_ID + "=?1 AND " + KEY_EVENT + "=?2 AND " + KEY_DATE + " BETWEEN ?3 AND ?4) + " +
+                    "(SELECT ifnull(sum(" + KEY_COUNT + "), 0) FROM " + TABLE_ROLLUPS + " WHERE " +
+                    KEY_BEACON_ID + "=?1 AND " + KEY_EVENT + "=?2 AND " + KEY_PERIOD_START + " BETWEEN ?3 AND ?4)");
+        }
+        return database;
     }
 
     private static final String TABLE_BEACON_EVENTS = "beacon_events";
+    private static final String INDEX_BEACON_EVENTS = "beacon_events_beacon_event_date";
+    private static final String TABLE_ROLLUPS = "beacon_event_rollups";
+    private static final String TABLE_TRIGGER_STATES = "trigger_states";
 
     private static final String KEY_ID = "id";
     private static final String KEY_EVENT = "event";
     private static final String KEY_BEACON_ID = "beacon_id";
     private static final String KEY_DATE = "date";
+    private static final String KEY_PERIOD_START = "period_start";
+    private static final String KEY_PERIOD = "period";
+    private static final String KEY_COUNT = "count";
+    private static final String KEY_ZONE_ID = "zone_id";
+    private static final String KEY_TRIGGER_ID = "trigger_id";
+    private static final String KEY_LAST_FIRED = "last_fired";
+    private static final String KEY_TOKENS = "tokens";
+    private static final String KEY_LAST_REFILL = "last_refill";
+
+    // Period of the all-time aggregate
+    private static final long PERIOD_TOTAL = 0;
 
     private static final String[] COLUMNS = {KEY_ID,KEY_EVENT,KEY_BEACON_ID,KEY_DATE};
 
 
     /**
-     * Adds an event to the events database
+     * Adds an event to the events database.
+     *
+     * Depending on {@link com.upnext.blekit.util.BeaconsDB.Durability} the event is stored immediately or queued and stored
+     * later in a batch, counts include queued events in both cases.
      *
      * @param event beacon event
      * @param beaconId beacon identifier
      */
     public void addBeaconEvent( BeaconEvent event, String beaconId ) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(KEY_EVENT, event.name());
-        values.put(KEY_BEACON_ID, beaconId);
-        values.put(KEY_DATE, new Date().getTime());
-        db.insert(TABLE_BEACON_EVENTS, null, values);
-        db.close();
+        //load counters before queueing, otherwise the new row would be counted twice on rebuild
+        if( inMemoryCountersEnabled ) {
+            getCounters();
+        }
+
+        final long now = new Date().getTime();
+        int queued;
+        synchronized (queueLock) {
+            pending.add(new PendingEvent(event.name(), beaconId, now));
+            queued = pending.size();
+            if( counters!=null ) {
+                counters.add(beaconId, event.name(), now);
+                countersDirty = true;
+            }
+        }
+
+        if( durability==Durability.IMMEDIATE ) {
+            flush();
+        } else if( queued>=FLUSH_MAX_EVENTS && !flushFailed ) {
+            getBackgroundHandler().removeCallbacks(flushRunnable);
+            getBackgroundHandler().post(flushRunnable);
+        } else if( queued==1 ) {
+            getBackgroundHandler().postDelayed(flushRunnable, FLUSH_DELAY);
+        }
+    }
+
+    /**
+     * Stores queued events in a single transaction.
+     * If the transaction fails, events are queued again and stored later on the background thread.
+     */
+    public void flush() {
+        synchronized (this) {
+            List<PendingEvent> events;
+            synchronized (queueLock) {
+                if( pending.isEmpty() ) return;
+                events = pending;
+                flushing = events;
+                pending = new ArrayList<PendingEvent>();
+            }
+
+            final long flushStart = System.nanoTime();
+            long lastRowId = -1;
+            boolean stored = false;
+            try {
+                SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    for( PendingEvent pendingEvent : events ) {
+                        insertStatement.bindString(1, pendingEvent.event);
+                        insertStatement.bindString(2, pendingEvent.beaconId);
+                        insertStatement.bindLong(3, pendingEvent.date);
+                        lastRowId = insertStatement.executeInsert();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                stored = true;
+            } catch (SQLiteException e) {
+                L.e( "Error storing " + events.size() + " events", e );
+                flushFailures.inc();
+            } finally {
+                flushLatency.record((System.nanoTime()-flushStart)/1000);
+                synchronized (queueLock) {
+                    flushing = null;
+                    if( !stored ) {
+                        requeue(events);
+                    } else if( counters!=null && lastRowId!=-1 ) {
+                        counters.setLastRowId(lastRowId);
+                    }
+                }
+            }
+
+            flushFailed = !stored;
+            if( !stored ) {
+                getBackgroundHandler().removeCallbacks(flushRunnable);
+                getBackgroundHandler().postDelayed(flushRunnable, FLUSH_RETRY_DELAY);
+                return;
+            }
+        }
+
+        final long now = new Date().getTime();
+        if( now-lastCheckpoint>CHECKPOINT_INTERVAL ) {
+            checkpoint();
+        }
+        if( now-lastCompaction>COMPACTION_INTERVAL ) {
+            lastCompaction = now;
+            getBackgroundHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    compact();
+                }
+            });
+        }
+    }
+
+    /**
+     * Puts events of a failed flush back in front of the queue, dropping the oldest ones above {@link #MAX_PENDING_EVENTS}.
+     * They stay counted by in-memory counters. Must be called with <code>queueLock</code> held.
+     */
+    private void requeue( List<PendingEvent> events ) {
+        final int dropped = events.size() + pending.size() - MAX_PENDING_EVENTS;
+        if( dropped>0 ) {
+            droppedEvents.add(dropped);
+            events = events.subList(Math.min(dropped, events.size()), events.size());
+        }
+        final List<PendingEvent> queue = new ArrayList<PendingEvent>(events.size() + pending.size());
+        queue.addAll(events);
+        queue.addAll(pending);
+        pending = queue;
+    }
+
+    /**
+     * Sets how events are written to the database, default is {@link com.upnext.blekit.util.BeaconsDB.Durability#BATCHED}.
+     *
+     * @param durability durability mode
+     */
+    public void setDurability( Durability durability ) {
+        if( durability==null ) {
+            throw new IllegalArgumentException( "Durability must not be null" );
+        }
+        this.durability = durability;
+        applyDurability(getDatabase());
+        if( durability==Durability.IMMEDIATE ) {
+            flush();
+        }
+    }
+
+    /**
+     * Applies durability to a connection, synchronous mode is not stored in the database file.
+     */
+    private void applyDurability( SQLiteDatabase db ) {
+        db.execSQL("PRAGMA synchronous=" + (durability==Durability.BATCHED_NO_SYNC ? "NORMAL" : "FULL"));
     }
 
     /**
      * Returns the number of occurences of event for given beacon id in unit of time.
+     * Counts of compacted events are taken from aggregates whose period starts within the unit of time,
+     * so the oldest aggregate of a window may be only partially covered by it.
      *
      * @param event beacon event
      * @param beaconId beacon id
@@ -111,25 +443,350 @@ public class BeaconsDB extends SQLiteOpenHelper {
     public int getNumOccurencesForBeaconInTime( BeaconEvent event, String beaconId, EventOccurenceUnit occurenceUnit ) {
         if( occurenceUnit==null ) return 0;
 
-        String query = "SELECT count(*) FROM " + TABLE_BEACON_EVENTS + " WHERE " +
-                KEY_BEACON_ID + "='" + beaconId + "' AND " +
-                KEY_EVENT + "='" + event.name() + "' AND " +
-                KEY_DATE + " BETWEEN " + getStartDateForOccurence(occurenceUnit) + " AND " + new Date().getTime();
+        final long queryStart = System.nanoTime();
+        try {
+            return countOccurences(event, beaconId, occurenceUnit);
+        } finally {
+            occurencesLatency.record((System.nanoTime()-queryStart)/1000);
+        }
+    }
 
-        SQLiteDatabase db = this.getWritableDatabase();
-        Cursor cursor = db.rawQuery(query, null);
+    private int countOccurences( BeaconEvent event, String beaconId, EventOccurenceUnit occurenceUnit ) {
+        if( inMemoryCountersEnabled ) {
+            OccurenceCounters counters = getCounters();
+            synchronized (queueLock) {
+                return counters.count(beaconId, event, occurenceUnit, new Date().getTime());
+            }
+        }
 
-        cursor.moveToFirst();
-        int count = cursor.getInt(0);
-        cursor.close();
+        final long start = getStartDateForOccurence(occurenceUnit);
+        final long now = new Date().getTime();
+        synchronized (this) {
+            getDatabase();
+            countStatement.bindString(1, beaconId);
+            countStatement.bindString(2, event.name());
+            countStatement.bindLong(3, start);
+            countStatement.bindLong(4, now);
+            int count = (int) countStatement.simpleQueryForLong();
 
+            synchronized (queueLock) {
+                count += countPending(pending, event.name(), beaconId, start);
+                if( flushing!=null ) {
+                    count += countPending(flushing, event.name(), beaconId, start);
+                }
+            }
+            return count;
+        }
+    }
+
+    private static int countPending( List<PendingEvent> events, String event, String beaconId, long start ) {
+        int count = 0;
+        for( PendingEvent pendingEvent : events ) {
+            if( pendingEvent.date>=start && pendingEvent.event.equals(event) && pendingEvent.beaconId.equals(beaconId) ) {
+                count++;
+            }
+        }
         return count;
     }
 
+    /**
+     * Enables or disables in-memory occurence counters (enabled by default).
+     * When disabled, occurences are counted with a query on every call, which gives exact time windows
+     * instead of the bucket granularity of in-memory counters.
+     *
+     * @param enabled <code>true</code> to count occurences in memory
+     */
+    public void setInMemoryCountersEnabled( boolean enabled ) {
+        inMemoryCountersEnabled = enabled;
+        if( !enabled ) {
+            checkpoint();
+            synchronized (queueLock) {
+                counters = null;
+            }
+        }
+    }
+
+    /**
+     * Stores queued events and writes in-memory occurence counters to the checkpoint file, if they changed since the last checkpoint.
+     */
+    public synchronized void checkpoint() {
+        lastCheckpoint = new Date().getTime();
+        flush();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        synchronized (queueLock) {
+            //events queued in the meantime are counted, but would be replayed again from the database
+            if( counters==null || !countersDirty || !pending.isEmpty() ) return;
+            try {
+                counters.writeTo(new DataOutputStream(bytes));
+            } catch (IOException e) {
+                L.e( "Error writing occurence counters", e );
+                return;
+            }
+            countersDirty = false;
+        }
+
+        File tmpFile = new File(countersFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile);
+            bytes.writeTo(out);
+            out.close();
+            out = null;
+            if( !tmpFile.renameTo(countersFile) ) {
+                throw new IOException( "Could not rename " + tmpFile );
+            }
+        } catch (IOException e) {
+            L.e( "Error writing occurence counters", e );
+            synchronized (queueLock) {
+                countersDirty = true;
+            }
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Loads rate limiting state of all triggers.
+     *
+     * @return states by zone id and trigger id
+     */
+    Map<String, Map<Long, TriggerLimiter.State>> loadTriggerStates() {
+        Map<String, Map<Long, TriggerLimiter.State>> states = new HashMap<String, Map<Long, TriggerLimiter.State>>();
+        Cursor cursor = getDatabase().query(TABLE_TRIGGER_STATES,
+                new String[]{ KEY_ZONE_ID, KEY_TRIGGER_ID, KEY_LAST_FIRED, KEY_TOKENS, KEY_LAST_REFILL }, null, null, null, null, null);
+        while( cursor.moveToNext() ) {
+            Map<Long, TriggerLimiter.State> zoneStates = states.get(cursor.getString(0));
+            if( zoneStates==null ) {
+                zoneStates = new HashMap<Long, TriggerLimiter.State>();
+                states.put(cursor.getString(0), zoneStates);
+            }
+            zoneStates.put(cursor.getLong(1), new TriggerLimiter.State(cursor.getLong(2), cursor.getDouble(3), cursor.getLong(4)));
+        }
+        cursor.close();
+        return states;
+    }
+
+    /**
+     * Stores rate limiting state of a trigger on the background thread.
+     *
+     * @param zoneId zone id
+     * @param triggerId trigger id
+     * @param state trigger state
+     */
+    void saveTriggerState( String zoneId, long triggerId, TriggerLimiter.State state ) {
+        final ContentValues values = new ContentValues();
+        values.put(KEY_ZONE_ID, zoneId);
+        values.put(KEY_TRIGGER_ID, triggerId);
+        values.put(KEY_LAST_FIRED, state.lastFired);
+        values.put(KEY_TOKENS, state.tokens);
+        values.put(KEY_LAST_REFILL, state.lastRefill);
+        getBackgroundHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                getDatabase().replace(TABLE_TRIGGER_STATES, null, values);
+            }
+        });
+    }
+
+    /**
+     * Removes rate limiting states of triggers on the background thread.
+     *
+     * @param zoneId zone id
+     * @param triggerIds trigger ids
+     */
+    void deleteTriggerStates( final String zoneId, final List<Long> triggerIds ) {
+        getBackgroundHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    for( Long triggerId : triggerIds ) {
+                        db.delete(TABLE_TRIGGER_STATES, KEY_ZONE_ID + "=? AND " + KEY_TRIGGER_ID + "=?",
+                                new String[]{ zoneId, String.valueOf(triggerId) });
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Rolls up old events into aggregates and removes the rolled up rows.
+     * Run periodically on a background thread, can be also called directly (not on the main thread).
+     */
+    public void compact() {
+        //compacted rows can't be replayed anymore, so counters have to include them in the checkpoint first
+        if( inMemoryCountersEnabled ) {
+            getCounters();
+            checkpoint();
+        }
+
+        final long now = new Date().getTime();
+        final long rawCutoff = floor(now - RAW_RETENTION, MILLIS_HOUR);
+        final long hourlyCutoff = floor(now - HOURLY_RETENTION, MILLIS_DAY);
+        final long dailyCutoff = floor(now - DAILY_RETENTION, MILLIS_DAY);
+
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            //raw events -> hourly
+            rollUp(db, "SELECT " + KEY_BEACON_ID + ", " + KEY_EVENT + ", (" + KEY_DATE + "/" + MILLIS_HOUR + ")*" + MILLIS_HOUR + " AS ps, count(*) AS c" +
+                    " FROM " + TABLE_BEACON_EVENTS + " WHERE " + KEY_DATE + "<" + rawCutoff +
+                    " GROUP BY " + KEY_BEACON_ID + ", " + KEY_EVENT + ", ps", MILLIS_HOUR);
+            int raw = db.delete(TABLE_BEACON_EVENTS, KEY_DATE + "<?", new String[]{ String.valueOf(rawCutoff) });
+
+            //hourly -> daily
+            rollUp(db, "SELECT " + KEY_BEACON_ID + ", " + KEY_EVENT + ", (" + KEY_PERIOD_START + "/" + MILLIS_DAY + ")*" + MILLIS_DAY + " AS ps, sum(" + KEY_COUNT + ") AS c" +
+                    " FROM " + TABLE_ROLLUPS + " WHERE " + KEY_PERIOD + "=" + MILLIS_HOUR + " AND " + KEY_PERIOD_START + "<" + hourlyCutoff +
+                    " GROUP BY " + KEY_BEACON_ID + ", " + KEY_EVENT + ", ps", MILLIS_DAY);
+            int hourly = db.delete(TABLE_ROLLUPS, KEY_PERIOD + "=? AND " + KEY_PERIOD_START + "<?",
+                    new String[]{ String.valueOf(MILLIS_HOUR), String.valueOf(hourlyCutoff) });
+
+            //daily -> all-time
+            rollUp(db, "SELECT " + KEY_BEACON_ID + ", " + KEY_EVENT + ", 0 AS ps, sum(" + KEY_COUNT + ") AS c" +
+                    " FROM " + TABLE_ROLLUPS + " WHERE " + KEY_PERIOD + "=" + MILLIS_DAY + " AND " + KEY_PERIOD_START + "<" + dailyCutoff +
+                    " GROUP BY " + KEY_BEACON_ID + ", " + KEY_EVENT, PERIOD_TOTAL);
+            int daily = db.delete(TABLE_ROLLUPS, KEY_PERIOD + "=? AND " + KEY_PERIOD_START + "<?",
+                    new String[]{ String.valueOf(MILLIS_DAY), String.valueOf(dailyCutoff) });
+
+            db.setTransactionSuccessful();
+            L.d( "compacted events: " + raw + ", hourly: " + hourly + ", daily: " + daily );
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Adds counts selected by the query (beacon_id, event, period_start, count) to the aggregates of given period.
+     */
+    private void rollUp( SQLiteDatabase db, String select, long period ) {
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_ROLLUPS +
+                " (" + KEY_BEACON_ID + ", " + KEY_EVENT + ", " + KEY_PERIOD_START + ", " + KEY_PERIOD + ", " + KEY_COUNT + ")" +
+                " SELECT s." + KEY_BEACON_ID + ", s." + KEY_EVENT + ", s.ps, " + period + ", s.c + ifnull(r." + KEY_COUNT + ", 0)" +
+                " FROM (" + select + ") s LEFT JOIN " + TABLE_ROLLUPS + " r ON" +
+                " r." + KEY_BEACON_ID + "=s." + KEY_BEACON_ID + " AND r." + KEY_EVENT + "=s." + KEY_EVENT +
+                " AND r." + KEY_PERIOD_START + "=s.ps AND r." + KEY_PERIOD + "=" + period);
+    }
+
+    private static class PendingEvent {
+        final String event;
+        final String beaconId;
+        final long date;
+
+        PendingEvent(String event, String beaconId, long date) {
+            this.event = event;
+            this.beaconId = beaconId;
+            this.date = date;
+        }
+    }
+
+    private static long floor( long time, long unit ) {
+        return (time / unit) * unit;
+    }
+
+    private synchronized Handler getBackgroundHandler() {
+        if( backgroundHandler==null ) {
+            HandlerThread thread = new HandlerThread("BeaconsDB");
+            thread.start();
+            backgroundHandler = new Handler(thread.getLooper());
+        }
+        return backgroundHandler;
+    }
+
+    /**
+     * Returns in-memory counters, loading them from the checkpoint file on first use.
+     * Events stored after the checkpoint are replayed from the events table, without a checkpoint all aggregates
+     * and events are replayed.
+     */
+    private OccurenceCounters getCounters() {
+        synchronized (queueLock) {
+            if( counters!=null ) return counters;
+        }
+        synchronized (this) {
+            return loadCounters();
+        }
+    }
+
+    private OccurenceCounters loadCounters() {
+        synchronized (queueLock) {
+            if( counters!=null ) return counters;
+        }
+        flush();
+
+        OccurenceCounters loaded = readCheckpoint();
+        SQLiteDatabase db = getDatabase();
+
+        if( loaded!=null ) {
+            //events table was recreated after the checkpoint
+            Cursor cursor = db.rawQuery("SELECT seq FROM sqlite_sequence WHERE name=?", new String[]{ TABLE_BEACON_EVENTS });
+            long maxId = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            cursor.close();
+            if( maxId<loaded.getLastRowId() ) {
+                loaded = null;
+            }
+        }
+        if( loaded==null ) {
+            loaded = new OccurenceCounters();
+
+            Cursor cursor = db.query(TABLE_ROLLUPS, new String[]{ KEY_BEACON_ID, KEY_EVENT, KEY_PERIOD_START, KEY_COUNT },
+                    null, null, null, null, KEY_PERIOD_START);
+            while( cursor.moveToNext() ) {
+                loaded.add(cursor.getString(0), cursor.getString(1), cursor.getLong(2), cursor.getInt(3));
+            }
+            cursor.close();
+        }
+
+        Cursor cursor = db.query(TABLE_BEACON_EVENTS, COLUMNS, KEY_ID + ">?",
+                new String[]{ String.valueOf(loaded.getLastRowId()) }, null, null, KEY_ID);
+        int replayed = 0;
+        while( cursor.moveToNext() ) {
+            loaded.add(cursor.getString(2), cursor.getString(1), cursor.getLong(3));
+            loaded.setLastRowId(cursor.getLong(0));
+            replayed++;
+        }
+        cursor.close();
+        L.d( "occurence counters: " + loaded.size() + ", replayed events: " + replayed );
+
+        synchronized (queueLock) {
+            counters = loaded;
+            countersDirty = replayed>0;
+        }
+        return loaded;
+    }
+
+    private OccurenceCounters readCheckpoint() {
+        if( !countersFile.exists() ) return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(countersFile)));
+            return OccurenceCounters.readFrom(in);
+        } catch (IOException e) {
+            L.e( "Error reading occurence counters, rebuilding", e );
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly( Closeable closeable ) {
+        if( closeable==null ) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+
     public void listAll() {
+        flush();
         String query = "SELECT * FROM " + TABLE_BEACON_EVENTS;
         L.d(query);
-        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteDatabase db = getDatabase();
         Cursor cursor = db.rawQuery(query, null);
 
         if( cursor.moveToFirst() ) {
@@ -141,7 +798,7 @@ public class BeaconsDB extends SQLiteOpenHelper {
                 );
             } while (cursor.moveToNext());
         }
-
+        cursor.close();
     }
 
 
@@ -150,6 +807,13 @@ public class BeaconsDB extends SQLiteOpenHelper {
     private static final long MILLIS_MONTH = MILLIS_DAY*30;
     private static final long MILLIS_YEAR = MILLIS_DAY*365;
 
+    // Age of events rolled up into hourly aggregates
+    private static final long RAW_RETENTION = MILLIS_DAY*2;
+    // Age of hourly aggregates rolled up into daily aggregates
+    private static final long HOURLY_RETENTION = MILLIS_MONTH + MILLIS_DAY;
+    // Age of daily aggregates rolled up into all-time aggregates
+    private static final long DAILY_RETENTION = MILLIS_YEAR + MILLIS_DAY;
+
     private long getStartDateForOccurence( EventOccurenceUnit occurenceUnit ) {
         long now = new Date().getTime();
         switch (occurenceUnit) {
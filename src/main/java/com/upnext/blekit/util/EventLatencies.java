@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latency histograms of beacon event processing stages, built from completed {@link EventTrace}s.
+ *
+ * Stage latencies are kept overall (also as <code>trace.&lt;stage&gt;.us</code> in {@link Metrics}),
+ * per zone and per trigger. Stages up to {@link EventTrace.Stage#RECEIVED} are recorded once per event
+ * (see {@link #recordEvent(EventTrace)}), evaluation and dispatch once per evaluated trigger
+ * (see {@link #recordTrigger(EventTrace, String, long)}), so events of beacons with many triggers are not over-represented.
+ * Memory is bounded - histograms take constant memory and at most {@link #MAX_KEYS}
+ * zones and triggers are kept, the least recently used ones are evicted.
+ * Values are in microseconds.
+ */
+public final class EventLatencies {
+
+    /**
+     * Maximum number of zones and of triggers with their own histograms.
+     */
+    public static final int MAX_KEYS = 32;
+
+    /**
+     * Key of the histogram of time from the first stage of an event until it was processed (overall),
+     * or until the trigger was evaluated or dispatched (zones and triggers).
+     */
+    public static final String TOTAL = "total";
+
+    // Stages passed once per event, the following ones once per trigger
+    private static final EventTrace.Stage LAST_EVENT_STAGE = EventTrace.Stage.RECEIVED;
+
+    private final Stages overall = new Stages("trace.");
+    private final Map<String, Stages> zones = new Lru();
+    private final Map<String, Stages> triggers = new Lru();
+
+    private static class Lru extends LinkedHashMap<String, Stages> {
+        Lru() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Stages> eldest) {
+            return size()>MAX_KEYS;
+        }
+    }
+
+    private static class Stages {
+        final Histogram[] stages = new Histogram[EventTrace.Stage.values().length];
+        final Histogram total;
+
+        Stages( String metricsPrefix ) {
+            final Metrics metrics = Metrics.getInstance();
+            for( EventTrace.Stage stage : EventTrace.Stage.values() ) {
+                stages[stage.ordinal()] = metrics.histogram(metricsPrefix + stage.name().toLowerCase() + ".us");
+            }
+            total = metrics.histogram(metricsPrefix + TOTAL + ".us");
+        }
+
+        Stages() {
+            for( int i=0; i<stages.length; i++ ) {
+                stages[i] = new Histogram();
+            }
+            total = new Histogram();
+        }
+
+        void record( EventTrace trace, boolean eventStages, long totalLatency ) {
+            for( EventTrace.Stage stage : EventTrace.Stage.values() ) {
+                if( (stage.ordinal()<=LAST_EVENT_STAGE.ordinal())!=eventStages ) continue;
+                final long latency = trace.getLatency(stage);
+                if( latency>=0 ) stages[stage.ordinal()].record(latency);
+            }
+            if( totalLatency>=0 ) total.record(totalLatency);
+        }
+
+        void reset() {
+            for( Histogram histogram : stages ) {
+                histogram.reset();
+            }
+            total.reset();
+        }
+
+        Map<String, Histogram> toMap() {
+            final Map<String, Histogram> map = new LinkedHashMap<String, Histogram>();
+            for( EventTrace.Stage stage : EventTrace.Stage.values() ) {
+                map.put(stage.name().toLowerCase(), stages[stage.ordinal()]);
+            }
+            map.put(TOTAL, total);
+            return map;
+        }
+    }
+
+    /**
+     * Records latencies of stages an event passed before its triggers were evaluated, together with
+     * {@link #TOTAL} time until now. Called once per event, after all its triggers were processed.
+     *
+     * @param trace trace of an event, may be <code>null</code>
+     */
+    public void recordEvent( EventTrace trace ) {
+        if( trace==null ) return;
+        overall.record(trace, true, trace.getElapsed());
+    }
+
+    /**
+     * Records latencies of evaluation and dispatch of a trigger.
+     *
+     * @param trace trace of the event, stamped with stages of the trigger, may be <code>null</code>
+     * @param zoneId identifier of the zone of trigger, may be <code>null</code>
+     * @param triggerId trigger identifier, unique within the zone
+     */
+    public void recordTrigger( EventTrace trace, String zoneId, long triggerId ) {
+        if( trace==null ) return;
+
+        overall.record(trace, false, -1);
+        final Stages zoneStages;
+        final Stages triggerStages;
+        synchronized (this) {
+            zoneStages = zoneId!=null ? get(zones, zoneId) : null;
+            triggerStages = get(triggers, triggerKey(zoneId, triggerId));
+        }
+        if( zoneStages!=null ) zoneStages.record(trace, false, trace.getTotal());
+        triggerStages.record(trace, false, trace.getTotal());
+    }
+
+    /**
+     * Returns key of histograms of a trigger, trigger ids are unique only within a zone.
+     *
+     * @param zoneId identifier of the zone of trigger, may be <code>null</code>
+     * @param triggerId trigger identifier
+     * @return key, <code>zoneId/triggerId</code>
+     */
+    public static String triggerKey( String zoneId, long triggerId ) {
+        return (zoneId!=null ? zoneId : "") + "/" + triggerId;
+    }
+
+    /**
+     * Removes all recorded latencies, histograms of zones and triggers are dropped.
+     */
+    public void reset() {
+        overall.reset();
+        synchronized (this) {
+            zones.clear();
+            triggers.clear();
+        }
+    }
+
+    /**
+     * @return histograms of all events by stage name, followed by {@link #TOTAL}
+     */
+    public Map<String, Histogram> getStages() {
+        return overall.toMap();
+    }
+
+    /**
+     * @param zoneId zone identifier
+     * @return histograms of events of given zone by stage name, followed by {@link #TOTAL}, or <code>null</code> if there are none
+     */
+    public synchronized Map<String, Histogram> getZone( String zoneId ) {
+        final Stages stages = zones.get(zoneId);
+        return stages!=null ? stages.toMap() : null;
+    }
+
+    /**
+     * @param trigger trigger key, see {@link #triggerKey(String, long)}
+     * @return histograms of events of given trigger by stage name, followed by {@link #TOTAL}, or <code>null</code> if there are none
+     */
+    public synchronized Map<String, Histogram> getTrigger( String trigger ) {
+        final Stages stages = triggers.get(trigger);
+        return stages!=null ? stages.toMap() : null;
+    }
+
+    /**
+     * @return identifiers of zones with histograms, most recently used last
+     */
+    public synchronized List<String> getZoneIds() {
+        return Collections.unmodifiableList(new ArrayList<String>(zones.keySet()));
+    }
+
+    /**
+     * @return keys of triggers with histograms (see {@link #triggerKey(String, long)}), most recently used last
+     */
+    public synchronized List<String> getTriggers() {
+        return Collections.unmodifiableList(new ArrayList<String>(triggers.keySet()));
+    }
+
+    private static Stages get( Map<String, Stages> map, String key ) {
+        Stages stages = map.get(key);
+        if( stages==null ) {
+            stages = new Stages();
+            map.put(key, stages);
+        }
+        return stages;
+    }
+}
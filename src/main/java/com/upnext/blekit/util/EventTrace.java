@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Trace context of a single beacon event, carried with the event from ranging to action dispatch.
+ *
+ * Every {@link Stage} is stamped once, in microseconds of {@link android.os.SystemClock#elapsedRealtimeNanos()},
+ * which is monotonic and shared by all processes, so stamps of the service and of the client application can be compared.
+ * Stages not passed by an event (eg. leave debounce of a proximity update) stay unset.
+ *
+ * The trace is passed between processes as a <code>long[]</code>, see {@link #toArray()} and {@link #fromArray(long[])}.
+ */
+public final class EventTrace {
+
+    /**
+     * Stages of beacon event processing, in order.
+     */
+    public enum Stage {
+        /** Beacon ranged or region entered or left */
+        RANGED,
+        /** Event passed filtering (proximity averaging, scheduling of enter and leave) */
+        FILTERED,
+        /** Enter or leave confirmed after the debounce delay */
+        DEBOUNCED,
+        /** Event sent by the service to the client application */
+        FANNED_OUT,
+        /** Event received by {@link com.upnext.blekit.BLEKitIntentProcessor} */
+        RECEIVED,
+        /** Conditions of a trigger evaluated */
+        EVALUATED,
+        /** Action of a trigger dispatched */
+        DISPATCHED
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final long[] stamps;
+
+    /**
+     * Creates an empty trace.
+     */
+    public EventTrace() {
+        this.stamps = new long[STAGES.length];
+    }
+
+    private EventTrace( long[] stamps ) {
+        this.stamps = stamps;
+    }
+
+    /**
+     * Recreates trace sent as an array.
+     *
+     * @param array stamps as returned by {@link #toArray()}, may be <code>null</code>
+     * @return trace or <code>null</code> if array was <code>null</code>
+     */
+    public static EventTrace fromArray( long[] array ) {
+        if( array==null ) return null;
+        return new EventTrace(Arrays.copyOf(array, STAGES.length));
+    }
+
+    /**
+     * @return stamps of this trace, indexed by stage ordinal
+     */
+    public long[] toArray() {
+        return Arrays.copyOf(stamps, stamps.length);
+    }
+
+    /**
+     * @return independent copy of this trace
+     */
+    public EventTrace copy() {
+        return new EventTrace(toArray());
+    }
+
+    /**
+     * Stamps given stage now, unless it was stamped before.
+     *
+     * @param stage stage
+     * @return this trace
+     */
+    public EventTrace mark( Stage stage ) {
+        if( stamps[stage.ordinal()]==0 ) {
+            stamps[stage.ordinal()] = now();
+        }
+        return this;
+    }
+
+    /**
+     * @param stage stage
+     * @return stamp of given stage in microseconds or 0 if the stage was not reached
+     */
+    public long get( Stage stage ) {
+        return stamps[stage.ordinal()];
+    }
+
+    /**
+     * Returns time spent in given stage, ie. time since the closest preceding stage that was reached.
+     *
+     * @param stage stage
+     * @return time in microseconds or -1 if the stage or no preceding stage was reached
+     */
+    public long getLatency( Stage stage ) {
+        final int index = stage.ordinal();
+        if( stamps[index]==0 ) return -1;
+        for( int i=index-1; i>=0; i-- ) {
+            if( stamps[i]!=0 ) return stamps[index] - stamps[i];
+        }
+        return -1;
+    }
+
+    /**
+     * @return time in microseconds from the first to the last reached stage, -1 if less than two stages were reached
+     */
+    public long getTotal() {
+        long first = 0;
+        long last = 0;
+        for( long stamp : stamps ) {
+            if( stamp==0 ) continue;
+            if( first==0 ) first = stamp;
+            last = stamp;
+        }
+        return first!=0 && last!=first ? last - first : -1;
+    }
+
+    /**
+     * @return time in microseconds from the first reached stage until now, -1 if no stage was reached
+     */
+    public long getElapsed() {
+        for( long stamp : stamps ) {
+            if( stamp!=0 ) return now() - stamp;
+        }
+        return -1;
+    }
+
+    private static long now() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("EventTrace{");
+        for( Stage stage : STAGES ) {
+            final long latency = getLatency(stage);
+            if( latency<0 ) continue;
+            sb.append(stage.name().toLowerCase()).append("=+").append(latency).append("us, ");
+        }
+        return sb.append("total=").append(getTotal()).append("us}").toString();
+    }
+}
@@ -26,31 +26,37 @@
 package com.upnext.blekit.util;
 
 import com.upnext.blekit.model.Zone;
+import com.upnext.blekit.util.expression.CompiledExpression;
+import com.upnext.blekit.util.expression.ExpressionBinding;
+import com.upnext.blekit.util.expression.ExpressionBudget;
+import com.upnext.blekit.util.expression.ExpressionNode;
+import com.upnext.blekit.util.expression.RhinoEvaluator;
 
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.Scriptable;
-import org.mozilla.javascript.ScriptableObject;
-
+import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Class used for evaluating expressions in conditions {@link com.upnext.blekit.conditions.BLECondition#expression}
  *
+ * Expressions consisting only of literals, property paths, comparisons, arithmetic and logical operators
+ * are parsed once into an expression tree and evaluated directly (see {@link com.upnext.blekit.util.expression.ExpressionParser}).
+ * All other expressions are evaluated by Rhino, within limits set by {@link com.upnext.blekit.util.expression.ExpressionBudget}.
+ *
+ * Variables can be provided either as values ({@link #putProperty(String, Object)}) or as lazy bindings ({@link #putBinding(String, com.upnext.blekit.util.expression.ExpressionBinding)}).
+ * A binding is resolved only if the expression references its variable.
+ *
  * @see com.upnext.blekit.conditions.BLECondition
  * @author Roman Wozniak (roman@up-next.com)
  */
 public class ExpressionEvaluator {
 
-    private Scriptable scope;
-    private Context ctx;
+    private final Map<String, Object> properties = new HashMap<String, Object>();
+    private final Map<String, ExpressionBinding> bindings = new HashMap<String, ExpressionBinding>();
 
     private Zone zone;
     private String expression;
 
     public ExpressionEvaluator() {
-        ctx = Context.enter();
-        ctx.setOptimizationLevel(-1);
-        scope = ctx.initStandardObjects();
     }
 
     public void setZone(Zone zone) {
@@ -62,32 +68,119 @@ public class ExpressionEvaluator {
     }
 
     public boolean eval() {
-        boolean result = false;
-        try {
-            ScriptableObject.putProperty( scope, "zone", Context.javaToJS(zone, scope) );
-
-            Object r = ctx.evaluateString( scope, expression, "expression", 1, null );
-            L.d(r);
-            if( r instanceof Boolean ) {
-                L.d("boolean");
-                result = (Boolean) r;
-            } else {
-                result = false;
+        final CompiledExpression compiled = CompiledExpression.compile(expression);
+        properties.put( "zone", zone );
+
+        Object r;
+        if( compiled.isNative() ) {
+            try {
+                r = compiled.getNode().eval( new LazyScope(properties, bindings) );
+            } catch (ExpressionNode.EvaluationException e) {
+                L.d( "evaluation failed: " + e.getMessage() );
+                r = null;
             }
-        } finally {
-            Context.exit();
+        } else if( ExpressionBudget.isDisabled(compiled.getSource()) ) {
+            L.d( "expression disabled after exceeding its budget" );
+            r = null;
+        } else {
+            r = RhinoEvaluator.eval( compiled, resolveReferenced(compiled) );
         }
-        return result;
+
+        L.d(r);
+        if( r instanceof Boolean ) {
+            L.d("boolean");
+            return (Boolean) r;
+        }
+        return false;
     }
 
     public void putProperties( Map<String, Object> properties ) {
         if( properties==null ) return;
+        this.properties.putAll(properties);
+    }
+
+    public void putProperty( String key, Object value ) {
+        properties.put(key, value);
+    }
+
+    /**
+     * Adds a variable whose value is computed only if the expression references it.
+     *
+     * @param key variable name
+     * @param binding value provider
+     */
+    public void putBinding( String key, ExpressionBinding binding ) {
+        if( binding!=null ) {
+            bindings.put(key, binding);
+        }
+    }
+
+    /**
+     * Adds lazy variables.
+     *
+     * @param bindings map of variable name to value provider, may be <code>null</code>
+     * @see #putBinding(String, com.upnext.blekit.util.expression.ExpressionBinding)
+     */
+    public void putBindings( Map<String, ExpressionBinding> bindings ) {
+        if( bindings==null ) return;
+        this.bindings.putAll(bindings);
+    }
+
+    /**
+     * Checks whether the expression references a variable which was not provided so far (neither as a property nor a binding),
+     * eg. to decide if eagerly computed parameters are needed at all.
+     *
+     * @return <code>true</code> if there might be a referenced variable without value
+     */
+    public boolean referencesUnboundVariables() {
+        final CompiledExpression compiled = CompiledExpression.compile(expression);
+        if( compiled.getReferences()==null ) return true;
+        for( String name : compiled.getReferences() ) {
+            if( !"zone".equals(name) && !properties.containsKey(name) && !bindings.containsKey(name) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<String, Object> resolveReferenced( CompiledExpression compiled ) {
+        Map<String, Object> values = new HashMap<String, Object>();
         for( String key : properties.keySet() ) {
-            ScriptableObject.putProperty( scope, key, Context.javaToJS(properties.get(key), scope) );
+            if( compiled.references(key) ) {
+                values.put(key, properties.get(key));
+            }
+        }
+        for( String key : bindings.keySet() ) {
+            if( compiled.references(key) && !values.containsKey(key) ) {
+                values.put(key, bindings.get(key).resolve());
+            }
         }
+        return values;
     }
 
-    public void putProperty( String key, Object value ) {
-        ScriptableObject.putProperty( scope, key, Context.javaToJS(value, scope) );
+    /**
+     * Scope resolving bindings on first access.
+     */
+    private static class LazyScope implements ExpressionNode.Scope {
+        private final Map<String, Object> values;
+        private final Map<String, ExpressionBinding> bindings;
+
+        LazyScope(Map<String, Object> values, Map<String, ExpressionBinding> bindings) {
+            this.values = values;
+            this.bindings = bindings;
+        }
+
+        @Override
+        public boolean has(String name) {
+            return values.containsKey(name) || bindings.containsKey(name);
+        }
+
+        @Override
+        public Object get(String name) {
+            if( !values.containsKey(name) && bindings.containsKey(name) ) {
+                values.put(name, bindings.get(name).resolve());
+            }
+            return values.get(name);
+        }
     }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe histogram of non-negative values (eg. latencies in milliseconds) with exponential buckets.
+ *
+ * Bucket <code>0</code> counts values <code>0</code>, bucket <code>i</code> counts values in <code>[2^(i-1), 2^i)</code>,
+ * the last bucket counts all larger values. Percentiles are reported as upper bounds of their buckets,
+ * so they are accurate within a factor of two, while recording is lock-free and takes constant memory.
+ */
+public final class Histogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value, negative values are recorded as zero.
+     *
+     * @param value value
+     */
+    public void record( long value ) {
+        if( value<0 ) value = 0;
+        buckets.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current = max.get();
+        while( value>current && !max.compareAndSet(current, value) ) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return sum of recorded values
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @return largest recorded value, zero if there are none
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return mean of recorded values, zero if there are none
+     */
+    public double getMean() {
+        final long n = count.get();
+        return n==0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Returns an upper bound of given percentile.
+     *
+     * @param percentile percentile, between 0 and 100
+     * @return upper bound of the bucket containing the percentile, never larger than {@link #getMax()}
+     */
+    public long getPercentile( double percentile ) {
+        long total = 0;
+        final long[] snapshot = new long[BUCKETS];
+        for( int i=0; i<BUCKETS; i++ ) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if( total==0 ) return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for( int i=0; i<BUCKETS; i++ ) {
+            seen += snapshot[i];
+            if( seen>=rank ) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    public void reset() {
+        for( int i=0; i<BUCKETS; i++ ) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "Histogram{" +
+                "count=" + getCount() +
+                ", mean=" + getMean() +
+                ", p50=" + getPercentile(50) +
+                ", p90=" + getPercentile(90) +
+                ", p99=" + getPercentile(99) +
+                ", max=" + getMax() +
+                '}';
+    }
+
+    private static int bucket( long value ) {
+        final int bits = 64 - Long.numberOfLeadingZeros(value);
+        return Math.min(bits, BUCKETS-1);
+    }
+
+    private static long upperBound( int bucket ) {
+        if( bucket==BUCKETS-1 ) return Long.MAX_VALUE;
+        return (1L << bucket) - 1;
+    }
+}
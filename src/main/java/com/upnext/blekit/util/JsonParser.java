@@ -28,25 +28,72 @@ package com.upnext.blekit.util;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.upnext.blekit.model.Zone;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * JSON parser class, used to deserialize JSON into Objects.
  *
+ * All instances share a single, pre-configured {@link com.fasterxml.jackson.databind.ObjectMapper}
+ * and {@link com.fasterxml.jackson.databind.ObjectReader}s cached per class, so creating a parser is cheap.
+ * The shared mapper does not close streams it reads from, callers close them (eg. after reading the rest of the stream).
+ *
  * @author Roman Wozniak (roman@up-next.com)
  */
 public class JsonParser {
 
-    private ObjectMapper objectMapper;
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(com.fasterxml.jackson.core.JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+
+    private static final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<Class<?>, ObjectReader>();
+
+    private static final JsonParser instance = new JsonParser();
 
     /**
-     * Constructor, initializes the obejct mapper, will not fail on unknown properties.
+     * Constructor, the shared object mapper will not fail on unknown properties and will not close streams.
      */
     public JsonParser() {
-        objectMapper = new ObjectMapper();
-        objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    /**
+     * Returns shared parser instance.
+     *
+     * @return parser
+     */
+    public static JsonParser getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the object mapper shared by all parsers.
+     * It must not be reconfigured.
+     *
+     * @return object mapper
+     */
+    public static ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    /**
+     * Returns reader for given class, readers are immutable and cached.
+     *
+     * @param valueType class type for deserialization
+     * @return object reader
+     */
+    public static ObjectReader getReader( Class<?> valueType ) {
+        ObjectReader reader = readers.get(valueType);
+        if( reader==null ) {
+            reader = objectMapper.reader(valueType);
+            readers.put(valueType, reader);
+        }
+        return reader;
     }
 
     /**
@@ -57,7 +104,22 @@ public class JsonParser {
      */
     public Zone parse( String zoneJSON ) {
         try {
-            return objectMapper.readValue(zoneJSON, Zone.class);
+            return getReader(Zone.class).readValue(zoneJSON);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Deserializes given JSON array into a list of {@link com.upnext.blekit.model.Zone}s
+     *
+     * @param zonesJSON zones as plain JSON array
+     * @return zones or <code>null</code> if the JSON is not valid
+     */
+    public List<Zone> parseZones( String zonesJSON ) {
+        try {
+            return Arrays.asList(getReader(Zone[].class).<Zone[]>readValue(zonesJSON));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -66,6 +128,7 @@ public class JsonParser {
 
     /**
      * Deserializes given jsonObject into an object of given class.
+     * The tree is bound directly, without serializing it to text first.
      *
      * @param jsonObject json object
      * @param valueType class type for deserialization
@@ -73,9 +136,9 @@ public class JsonParser {
      * @return object instance
      */
     public <T>T parse( JsonNode jsonObject, Class<T> valueType ) {
-        if( jsonObject==null ) return null;
+        if( jsonObject==null || valueType==null || valueType==Void.class ) return null;
         try {
-            return objectMapper.readValue( ""+jsonObject, valueType );
+            return getReader(valueType).readValue(jsonObject);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies JSON Patch documents (RFC 6902) to JSON trees.
+ *
+ * Supports all operations: <code>add</code>, <code>remove</code>, <code>replace</code>, <code>move</code>,
+ * <code>copy</code> and <code>test</code>. Paths are JSON Pointers (RFC 6901).
+ */
+final class JsonPatch {
+
+    private JsonPatch() {
+    }
+
+    /**
+     * Applies patch to given document. The document is modified in place, unless the whole document is replaced.
+     *
+     * @param document document to patch
+     * @param patch array of patch operations
+     * @return patched document
+     * @throws IOException if the patch is invalid or cannot be applied, the document may be partially patched then
+     */
+    static JsonNode apply( JsonNode document, JsonNode patch ) throws IOException {
+        if( patch==null || !patch.isArray() ) {
+            throw new IOException( "Patch must be an array of operations" );
+        }
+        for( JsonNode operation : patch ) {
+            document = applyOperation(document, operation);
+        }
+        return document;
+    }
+
+    private static JsonNode applyOperation( JsonNode document, JsonNode operation ) throws IOException {
+        final String op = text(operation, "op");
+        final List<String> path = parsePointer(text(operation, "path"));
+
+        if( "add".equals(op) ) {
+            return add(document, path, value(operation));
+        } else if( "remove".equals(op) ) {
+            remove(document, path);
+            return document;
+        } else if( "replace".equals(op) ) {
+            if( path.isEmpty() ) return value(operation);
+            remove(document, path);
+            return add(document, path, value(operation));
+        } else if( "move".equals(op) ) {
+            final List<String> from = parsePointer(text(operation, "from"));
+            final JsonNode value = get(document, from);
+            if( from.isEmpty() ) return add(document, path, value);
+            remove(document, from);
+            return add(document, path, value);
+        } else if( "copy".equals(op) ) {
+            final List<String> from = parsePointer(text(operation, "from"));
+            return add(document, path, get(document, from).deepCopy());
+        } else if( "test".equals(op) ) {
+            if( !get(document, path).equals(value(operation)) ) {
+                throw new IOException( "Test failed at " + text(operation, "path") );
+            }
+            return document;
+        }
+        throw new IOException( "Unsupported operation " + op );
+    }
+
+    private static JsonNode add( JsonNode document, List<String> path, JsonNode value ) throws IOException {
+        if( path.isEmpty() ) return value;
+
+        final JsonNode parent = get(document, path.subList(0, path.size()-1));
+        final String token = path.get(path.size()-1);
+        if( parent.isObject() ) {
+            ((ObjectNode) parent).set(token, value);
+        } else if( parent.isArray() ) {
+            final ArrayNode array = (ArrayNode) parent;
+            if( "-".equals(token) ) {
+                array.add(value);
+            } else {
+                final int index = index(token, array.size());
+                array.insert(index, value);
+            }
+        } else {
+            throw new IOException( "Cannot add to a value node at " + token );
+        }
+        return document;
+    }
+
+    private static void remove( JsonNode document, List<String> path ) throws IOException {
+        if( path.isEmpty() ) {
+            throw new IOException( "Cannot remove the whole document" );
+        }
+
+        final JsonNode parent = get(document, path.subList(0, path.size()-1));
+        final String token = path.get(path.size()-1);
+        if( parent.isObject() && parent.has(token) ) {
+            ((ObjectNode) parent).remove(token);
+        } else if( parent.isArray() ) {
+            ((ArrayNode) parent).remove(index(token, parent.size()-1));
+        } else {
+            throw new IOException( "No value to remove at " + token );
+        }
+    }
+
+    private static JsonNode get( JsonNode document, List<String> path ) throws IOException {
+        JsonNode node = document;
+        for( String token : path ) {
+            if( node.isObject() ) {
+                node = node.get(token);
+            } else if( node.isArray() ) {
+                node = node.get(index(token, node.size()-1));
+            } else {
+                node = null;
+            }
+            if( node==null ) {
+                throw new IOException( "No value at " + token );
+            }
+        }
+        return node;
+    }
+
+    private static int index( String token, int max ) throws IOException {
+        try {
+            final int index = Integer.parseInt(token);
+            if( index>=0 && index<=max && (token.length()==1 || token.charAt(0)!='0') ) {
+                return index;
+            }
+        } catch (NumberFormatException e) {
+            //invalid index
+        }
+        throw new IOException( "Invalid array index " + token );
+    }
+
+    private static List<String> parsePointer( String pointer ) throws IOException {
+        final List<String> tokens = new ArrayList<String>();
+        if( pointer.length()==0 ) return tokens;
+        if( pointer.charAt(0)!='/' ) {
+            throw new IOException( "Invalid pointer " + pointer );
+        }
+
+        int start = 1;
+        while( true ) {
+            int end = pointer.indexOf('/', start);
+            if( end<0 ) end = pointer.length();
+            tokens.add(pointer.substring(start, end).replace("~1", "/").replace("~0", "~"));
+            if( end==pointer.length() ) break;
+            start = end+1;
+        }
+        return tokens;
+    }
+
+    private static String text( JsonNode operation, String field ) throws IOException {
+        final JsonNode node = operation.get(field);
+        if( node==null || !node.isTextual() ) {
+            throw new IOException( "Missing '" + field + "' in patch operation" );
+        }
+        return node.textValue();
+    }
+
+    private static JsonNode value( JsonNode operation ) throws IOException {
+        final JsonNode node = operation.get("value");
+        if( node==null ) {
+            throw new IOException( "Missing 'value' in patch operation" );
+        }
+        return node;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of counters, gauges and histograms describing behaviour of the library in this process.
+ *
+ * Metrics are created on first use and live as long as the process. Recording is lock-free
+ * (an atomic increment, or a few for histograms), so metrics can be recorded on the event processing path.
+ * Names are dot separated, eg. <code>events.sent.REGION_ENTER</code>; durations are suffixed with their unit.
+ *
+ * Use {@link #dump(java.io.PrintWriter)} for a readable report, eg. <code>adb shell dumpsys activity service BLEKitService</code>.
+ */
+public final class Metrics {
+
+    private static final Metrics instance = new Metrics();
+
+    private final long start = SystemClock.elapsedRealtime();
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * Current value of a gauge, read when metrics are reported.
+     */
+    public interface Gauge {
+        /**
+         * @return current value
+         */
+        long getValue();
+    }
+
+    /**
+     * Monotonic counter.
+     */
+    public static final class Counter {
+        private final AtomicLong count = new AtomicLong();
+
+        /**
+         * Increments the counter.
+         */
+        public void inc() {
+            count.incrementAndGet();
+        }
+
+        /**
+         * Adds to the counter.
+         *
+         * @param delta value to add
+         */
+        public void add( long delta ) {
+            count.addAndGet(delta);
+        }
+
+        /**
+         * @return current count
+         */
+        public long get() {
+            return count.get();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @return metrics of this process
+     */
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns counter with given name, created if it does not exist.
+     * Callers on hot paths should keep the returned counter rather than looking it up every time.
+     *
+     * @param name metric name
+     * @return counter
+     */
+    public Counter counter( String name ) {
+        Counter counter = counters.get(name);
+        if( counter==null ) {
+            counter = new Counter();
+            final Counter existing = counters.putIfAbsent(name, counter);
+            if( existing!=null ) counter = existing;
+        }
+        return counter;
+    }
+
+    /**
+     * Returns histogram with given name, created if it does not exist.
+     *
+     * @param name metric name
+     * @return histogram
+     */
+    public Histogram histogram( String name ) {
+        Histogram histogram = histograms.get(name);
+        if( histogram==null ) {
+            histogram = new Histogram();
+            final Histogram existing = histograms.putIfAbsent(name, histogram);
+            if( existing!=null ) histogram = existing;
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers gauge with given name, replacing gauge registered before with the same name.
+     *
+     * @param name metric name
+     * @param gauge gauge
+     */
+    public void gauge( String name, Gauge gauge ) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Returns current values of all counters and gauges.
+     *
+     * @return values by metric name, sorted by name
+     */
+    public Map<String, Long> getValues() {
+        final Map<String, Long> values = new TreeMap<String, Long>();
+        for( Map.Entry<String, Counter> entry : counters.entrySet() ) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        for( Map.Entry<String, Gauge> entry : gauges.entrySet() ) {
+            values.put(entry.getKey(), entry.getValue().getValue());
+        }
+        return values;
+    }
+
+    /**
+     * Returns all histograms.
+     *
+     * @return histograms by metric name, sorted by name
+     */
+    public Map<String, Histogram> getHistograms() {
+        return new TreeMap<String, Histogram>(histograms);
+    }
+
+    /**
+     * @return time in milliseconds since metrics were created
+     */
+    public long getUptime() {
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Prints all metrics, counters together with their average rate per second.
+     *
+     * @param writer writer
+     */
+    public void dump( PrintWriter writer ) {
+        final long uptime = Math.max(1, getUptime());
+        writer.println("Metrics (uptime " + uptime/1000 + " s):");
+        final Map<String, Counter> sortedCounters = new TreeMap<String, Counter>(counters);
+        for( Map.Entry<String, Counter> entry : sortedCounters.entrySet() ) {
+            final long count = entry.getValue().get();
+            writer.println("  " + entry.getKey() + " = " + count + " (" + String.format("%.2f", count*1000.0/uptime) + "/s)");
+        }
+        final Map<String, Gauge> sortedGauges = new TreeMap<String, Gauge>(gauges);
+        for( Map.Entry<String, Gauge> entry : sortedGauges.entrySet() ) {
+            writer.println("  " + entry.getKey() + " = " + entry.getValue().getValue());
+        }
+        for( Map.Entry<String, Histogram> entry : getHistograms().entrySet() ) {
+            writer.println("  " + entry.getKey() + " = " + entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import com.upnext.blekit.BeaconEvent;
+import com.upnext.blekit.EventOccurenceUnit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory occurence counters per beacon and event, answering counts for every {@link com.upnext.blekit.EventOccurenceUnit} in O(1).
+ *
+ * Each counter keeps a ring of time buckets per unit together with a running sum of the ring:
+ * <ul>
+ *  <li>HOUR - 60 buckets of 1 minute
+ *  <li>DAY - 48 buckets of 30 minutes
+ *  <li>MONTH - 30 buckets of 1 day
+ *  <li>YEAR - 53 buckets of 7 days
+ *  <li>TOTAL - a single counter
+ * </ul>
+ * Windows slide by whole buckets, so the oldest bucket of a window may be only partially covered by the exact time range
+ * (eg. HOUR counts events from the last 59 to 60 minutes).
+ *
+ * Counters remember the highest <code>beacon_events</code> row id they include, so that they can be checkpointed to disk
+ * and caught up with rows added after the checkpoint.
+ *
+ * Not thread safe, {@link com.upnext.blekit.util.BeaconsDB} synchronizes access.
+ *
+ * @see com.upnext.blekit.util.BeaconsDB
+ */
+final class OccurenceCounters {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final long MILLIS_MINUTE = 60*1000;
+    private static final long MILLIS_DAY = 24*60*MILLIS_MINUTE;
+
+    private final Map<String, Counter> counters = new HashMap<String, Counter>();
+    private long lastRowId;
+
+    /**
+     * Adds an occurence.
+     *
+     * @param beaconId beacon identifier
+     * @param event beacon event
+     * @param time time of occurence in milliseconds since epoch
+     */
+    void add( String beaconId, String event, long time ) {
+        add(beaconId, event, time, 1);
+    }
+
+    /**
+     * Adds a number of occurences at the same time, eg. an aggregate of compacted events.
+     *
+     * @param beaconId beacon identifier
+     * @param event beacon event
+     * @param time time of occurences in milliseconds since epoch
+     * @param count number of occurences
+     */
+    void add( String beaconId, String event, long time, int count ) {
+        final String key = key(beaconId, event);
+        Counter counter = counters.get(key);
+        if( counter==null ) {
+            counter = new Counter();
+            counters.put(key, counter);
+        }
+        counter.add(time, count);
+    }
+
+    /**
+     * Returns the number of occurences of event for given beacon id in unit of time.
+     *
+     * @param beaconId beacon identifier
+     * @param event beacon event
+     * @param unit occurence unit
+     * @param now current time in milliseconds since epoch
+     * @return number of occurences
+     */
+    int count( String beaconId, BeaconEvent event, EventOccurenceUnit unit, long now ) {
+        final Counter counter = counters.get(key(beaconId, event.name()));
+        if( counter==null ) return 0;
+        return counter.count(unit, now);
+    }
+
+    long getLastRowId() {
+        return lastRowId;
+    }
+
+    void setLastRowId( long lastRowId ) {
+        this.lastRowId = lastRowId;
+    }
+
+    int size() {
+        return counters.size();
+    }
+
+    void writeTo( DataOutputStream out ) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(lastRowId);
+        out.writeInt(counters.size());
+        for( Map.Entry<String, Counter> entry : counters.entrySet() ) {
+            out.writeUTF(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    /**
+     * Reads counters written by {@link #writeTo(java.io.DataOutputStream)}.
+     *
+     * @param in input
+     * @return counters or <code>null</code> if the data was written in an unsupported format
+     * @throws IOException on read errors or truncated data
+     */
+    static OccurenceCounters readFrom( DataInputStream in ) throws IOException {
+        if( in.readInt()!=FORMAT_VERSION ) return null;
+        OccurenceCounters result = new OccurenceCounters();
+        result.lastRowId = in.readLong();
+        int size = in.readInt();
+        for( int i=0; i<size; i++ ) {
+            String key = in.readUTF();
+            result.counters.put(key, Counter.readFrom(in));
+        }
+        return result;
+    }
+
+    private static String key( String beaconId, String event ) {
+        return event + "|" + beaconId;
+    }
+
+    private static class Counter {
+        private final Ring hour = new Ring(MILLIS_MINUTE, 60);
+        private final Ring day = new Ring(30*MILLIS_MINUTE, 48);
+        private final Ring month = new Ring(MILLIS_DAY, 30);
+        private final Ring year = new Ring(7*MILLIS_DAY, 53);
+        private long total;
+
+        void add( long time, int count ) {
+            hour.add(time, count);
+            day.add(time, count);
+            month.add(time, count);
+            year.add(time, count);
+            total += count;
+        }
+
+        int count( EventOccurenceUnit unit, long now ) {
+            switch (unit) {
+                case HOUR: return hour.sum(now);
+                case DAY: return day.sum(now);
+                case MONTH: return month.sum(now);
+                case YEAR: return year.sum(now);
+                case TOTAL: return (int) total;
+            }
+            return 0;
+        }
+
+        void writeTo( DataOutputStream out ) throws IOException {
+            out.writeLong(total);
+            hour.writeTo(out);
+            day.writeTo(out);
+            month.writeTo(out);
+            year.writeTo(out);
+        }
+
+        static Counter readFrom( DataInputStream in ) throws IOException {
+            Counter counter = new Counter();
+            counter.total = in.readLong();
+            counter.hour.readFrom(in);
+            counter.day.readFrom(in);
+            counter.month.readFrom(in);
+            counter.year.readFrom(in);
+            return counter;
+        }
+    }
+
+    /**
+     * Ring of fixed-width time buckets with a running sum.
+     * Bucket of absolute index <code>i</code> (time/width) is stored at <code>i % size</code>.
+     */
+    private static class Ring {
+        private final long width;
+        private final int[] buckets;
+        private long head = -1;
+        private int sum;
+
+        Ring(long width, int size) {
+            this.width = width;
+            this.buckets = new int[size];
+        }
+
+        void add( long time, int count ) {
+            long index = time / width;
+            if( index>head ) {
+                advance(index);
+            } else if( index<=head-buckets.length ) {
+                //older than the window
+                return;
+            }
+            buckets[(int) (index % buckets.length)] += count;
+            sum += count;
+        }
+
+        int sum( long now ) {
+            advance(now / width);
+            return sum;
+        }
+
+        private void advance( long index ) {
+            if( index<=head ) return;
+            if( head<0 || index-head>=buckets.length ) {
+                Arrays.fill(buckets, 0);
+                sum = 0;
+            } else {
+                for( long i=head+1; i<=index; i++ ) {
+                    int slot = (int) (i % buckets.length);
+                    sum -= buckets[slot];
+                    buckets[slot] = 0;
+                }
+            }
+            head = index;
+        }
+
+        void writeTo( DataOutputStream out ) throws IOException {
+            out.writeLong(head);
+            out.writeInt(buckets.length);
+            for( int bucket : buckets ) {
+                out.writeInt(bucket);
+            }
+        }
+
+        void readFrom( DataInputStream in ) throws IOException {
+            head = in.readLong();
+            if( in.readInt()!=buckets.length ) {
+                throw new IOException( "Unexpected ring size" );
+            }
+            sum = 0;
+            for( int i=0; i<buckets.length; i++ ) {
+                buckets[i] = in.readInt();
+                sum += buckets[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records timings of startup phases, in milliseconds since the trace began.
+ * Every phase is recorded once, when it is reached for the first time.
+ *
+ * Phases are logged as they are reached, the whole trace is available through {@link #getPhases()}.
+ */
+public final class StartupTrace {
+
+    /**
+     * First region registered for scanning.
+     */
+    public static final String FIRST_SCAN = "first_scan";
+
+    /**
+     * First beacon event sent to a client (service) or received from the service (client).
+     */
+    public static final String FIRST_EVENT = "first_event";
+
+    /**
+     * First action of a trigger dispatched.
+     */
+    public static final String FIRST_TRIGGER = "first_trigger";
+
+    private final String name;
+    private final long start;
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    /**
+     * Begins the trace now.
+     *
+     * @param name name of the traced component, used in logs
+     */
+    public StartupTrace( String name ) {
+        this.name = name;
+        this.start = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records reaching given phase, unless it was reached before.
+     *
+     * @param phase phase name
+     */
+    public void mark( String phase ) {
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        synchronized (phases) {
+            if( phases.containsKey(phase) ) return;
+            phases.put(phase, elapsed);
+        }
+        L.d( name + " " + phase + " +" + elapsed + " ms" );
+    }
+
+    /**
+     * @param phase phase name
+     * @return time of given phase in milliseconds since the trace began or -1 if it was not reached yet
+     */
+    public long get( String phase ) {
+        synchronized (phases) {
+            final Long elapsed = phases.get(phase);
+            return elapsed!=null ? elapsed : -1;
+        }
+    }
+
+    /**
+     * @return times of phases reached so far in milliseconds since the trace began, in order they were reached
+     */
+    public Map<String, Long> getPhases() {
+        synchronized (phases) {
+            return new LinkedHashMap<String, Long>(phases);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "StartupTrace{" +
+                "name='" + name + '\'' +
+                ", phases=" + getPhases() +
+                '}';
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.upnext.blekit.BLEKitClient;
+import com.upnext.blekit.Proximity;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Typed store of clients of the BLEKit service and of last known proximities of monitored beacons.
+ *
+ * Every client, beacon of a client and beacon state is a row of its own, so an update writes only the rows it changes
+ * and identifiers may contain any characters. Rows are read once into an in-memory cache, reads are served from the cache.
+ * Writes update the cache right away and are stored in order on a background thread.
+ */
+public class StateStore extends SQLiteOpenHelper {
+
+    // Database Version
+    private static final int DATABASE_VERSION = 1;
+    // Database Name
+    private static final String DATABASE_NAME = "BLEKitState";
+
+    private static final String TABLE_CLIENTS = "clients";
+    private static final String TABLE_CLIENT_BEACONS = "client_beacons";
+    private static final String TABLE_BEACON_STATES = "beacon_states";
+
+    private static final String KEY_PACKAGE = "package";
+    private static final String KEY_IN_BACKGROUND = "in_background";
+    private static final String KEY_BEACON_ID = "beacon_id";
+    private static final String KEY_PROXIMITY = "proximity";
+
+    private static StateStore instance;
+
+    //cache, guarded by this
+    private Map<String, ClientRow> clients;
+    private Map<String, Proximity> beaconStates;
+
+    private SQLiteDatabase database;
+    private Handler backgroundHandler;
+
+    private static class ClientRow {
+        final boolean inBackground;
+        final Set<String> beaconIds;
+
+        ClientRow(boolean inBackground, Set<String> beaconIds) {
+            this.inBackground = inBackground;
+            this.beaconIds = beaconIds;
+        }
+
+        static ClientRow of( BLEKitClient client ) {
+            final Set<String> beaconIds = client.getMonitoredBeaconIDs();
+            return new ClientRow(client.isInBackground(), beaconIds!=null ? new HashSet<String>(beaconIds) : new HashSet<String>());
+        }
+
+        BLEKitClient toClient( String packageName ) {
+            return new BLEKitClient(packageName, inBackground, new HashSet<String>(beaconIds));
+        }
+    }
+
+    private StateStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * @param context context
+     * @return store of the application
+     */
+    public static synchronized StateStore getInstance( Context context ) {
+        if( instance==null ) {
+            instance = new StateStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CLIENTS + " ( " +
+                KEY_PACKAGE + " TEXT PRIMARY KEY, " +
+                KEY_IN_BACKGROUND + " INTEGER NOT NULL )");
+        db.execSQL("CREATE TABLE " + TABLE_CLIENT_BEACONS + " ( " +
+                KEY_PACKAGE + " TEXT NOT NULL, " +
+                KEY_BEACON_ID + " TEXT NOT NULL, " +
+                "PRIMARY KEY (" + KEY_PACKAGE + ", " + KEY_BEACON_ID + ") )");
+        db.execSQL("CREATE TABLE " + TABLE_BEACON_STATES + " ( " +
+                KEY_BEACON_ID + " TEXT PRIMARY KEY, " +
+                KEY_PROXIMITY + " TEXT NOT NULL )");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        //first version
+    }
+
+    /**
+     * @return copies of all clients
+     */
+    public synchronized Set<BLEKitClient> getClients() {
+        load();
+        final Set<BLEKitClient> result = new HashSet<BLEKitClient>();
+        for( Map.Entry<String, ClientRow> entry : clients.entrySet() ) {
+            result.add(entry.getValue().toClient(entry.getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * Adds client, unless a client with the same package is stored already.
+     *
+     * @param client client
+     * @return <code>true</code> if the client was added
+     */
+    public synchronized boolean addClient( BLEKitClient client ) {
+        load();
+        if( clients.containsKey(client.getPackageName()) ) return false;
+        putClient(client);
+        return true;
+    }
+
+    /**
+     * Stores client, replacing client with the same package.
+     *
+     * @param client client
+     */
+    public synchronized void putClient( BLEKitClient client ) {
+        load();
+        final String packageName = client.getPackageName();
+        final ClientRow row = ClientRow.of(client);
+        clients.put(packageName, row);
+        write(new Runnable() {
+            @Override
+            public void run() {
+                final SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    writeClient(db, packageName, row);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes client.
+     *
+     * @param packageName package of the client
+     */
+    public synchronized void removeClient( final String packageName ) {
+        load();
+        if( clients.remove(packageName)==null ) return;
+        write(new Runnable() {
+            @Override
+            public void run() {
+                final SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    deleteClient(db, packageName);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces all clients.
+     *
+     * @param newClients clients
+     */
+    public synchronized void setClients( Collection<BLEKitClient> newClients ) {
+        load();
+        final Map<String, ClientRow> rows = new HashMap<String, ClientRow>();
+        for( BLEKitClient client : newClients ) {
+            rows.put(client.getPackageName(), ClientRow.of(client));
+        }
+        clients = rows;
+        final Map<String, ClientRow> snapshot = new HashMap<String, ClientRow>(rows);
+        write(new Runnable() {
+            @Override
+            public void run() {
+                final SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    db.delete(TABLE_CLIENTS, null, null);
+                    db.delete(TABLE_CLIENT_BEACONS, null, null);
+                    for( Map.Entry<String, ClientRow> entry : snapshot.entrySet() ) {
+                        writeClient(db, entry.getKey(), entry.getValue());
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds clients and beacon states right away, in a single transaction, eg. when migrating them from another store.
+     * The cache is updated only when the transaction succeeds.
+     *
+     * @param newClients clients to add or replace
+     * @param states proximities to add or replace by beacon identifier
+     * @throws SQLiteException thrown if rows cannot be written, nothing is stored then
+     */
+    public synchronized void importState( Collection<BLEKitClient> newClients, Map<String, Proximity> states ) throws SQLiteException {
+        load();
+        final Map<String, ClientRow> rows = new HashMap<String, ClientRow>();
+        for( BLEKitClient client : newClients ) {
+            rows.put(client.getPackageName(), ClientRow.of(client));
+        }
+        final Map<String, Proximity> validStates = new HashMap<String, Proximity>();
+        for( Map.Entry<String, Proximity> entry : states.entrySet() ) {
+            if( entry.getKey()!=null && entry.getValue()!=null ) {
+                validStates.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        final SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            for( Map.Entry<String, ClientRow> entry : rows.entrySet() ) {
+                writeClient(db, entry.getKey(), entry.getValue());
+            }
+            for( Map.Entry<String, Proximity> entry : validStates.entrySet() ) {
+                writeBeaconState(db, entry.getKey(), entry.getValue());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        clients.putAll(rows);
+        beaconStates.putAll(validStates);
+    }
+
+    /**
+     * @return copy of proximities of monitored beacons by beacon identifier
+     */
+    public synchronized Map<String, Proximity> getBeaconStates() {
+        load();
+        return new HashMap<String, Proximity>(beaconStates);
+    }
+
+    /**
+     * Stores proximity of a beacon.
+     *
+     * @param beaconId beacon identifier
+     * @param proximity proximity
+     */
+    public synchronized void putBeaconState( final String beaconId, final Proximity proximity ) {
+        if( beaconId==null || proximity==null ) return;
+        load();
+        if( beaconStates.put(beaconId, proximity)==proximity ) return;
+        write(new Runnable() {
+            @Override
+            public void run() {
+                writeBeaconState(getDatabase(), beaconId, proximity);
+            }
+        });
+    }
+
+    /**
+     * Removes proximity of a beacon.
+     *
+     * @param beaconId beacon identifier
+     */
+    public synchronized void removeBeaconState( final String beaconId ) {
+        load();
+        if( beaconStates.remove(beaconId)==null ) return;
+        write(new Runnable() {
+            @Override
+            public void run() {
+                getDatabase().delete(TABLE_BEACON_STATES, KEY_BEACON_ID + "=?", new String[] { beaconId });
+            }
+        });
+    }
+
+    /**
+     * Replaces proximities of all beacons, only rows that differ from the stored ones are written.
+     *
+     * @param states proximities by beacon identifier
+     */
+    public synchronized void setBeaconStates( Map<String, Proximity> states ) {
+        load();
+        final Map<String, Proximity> changed = new HashMap<String, Proximity>();
+        for( Map.Entry<String, Proximity> entry : states.entrySet() ) {
+            if( entry.getValue()!=null && entry.getValue()!=beaconStates.get(entry.getKey()) ) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        final Set<String> removed = new HashSet<String>();
+        for( String beaconId : beaconStates.keySet() ) {
+            if( states.get(beaconId)==null ) removed.add(beaconId);
+        }
+        if( changed.isEmpty() && removed.isEmpty() ) return;
+
+        beaconStates.putAll(changed);
+        beaconStates.keySet().removeAll(removed);
+        write(new Runnable() {
+            @Override
+            public void run() {
+                final SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    for( Map.Entry<String, Proximity> entry : changed.entrySet() ) {
+                        writeBeaconState(db, entry.getKey(), entry.getValue());
+                    }
+                    for( String beaconId : removed ) {
+                        db.delete(TABLE_BEACON_STATES, KEY_BEACON_ID + "=?", new String[] { beaconId });
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads all rows into the cache on first use.
+     */
+    private void load() {
+        if( clients!=null ) return;
+
+        final SQLiteDatabase db = getDatabase();
+        final Map<String, ClientRow> loadedClients = new HashMap<String, ClientRow>();
+        Cursor cursor = db.query(TABLE_CLIENTS, new String[] { KEY_PACKAGE, KEY_IN_BACKGROUND }, null, null, null, null, null);
+        try {
+            while( cursor.moveToNext() ) {
+                loadedClients.put(cursor.getString(0), new ClientRow(cursor.getInt(1)!=0, new HashSet<String>()));
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = db.query(TABLE_CLIENT_BEACONS, new String[] { KEY_PACKAGE, KEY_BEACON_ID }, null, null, null, null, null);
+        try {
+            while( cursor.moveToNext() ) {
+                final ClientRow row = loadedClients.get(cursor.getString(0));
+                if( row!=null ) row.beaconIds.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final Map<String, Proximity> loadedStates = new HashMap<String, Proximity>();
+        cursor = db.query(TABLE_BEACON_STATES, new String[] { KEY_BEACON_ID, KEY_PROXIMITY }, null, null, null, null, null);
+        try {
+            while( cursor.moveToNext() ) {
+                try {
+                    loadedStates.put(cursor.getString(0), Proximity.valueOf(cursor.getString(1)));
+                } catch (IllegalArgumentException e) {
+                    L.e( "Unknown proximity of " + cursor.getString(0), e );
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        clients = loadedClients;
+        beaconStates = loadedStates;
+    }
+
+    private static void writeClient( SQLiteDatabase db, String packageName, ClientRow row ) {
+        deleteClient(db, packageName);
+        final ContentValues values = new ContentValues();
+        values.put(KEY_PACKAGE, packageName);
+        values.put(KEY_IN_BACKGROUND, row.inBackground ? 1 : 0);
+        db.insert(TABLE_CLIENTS, null, values);
+        for( String beaconId : row.beaconIds ) {
+            final ContentValues beacon = new ContentValues();
+            beacon.put(KEY_PACKAGE, packageName);
+            beacon.put(KEY_BEACON_ID, beaconId);
+            db.insert(TABLE_CLIENT_BEACONS, null, beacon);
+        }
+    }
+
+    private static void deleteClient( SQLiteDatabase db, String packageName ) {
+        db.delete(TABLE_CLIENTS, KEY_PACKAGE + "=?", new String[] { packageName });
+        db.delete(TABLE_CLIENT_BEACONS, KEY_PACKAGE + "=?", new String[] { packageName });
+    }
+
+    private static void writeBeaconState( SQLiteDatabase db, String beaconId, Proximity proximity ) {
+        final ContentValues values = new ContentValues();
+        values.put(KEY_BEACON_ID, beaconId);
+        values.put(KEY_PROXIMITY, proximity.name());
+        db.replace(TABLE_BEACON_STATES, null, values);
+    }
+
+    /**
+     * Stores changes on the background thread, in order they were made.
+     */
+    private void write( final Runnable write ) {
+        getBackgroundHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.run();
+                } catch (RuntimeException e) {
+                    L.e( "Cannot store state", e );
+                }
+            }
+        });
+    }
+
+    private synchronized SQLiteDatabase getDatabase() {
+        if( database==null || !database.isOpen() ) {
+            database = getWritableDatabase();
+        }
+        return database;
+    }
+
+    private synchronized Handler getBackgroundHandler() {
+        if( backgroundHandler==null ) {
+            HandlerThread thread = new HandlerThread("StateStore");
+            thread.start();
+            backgroundHandler = new Handler(thread.getLooper());
+        }
+        return backgroundHandler;
+    }
+}
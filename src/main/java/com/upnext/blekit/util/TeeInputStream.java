@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input stream copying all bytes read from the underlying stream to an output stream, as they are read.
+ * Skipped bytes are read too, so that the copy is complete.
+ *
+ * Closing the stream does not close the output stream.
+ */
+final class TeeInputStream extends FilterInputStream {
+
+    private final OutputStream copy;
+
+    TeeInputStream( InputStream in, OutputStream copy ) {
+        super(in);
+        this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if( b!=-1 ) {
+            copy.write(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read( byte[] buffer, int offset, int count ) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if( read>0 ) {
+            copy.write(buffer, offset, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip( long count ) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(count, 4096)];
+        long skipped = 0;
+        while( skipped<count ) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, count-skipped));
+            if( read<=0 ) break;
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark( int readLimit ) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException( "mark/reset not supported" );
+    }
+
+    /**
+     * Reads the rest of the underlying stream, so that the copy is complete even if the reader stopped early.
+     *
+     * @throws IOException on read errors
+     */
+    void drain() throws IOException {
+        byte[] buffer = new byte[4096];
+        while( read(buffer, 0, buffer.length)!=-1 ) {
+            //copied by read
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import com.upnext.blekit.model.Beacon;
+import com.upnext.blekit.model.Trigger;
+import com.upnext.blekit.model.TriggerLimits;
+import com.upnext.blekit.model.Zone;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Enforces {@link com.upnext.blekit.model.TriggerLimits} of triggers.
+ *
+ * Every limited trigger has a token bucket of <code>max_count</code> tokens refilled continuously over <code>window</code>,
+ * together with the time it fired last for <code>min_interval</code>. Both checks are O(1) lookups by zone id and trigger id,
+ * as trigger ids are unique only within a zone. State is persisted in {@link com.upnext.blekit.util.BeaconsDB}, so limits
+ * hold across restarts, and pruned with {@link #prune(String, com.upnext.blekit.model.Zone)} when zones change.
+ */
+public class TriggerLimiter {
+
+    // Key of zones without an identifier
+    static final String NO_ZONE = "";
+
+    private final BeaconsDB beaconsDB;
+    private Map<String, Map<Long, State>> states;
+
+    /**
+     * State of a single trigger.
+     */
+    static class State {
+        long lastFired;
+        double tokens;
+        long lastRefill;
+
+        State(long lastFired, double tokens, long lastRefill) {
+            this.lastFired = lastFired;
+            this.tokens = tokens;
+            this.lastRefill = lastRefill;
+        }
+    }
+
+    public TriggerLimiter(BeaconsDB beaconsDB) {
+        this.beaconsDB = beaconsDB;
+    }
+
+    /**
+     * Checks whether trigger is allowed to fire now.
+     * Does not consume the limit, call {@link #fired(String, com.upnext.blekit.model.Trigger)} when the action was performed.
+     *
+     * @param zoneId identifier of the zone of trigger, may be <code>null</code>
+     * @param trigger trigger
+     * @return <code>true</code> if trigger has no limits or is within them
+     */
+    public synchronized boolean canFire( String zoneId, Trigger trigger ) {
+        final TriggerLimits limits = trigger.limits;
+        if( !isLimited(limits) ) return true;
+
+        final Map<Long, State> zoneStates = getStates().get(zoneKey(zoneId));
+        final State state = zoneStates!=null ? zoneStates.get(trigger.id) : null;
+        if( state==null ) return true;
+
+        final long now = new Date().getTime();
+        if( limits.min_interval>0 && now-state.lastFired<limits.min_interval*1000 && now>=state.lastFired ) {
+            return false;
+        }
+        if( limits.max_count>0 && limits.window>0 ) {
+            refill(state, limits, now);
+            return state.tokens>=1;
+        }
+        return true;
+    }
+
+    /**
+     * Records firing of trigger, consuming its limit.
+     *
+     * @param zoneId identifier of the zone of trigger, may be <code>null</code>
+     * @param trigger trigger
+     */
+    public synchronized void fired( String zoneId, Trigger trigger ) {
+        final TriggerLimits limits = trigger.limits;
+        if( !isLimited(limits) ) return;
+
+        final String key = zoneKey(zoneId);
+        Map<Long, State> zoneStates = getStates().get(key);
+        if( zoneStates==null ) {
+            zoneStates = new HashMap<Long, State>();
+            getStates().put(key, zoneStates);
+        }
+
+        final long now = new Date().getTime();
+        State state = zoneStates.get(trigger.id);
+        if( state==null ) {
+            state = new State(0, limits.max_count, now);
+            zoneStates.put(trigger.id, state);
+        }
+        refill(state, limits, now);
+        state.lastFired = now;
+        if( limits.max_count>0 && limits.window>0 ) {
+            state.tokens = Math.max(0, state.tokens-1);
+        }
+        beaconsDB.saveTriggerState(key, trigger.id, state);
+    }
+
+    /**
+     * Removes states of triggers that are no longer part of a zone.
+     *
+     * @param zoneId zone identifier, may be <code>null</code>
+     * @param zone new version of the zone or <code>null</code> if the zone was removed
+     */
+    public synchronized void prune( String zoneId, Zone zone ) {
+        final String key = zoneKey(zoneId);
+        final Map<Long, State> zoneStates = getStates().get(key);
+        if( zoneStates==null ) return;
+
+        final Set<Long> triggerIds = new HashSet<Long>();
+        if( zone!=null && zone.beacons!=null ) {
+            for( Beacon beacon : zone.beacons ) {
+                if( beacon.triggers==null ) continue;
+                for( Trigger trigger : beacon.triggers ) {
+                    triggerIds.add(trigger.id);
+                }
+            }
+        }
+
+        final List<Long> removed = new ArrayList<Long>();
+        for( Iterator<Long> it = zoneStates.keySet().iterator(); it.hasNext(); ) {
+            final Long triggerId = it.next();
+            if( !triggerIds.contains(triggerId) ) {
+                removed.add(triggerId);
+                it.remove();
+            }
+        }
+        if( zoneStates.isEmpty() ) {
+            getStates().remove(key);
+        }
+        if( !removed.isEmpty() ) {
+            beaconsDB.deleteTriggerStates(key, removed);
+        }
+    }
+
+    private static String zoneKey( String zoneId ) {
+        return zoneId!=null ? zoneId : NO_ZONE;
+    }
+
+    private static boolean isLimited( TriggerLimits limits ) {
+        return limits!=null && (limits.min_interval>0 || (limits.max_count>0 && limits.window>0));
+    }
+
+    private static void refill( State state, TriggerLimits limits, long now ) {
+        if( limits.max_count<=0 || limits.window<=0 ) return;
+
+        //clock set back, start refilling from now
+        final long elapsed = Math.max(0, now-state.lastRefill);
+        final double rate = (double) limits.max_count / (limits.window*1000);
+        state.tokens = Math.min(limits.max_count, state.tokens + elapsed*rate);
+        state.lastRefill = now;
+    }
+
+    private Map<String, Map<Long, State>> getStates() {
+        if( states==null ) {
+            states = beaconsDB.loadTriggerStates();
+            if( states==null ) {
+                states = new HashMap<String, Map<Long, State>>();
+            }
+        }
+        return states;
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import android.content.Context;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.upnext.blekit.model.Zone;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of the last zone configuration.
+ *
+ * Zones are parsed straight from the stream they are read from, while the raw bytes are copied to the cache file
+ * in the same pass. The cache file is replaced only when the new zone was parsed successfully, so an invalid
+ * configuration never overwrites the last valid one.
+ *
+ * Every cached zone is accompanied by a {@link com.upnext.blekit.util.ZoneSnapshot}, so that the zone can be loaded
+ * on process start without parsing the JSON.
+ *
+ * Servers versioning their zones may respond with a delta instead of the whole zone, see {@link #DELTA_CONTENT_TYPE}.
+ *
+ * Together with the zone, the cache keeps its url and HTTP validators (ETag and Last-Modified),
+ * used for conditional requests revalidating the zone, and the time it was last fetched or revalidated.
+ *
+ * Replaces the <code>last_zone_json</code> preference, which is migrated to the cache file on first read.
+ *
+ * Zones added with {@link com.upnext.blekit.BLEKit#addZones(java.util.Collection)} are kept in a separate file,
+ * so that they are available when the process is restarted to handle a beacon event.
+ */
+public class ZoneCache {
+
+    /**
+     * Content type of a zone delta:
+     * <pre>
+     * {
+     *     "base_version": 3,
+     *     "version": 4,
+     *     "patch": [ { "op": "replace", "path": "/beacons/0/name", "value": "Entrance" } ]
+     * }
+     * </pre>
+     * where <code>patch</code> is a JSON Patch (RFC 6902) transforming zone of <code>base_version</code> into zone of <code>version</code>.
+     */
+    public static final String DELTA_CONTENT_TYPE = "application/json-patch+json";
+
+    private static final String FILE_NAME = "blekit_zone.json";
+    private static final String SNAPSHOT_FILE_NAME = "blekit_zone.snapshot";
+    private static final String ADDED_ZONES_FILE_NAME = "blekit_added_zones.json";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Context context;
+    private final File file;
+    private final File snapshotFile;
+    private final File addedZonesFile;
+    private boolean migrated;
+
+    private boolean validatorsLoaded;
+    private String url;
+    private String etag;
+    private String lastModified;
+    private long fetchedAt;
+
+    public ZoneCache( Context context ) {
+        this.context = context;
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+        this.snapshotFile = new File(context.getFilesDir(), SNAPSHOT_FILE_NAME);
+        this.addedZonesFile = new File(context.getFilesDir(), ADDED_ZONES_FILE_NAME);
+    }
+
+    /**
+     * Maps snapshot of the cached zone.
+     *
+     * @return snapshot or <code>null</code> if there is no zone cached or its snapshot is missing or out of date
+     */
+    public ZoneSnapshot readSnapshot() {
+        migrate();
+        if( !file.exists() ) return null;
+
+        try {
+            final ZoneSnapshot snapshot = ZoneSnapshot.map(snapshotFile);
+            if( snapshot!=null && snapshot.isSnapshotOf(file) ) {
+                return snapshot;
+            }
+        } catch (FileNotFoundException e) {
+            //not written yet
+        } catch (IOException e) {
+            L.e( "Error reading zone snapshot", e );
+        }
+        return null;
+    }
+
+    /**
+     * Reads the cached zone from JSON, writing its snapshot if it is out of date.
+     *
+     * @return zone or <code>null</code> if no zone was cached
+     */
+    public Zone read() {
+        migrate();
+
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            final Zone zone = JsonParser.getReader(Zone.class).readValue(in);
+            if( zone!=null && readSnapshot()==null ) {
+                writeSnapshot(zone);
+            }
+            return zone;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            L.e( "Error reading cached zone", e );
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Parses zone from given stream and caches its raw JSON.
+     *
+     * @param in stream with zone JSON, not closed by this method
+     * @return parsed zone
+     * @throws IOException on read or parse errors, the cache is left unchanged then
+     */
+    public Zone store( InputStream in ) throws IOException {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE);
+        boolean stored = false;
+        try {
+            final Zone zone = parse(in, out);
+            out.close();
+            if( zone!=null ) {
+                commit(tmpFile, zone);
+                stored = true;
+            }
+            return zone;
+        } finally {
+            closeQuietly(out);
+            if( !stored ) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Parses zone from given stream, copying all its bytes to given output stream.
+     *
+     * @param in stream with zone JSON, not closed by this method
+     * @param copy stream receiving the raw JSON, not closed by this method
+     * @return parsed zone
+     * @throws IOException on read, write or parse errors
+     */
+    static Zone parse( InputStream in, OutputStream copy ) throws IOException {
+        final TeeInputStream tee = new TeeInputStream(in, copy);
+        final Zone zone = JsonParser.getReader(Zone.class).readValue(tee);
+        //the parser stops at the end of the zone object, keep trailing bytes so the cache matches the source
+        tee.drain();
+        return zone;
+    }
+
+    /**
+     * Parses zone or zone delta from given stream and caches the resulting zone.
+     *
+     * @param in stream with zone JSON or zone delta, not closed by this method
+     * @param contentType content type of the stream, {@link #DELTA_CONTENT_TYPE} for a delta
+     * @return parsed zone or <code>null</code> if the delta does not apply to the cached zone
+     * @throws IOException on read or parse errors or if the delta is invalid, the cache is left unchanged then
+     */
+    public Zone update( InputStream in, String contentType ) throws IOException {
+        if( contentType==null || !contentType.startsWith(DELTA_CONTENT_TYPE) ) {
+            return store(in);
+        }
+
+        final JsonNode delta = JsonParser.getObjectMapper().readTree(in);
+        if( delta==null || !file.exists() ) return null;
+
+        JsonNode zoneTree = JsonParser.getObjectMapper().readTree(file);
+        final long baseVersion = delta.path("base_version").asLong();
+        if( zoneTree==null || zoneTree.path("version").asLong()!=baseVersion ) {
+            L.d( "delta of version " + baseVersion + " does not apply to cached zone" );
+            return null;
+        }
+
+        zoneTree = JsonPatch.apply(zoneTree, delta.get("patch"));
+        if( !zoneTree.isObject() ) {
+            throw new IOException( "Patched zone is not an object" );
+        }
+        if( delta.has("version") ) {
+            ((ObjectNode) zoneTree).put("version", delta.get("version").asLong());
+        }
+
+        final Zone zone = JsonParser.getReader(Zone.class).readValue(zoneTree);
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        boolean stored = false;
+        try {
+            JsonParser.getObjectMapper().writeValue(tmpFile, zoneTree);
+            commit(tmpFile, zone);
+            stored = true;
+        } finally {
+            if( !stored ) {
+                tmpFile.delete();
+            }
+        }
+        return zone;
+    }
+
+    /**
+     * Parses zone from given JSON and caches it.
+     *
+     * @param zoneJson zone as plain JSON
+     * @return parsed zone or <code>null</code> if JSON could not be parsed
+     */
+    public Zone store( String zoneJson ) {
+        if( zoneJson==null ) return null;
+        try {
+            return store(new ByteArrayInputStream(zoneJson.getBytes("UTF-8")));
+        } catch (IOException e) {
+            L.e( "Error parsing zone", e );
+            return null;
+        }
+    }
+
+    /**
+     * Replaces cached added zones.
+     *
+     * @param zones added zones, an empty collection removes the cache file
+     */
+    public void storeAddedZones( Collection<Zone> zones ) {
+        if( zones.isEmpty() ) {
+            addedZonesFile.delete();
+            return;
+        }
+
+        final File tmpFile = new File(addedZonesFile.getPath() + ".tmp");
+        try {
+            JsonParser.getObjectMapper().writeValue(tmpFile, new ArrayList<Zone>(zones));
+            if( !tmpFile.renameTo(addedZonesFile) ) {
+                throw new IOException( "Could not rename " + tmpFile );
+            }
+        } catch (IOException e) {
+            L.e( "Error caching added zones", e );
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Reads cached added zones.
+     *
+     * @return added zones, empty list if there are none
+     */
+    public List<Zone> readAddedZones() {
+        if( !addedZonesFile.exists() ) return new ArrayList<Zone>();
+
+        try {
+            final Zone[] zones = JsonParser.getReader(Zone[].class).readValue(addedZonesFile);
+            return zones!=null ? Arrays.asList(zones) : new ArrayList<Zone>();
+        } catch (IOException e) {
+            L.e( "Error reading added zones", e );
+            return new ArrayList<Zone>();
+        }
+    }
+
+    /**
+     * Returns headers of a conditional request for the cached zone.
+     *
+     * @param url url the zone is fetched from
+     * @return headers, empty if the cached zone was not fetched from given url or has no validators
+     */
+    public synchronized Map<String, String> getConditionalHeaders( String url ) {
+        loadValidators();
+        final Map<String, String> headers = new HashMap<String, String>();
+        if( url==null || !url.equals(this.url) || !file.exists() ) return headers;
+
+        if( etag!=null ) {
+            headers.put("If-None-Match", etag);
+        }
+        if( lastModified!=null ) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        return headers;
+    }
+
+    /**
+     * Checks whether the cached zone was fetched from given url within its time to live.
+     *
+     * @param url url the zone is fetched from
+     * @param ttl time to live of the zone in seconds
+     * @return <code>true</code> if the zone does not need revalidation yet
+     */
+    public synchronized boolean isFresh( String url, long ttl ) {
+        final long age = getAge(url);
+        return age>=0 && age<ttl*1000;
+    }
+
+    /**
+     * Returns time since the cached zone was fetched or revalidated.
+     *
+     * @param url url the zone is fetched from
+     * @return age in milliseconds or -1 if the cached zone was not fetched from given url
+     */
+    public synchronized long getAge( String url ) {
+        loadValidators();
+        if( url==null || !url.equals(this.url) || fetchedAt<=0 ) return -1;
+
+        final long age = System.currentTimeMillis() - fetchedAt;
+        //clock set back
+        return age<0 ? -1 : age;
+    }
+
+    /**
+     * Records that the cached zone was fetched from given url.
+     *
+     * @param url url the zone was fetched from
+     * @param etag value of ETag response header, may be <code>null</code>
+     * @param lastModified value of Last-Modified response header, may be <code>null</code>
+     */
+    public synchronized void setFetched( String url, String etag, String lastModified ) {
+        saveValidators(url, etag, lastModified, System.currentTimeMillis());
+    }
+
+    /**
+     * Records that server confirmed the cached zone is up to date (<code>304 Not Modified</code>).
+     */
+    public synchronized void setRevalidated() {
+        loadValidators();
+        fetchedAt = System.currentTimeMillis();
+        BeaconPreferences.setZoneFetchedAt(context, fetchedAt);
+    }
+
+    private void loadValidators() {
+        if( validatorsLoaded ) return;
+        validatorsLoaded = true;
+        url = BeaconPreferences.getZoneUrl(context);
+        etag = BeaconPreferences.getZoneETag(context);
+        lastModified = BeaconPreferences.getZoneLastModified(context);
+        fetchedAt = BeaconPreferences.getZoneFetchedAt(context);
+    }
+
+    private void saveValidators( String url, String etag, String lastModified, long fetchedAt ) {
+        validatorsLoaded = true;
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.fetchedAt = fetchedAt;
+        BeaconPreferences.setZoneValidators(context, url, etag, lastModified, fetchedAt);
+    }
+
+    private void commit( File tmpFile, Zone zone ) throws IOException {
+        //the old snapshot must not be taken for the new zone if writing the new one fails
+        snapshotFile.delete();
+        if( !tmpFile.renameTo(file) ) {
+            throw new IOException( "Could not rename " + tmpFile );
+        }
+        //validators of the previous zone do not apply, they are set again if the zone was fetched
+        synchronized (this) {
+            saveValidators(null, null, null, 0);
+        }
+        writeSnapshot(zone);
+    }
+
+    private void writeSnapshot( Zone zone ) {
+        try {
+            ZoneSnapshot.write(zone, snapshotFile, file);
+        } catch (IOException e) {
+            //JSON is still cached, snapshot will be written on next read
+            L.e( "Error writing zone snapshot", e );
+        }
+    }
+
+    private void migrate() {
+        if( migrated ) return;
+        migrated = true;
+
+        final String zoneJson = BeaconPreferences.getLastZoneJson(context);
+        if( zoneJson==null ) return;
+
+        if( file.exists() || store(zoneJson)!=null ) {
+            BeaconPreferences.setLastZoneJson(context, null);
+        }
+    }
+
+    private static void closeQuietly( Closeable closeable ) {
+        if( closeable==null ) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import com.upnext.blekit.model.Zone;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spatial index of zones, used for finding zones near a location.
+ *
+ * The globe is divided into a grid of {@link #CELL_DEGREES} cells. A zone is added to every cell its reach
+ * (the zone radius extended by the activation distance) overlaps, so a lookup checks only zones of a single cell.
+ * Zones reaching more than {@link #MAX_CELLS} cells are checked on every lookup, zones without location are always near.
+ *
+ * Zone format does not define the unit of {@link com.upnext.blekit.model.Zone#radius}, it is given to the index
+ * (see {@link #getRadiusUnit()}), meters by default.
+ */
+public final class ZoneIndex {
+
+    /**
+     * Default distance in kilometers from the zone boundary within which a zone is near.
+     */
+    public static final double DEFAULT_ACTIVATION_DISTANCE = 1.0;
+
+    /**
+     * Radius unit of zones with radius in meters, in kilometers.
+     */
+    public static final double RADIUS_METERS = 0.001;
+
+    /**
+     * Radius unit of zones with radius in kilometers, in kilometers.
+     */
+    public static final double RADIUS_KILOMETERS = 1.0;
+
+    /**
+     * Default radius unit, {@link #RADIUS_METERS}.
+     */
+    public static final double DEFAULT_RADIUS_UNIT = RADIUS_METERS;
+
+    /**
+     * Size of a grid cell in degrees.
+     */
+    static final double CELL_DEGREES = 0.1;
+
+    /**
+     * Maximum number of cells a zone is added to.
+     */
+    static final int MAX_CELLS = 1024;
+
+    private static final int ROWS = (int) Math.round(180 / CELL_DEGREES);
+    private static final int COLUMNS = (int) Math.round(360 / CELL_DEGREES);
+    private static final double EARTH_RADIUS = 6371.0;
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS / 180;
+
+    private final double activationDistance;
+    private final double radiusUnit;
+    private final Map<String, Zone> zones = new LinkedHashMap<String, Zone>();
+    private final Map<Integer, List<Zone>> cells = new HashMap<Integer, List<Zone>>();
+    private final List<Zone> wide = new ArrayList<Zone>();
+    private final List<Zone> unlocated = new ArrayList<Zone>();
+
+    /**
+     * Creates index with {@link #DEFAULT_ACTIVATION_DISTANCE} and {@link #DEFAULT_RADIUS_UNIT}.
+     */
+    public ZoneIndex() {
+        this(DEFAULT_ACTIVATION_DISTANCE);
+    }
+
+    /**
+     * Creates index with {@link #DEFAULT_RADIUS_UNIT}.
+     *
+     * @param activationDistance distance in kilometers from the zone boundary within which a zone is near
+     */
+    public ZoneIndex( double activationDistance ) {
+        this(activationDistance, DEFAULT_RADIUS_UNIT);
+    }
+
+    /**
+     * @param activationDistance distance in kilometers from the zone boundary within which a zone is near
+     * @param radiusUnit unit of zone radius in kilometers, eg. {@link #RADIUS_METERS}
+     * @throws IllegalArgumentException thrown if the radius unit is not positive
+     */
+    public ZoneIndex( double activationDistance, double radiusUnit ) throws IllegalArgumentException {
+        if( !(radiusUnit>0) ) {
+            throw new IllegalArgumentException( "Radius unit must be positive: " + radiusUnit );
+        }
+        this.activationDistance = Math.max(0, activationDistance);
+        this.radiusUnit = radiusUnit;
+    }
+
+    /**
+     * @return distance in kilometers from the zone boundary within which a zone is near
+     */
+    public double getActivationDistance() {
+        return activationDistance;
+    }
+
+    /**
+     * @return unit of zone radius in kilometers
+     */
+    public double getRadiusUnit() {
+        return radiusUnit;
+    }
+
+    /**
+     * Adds zone to the index, replacing zone with the same identifier.
+     *
+     * @param zone zone with an identifier
+     * @return replaced zone or <code>null</code>
+     */
+    public synchronized Zone put( Zone zone ) {
+        if( zone==null || zone.id==null ) return null;
+
+        final Zone previous = remove(zone.id);
+        zones.put(zone.id, zone);
+
+        if( zone.location==null ) {
+            unlocated.add(zone);
+            return previous;
+        }
+
+        final double reach = reach(zone);
+        final double latitude = zone.location.latitude;
+        final double longitude = zone.location.longitude;
+        final double latitudeSpan = reach / KM_PER_DEGREE;
+        final int minRow = row(latitude - latitudeSpan);
+        final int maxRow = row(latitude + latitudeSpan);
+
+        //longitude degrees are shortest at the row farthest from the equator
+        final double maxLatitude = Math.min(90, Math.max(Math.abs(latitude - latitudeSpan), Math.abs(latitude + latitudeSpan)));
+        final double cos = Math.cos(Math.toRadians(maxLatitude));
+        final int columnSpan = cos<=0 ? COLUMNS : (int) Math.min(COLUMNS, Math.ceil(reach / (KM_PER_DEGREE*cos) / CELL_DEGREES));
+        final int column = column(longitude);
+        final int columns = Math.min(COLUMNS, 2*columnSpan + 1);
+
+        if( (long) (maxRow-minRow+1) * columns > MAX_CELLS ) {
+            wide.add(zone);
+            return previous;
+        }
+
+        for( int row=minRow; row<=maxRow; row++ ) {
+            for( int i=0; i<columns; i++ ) {
+                final int key = row*COLUMNS + wrap(column - columnSpan + i);
+                List<Zone> cell = cells.get(key);
+                if( cell==null ) {
+                    cell = new ArrayList<Zone>(1);
+                    cells.put(key, cell);
+                }
+                cell.add(zone);
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * Removes zone from the index.
+     *
+     * @param id zone identifier
+     * @return removed zone or <code>null</code> if there was no zone with given identifier
+     */
+    public synchronized Zone remove( String id ) {
+        final Zone zone = zones.remove(id);
+        if( zone==null ) return null;
+
+        if( !unlocated.remove(zone) && !wide.remove(zone) ) {
+            final Iterator<List<Zone>> iterator = cells.values().iterator();
+            while( iterator.hasNext() ) {
+                final List<Zone> cell = iterator.next();
+                if( cell.remove(zone) && cell.isEmpty() ) {
+                    iterator.remove();
+                }
+            }
+        }
+        return zone;
+    }
+
+    /**
+     * Removes all zones.
+     */
+    public synchronized void clear() {
+        zones.clear();
+        cells.clear();
+        wide.clear();
+        unlocated.clear();
+    }
+
+    /**
+     * Returns zones near given location, zones without location first.
+     *
+     * @param latitude latitude
+     * @param longitude longitude
+     * @return zones whose boundary is within the activation distance of the location and zones without location
+     */
+    public synchronized List<Zone> query( double latitude, double longitude ) {
+        final List<Zone> near = new ArrayList<Zone>(unlocated);
+        final List<Zone> cell = cells.get(row(latitude)*COLUMNS + column(longitude));
+        if( cell!=null ) {
+            for( Zone zone : cell ) {
+                if( isNear(zone, latitude, longitude) ) near.add(zone);
+            }
+        }
+        for( Zone zone : wide ) {
+            if( isNear(zone, latitude, longitude) ) near.add(zone);
+        }
+        return near;
+    }
+
+    /**
+     * @return zones without location
+     */
+    public synchronized List<Zone> getUnlocated() {
+        return new ArrayList<Zone>(unlocated);
+    }
+
+    /**
+     * @return all zones, in order they were added
+     */
+    public synchronized List<Zone> getZones() {
+        return new ArrayList<Zone>(zones.values());
+    }
+
+    /**
+     * @param id zone identifier
+     * @return zone with given identifier or <code>null</code>
+     */
+    public synchronized Zone get( String id ) {
+        return zones.get(id);
+    }
+
+    /**
+     * @return number of zones
+     */
+    public synchronized int size() {
+        return zones.size();
+    }
+
+    /**
+     * @return <code>true</code> if there are no zones
+     */
+    public synchronized boolean isEmpty() {
+        return zones.isEmpty();
+    }
+
+    /**
+     * Computes great-circle distance between two locations.
+     *
+     * @param latitude1 latitude of the first location
+     * @param longitude1 longitude of the first location
+     * @param latitude2 latitude of the second location
+     * @param longitude2 longitude of the second location
+     * @return distance in kilometers
+     */
+    public static double distance( double latitude1, double longitude1, double latitude2, double longitude2 ) {
+        final double dLat = Math.toRadians(latitude2 - latitude1);
+        final double dLon = Math.toRadians(longitude2 - longitude1);
+        final double a = Math.sin(dLat/2) * Math.sin(dLat/2)
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * Math.sin(dLon/2) * Math.sin(dLon/2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private boolean isNear( Zone zone, double latitude, double longitude ) {
+        return distance(zone.location.latitude, zone.location.longitude, latitude, longitude) <= reach(zone);
+    }
+
+    private double reach( Zone zone ) {
+        return Math.max(0, zone.radius) * radiusUnit + activationDistance;
+    }
+
+    private static int row( double latitude ) {
+        return Math.max(0, Math.min(ROWS-1, (int) Math.floor((latitude + 90) / CELL_DEGREES)));
+    }
+
+    private static int column( double longitude ) {
+        return wrap((int) Math.floor((longitude + 180) / CELL_DEGREES));
+    }
+
+    private static int wrap( int column ) {
+        return ((column % COLUMNS) + COLUMNS) % COLUMNS;
+    }
+}
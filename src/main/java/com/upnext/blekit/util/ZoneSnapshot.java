@@ -0,0 +1,579 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.upnext.blekit.model.Action;
+import com.upnext.blekit.model.Beacon;
+import com.upnext.blekit.model.Condition;
+import com.upnext.blekit.model.Location;
+import com.upnext.blekit.model.Trigger;
+import com.upnext.blekit.model.TriggerLimits;
+import com.upnext.blekit.model.Zone;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Binary snapshot of a zone, memory-mapped when read.
+ *
+ * Reading a snapshot decodes only its header, beacons are decoded when they are first accessed - either by identifier
+ * through {@link #getBeacons(String)}, which binary searches a sorted index, or through the beacon list of
+ * {@link #getZone()}. Cost of reading a snapshot does not depend on the size of the zone.
+ * Beacon identifiers, numbers of triggers and tx power are kept in the index, so that the beacon list sent to the service
+ * is built without decoding beacon records (see {@link #getBeaconIds()}).
+ *
+ * Layout (version 4), all offsets are absolute:
+ * <pre>
+ * int magic, int version, long source length, long source modification time
+ * zone header: id, name, version, ttl, radius, location
+ * int beacon count, int[beacon count] record offsets in zone order
+ * int key count, (int key offset, int beacon index, int trigger count, int tx power or 0)[key count] sorted by lowercase beacon id
+ * keys
+ * beacon records
+ * </pre>
+ * Strings are written as an int length (-1 for <code>null</code>) followed by UTF-8 bytes,
+ * parameters of actions and conditions as JSON strings.
+ */
+public final class ZoneSnapshot {
+
+    private static final int MAGIC = 0x424b5a53;
+    private static final int FORMAT_VERSION = 4;
+    private static final int KEY_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final long sourceLength;
+    private final long sourceModified;
+    private final Zone zone;
+    private final int beaconCount;
+    private final int recordsTable;
+    private final int keyCount;
+    private final int keysTable;
+    private final Beacon[] beacons;
+
+    private ZoneSnapshot(ByteBuffer buffer) {
+        this.buffer = buffer;
+        sourceLength = buffer.getLong(8);
+        sourceModified = buffer.getLong(16);
+
+        Reader reader = new Reader(buffer, 24);
+        zone = new Zone();
+        zone.id = reader.readString();
+        zone.name = reader.readString();
+        zone.version = reader.readLong();
+        zone.ttl = reader.readLong();
+        zone.radius = reader.readDouble();
+        zone.location = reader.readLocation();
+
+        beaconCount = reader.readInt();
+        recordsTable = reader.position();
+        keyCount = buffer.getInt(recordsTable + 4*beaconCount);
+        keysTable = recordsTable + 4*beaconCount + 4;
+        beacons = new Beacon[beaconCount];
+        zone.beacons = new BeaconList();
+    }
+
+    /**
+     * Writes snapshot of given zone.
+     *
+     * @param zone zone
+     * @param file snapshot file, replaced only if the whole snapshot was written
+     * @param source file the zone was read from, its length and modification time are recorded in the snapshot
+     * @throws IOException on write errors
+     */
+    public static void write( Zone zone, File file, File source ) throws IOException {
+        final List<Beacon> zoneBeacons = zone.beacons!=null ? zone.beacons : Collections.<Beacon>emptyList();
+
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final Writer headerWriter = new Writer(header);
+        headerWriter.writeInt(MAGIC);
+        headerWriter.writeInt(FORMAT_VERSION);
+        headerWriter.writeLong(source.length());
+        headerWriter.writeLong(source.lastModified());
+        headerWriter.writeString(zone.id);
+        headerWriter.writeString(zone.name);
+        headerWriter.writeLong(zone.version);
+        headerWriter.writeLong(zone.ttl);
+        headerWriter.writeDouble(zone.radius);
+        headerWriter.writeLocation(zone.location);
+        headerWriter.writeInt(zoneBeacons.size());
+        headerWriter.flush();
+
+        final List<Key> keys = new ArrayList<Key>();
+        for( int i=0; i<zoneBeacons.size(); i++ ) {
+            final Beacon beacon = zoneBeacons.get(i);
+            if( beacon!=null && beacon.id!=null ) {
+                keys.add(new Key(beacon.id.toLowerCase(Locale.US), i,
+                        beacon.triggers!=null ? beacon.triggers.size() : 0, beacon.tx_power!=null ? beacon.tx_power : 0));
+            }
+        }
+        Collections.sort(keys, new Comparator<Key>() {
+            @Override
+            public int compare(Key lhs, Key rhs) {
+                return lhs.key.compareTo(rhs.key);
+            }
+        });
+
+        final ByteArrayOutputStream keysBlob = new ByteArrayOutputStream();
+        final Writer keysWriter = new Writer(keysBlob);
+        final int keysStart = header.size() + 4*zoneBeacons.size() + 4 + KEY_SIZE*keys.size();
+        for( Key key : keys ) {
+            key.offset = keysStart + keysWriter.size();
+            keysWriter.writeString(key.key);
+        }
+        keysWriter.flush();
+
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final Writer recordsWriter = new Writer(records);
+        final int recordsStart = keysStart + keysBlob.size();
+        final int[] recordOffsets = new int[zoneBeacons.size()];
+        for( int i=0; i<zoneBeacons.size(); i++ ) {
+            recordOffsets[i] = recordsStart + recordsWriter.size();
+            recordsWriter.writeBeacon(zoneBeacons.get(i));
+        }
+        recordsWriter.flush();
+
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        boolean written = false;
+        try {
+            header.writeTo(out);
+            for( int offset : recordOffsets ) {
+                out.writeInt(offset);
+            }
+            out.writeInt(keys.size());
+            for( Key key : keys ) {
+                out.writeInt(key.offset);
+                out.writeInt(key.index);
+                out.writeInt(key.triggers);
+                out.writeInt(key.txPower);
+            }
+            keysBlob.writeTo(out);
+            records.writeTo(out);
+            out.close();
+            if( !tmpFile.renameTo(file) ) {
+                throw new IOException( "Could not rename " + tmpFile );
+            }
+            written = true;
+        } finally {
+            if( !written ) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Maps snapshot file into memory.
+     *
+     * @param file snapshot file
+     * @return snapshot or <code>null</code> if the file is not a snapshot of supported version
+     * @throws IOException on read errors, {@link java.io.FileNotFoundException} if there is no snapshot
+     */
+    public static ZoneSnapshot map( File file ) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            if( channel.size()<24 || channel.size()>Integer.MAX_VALUE ) return null;
+            //mapping stays valid after the channel is closed
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if( buffer.getInt(0)!=MAGIC || buffer.getInt(4)!=FORMAT_VERSION ) return null;
+            return new ZoneSnapshot(buffer);
+        } catch (RuntimeException e) {
+            //truncated or corrupted header
+            throw new IOException( "Invalid zone snapshot " + file, e );
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Checks whether this snapshot was written for the current contents of given file.
+     *
+     * @param source file the zone was read from
+     * @return <code>true</code> if the file did not change since the snapshot was written
+     */
+    public boolean isSnapshotOf( File source ) {
+        return source.length()==sourceLength && source.lastModified()==sourceModified;
+    }
+
+    /**
+     * Returns the zone. Its beacon list is read-only and decodes beacons on access.
+     *
+     * @return zone
+     */
+    public Zone getZone() {
+        return zone;
+    }
+
+    /**
+     * Returns beacons with given identifier, decoding them if needed.
+     *
+     * @param beaconId beacon identifier, case insensitive
+     * @return beacons, empty list if there are none
+     */
+    public synchronized List<Beacon> getBeacons( String beaconId ) {
+        final String key = beaconId!=null ? beaconId.toLowerCase(Locale.US) : null;
+        final int first = findFirst(key);
+        if( first<0 ) return Collections.emptyList();
+
+        final List<Beacon> result = new ArrayList<Beacon>(1);
+        for( int i=first; i<keyCount && keyAt(i).equals(key); i++ ) {
+            result.add(beaconAt(buffer.getInt(keysTable + KEY_SIZE*i + 4)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns identifiers of beacons from the index, without decoding beacons.
+     *
+     * @return distinct lowercase beacon identifiers, sorted
+     */
+    public List<String> getBeaconIds() {
+        final List<String> ids = new ArrayList<String>(keyCount);
+        String previous = null;
+        for( int i=0; i<keyCount; i++ ) {
+            final String key = keyAt(i);
+            if( !key.equals(previous) ) {
+                ids.add(key);
+            }
+            previous = key;
+        }
+        return ids;
+    }
+
+    /**
+     * Returns number of triggers of beacons with given identifier from the index, without decoding beacons.
+     *
+     * @param beaconId beacon identifier, case insensitive
+     * @return number of triggers
+     */
+    public int getTriggerCount( String beaconId ) {
+        final String key = beaconId!=null ? beaconId.toLowerCase(Locale.US) : null;
+        int count = 0;
+        for( int i=findFirst(key); i>=0 && i<keyCount && keyAt(i).equals(key); i++ ) {
+            count += buffer.getInt(keysTable + KEY_SIZE*i + 8);
+        }
+        return count;
+    }
+
+    /**
+     * Returns configured RSSI at 1 meter of beacons with given identifier from the index, without decoding beacons.
+     *
+     * @param beaconId beacon identifier, case insensitive
+     * @return tx power of the first beacon which has one, 0 if none has
+     */
+    public int getTxPower( String beaconId ) {
+        final String key = beaconId!=null ? beaconId.toLowerCase(Locale.US) : null;
+        for( int i=findFirst(key); i>=0 && i<keyCount && keyAt(i).equals(key); i++ ) {
+            final int txPower = buffer.getInt(keysTable + KEY_SIZE*i + 12);
+            if( txPower!=0 ) return txPower;
+        }
+        return 0;
+    }
+
+    /**
+     * Binary searches the index.
+     *
+     * @return position of the first key equal to given one, -1 if there is none
+     */
+    private int findFirst( String key ) {
+        if( key==null ) return -1;
+
+        int low = 0;
+        int high = keyCount-1;
+        while( low<=high ) {
+            final int middle = (low+high) >>> 1;
+            final int compare = keyAt(middle).compareTo(key);
+            if( compare<0 ) {
+                low = middle+1;
+            } else if( compare>0 ) {
+                high = middle-1;
+            } else {
+                //same identifiers are adjacent, in zone order
+                int first = middle;
+                while( first>0 && keyAt(first-1).equals(key) ) first--;
+                return first;
+            }
+        }
+        return -1;
+    }
+
+    private String keyAt( int i ) {
+        return new Reader(buffer, buffer.getInt(keysTable + KEY_SIZE*i)).readString();
+    }
+
+    private synchronized Beacon beaconAt( int index ) {
+        Beacon beacon = beacons[index];
+        if( beacon==null ) {
+            beacon = new Reader(buffer, buffer.getInt(recordsTable + 4*index)).readBeacon();
+            beacons[index] = beacon;
+        }
+        return beacon;
+    }
+
+    private class BeaconList extends AbstractList<Beacon> {
+        @Override
+        public Beacon get( int location ) {
+            if( location<0 || location>=beaconCount ) {
+                throw new IndexOutOfBoundsException( "Invalid index " + location + ", size is " + beaconCount );
+            }
+            return beaconAt(location);
+        }
+
+        @Override
+        public int size() {
+            return beaconCount;
+        }
+    }
+
+    private static class Key {
+        final String key;
+        final int index;
+        final int triggers;
+        final int txPower;
+        int offset;
+
+        Key(String key, int index, int triggers, int txPower) {
+            this.key = key;
+            this.index = index;
+            this.triggers = triggers;
+            this.txPower = txPower;
+        }
+    }
+
+    private static class Writer extends DataOutputStream {
+
+        Writer(ByteArrayOutputStream out) {
+            super(out);
+        }
+
+        void writeString( String value ) throws IOException {
+            if( value==null ) {
+                writeInt(-1);
+                return;
+            }
+            final byte[] bytes = value.getBytes("UTF-8");
+            writeInt(bytes.length);
+            write(bytes);
+        }
+
+        void writeJson( JsonNode value ) throws IOException {
+            writeString(value==null ? null : JsonParser.getObjectMapper().writeValueAsString(value));
+        }
+
+        void writeLocation( Location location ) throws IOException {
+            writeBoolean(location!=null);
+            if( location==null ) return;
+            writeDouble(location.latitude);
+            writeDouble(location.longitude);
+        }
+
+        void writeBeacon( Beacon beacon ) throws IOException {
+            writeString(beacon.id);
+            writeString(beacon.description);
+            writeString(beacon.name);
+            writeLocation(beacon.location);
+            writeBoolean(beacon.tx_power!=null);
+            if( beacon.tx_power!=null ) {
+                writeInt(beacon.tx_power);
+            }
+            if( beacon.triggers==null ) {
+                writeInt(-1);
+                return;
+            }
+            writeInt(beacon.triggers.size());
+            for( Trigger trigger : beacon.triggers ) {
+                writeTrigger(trigger);
+            }
+        }
+
+        private void writeTrigger( Trigger trigger ) throws IOException {
+            writeLong(trigger.id);
+            writeString(trigger.name);
+            writeString(trigger.comment);
+
+            writeBoolean(trigger.action!=null);
+            if( trigger.action!=null ) {
+                writeString(trigger.action.id);
+                writeString(trigger.action.type);
+                writeJson(trigger.action.parameters);
+            }
+
+            if( trigger.conditions==null ) {
+                writeInt(-1);
+            } else {
+                writeInt(trigger.conditions.size());
+                for( Condition condition : trigger.conditions ) {
+                    writeLong(condition.id);
+                    writeString(condition.type);
+                    writeJson(condition.parameters);
+                    writeString(condition.expression);
+                }
+            }
+
+            writeBoolean(trigger.limits!=null);
+            if( trigger.limits!=null ) {
+                writeLong(trigger.limits.min_interval);
+                writeInt(trigger.limits.max_count);
+                writeLong(trigger.limits.window);
+            }
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer buffer;
+
+        Reader(ByteBuffer buffer, int position) {
+            this.buffer = buffer.duplicate();
+            this.buffer.position(position);
+        }
+
+        int position() {
+            return buffer.position();
+        }
+
+        int readInt() {
+            return buffer.getInt();
+        }
+
+        long readLong() {
+            return buffer.getLong();
+        }
+
+        double readDouble() {
+            return buffer.getDouble();
+        }
+
+        boolean readBoolean() {
+            return buffer.get()!=0;
+        }
+
+        String readString() {
+            final int length = buffer.getInt();
+            if( length<0 ) return null;
+            if( length>buffer.remaining() ) throw new BufferUnderflowException();
+            final byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        JsonNode readJson() {
+            final String json = readString();
+            if( json==null ) return null;
+            try {
+                return JsonParser.getObjectMapper().readTree(json);
+            } catch (IOException e) {
+                throw new IllegalStateException( "Invalid parameters in zone snapshot", e );
+            }
+        }
+
+        Location readLocation() {
+            if( !readBoolean() ) return null;
+            final Location location = new Location();
+            location.latitude = readDouble();
+            location.longitude = readDouble();
+            return location;
+        }
+
+        Beacon readBeacon() {
+            final Beacon beacon = new Beacon();
+            beacon.id = readString();
+            beacon.description = readString();
+            beacon.name = readString();
+            beacon.location = readLocation();
+            if( readBoolean() ) {
+                beacon.tx_power = readInt();
+            }
+            final int triggers = readInt();
+            if( triggers>=0 ) {
+                beacon.triggers = new ArrayList<Trigger>(triggers);
+                for( int i=0; i<triggers; i++ ) {
+                    beacon.triggers.add(readTrigger());
+                }
+            }
+            return beacon;
+        }
+
+        private Trigger readTrigger() {
+            final Trigger trigger = new Trigger();
+            trigger.id = readLong();
+            trigger.name = readString();
+            trigger.comment = readString();
+
+            if( readBoolean() ) {
+                trigger.action = new Action();
+                trigger.action.id = readString();
+                trigger.action.type = readString();
+                trigger.action.parameters = readJson();
+            }
+
+            final int conditions = readInt();
+            if( conditions>=0 ) {
+                trigger.conditions = new ArrayList<Condition>(conditions);
+                for( int i=0; i<conditions; i++ ) {
+                    final Condition condition = new Condition();
+                    condition.id = readLong();
+                    condition.type = readString();
+                    condition.parameters = readJson();
+                    condition.expression = readString();
+                    trigger.conditions.add(condition);
+                }
+            }
+
+            if( readBoolean() ) {
+                trigger.limits = new TriggerLimits();
+                trigger.limits.min_interval = readLong();
+                trigger.limits.max_count = readInt();
+                trigger.limits.window = readLong();
+            }
+            return trigger;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util.expression;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Expression compiled once and shared by all evaluations of the same source.
+ *
+ * If the expression fits the grammar of {@link com.upnext.blekit.util.expression.ExpressionParser}, it is kept as an expression tree and evaluated directly.
+ * Otherwise it is compiled by Rhino on first evaluation (see {@link com.upnext.blekit.util.expression.RhinoEvaluator}).
+ */
+public final class CompiledExpression {
+
+    private static final int CACHE_SIZE = 128;
+
+    private static final Map<String, CompiledExpression> cache = new LinkedHashMap<String, CompiledExpression>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final String source;
+    private final ExpressionNode node;
+    private final Set<String> references;
+
+    /**
+     * Script compiled by Rhino, typed as Object so that Rhino classes are not loaded for natively evaluated expressions.
+     */
+    volatile Object rhinoScript;
+
+    private CompiledExpression(String source, ExpressionNode node) {
+        this.source = source;
+        this.node = node;
+        if( node!=null ) {
+            Set<String> refs = new HashSet<String>();
+            node.collectReferences(refs);
+            this.references = Collections.unmodifiableSet(refs);
+        } else {
+            Set<String> refs = ExpressionParser.findReferences(source);
+            this.references = refs!=null ? Collections.unmodifiableSet(refs) : null;
+        }
+    }
+
+    /**
+     * Returns compiled expression for given source, parsing it only if it was not compiled recently.
+     *
+     * @param source expression source
+     * @return compiled expression
+     */
+    public static CompiledExpression compile( String source ) {
+        synchronized (cache) {
+            CompiledExpression compiled = cache.get(source);
+            if( compiled==null ) {
+                compiled = new CompiledExpression(source, ExpressionParser.parse(source));
+                cache.put(source, compiled);
+            }
+            return compiled;
+        }
+    }
+
+    /**
+     * @return expression source
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return <code>true</code> if this expression is evaluated without Rhino
+     */
+    public boolean isNative() {
+        return node!=null;
+    }
+
+    /**
+     * Checks whether this expression may read given variable.
+     * References are detected statically when the expression is compiled.
+     *
+     * @param name variable name
+     * @return <code>false</code> if the expression certainly does not reference the variable
+     */
+    public boolean references( String name ) {
+        return references==null || references.contains(name);
+    }
+
+    /**
+     * @return identifiers referenced by this expression or <code>null</code> if they could not be detected
+     */
+    public Set<String> getReferences() {
+        return references;
+    }
+
+    /**
+     * @return expression tree or <code>null</code> if expression has to be evaluated by Rhino
+     */
+    public ExpressionNode getNode() {
+        return node;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util.expression;
+
+import com.upnext.blekit.util.L;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Execution budget for expressions evaluated by Rhino.
+ *
+ * Zones are downloaded from remote servers, so an expression like <code>while(true){}</code> must not block event processing.
+ * Each Rhino evaluation may take at most {@link #getMaxMillis()} milliseconds and {@link #getMaxInstructions()} interpreter instructions,
+ * over-budget evaluations are aborted and evaluate to <code>false</code>.
+ * An expression exceeding its budget {@link #getMaxStrikes()} times in a row is disabled (always <code>false</code>) until {@link #reset()} is called,
+ * which happens on every zone update.
+ *
+ * Natively evaluated expressions (see {@link com.upnext.blekit.util.expression.ExpressionParser}) have no loops nor calls, so they are not limited.
+ */
+public final class ExpressionBudget {
+
+    public static final long DEFAULT_MAX_MILLIS = 100;
+    public static final int DEFAULT_MAX_INSTRUCTIONS = 500000;
+    public static final int DEFAULT_MAX_STRIKES = 3;
+
+    private static volatile long maxMillis = DEFAULT_MAX_MILLIS;
+    private static volatile int maxInstructions = DEFAULT_MAX_INSTRUCTIONS;
+    private static volatile int maxStrikes = DEFAULT_MAX_STRIKES;
+
+    private static final Map<String, Integer> strikes = new HashMap<String, Integer>();
+    private static final Set<String> disabled = new HashSet<String>();
+    private static final AtomicLong exceededCount = new AtomicLong();
+
+    private ExpressionBudget() {}
+
+    /**
+     * Thrown from Rhino instruction observer when an evaluation runs out of budget.
+     * It is an Error, so that it cannot be caught by a <code>try/catch</code> inside the script.
+     */
+    static class ExceededError extends Error {
+        ExceededError(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Configures budget for a single evaluation.
+     *
+     * @param maxMillis maximum wall-clock time in milliseconds
+     * @param maxInstructions maximum number of interpreter instructions
+     * @param maxStrikes number of consecutive over-budget evaluations after which expression is disabled
+     */
+    public static void configure( long maxMillis, int maxInstructions, int maxStrikes ) {
+        if( maxMillis<=0 || maxInstructions<=0 || maxStrikes<=0 ) {
+            throw new IllegalArgumentException( "Budget values must be positive" );
+        }
+        ExpressionBudget.maxMillis = maxMillis;
+        ExpressionBudget.maxInstructions = maxInstructions;
+        ExpressionBudget.maxStrikes = maxStrikes;
+    }
+
+    public static long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public static int getMaxInstructions() {
+        return maxInstructions;
+    }
+
+    public static int getMaxStrikes() {
+        return maxStrikes;
+    }
+
+    /**
+     * @return number of evaluations aborted because of exceeded budget since the process started
+     */
+    public static long getExceededCount() {
+        return exceededCount.get();
+    }
+
+    /**
+     * @param expression expression source
+     * @return <code>true</code> if expression was disabled after repeatedly exceeding its budget
+     */
+    public static boolean isDisabled( String expression ) {
+        synchronized (disabled) {
+            return disabled.contains(expression);
+        }
+    }
+
+    /**
+     * @return number of currently disabled expressions
+     */
+    public static int getDisabledCount() {
+        synchronized (disabled) {
+            return disabled.size();
+        }
+    }
+
+    /**
+     * Enables all disabled expressions and clears their history, should be called when a new zone is loaded.
+     */
+    public static void reset() {
+        synchronized (disabled) {
+            strikes.clear();
+            disabled.clear();
+        }
+    }
+
+    static void recordExceeded( String expression ) {
+        exceededCount.incrementAndGet();
+        synchronized (disabled) {
+            Integer count = strikes.get(expression);
+            count = count==null ? 1 : count+1;
+            strikes.put(expression, count);
+            if( count>=maxStrikes ) {
+                L.e( "Expression disabled after exceeding its budget " + count + " times: " + expression );
+                disabled.add(expression);
+            }
+        }
+    }
+
+    static void recordWithinBudget( String expression ) {
+        synchronized (disabled) {
+            strikes.remove(expression);
+        }
+    }
+}
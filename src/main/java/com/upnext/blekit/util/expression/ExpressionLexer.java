@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util.expression;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits an expression into tokens.
+ *
+ * The lexer understands more of JavaScript than {@link com.upnext.blekit.util.expression.ExpressionParser} does
+ * (all operators, comments, hex numbers), so that expressions handed over to Rhino can still be tokenized.
+ *
+ * @see com.upnext.blekit.util.expression.ExpressionParser
+ */
+class ExpressionLexer {
+
+    enum TokenType { NUMBER, STRING, IDENTIFIER, OPERATOR, EOF }
+
+    static class Token {
+        final TokenType type;
+        final String text;
+        final Object value;
+
+        Token(TokenType type, String text, Object value) {
+            this.type = type;
+            this.text = text;
+            this.value = value;
+        }
+
+        boolean is( String operator ) {
+            return type==TokenType.OPERATOR && text.equals(operator);
+        }
+
+        @Override
+        public String toString() {
+            return type + "(" + text + ")";
+        }
+    }
+
+    /**
+     * Thrown when the input contains characters that are not valid JavaScript tokens.
+     */
+    static class LexerException extends Exception {
+        LexerException(String message) {
+            super(message);
+        }
+    }
+
+    // longest operators first, so that '===' wins over '=='
+    private static final String[] OPERATORS = {
+            ">>>=", "===", "!==", ">>>", "<<=", ">>=",
+            "==", "!=", "<=", ">=", "&&", "||", "++", "--", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<", ">>",
+            "+", "-", "*", "/", "%", "<", ">", "!", "=", "&", "|", "^", "~", "?", ":",
+            "(", ")", "[", "]", "{", "}", ".", ",", ";"
+    };
+
+    private final String source;
+    private int pos;
+
+    ExpressionLexer(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Tokenizes the whole input.
+     *
+     * @return list of tokens, always terminated with an {@link TokenType#EOF} token
+     * @throws LexerException if an unexpected character or an unterminated string/comment is found
+     */
+    List<Token> tokenize() throws LexerException {
+        List<Token> tokens = new ArrayList<Token>();
+        Token token;
+        do {
+            token = next();
+            tokens.add(token);
+        } while( token.type!=TokenType.EOF );
+        return tokens;
+    }
+
+    private Token next() throws LexerException {
+        skipWhitespaceAndComments();
+        if( pos>=source.length() ) {
+            return new Token(TokenType.EOF, "", null);
+        }
+
+        char c = source.charAt(pos);
+        if( Character.isDigit(c) || (c=='.' && pos+1<source.length() && Character.isDigit(source.charAt(pos+1))) ) {
+            return readNumber();
+        }
+        if( c=='\'' || c=='"' ) {
+            return readString(c);
+        }
+        if( Character.isJavaIdentifierStart(c) ) {
+            int start = pos;
+            while( pos<source.length() && Character.isJavaIdentifierPart(source.charAt(pos)) ) {
+                pos++;
+            }
+            String text = source.substring(start, pos);
+            return new Token(TokenType.IDENTIFIER, text, text);
+        }
+        for( String operator : OPERATORS ) {
+            if( source.startsWith(operator, pos) ) {
+                pos += operator.length();
+                return new Token(TokenType.OPERATOR, operator, null);
+            }
+        }
+        throw new LexerException( "Unexpected character '" + c + "' at " + pos );
+    }
+
+    private void skipWhitespaceAndComments() throws LexerException {
+        while( pos<source.length() ) {
+            char c = source.charAt(pos);
+            if( Character.isWhitespace(c) ) {
+                pos++;
+            } else if( source.startsWith("//", pos) ) {
+                while( pos<source.length() && source.charAt(pos)!='\n' ) {
+                    pos++;
+                }
+            } else if( source.startsWith("/*", pos) ) {
+                int end = source.indexOf("*/", pos+2);
+                if( end<0 ) {
+                    throw new LexerException( "Unterminated comment" );
+                }
+                pos = end+2;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private Token readNumber() throws LexerException {
+        int start = pos;
+        if( source.startsWith("0x", pos) || source.startsWith("0X", pos) ) {
+            pos += 2;
+            while( pos<source.length() && Character.digit(source.charAt(pos), 16)>=0 ) {
+                pos++;
+            }
+            String text = source.substring(start, pos);
+            try {
+                return new Token(TokenType.NUMBER, text, (double) Long.parseLong(text.substring(2), 16));
+            } catch (NumberFormatException e) {
+                throw new LexerException( "Invalid number " + text );
+            }
+        }
+
+        while( pos<source.length() && (Character.isDigit(source.charAt(pos)) || source.charAt(pos)=='.') ) {
+            pos++;
+        }
+        if( pos<source.length() && (source.charAt(pos)=='e' || source.charAt(pos)=='E') ) {
+            pos++;
+            if( pos<source.length() && (source.charAt(pos)=='+' || source.charAt(pos)=='-') ) {
+                pos++;
+            }
+            while( pos<source.length() && Character.isDigit(source.charAt(pos)) ) {
+                pos++;
+            }
+        }
+        String text = source.substring(start, pos);
+        try {
+            return new Token(TokenType.NUMBER, text, Double.parseDouble(text));
+        } catch (NumberFormatException e) {
+            throw new LexerException( "Invalid number " + text );
+        }
+    }
+
+    private Token readString(char quote) throws LexerException {
+        int start = pos;
+        pos++;
+        StringBuilder sb = new StringBuilder();
+        while( pos<source.length() ) {
+            char c = source.charAt(pos++);
+            if( c==quote ) {
+                return new Token(TokenType.STRING, source.substring(start, pos), sb.toString());
+            }
+            if( c=='\\' && pos<source.length() ) {
+                char escaped = source.charAt(pos++);
+                switch (escaped) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'v': sb.append('\u000B'); break;
+                    case '0': sb.append('\0'); break;
+                    case 'u':
+                        if( pos+4>source.length() ) throw new LexerException( "Invalid unicode escape" );
+                        try {
+                            sb.append((char) Integer.parseInt(source.substring(pos, pos+4), 16));
+                        } catch (NumberFormatException e) {
+                            throw new LexerException( "Invalid unicode escape" );
+                        }
+                        pos += 4;
+                        break;
+                    default: sb.append(escaped);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        throw new LexerException( "Unterminated string" );
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util.expression;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Node of the expression tree built by {@link com.upnext.blekit.util.expression.ExpressionParser}.
+ *
+ * Nodes are immutable and can be shared between threads, values are resolved through the {@link com.upnext.blekit.util.expression.ExpressionNode.Scope}
+ * given to {@link #eval(com.upnext.blekit.util.expression.ExpressionNode.Scope)}.
+ * Evaluation follows JavaScript semantics for the supported subset, so that results are the same as when evaluated by Rhino.
+ */
+public abstract class ExpressionNode {
+
+    /**
+     * Provides values for identifiers used in expressions.
+     */
+    public interface Scope {
+
+        /**
+         * @param name identifier
+         * @return <code>true</code> if identifier is defined in this scope
+         */
+        boolean has( String name );
+
+        /**
+         * @param name identifier
+         * @return value for given identifier, may be <code>null</code>
+         */
+        Object get( String name );
+    }
+
+    /**
+     * Thrown when an expression cannot be evaluated, eg. when an undefined identifier is referenced
+     * or a property of <code>null</code> is accessed (both are errors in JavaScript too).
+     */
+    public static class EvaluationException extends RuntimeException {
+        public EvaluationException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Evaluates this node.
+     *
+     * @param scope scope providing identifier values
+     * @return result, <code>null</code> stands for both JavaScript <code>null</code> and <code>undefined</code>,
+     *         strings, numbers and booleans read from Java objects are wrapped as in Rhino (not instances of {@link java.lang.Boolean})
+     * @throws EvaluationException if evaluation fails
+     */
+    public abstract Object eval( Scope scope );
+
+    /**
+     * Adds identifiers referenced by this node (and its children) to given set.
+     *
+     * @param references set of identifiers
+     */
+    abstract void collectReferences( Set<String> references );
+
+    static class Literal extends ExpressionNode {
+        private final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object eval(Scope scope) {
+            return value;
+        }
+
+        @Override
+        void collectReferences(Set<String> references) {
+        }
+    }
+
+    static class Path extends ExpressionNode {
+        private final String root;
+        private final List<String> properties;
+
+        Path(String root, List<String> properties) {
+            this.root = root;
+            this.properties = properties;
+        }
+
+        String getRoot() {
+            return root;
+        }
+
+        @Override
+        public Object eval(Scope scope) {
+            if( !scope.has(root) ) {
+                throw new EvaluationException( root + " is not defined" );
+            }
+            Object value = scope.get(root);
+            String path = root;
+            for( String property : properties ) {
+                if( value==null ) {
+                    throw new EvaluationException( "Cannot read property '" + property + "' of " + path );
+                }
+                value = PropertyAccessor.get(value, property);
+                path = path + "." + property;
+            }
+            return value;
+        }
+
+        @Override
+        void collectReferences(Set<String> references) {
+            references.add(root);
+        }
+    }
+
+    static class Not extends ExpressionNode {
+        private final ExpressionNode operand;
+
+        Not(ExpressionNode operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public Object eval(Scope scope) {
+            return !JsValues.toBoolean(operand.eval(scope));
+        }
+
+        @Override
+        void collectReferences(Set<String> references) {
+            operand.collectReferences(references);
+        }
+    }
+
+    static class Negate extends ExpressionNode {
+        private final ExpressionNode operand;
+        private final boolean negate;
+
+        Negate(ExpressionNode operand, boolean negate) {
+            this.operand = operand;
+            this.negate = negate;
+        }
+
+        @Override
+        public Object eval(Scope scope) {
+            double value = JsValues.toNumber(operand.eval(scope));
+            return negate ? -value : value;
+        }
+
+        @Override
+        void collectReferences(Set<String> references) {
+            operand.collectReferences(references);
+        }
+    }
+
+    static class And extends ExpressionNode {
+        private final ExpressionNode left;
+        private final ExpressionNode right;
+
+        And(ExpressionNode left, ExpressionNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object eval(Scope scope) {
+            Object l = left.eval(scope);
+            return JsValues.toBoolean(l) ? right.eval(scope) : l;
+        }
+
+        @Override
+        void collectReferences(Set<String> references) {
+            left.collectReferences(references);
+            right.collectReferences(references);
+        }
+    }
+
+    static class Or extends ExpressionNode {
+        private final ExpressionNode left;
+        private final ExpressionNode right;
+
+        Or(ExpressionNode left, ExpressionNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object eval(Scope scope) {
+            Object l = left.eval(scope);
+            return JsValues.toBoolean(l) ? l : right.eval(scope);
+        }
+
+        @Override
+        void collectReferences(Set<String> references) {
+            left.collectReferences(references);
+            right.collectReferences(references);
+        }
+    }
+
+    static class Binary extends ExpressionNode {
+        private final String operator;
+        private final ExpressionNode left;
+        private final ExpressionNode right;
+
+        Binary(String operator, ExpressionNode left, ExpressionNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object eval(Scope scope) {
+            Object l = left.eval(scope);
+            Object r = right.eval(scope);
+
+            if( "==".equals(operator) ) return JsValues.looseEquals(l, r);
+            if( "!=".equals(operator) ) return !JsValues.looseEquals(l, r);
+            if( "===".equals(operator) ) return JsValues.strictEquals(l, r);
+            if( "!==".equals(operator) ) return !JsValues.strictEquals(l, r);
+            if( "<".equals(operator) ) return JsValues.lessThan(l, r, false);
+            if( ">".equals(operator) ) return JsValues.lessThan(r, l, false);
+            if( "<=".equals(operator) ) return JsValues.lessThan(l, r, true);
+            if( ">=".equals(operator) ) return JsValues.lessThan(r, l, true);
+            if( "+".equals(operator) ) return JsValues.add(l, r);
+            if( "-".equals(operator) ) return JsValues.toNumber(l) - JsValues.toNumber(r);
+            if( "*".equals(operator) ) return JsValues.toNumber(l) * JsValues.toNumber(r);
+            if( "/".equals(operator) ) return JsValues.toNumber(l) / JsValues.toNumber(r);
+            if( "%".equals(operator) ) return JsValues.toNumber(l) % JsValues.toNumber(r);
+
+            throw new EvaluationException( "Unsupported operator " + operator );
+        }
+
+        @Override
+        void collectReferences(Set<String> references) {
+            left.collectReferences(references);
+            right.collectReferences(references);
+        }
+    }
+}
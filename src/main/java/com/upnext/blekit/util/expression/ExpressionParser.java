@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util.expression;
+
+import com.upnext.blekit.util.L;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Recursive descent parser for the subset of JavaScript used in most condition expressions:
+ * <ul>
+ *  <li>number, string, boolean, <code>null</code> and <code>undefined</code> literals
+ *  <li>property paths, eg. <code>zone.name</code>, <code>trigger.type</code>, <code>custom['param']</code>
+ *  <li>comparisons <code>== != === !== &lt; &lt;= &gt; &gt;=</code>
+ *  <li>arithmetic <code>+ - * / %</code>
+ *  <li>logical operators <code>&amp;&amp; || !</code> and parentheses
+ * </ul>
+ *
+ * Anything else (function calls, assignments, loops, JavaScript built-ins like <code>Math</code>) is outside of the grammar,
+ * for such expressions {@link #parse(String)} returns <code>null</code> and they have to be evaluated by Rhino.
+ *
+ * @see com.upnext.blekit.util.ExpressionEvaluator
+ */
+public class ExpressionParser {
+
+    /**
+     * Global objects of JavaScript runtime, expressions using them are left for Rhino.
+     */
+    private static final Set<String> JS_GLOBALS = new HashSet<String>(Arrays.asList(
+            "Math", "Date", "JSON", "String", "Number", "Boolean", "Object", "Array", "RegExp",
+            "NaN", "Infinity", "this", "new", "typeof", "instanceof", "in", "void", "delete", "function",
+            "var", "if", "else", "for", "while", "do", "return", "java", "Packages"
+    ));
+
+    private final List<ExpressionLexer.Token> tokens;
+    private int pos;
+
+    private ExpressionParser(List<ExpressionLexer.Token> tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Parses given expression.
+     *
+     * @param expression expression source
+     * @return root node of the expression tree or <code>null</code> if expression is not supported by the parser
+     */
+    public static ExpressionNode parse( String expression ) {
+        if( expression==null ) return null;
+        try {
+            ExpressionParser parser = new ExpressionParser(new ExpressionLexer(expression).tokenize());
+            ExpressionNode node = parser.parseExpression();
+            while( parser.peek().is(";") ) {
+                parser.pos++;
+            }
+            if( parser.peek().type!=ExpressionLexer.TokenType.EOF ) {
+                throw new UnsupportedSyntaxException( "Unexpected " + parser.peek() );
+            }
+            return node;
+        } catch (ExpressionLexer.LexerException e) {
+            L.d( "not tokenized: " + e.getMessage() );
+        } catch (UnsupportedSyntaxException e) {
+            L.d( "not supported: " + e.getMessage() );
+        }
+        return null;
+    }
+
+    /**
+     * Detects identifiers referenced by given expression, without evaluating it.
+     *
+     * Works for any JavaScript expression, also for the ones not supported by {@link #parse(String)}.
+     * Returned set may contain more names than are actually read (eg. local variables or object literal keys),
+     * but it never misses a variable the expression could read.
+     *
+     * @param expression expression source
+     * @return referenced identifiers or <code>null</code> if expression could not be tokenized
+     */
+    public static Set<String> findReferences( String expression ) {
+        if( expression==null ) return new HashSet<String>();
+
+        ExpressionNode node = parse(expression);
+        Set<String> references = new HashSet<String>();
+        if( node!=null ) {
+            node.collectReferences(references);
+            return references;
+        }
+
+        List<ExpressionLexer.Token> tokens;
+        try {
+            tokens = new ExpressionLexer(expression).tokenize();
+        } catch (ExpressionLexer.LexerException e) {
+            return null;
+        }
+        for( int i=0; i<tokens.size(); i++ ) {
+            ExpressionLexer.Token token = tokens.get(i);
+            if( token.type==ExpressionLexer.TokenType.IDENTIFIER && (i==0 || !tokens.get(i-1).is(".")) ) {
+                references.add(token.text);
+            }
+        }
+        return references;
+    }
+
+    private static class UnsupportedSyntaxException extends Exception {
+        UnsupportedSyntaxException(String message) {
+            super(message);
+        }
+    }
+
+    private ExpressionLexer.Token peek() {
+        return tokens.get(pos);
+    }
+
+    private boolean accept( String operator ) {
+        if( peek().is(operator) ) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect( String operator ) throws UnsupportedSyntaxException {
+        if( !accept(operator) ) {
+            throw new UnsupportedSyntaxException( "Expected '" + operator + "' but found " + peek() );
+        }
+    }
+
+    private ExpressionNode parseExpression() throws UnsupportedSyntaxException {
+        ExpressionNode node = parseAnd();
+        while( accept("||") ) {
+            node = new ExpressionNode.Or(node, parseAnd());
+        }
+        return node;
+    }
+
+    private ExpressionNode parseAnd() throws UnsupportedSyntaxException {
+        ExpressionNode node = parseEquality();
+        while( accept("&&") ) {
+            node = new ExpressionNode.And(node, parseEquality());
+        }
+        return node;
+    }
+
+    private ExpressionNode parseEquality() throws UnsupportedSyntaxException {
+        ExpressionNode node = parseRelational();
+        while( true ) {
+            String operator = acceptAny("===", "!==", "==", "!=");
+            if( operator==null ) return node;
+            node = new ExpressionNode.Binary(operator, node, parseRelational());
+        }
+    }
+
+    private ExpressionNode parseRelational() throws UnsupportedSyntaxException {
+        ExpressionNode node = parseAdditive();
+        while( true ) {
+            String operator = acceptAny("<=", ">=", "<", ">");
+            if( operator==null ) return node;
+            node = new ExpressionNode.Binary(operator, node, parseAdditive());
+        }
+    }
+
+    private ExpressionNode parseAdditive() throws UnsupportedSyntaxException {
+        ExpressionNode node = parseMultiplicative();
+        while( true ) {
+            String operator = acceptAny("+", "-");
+            if( operator==null ) return node;
+            node = new ExpressionNode.Binary(operator, node, parseMultiplicative());
+        }
+    }
+
+    private ExpressionNode parseMultiplicative() throws UnsupportedSyntaxException {
+        ExpressionNode node = parseUnary();
+        while( true ) {
+            String operator = acceptAny("*", "/", "%");
+            if( operator==null ) return node;
+            node = new ExpressionNode.Binary(operator, node, parseUnary());
+        }
+    }
+
+    private ExpressionNode parseUnary() throws UnsupportedSyntaxException {
+        if( accept("!") ) return new ExpressionNode.Not(parseUnary());
+        if( accept("-") ) return new ExpressionNode.Negate(parseUnary(), true);
+        if( accept("+") ) return new ExpressionNode.Negate(parseUnary(), false);
+        return parsePrimary();
+    }
+
+    private ExpressionNode parsePrimary() throws UnsupportedSyntaxException {
+        ExpressionLexer.Token token = peek();
+        switch (token.type) {
+            case NUMBER:
+            case STRING:
+                pos++;
+                return new ExpressionNode.Literal(token.value);
+
+            case IDENTIFIER:
+                pos++;
+                if( "true".equals(token.text) ) return new ExpressionNode.Literal(Boolean.TRUE);
+                if( "false".equals(token.text) ) return new ExpressionNode.Literal(Boolean.FALSE);
+                if( "null".equals(token.text) || "undefined".equals(token.text) ) return new ExpressionNode.Literal(null);
+                if( JS_GLOBALS.contains(token.text) ) {
+                    throw new UnsupportedSyntaxException( "JavaScript global " + token.text );
+                }
+                return parsePath(token.text);
+
+            default:
+                if( accept("(") ) {
+                    ExpressionNode node = parseExpression();
+                    expect(")");
+                    return node;
+                }
+                throw new UnsupportedSyntaxException( "Unexpected " + token );
+        }
+    }
+
+    private ExpressionNode parsePath( String root ) throws UnsupportedSyntaxException {
+        List<String> properties = new ArrayList<String>();
+        while( true ) {
+            if( accept(".") ) {
+                ExpressionLexer.Token token = peek();
+                if( token.type!=ExpressionLexer.TokenType.IDENTIFIER ) {
+                    throw new UnsupportedSyntaxException( "Expected property name but found " + token );
+                }
+                pos++;
+                properties.add(token.text);
+            } else if( accept("[") ) {
+                ExpressionLexer.Token token = peek();
+                if( token.type==ExpressionLexer.TokenType.STRING ) {
+                    properties.add((String) token.value);
+                } else if( token.type==ExpressionLexer.TokenType.NUMBER ) {
+                    properties.add(JsValues.toString(token.value));
+                } else {
+                    throw new UnsupportedSyntaxException( "Computed property " + token );
+                }
+                pos++;
+                expect("]");
+            } else if( peek().is("(") ) {
+                throw new UnsupportedSyntaxException( "Function call" );
+            } else {
+                return new ExpressionNode.Path(root, properties);
+            }
+        }
+    }
+
+    private String acceptAny( String... operators ) {
+        for( String operator : operators ) {
+            if( accept(operator) ) return operator;
+        }
+        return null;
+    }
+}
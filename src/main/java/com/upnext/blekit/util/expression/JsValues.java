@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util.expression;
+
+/**
+ * JavaScript type conversions and operators applied to plain Java values.
+ *
+ * Java <code>null</code> is treated as JavaScript <code>null</code>, strings and characters as strings,
+ * all {@link java.lang.Number} instances as numbers, any other object is converted through its <code>toString()</code>
+ * when a primitive value is required (same as Rhino does for wrapped Java objects).
+ *
+ * Strings, numbers and booleans read from Java fields and getters are {@link JavaObject}s, because Rhino wraps them too:
+ * they are always true, never strictly equal to a primitive value and are converted to strings, except booleans, by <code>+</code>.
+ */
+final class JsValues {
+
+    /**
+     * Java string, number or boolean read from a field or getter of a non-primitive type, wrapped the same way Rhino wraps it.
+     */
+    static final class JavaObject {
+        final Object value;
+
+        JavaObject(Object value) {
+            this.value = value;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return value.toString();
+        }
+    }
+
+    private JsValues() {}
+
+    static boolean toBoolean( Object value ) {
+        if( value==null ) return false;
+        if( value instanceof JavaObject ) return true;
+        if( value instanceof Boolean ) return (Boolean) value;
+        if( value instanceof Number ) {
+            double d = ((Number) value).doubleValue();
+            return d!=0 && !Double.isNaN(d);
+        }
+        if( isString(value) ) return value.toString().length()>0;
+        return true;
+    }
+
+    static double toNumber( Object value ) {
+        if( value==null ) return 0;
+        if( value instanceof JavaObject ) return toNumber(((JavaObject) value).value);
+        if( value instanceof Number ) return ((Number) value).doubleValue();
+        if( value instanceof Boolean ) return ((Boolean) value) ? 1 : 0;
+
+        String s = value.toString().trim();
+        if( s.length()==0 ) return 0;
+        try {
+            if( s.startsWith("0x") || s.startsWith("0X") ) {
+                return Long.parseLong(s.substring(2), 16);
+            }
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    static String toString( Object value ) {
+        if( value==null ) return "null";
+        if( value instanceof Number ) {
+            double d = ((Number) value).doubleValue();
+            if( d==Math.rint(d) && !Double.isInfinite(d) && Math.abs(d)<1e21 ) {
+                return Long.toString((long) d);
+            }
+            return Double.toString(d);
+        }
+        return value.toString();
+    }
+
+    static boolean looseEquals( Object a, Object b ) {
+        if( a==null || b==null ) return a==b;
+        if( a instanceof JavaObject && b instanceof JavaObject ) {
+            return looseEquals(((JavaObject) a).value, ((JavaObject) b).value);
+        }
+        if( a instanceof JavaObject && isPrimitive(b) ) return looseEquals(toPrimitive(a), b);
+        if( b instanceof JavaObject && isPrimitive(a) ) return looseEquals(a, toPrimitive(b));
+        if( isString(a) && isString(b) ) return a.toString().equals(b.toString());
+        if( isPrimitive(a) || isPrimitive(b) ) {
+            if( isString(a) && !isPrimitive(b) ) return a.toString().equals(b.toString());
+            if( isString(b) && !isPrimitive(a) ) return b.toString().equals(a.toString());
+            return toNumber(a)==toNumber(b);
+        }
+        return a==b || a.equals(b);
+    }
+
+    static boolean strictEquals( Object a, Object b ) {
+        if( a==null || b==null ) return a==b;
+        if( a instanceof JavaObject && b instanceof JavaObject ) {
+            return ((JavaObject) a).value==((JavaObject) b).value;
+        }
+        if( a instanceof Number && b instanceof Number ) {
+            return ((Number) a).doubleValue()==((Number) b).doubleValue();
+        }
+        if( isString(a) && isString(b) ) return a.toString().equals(b.toString());
+        if( a instanceof Boolean && b instanceof Boolean ) return a.equals(b);
+        if( isPrimitive(a) || isPrimitive(b) ) return false;
+        return a==b || a.equals(b);
+    }
+
+    /**
+     * @param orEqual <code>true</code> for <code>&lt;=</code>
+     * @return <code>a &lt; b</code> (or <code>a &lt;= b</code>), <code>false</code> if any of the values is NaN
+     */
+    static boolean lessThan( Object a, Object b, boolean orEqual ) {
+        a = unwrap(a);
+        b = unwrap(b);
+        if( a!=null && b!=null && !(a instanceof Number || a instanceof Boolean) && !(b instanceof Number || b instanceof Boolean) ) {
+            int c = a.toString().compareTo(b.toString());
+            return orEqual ? c<=0 : c<0;
+        }
+        double x = toNumber(a);
+        double y = toNumber(b);
+        return orEqual ? x<=y : x<y;
+    }
+
+    static Object add( Object a, Object b ) {
+        a = toPrimitive(a);
+        b = toPrimitive(b);
+        boolean aNumeric = a==null || a instanceof Number || a instanceof Boolean;
+        boolean bNumeric = b==null || b instanceof Number || b instanceof Boolean;
+        if( aNumeric && bNumeric ) {
+            return toNumber(a) + toNumber(b);
+        }
+        return toString(a) + toString(b);
+    }
+
+    /**
+     * @return value of a wrapped Java object converted without a hint: booleans stay booleans, anything else becomes a string
+     */
+    private static Object toPrimitive( Object value ) {
+        if( !(value instanceof JavaObject) ) return value;
+        final Object unwrapped = ((JavaObject) value).value;
+        return unwrapped instanceof Boolean ? unwrapped : unwrapped.toString();
+    }
+
+    private static Object unwrap( Object value ) {
+        return value instanceof JavaObject ? ((JavaObject) value).value : value;
+    }
+
+    private static boolean isString( Object value ) {
+        return value instanceof CharSequence || value instanceof Character;
+    }
+
+    private static boolean isPrimitive( Object value ) {
+        return isString(value) || value instanceof Number || value instanceof Boolean;
+    }
+}
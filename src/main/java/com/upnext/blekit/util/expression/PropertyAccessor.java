@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util.expression;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads properties of Java objects the same way Rhino 1.7R4 exposes them to scripts:
+ * public fields, bean getters, <code>length</code> and elements of arrays and <code>length</code> and characters
+ * of strings which are not wrapped. Entries of maps and elements of lists are not properties, as in Rhino.
+ * Strings, numbers and booleans read from members of non-primitive types are returned as {@link JsValues.JavaObject}s.
+ *
+ * Looked up fields and getters are cached per class, so reflection is only used on first access.
+ */
+final class PropertyAccessor {
+
+    private static final Map<Class, Map<String, Member>> cache = new HashMap<Class, Map<String, Member>>();
+
+    private PropertyAccessor() {}
+
+    /**
+     * Returns value of property of given object.
+     *
+     * @param target object, not <code>null</code>
+     * @param property property name
+     * @return property value or <code>null</code> if there is no such property
+     * @throws ExpressionNode.EvaluationException thrown if the property cannot be read or is an index of an object that is not an array
+     */
+    static Object get( Object target, String property ) throws ExpressionNode.EvaluationException {
+        if( target instanceof JsValues.JavaObject ) {
+            //wrapped strings expose methods of java.lang.String, not a length property
+            target = ((JsValues.JavaObject) target).value;
+        } else if( target instanceof CharSequence ) {
+            final CharSequence string = (CharSequence) target;
+            if( "length".equals(property) ) return (double) string.length();
+            int index = toIndex(property);
+            if( index>=0 ) {
+                return index<string.length() ? String.valueOf(string.charAt(index)) : null;
+            }
+            //other properties of string primitives are functions
+            return null;
+        }
+        if( target.getClass().isArray() ) {
+            if( "length".equals(property) ) return (double) Array.getLength(target);
+            int index = toIndex(property);
+            if( index>=0 ) {
+                return index<Array.getLength(target) ? wrap(target.getClass().getComponentType(), Array.get(target, index)) : null;
+            }
+        } else if( toIndex(property)>=0 ) {
+            throw new ExpressionNode.EvaluationException( "No property '" + property + "' of " + target.getClass().getName() );
+        }
+
+        Member member = findMember(target.getClass(), property);
+        try {
+            if( member instanceof Field ) {
+                return wrap(((Field) member).getType(), ((Field) member).get(target));
+            }
+            if( member instanceof Method ) {
+                return wrap(((Method) member).getReturnType(), ((Method) member).invoke(target));
+            }
+        } catch (IllegalAccessException e) {
+            throw new ExpressionNode.EvaluationException( "Cannot access property '" + property + "': " + e.getMessage() );
+        } catch (InvocationTargetException e) {
+            throw new ExpressionNode.EvaluationException( "Cannot access property '" + property + "': " + e.getCause() );
+        }
+        return null;
+    }
+
+    private static Object wrap( Class type, Object value ) {
+        if( type.isPrimitive() ) return value;
+        if( value instanceof CharSequence || value instanceof Character || value instanceof Number || value instanceof Boolean ) {
+            return new JsValues.JavaObject(value);
+        }
+        return value;
+    }
+
+    private static int toIndex( String property ) {
+        try {
+            return Integer.parseInt(property);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Member findMember( Class cls, String property ) {
+        synchronized (cache) {
+            Map<String, Member> members = cache.get(cls);
+            if( members==null ) {
+                members = new HashMap<String, Member>();
+                cache.put(cls, members);
+            }
+            if( members.containsKey(property) ) {
+                return members.get(property);
+            }
+            Member member = lookup(cls, property);
+            members.put(property, member);
+            return member;
+        }
+    }
+
+    private static Member lookup( Class cls, String property ) {
+        if( property.length()==0 ) return null;
+        try {
+            Field field = cls.getField(property);
+            if( !Modifier.isStatic(field.getModifiers()) ) {
+                return field;
+            }
+        } catch (NoSuchFieldException e) {
+            //try getters
+        }
+
+        String suffix = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+        for( String prefix : new String[]{"get", "is"} ) {
+            try {
+                Method method = cls.getMethod(prefix + suffix);
+                if( !Modifier.isStatic(method.getModifiers()) && method.getReturnType()!=Void.TYPE ) {
+                    return method;
+                }
+            } catch (NoSuchMethodException e) {
+                //not found
+            }
+        }
+        return null;
+    }
+}
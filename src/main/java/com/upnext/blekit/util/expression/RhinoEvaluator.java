@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util.expression;
+
+import android.os.SystemClock;
+
+import com.upnext.blekit.util.L;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import java.util.Map;
+
+/**
+ * Evaluates expressions outside of the native grammar with Rhino.
+ *
+ * This is the only class referencing Rhino, so <code>js.jar</code> classes are loaded only when such an expression is evaluated.
+ * Standard JavaScript objects are initialized once into a sealed scope shared by all evaluations.
+ *
+ * Every evaluation is limited by {@link com.upnext.blekit.util.expression.ExpressionBudget}, enforced through Rhino instruction observer.
+ */
+public final class RhinoEvaluator {
+
+    /**
+     * Number of interpreter instructions between budget checks.
+     */
+    private static final int OBSERVER_THRESHOLD = 5000;
+
+    private static final BudgetContextFactory contextFactory = new BudgetContextFactory();
+
+    private static ScriptableObject sharedScope;
+
+    private RhinoEvaluator() {}
+
+    /**
+     * Evaluates expression with given properties available as top level variables.
+     *
+     * @param expression compiled expression
+     * @param properties variables, Java objects are wrapped with {@link org.mozilla.javascript.Context#javaToJS(Object, org.mozilla.javascript.Scriptable)}
+     * @return evaluation result or <code>null</code> if script failed or exceeded its budget
+     */
+    public static Object eval( CompiledExpression expression, Map<String, Object> properties ) {
+        BudgetContext ctx = (BudgetContext) contextFactory.enterContext();
+        try {
+            Scriptable scope = ctx.newObject(getSharedScope(ctx));
+            scope.setPrototype(getSharedScope(ctx));
+            scope.setParentScope(null);
+
+            if( properties!=null ) {
+                for( String key : properties.keySet() ) {
+                    ScriptableObject.putProperty( scope, key, Context.javaToJS(properties.get(key), scope) );
+                }
+            }
+
+            Script script = getScript(ctx, expression);
+
+            ctx.startBudget();
+            Object result = script.exec(ctx, scope);
+            ExpressionBudget.recordWithinBudget(expression.getSource());
+            return result;
+        } catch (ExpressionBudget.ExceededError e) {
+            L.e( "Expression '" + expression.getSource() + "' exceeded its budget: " + e.getMessage() );
+            ExpressionBudget.recordExceeded(expression.getSource());
+            return null;
+        } catch (RhinoException e) {
+            L.e( "Error evaluating expression '" + expression.getSource() + "'", e );
+            return null;
+        } finally {
+            Context.exit();
+        }
+    }
+
+    private static synchronized ScriptableObject getSharedScope( Context ctx ) {
+        if( sharedScope==null ) {
+            sharedScope = ctx.initStandardObjects(null, true);
+        }
+        return sharedScope;
+    }
+
+    private static Script getScript( Context ctx, CompiledExpression expression ) {
+        Script script = (Script) expression.rhinoScript;
+        if( script==null ) {
+            script = ctx.compileString( expression.getSource(), "expression", 1, null );
+            expression.rhinoScript = script;
+        }
+        return script;
+    }
+
+    /**
+     * Context keeping track of the budget of current evaluation.
+     */
+    private static class BudgetContext extends Context {
+        private long deadline;
+        private long instructionsLeft;
+
+        BudgetContext(ContextFactory factory) {
+            super(factory);
+        }
+
+        void startBudget() {
+            deadline = SystemClock.elapsedRealtime() + ExpressionBudget.getMaxMillis();
+            instructionsLeft = ExpressionBudget.getMaxInstructions();
+        }
+    }
+
+    private static class BudgetContextFactory extends ContextFactory {
+
+        @Override
+        protected Context makeContext() {
+            BudgetContext ctx = new BudgetContext(this);
+            //instruction observer works only in interpreted mode
+            ctx.setOptimizationLevel(-1);
+            ctx.setInstructionObserverThreshold(OBSERVER_THRESHOLD);
+            return ctx;
+        }
+
+        @Override
+        protected void observeInstructionCount(Context cx, int instructionCount) {
+            BudgetContext ctx = (BudgetContext) cx;
+            ctx.instructionsLeft -= instructionCount;
+            if( ctx.instructionsLeft<0 ) {
+                throw new ExpressionBudget.ExceededError( "more than " + ExpressionBudget.getMaxInstructions() + " instructions" );
+            }
+            if( SystemClock.elapsedRealtime()>ctx.deadline ) {
+                throw new ExpressionBudget.ExceededError( "more than " + ExpressionBudget.getMaxMillis() + " ms" );
+            }
+        }
+    }
+}
@@ -27,15 +27,17 @@ package com.upnext.blekit.util.http;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.upnext.blekit.util.Histogram;
+import com.upnext.blekit.util.JsonParser;
 import com.upnext.blekit.util.L;
+import com.upnext.blekit.util.Metrics;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
@@ -43,30 +45,131 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Http client class used for creating simple HTTP requests.
  *
+ * Clients are cheap to create and may be reused for any number of requests, from any thread:
+ * <ul>
+ *  <li>JSON is (de)serialized with the shared {@link com.upnext.blekit.util.JsonParser#getObjectMapper()}
+ *  <li>every request is bounded by connect and read timeouts, see {@link #setDefaultTimeouts(int, int)}
+ *  <li>response bodies are always read to the end and closed, so that the platform keeps the connection alive
+ *      and reuses it for the next request to the same host
+ *  <li>at most {@link #setMaxRequestsPerHost(int)} requests run concurrently against a single host, further ones wait
+ * </ul>
+ * Latency of every request is recorded in a histogram per endpoint (method and host), see {@link #getLatencies()}.
+ *
  * @author Roman Wozniak (roman@up-next.com)
  */
 public class HttpClient {
 
+    /**
+     * Maximum number of endpoints with their own latency histogram.
+     */
+    public static final int MAX_ENDPOINTS = 32;
+
     private final static String TAG = HttpClient.class.getSimpleName();
-    private final static boolean LOG_RESPONSE = true;
+    private final static String OTHER_ENDPOINT = "other";
+    private final static boolean LOG_RESPONSE = L.DEBUG_ENABLED;
+    private final static String DEFAULT_CHARSET = "UTF-8";
+
+    private static volatile int defaultConnectTimeout = 15000;
+    private static volatile int defaultReadTimeout = 30000;
+    private static volatile int maxRequestsPerHost = 4;
+
+    private static final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+    private static final Map<String, Histogram> latencies = new ConcurrentHashMap<String, Histogram>();
+
     private String url;
     private final ObjectMapper objectMapper;
+    private int connectTimeout = -1;
+    private int readTimeout = -1;
+
+    /**
+     * Reads response body straight from the connection stream.
+     *
+     * @param <T> type of the body
+     */
+    public interface BodyReader<T> {
+        /**
+         * Reads response body.
+         *
+         * @param input response stream, closed by the client afterwards
+         * @param contentType value of the Content-Type header, may be <code>null</code>
+         * @return body
+         * @throws IOException on read or parse errors
+         */
+        T read(InputStream input, String contentType) throws IOException;
+    }
 
     public HttpClient(String url) {
         this.url = url;
-        this.objectMapper = new ObjectMapper();
-        this.objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        this.objectMapper = JsonParser.getObjectMapper();
+    }
+
+    /**
+     * Sets timeouts of all clients that do not set their own.
+     *
+     * @param connectTimeout connect timeout in milliseconds, 0 for no timeout
+     * @param readTimeout read timeout in milliseconds, 0 for no timeout
+     */
+    public static void setDefaultTimeouts(int connectTimeout, int readTimeout) {
+        defaultConnectTimeout = connectTimeout;
+        defaultReadTimeout = readTimeout;
+    }
+
+    /**
+     * Sets maximum number of concurrent requests against a single host.
+     * Applies to hosts not requested yet.
+     *
+     * @param max maximum number of requests, at least 1
+     */
+    public static void setMaxRequestsPerHost(int max) {
+        maxRequestsPerHost = Math.max(1, max);
+    }
+
+    /**
+     * Returns latency histograms (in milliseconds) of all endpoints requested so far.
+     * Endpoints are identified by method and host, eg. <code>GET example.com</code> - paths often carry identifiers.
+     * Requests above {@link #MAX_ENDPOINTS} endpoints are recorded under <code>other</code>.
+     *
+     * @return histograms by endpoint
+     */
+    public static Map<String, Histogram> getLatencies() {
+        return new HashMap<String, Histogram>(latencies);
+    }
+
+    /**
+     * Sets connect timeout of this client.
+     *
+     * @param connectTimeout connect timeout in milliseconds, 0 for no timeout
+     * @return this client
+     */
+    public HttpClient setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /**
+     * Sets read timeout of this client.
+     *
+     * @param readTimeout read timeout in milliseconds, 0 for no timeout
+     * @return this client
+     */
+    public HttpClient setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
     }
 
     private String urlWithParams(String url, Map<String, String> postParams) throws UnsupportedEncodingException {
         final StringBuilder urlBuilder = new StringBuilder();
         urlBuilder.append(url);
-        boolean isFirst = true;
+        boolean isFirst = url.indexOf('?') < 0;
         if ( postParams != null ) {
             for ( String k: postParams.keySet() ) {
                 urlBuilder.append(isFirst ? "?" : "&");
@@ -96,6 +199,34 @@ public class HttpClient {
         return fetchResponse(clazz, path, params, "GET");
     }
 
+    /**
+     * Performs GET request, reading response body with given reader in a single pass, without buffering it.
+     *
+     * @param reader body reader
+     * @param path path appended to the url, may be <code>null</code>
+     * @param params query parameters, may be <code>null</code>
+     * @param <T> type of the body
+     * @return response
+     */
+    public <T> Response<T> get(BodyReader<T> reader, String path, Map<String, String> params) {
+        return get(reader, path, params, null);
+    }
+
+    /**
+     * Performs GET request with additional request headers, reading response body with given reader in a single pass.
+     * Used for conditional requests, a <code>304 Not Modified</code> response is reported by {@link Response#isNotModified()}.
+     *
+     * @param reader body reader
+     * @param path path appended to the url, may be <code>null</code>
+     * @param params query parameters, may be <code>null</code>
+     * @param headers request headers, may be <code>null</code>
+     * @param <T> type of the body
+     * @return response
+     */
+    public <T> Response<T> get(BodyReader<T> reader, String path, Map<String, String> params, Map<String, String> headers) {
+        return fetchResponse(null, reader, path, params, "GET", null, null, headers);
+    }
+
     public <T> Response<T> post(Class<T> clazz, String path, Map<String, String> params, String payload) {
         return fetchResponse(clazz, path, params, "POST", payload);
     }
@@ -132,13 +263,24 @@ public class HttpClient {
     }
 
     public <T> Response<T> fetchResponse(Class<T> clazz, String path, Map<String, String> params, String httpMethod, String payload, String payloadContentType) {
+        return fetchResponse(clazz, null, path, params, httpMethod, payload, payloadContentType, null);
+    }
+
+    private <T> Response<T> fetchResponse(Class<T> clazz, BodyReader<T> reader, String path, Map<String, String> params, String httpMethod, String payload, String payloadContentType, Map<String, String> headers) {
+        Semaphore permits = null;
+        boolean acquired = false;
+        Histogram latency = null;
+        long start = 0;
         try {
             String fullUrl = urlWithParams(path != null ? url + path : url, params);
             L.d("[" + httpMethod + "] " + fullUrl);
-            final URLConnection connection = new URL(fullUrl).openConnection();
+            final URL requestUrl = new URL(fullUrl);
+            final URLConnection connection = requestUrl.openConnection();
             if ( connection instanceof HttpURLConnection) {
                 final HttpURLConnection httpConnection = (HttpURLConnection)connection;
                 httpConnection.setDoInput(true);
+                httpConnection.setConnectTimeout(connectTimeout >= 0 ? connectTimeout : defaultConnectTimeout);
+                httpConnection.setReadTimeout(readTimeout >= 0 ? readTimeout : defaultReadTimeout);
                 if ( httpMethod != null ) {
                     httpConnection.setRequestMethod(httpMethod);
                     if(httpMethod.equals("POST")) {
@@ -150,6 +292,21 @@ public class HttpClient {
                     httpConnection.setRequestMethod(params != null ? "POST" : "GET");
                 }
                 httpConnection.addRequestProperty("Accept", "application/json");
+                // explicit, so that compressed responses are decoded the same way on all platforms
+                httpConnection.addRequestProperty("Accept-Encoding", "gzip");
+                httpConnection.setRequestProperty("Connection", "keep-alive");
+                if ( headers != null ) {
+                    for ( Map.Entry<String, String> header : headers.entrySet() ) {
+                        httpConnection.addRequestProperty(header.getKey(), header.getValue());
+                    }
+                }
+
+                permits = getPermits(requestUrl.getHost());
+                permits.acquire();
+                acquired = true;
+                latency = getLatency(httpConnection.getRequestMethod(), requestUrl);
+                start = System.currentTimeMillis();
+
                 httpConnection.connect();
                 if(payload != null) {
                     OutputStream outputStream = httpConnection.getOutputStream();
@@ -171,68 +328,182 @@ public class HttpClient {
                     // workaround for Android HttpURLConnection ( IOException is thrown for 40x error codes ).
                     final int statusCode = httpConnection.getResponseCode();
                     if ( statusCode == -1 ) throw e;
-                    return new Response<T>(Error.httpError(httpConnection.getResponseCode()) );
+                    // error body is read to the end, so that the connection can be reused
+                    discard(httpConnection.getErrorStream());
+                    return new Response<T>(Error.httpError(statusCode) );
                 }
-                final int statusCode = httpConnection.getResponseCode();
-                L.d("statusCode " + statusCode);
-                if ( statusCode == HttpURLConnection.HTTP_OK ||
-                        statusCode == HttpURLConnection.HTTP_CREATED ) {
-                    try {
-                        T value = null;
-                        if ( clazz != Void.class ) {
-                            if(LOG_RESPONSE || clazz == String.class) {
-                                StringBuilder sb=new StringBuilder();
-                                BufferedReader br = new BufferedReader(new InputStreamReader(input));
-                                String read = br.readLine();
-                                while(read != null) {
-                                    sb.append(read);
-                                    read = br.readLine();
-                                }
-                                String response = sb.toString();
-                                if( LOG_RESPONSE ) {
-                                    L.d("response " + response);
-                                }
-                                if( clazz == String.class ) {
-                                    value = (T) response;
-                                } else {
-                                    value = (T) objectMapper.readValue(response, clazz);
-                                }
-                            }
-                            else {
-                                value = (T) objectMapper.readValue(input, clazz);
-                            }
-                        }
-                        return new Response<T>(value);
-                    } catch (JsonMappingException e ) {
-                        return new Response<T>(Error.serlizerError(e));
-                    } catch (JsonParseException e) {
-                        return new Response<T>(Error.serlizerError(e));
-                    }
-                } else if(statusCode == HttpURLConnection.HTTP_NO_CONTENT) {
-                    try {
-                        T def = clazz.newInstance();
-                        if(LOG_RESPONSE) {
-                            L.d("statusCode  == HttpURLConnection.HTTP_NO_CONTENT");
-                        }
-                        return new Response<T>(def);
-                    } catch (InstantiationException e) {
-                        return new Response<T>(Error.ioError(e));
-                    } catch (IllegalAccessException e) {
-                        return new Response<T>(Error.ioError(e));
-                    }
-                }  else {
-                    if(LOG_RESPONSE) {
-                        L.d("error, statusCode " + statusCode);
-                    }
-                    return new Response<T>(Error.httpError(statusCode));
+                try {
+                    return readResponse(clazz, reader, httpConnection, input);
+                } finally {
+                    discard(input);
                 }
             }
             return new Response<T>(Error.ioError(new Exception("Url is not a http link")));
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return new Response<T>(Error.ioError(e));
         } catch ( IOException e ) {
             if(LOG_RESPONSE) {
                 L.d("error, ioError " + e);
             }
             return new Response<T>(Error.ioError(e));
+        } finally {
+            if ( latency != null ) {
+                latency.record(System.currentTimeMillis() - start);
+            }
+            if ( acquired ) {
+                permits.release();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Response<T> readResponse(Class<T> clazz, BodyReader<T> reader, HttpURLConnection httpConnection, InputStream input) throws IOException {
+        final int statusCode = httpConnection.getResponseCode();
+        L.d("statusCode " + statusCode);
+        if ( statusCode == HttpURLConnection.HTTP_NOT_MODIFIED ) {
+            Response<T> notModified = new Response<T>(Error.httpError(statusCode));
+            notModified.setHeaders(httpConnection.getHeaderFields());
+            return notModified;
+        }
+        if ( statusCode == HttpURLConnection.HTTP_OK ||
+                statusCode == HttpURLConnection.HTTP_CREATED ) {
+            if ( "gzip".equalsIgnoreCase(httpConnection.getContentEncoding()) ) {
+                input = new GZIPInputStream(input);
+            }
+            try {
+                T value = null;
+                if ( reader != null ) {
+                    value = reader.read(input, httpConnection.getContentType());
+                } else if ( clazz != Void.class ) {
+                    if(LOG_RESPONSE || clazz == String.class) {
+                        String response = readText(input, httpConnection.getContentType());
+                        if( LOG_RESPONSE ) {
+                            L.d("response " + response);
+                        }
+                        if( clazz == String.class ) {
+                            value = (T) response;
+                        } else {
+                            value = objectMapper.readValue(response, clazz);
+                        }
+                    }
+                    else {
+                        // the shared mapper leaves the stream open, discard reads the rest of the body below
+                        value = objectMapper.readValue(input, clazz);
+                    }
+                }
+                Response<T> response = new Response<T>(value);
+                response.setHeaders(httpConnection.getHeaderFields());
+                return response;
+            } catch (JsonMappingException e ) {
+                return new Response<T>(Error.serlizerError(e));
+            } catch (JsonParseException e) {
+                return new Response<T>(Error.serlizerError(e));
+            } finally {
+                // the decoding stream does not read the underlying stream to the end
+                discard(input);
+            }
+        } else if(statusCode == HttpURLConnection.HTTP_NO_CONTENT) {
+            if ( clazz == null ) {
+                return new Response<T>((T) null);
+            }
+            try {
+                T def = clazz.newInstance();
+                if(LOG_RESPONSE) {
+                    L.d("statusCode  == HttpURLConnection.HTTP_NO_CONTENT");
+                }
+                return new Response<T>(def);
+            } catch (InstantiationException e) {
+                return new Response<T>(Error.ioError(e));
+            } catch (IllegalAccessException e) {
+                return new Response<T>(Error.ioError(e));
+            }
+        }  else {
+            if(LOG_RESPONSE) {
+                L.d("error, statusCode " + statusCode);
+            }
+            return new Response<T>(Error.httpError(statusCode));
+        }
+    }
+
+    /**
+     * Reads whole stream as text, decoded with charset of given content type (UTF-8 by default).
+     */
+    private static String readText(InputStream input, String contentType) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ( (read = input.read(buffer)) != -1 ) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toString(charset(contentType));
+    }
+
+    private static String charset(String contentType) {
+        if ( contentType != null ) {
+            for ( String parameter : contentType.split(";") ) {
+                parameter = parameter.trim();
+                if ( parameter.regionMatches(true, 0, "charset=", 0, 8) ) {
+                    return parameter.substring(8).replace("\"", "").trim();
+                }
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    /**
+     * Reads the rest of the stream and closes it, a fully consumed connection is returned to the keep-alive pool.
+     */
+    private static void discard(InputStream input) {
+        if ( input == null ) return;
+        try {
+            final byte[] buffer = new byte[4096];
+            while ( input.read(buffer) != -1 ) {
+                // discard
+            }
+        } catch ( InterruptedIOException e ) {
+            // timed out, connection will not be reused
+        } catch ( IOException e ) {
+            // connection will not be reused
+        } finally {
+            try {
+                input.close();
+            } catch ( IOException e ) {
+                // ignore
+            }
+        }
+    }
+
+    private static Semaphore getPermits(String host) {
+        Semaphore permits = hostPermits.get(host);
+        if ( permits == null ) {
+            synchronized (hostPermits) {
+                permits = hostPermits.get(host);
+                if ( permits == null ) {
+                    permits = new Semaphore(maxRequestsPerHost, true);
+                    hostPermits.put(host, permits);
+                }
+            }
+        }
+        return permits;
+    }
+
+    private static Histogram getLatency(String method, URL url) {
+        String endpoint = method + " " + url.getHost();
+        Histogram histogram = latencies.get(endpoint);
+        if ( histogram == null ) {
+            synchronized (latencies) {
+                //metrics are never evicted, keep their number bounded
+                if ( latencies.size() >= MAX_ENDPOINTS && !latencies.containsKey(endpoint) ) {
+                    endpoint = OTHER_ENDPOINT;
+                }
+                histogram = latencies.get(endpoint);
+                if ( histogram == null ) {
+                    histogram = Metrics.getInstance().histogram("http." + endpoint + ".ms");
+                    latencies.put(endpoint, histogram);
+                }
+            }
         }
+        return histogram;
     }
 }
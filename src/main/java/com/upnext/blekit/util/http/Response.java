@@ -25,6 +25,10 @@
  */
 package com.upnext.blekit.util.http;
 
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Entity representing HTTP response
  *
@@ -34,6 +38,7 @@ public class Response<T> {
 
     private T value;
     private Error error;
+    private Map<String, List<String>> headers;
 
     public Response() { }
 
@@ -67,6 +72,33 @@ public class Response<T> {
         return error;
     }
 
+    /**
+     * @return <code>true</code> if server responded with <code>304 Not Modified</code> to a conditional request
+     */
+    public boolean isNotModified() {
+        return error != null && error.type == Error.ErrorType.HTTP && error.httpErrorCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    public void setHeaders(Map<String, List<String>> headers) {
+        this.headers = headers;
+    }
+
+    /**
+     * Returns value of response header.
+     *
+     * @param name header name, case insensitive
+     * @return first value of the header or <code>null</code> if there is no such header
+     */
+    public String getHeader(String name) {
+        if ( headers == null ) return null;
+        for ( Map.Entry<String, List<String>> header : headers.entrySet() ) {
+            if ( name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty() ) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
     @Override
     public String toString() {
         return "Response [value=" + value + ", error=" + error + "]";
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+
+import com.upnext.blekit.actions.AlertAction;
+import com.upnext.blekit.actions.BLEAction;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ActionsFactoryTest {
+
+    private final ActionsFactory factory = new ActionsFactory();
+
+    @Test
+    public void sharesAnonymousActions() {
+        final BLEAction<Void> action = new TestAction("anonymous") {
+        };
+        factory.addAction(action);
+
+        final BoundAction bound = factory.bind("anonymous", null);
+        assertTrue( bound.isShared() );
+        assertSame( action, bound.newInstance() );
+    }
+
+    @Test
+    public void sharesConfiguredActions() {
+        final ConfiguredAction action = new ConfiguredAction("configured", "state");
+        factory.addAction(action);
+
+        final BoundAction bound = factory.bind("configured", null);
+        assertTrue( bound.isShared() );
+        assertSame( action, bound.newInstance() );
+    }
+
+    @Test
+    public void instantiatesActionsProvidingInstances() {
+        final InstantiableAction action = new InstantiableAction();
+        factory.addAction(action);
+
+        final BoundAction bound = factory.bind(InstantiableAction.TYPE, null);
+        assertFalse( bound.isShared() );
+        final BLEAction first = bound.newInstance();
+        assertNotSame( action, first );
+        assertNotSame( first, bound.newInstance() );
+    }
+
+    @Test
+    public void instantiatesBasicActions() {
+        final BoundAction bound = factory.bind(AlertAction.TYPE, null);
+        assertFalse( bound.isShared() );
+        assertNotSame( bound.getPrototype(), bound.newInstance() );
+    }
+
+    @Test
+    public void forgetsRemovedActions() {
+        factory.addAction(new ConfiguredAction("configured", "state"));
+        factory.remove("configured");
+        factory.addAction(new InstantiableAction() {
+            @Override
+            public String getType() {
+                return "configured";
+            }
+        });
+        assertFalse( factory.bind("configured", null).isShared() );
+    }
+
+    private static class TestAction extends BLEAction<Void> {
+        private final String type;
+
+        TestAction( String type ) {
+            this.type = type;
+        }
+
+        @Override
+        public String getType() {
+            return type;
+        }
+
+        @Override
+        public Class<Void> getParameterClass() {
+            return Void.class;
+        }
+
+        @Override
+        public void performInBackground( Context context ) {
+        }
+
+        @Override
+        public void performInForeground( Activity activity ) {
+        }
+
+        @Override
+        public void processIntent( Intent intent, Activity activity ) {
+        }
+    }
+
+    private static class ConfiguredAction extends TestAction {
+        final String state;
+
+        ConfiguredAction( String type, String state ) {
+            super(type);
+            this.state = state;
+        }
+    }
+
+    private static class InstantiableAction extends TestAction {
+        static final String TYPE = "instantiable";
+
+        InstantiableAction() {
+            super(TYPE);
+        }
+
+        @Override
+        public BLEAction<Void> getInstance() {
+            return new InstantiableAction();
+        }
+    }
+}
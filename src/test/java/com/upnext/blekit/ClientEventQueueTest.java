@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ClientEventQueueTest {
+
+    private final ClientEventQueue queue = new ClientEventQueue();
+
+    @Test
+    public void sendsRegionEventsAheadOfProximityUpdates() {
+        queue.offer(BeaconEvent.CAME_NEAR, "a", null);
+        queue.offer(BeaconEvent.REGION_ENTER, "b", null);
+        queue.offer(BeaconEvent.CAME_FAR, "c", null);
+        queue.offer(BeaconEvent.REGION_ENTER, "c", null);
+
+        assertPolled( BeaconEvent.REGION_ENTER, "b", 0 );
+        assertPolled( BeaconEvent.REGION_ENTER, "c", 0 );
+        assertPolled( BeaconEvent.CAME_NEAR, "a", 0 );
+        assertPolled( BeaconEvent.CAME_FAR, "c", 0 );
+        assertNull( queue.poll(0) );
+        assertEquals( 4, queue.getStats().sent );
+    }
+
+    @Test
+    public void conflatesProximityUpdatesOfBeacon() {
+        queue.offer(BeaconEvent.CAME_FAR, "a", null);
+        queue.offer(BeaconEvent.CAME_FAR, "b", null);
+        queue.offer(BeaconEvent.CAME_IMMEDIATE, "a", null);
+
+        assertEquals( 2, queue.getStats().depth );
+        assertEquals( 1, queue.getStats().conflated );
+        assertPolled( BeaconEvent.CAME_IMMEDIATE, "a", 0 );
+        assertPolled( BeaconEvent.CAME_FAR, "b", 0 );
+    }
+
+    @Test
+    public void leaveDropsWaitingProximityUpdates() {
+        queue.offer(BeaconEvent.REGION_ENTER, "a", null);
+        queue.offer(BeaconEvent.CAME_NEAR, "a", null);
+        queue.offer(BeaconEvent.REGION_LEAVE, "a", null);
+
+        assertEquals( 1, queue.getStats().conflated );
+        assertPolled( BeaconEvent.REGION_ENTER, "a", 0 );
+        assertPolled( BeaconEvent.REGION_LEAVE, "a", 0 );
+        assertNull( queue.poll(0) );
+    }
+
+    @Test
+    public void dropsOldestRegionEventsWhenFull() {
+        for( int i=0; i<ClientEventQueue.MAX_REGION_EVENTS+3; i++ ) {
+            queue.offer(BeaconEvent.REGION_ENTER, "b" + i, null);
+        }
+
+        final ClientEventQueue.Stats stats = queue.getStats();
+        assertEquals( ClientEventQueue.MAX_REGION_EVENTS, stats.depth );
+        assertEquals( 3, stats.dropped );
+        assertPolled( BeaconEvent.REGION_ENTER, "b3", 0 );
+    }
+
+    @Test
+    public void sendsEverythingToClientsThatNeverAcknowledge() {
+        for( int i=0; i<5; i++ ) {
+            queue.offer(BeaconEvent.REGION_ENTER, "b" + i, null);
+        }
+        for( int i=0; i<5; i++ ) {
+            assertPolled( BeaconEvent.REGION_ENTER, "b" + i, 0 );
+        }
+        assertEquals( 0, queue.getStats().inFlight );
+    }
+
+    @Test
+    public void limitsEventsInFlight() {
+        queue.acknowledged();
+        for( int i=0; i<4; i++ ) {
+            queue.offer(BeaconEvent.REGION_ENTER, "b" + i, null);
+        }
+
+        assertPolled( BeaconEvent.REGION_ENTER, "b0", 0 );
+        assertPolled( BeaconEvent.REGION_ENTER, "b1", 0 );
+        assertNull( queue.poll(0) );
+        assertEquals( ClientEventQueue.MAX_IN_FLIGHT, queue.getStats().inFlight );
+
+        queue.acknowledged();
+        assertPolled( BeaconEvent.REGION_ENTER, "b2", 0 );
+        assertNull( queue.poll(0) );
+        assertEquals( 1, queue.getStats().depth );
+    }
+
+    @Test
+    public void assumesMissingAcknowledgementsLost() {
+        queue.acknowledged();
+        for( int i=0; i<3; i++ ) {
+            queue.offer(BeaconEvent.REGION_ENTER, "b" + i, null);
+        }
+        assertPolled( BeaconEvent.REGION_ENTER, "b0", 1000 );
+        assertPolled( BeaconEvent.REGION_ENTER, "b1", 1000 );
+
+        assertNull( queue.poll(1000 + ClientEventQueue.ACK_TIMEOUT_MILLIS - 1) );
+        assertPolled( BeaconEvent.REGION_ENTER, "b2", 1000 + ClientEventQueue.ACK_TIMEOUT_MILLIS );
+
+        final ClientEventQueue.Stats stats = queue.getStats();
+        assertEquals( 1, stats.ackTimeouts );
+        assertEquals( 1, stats.inFlight );
+    }
+
+    private void assertPolled( BeaconEvent event, String beaconId, long now ) {
+        final ClientEventQueue.Entry entry = queue.poll(now);
+        assertSame( event, entry!=null ? entry.event : null );
+        assertEquals( beaconId, entry.beaconId );
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import com.upnext.blekit.actions.AlertAction;
+import com.upnext.blekit.model.Action;
+import com.upnext.blekit.model.Beacon;
+import com.upnext.blekit.model.Trigger;
+import com.upnext.blekit.model.Zone;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class CompiledZoneTest {
+
+    private final ActionsFactory actionsFactory = new ActionsFactory();
+
+    @Test
+    public void doesNotModifyNewZone() {
+        final Zone oldZone = zone(beacon("a", 1), beacon("b", 2));
+        final CompiledZone compiled = CompiledZone.compile(oldZone, actionsFactory);
+
+        final Beacon a = beacon("a", 1);
+        final Beacon c = beacon("c", 3);
+        final Zone newZone = zone();
+        newZone.beacons = Collections.unmodifiableList(Arrays.asList(a, c));
+        final CompiledZone applied = compiled.apply(newZone, ZoneDiff.compute(oldZone, newZone));
+
+        assertEquals( Arrays.asList(a, c), newZone.beacons );
+        assertSame( newZone, applied.getSource() );
+        assertNotSame( newZone, applied.getZone() );
+        assertEquals( newZone.id, applied.getZone().id );
+    }
+
+    @Test
+    public void reusesUnchangedBeacons() {
+        final Zone oldZone = zone(beacon("a", 1), beacon("b", 2));
+        final CompiledZone compiled = CompiledZone.compile(oldZone, actionsFactory);
+        final Beacon oldA = oldZone.beacons.get(0);
+        final BoundAction action = compiled.getAction(oldA.triggers.get(0));
+        assertNotNull( action );
+
+        final Beacon b = beacon("b", 5);
+        final Zone newZone = zone(beacon("a", 1), b);
+        final CompiledZone applied = compiled.apply(newZone, ZoneDiff.compute(oldZone, newZone));
+
+        assertEquals( Arrays.asList(oldA, b), applied.getZone().beacons );
+        assertEquals( Arrays.asList(oldA), applied.getBeacons("A") );
+        assertSame( action, applied.getAction(oldA.triggers.get(0)) );
+        assertNotNull( applied.getAction(b.triggers.get(0)) );
+        assertEquals( Arrays.asList("a", "b"), new ArrayList<String>(applied.getBeaconIds()) );
+    }
+
+    @Test
+    public void compiledZoneIsItsSource() {
+        final Zone zone = zone(beacon("a", 1));
+        final CompiledZone compiled = CompiledZone.compile(zone, actionsFactory);
+        assertSame( zone, compiled.getZone() );
+        assertSame( zone, compiled.getSource() );
+    }
+
+    private static Zone zone( Beacon... beacons ) {
+        final Zone zone = new Zone();
+        zone.id = "zone";
+        zone.beacons = new ArrayList<Beacon>(Arrays.asList(beacons));
+        return zone;
+    }
+
+    private static Beacon beacon( String id, long triggerId ) {
+        final Action action = new Action();
+        action.type = AlertAction.TYPE;
+
+        final Trigger trigger = new Trigger();
+        trigger.id = triggerId;
+        trigger.action = action;
+
+        final Beacon beacon = new Beacon();
+        beacon.id = id;
+        final List<Trigger> triggers = new ArrayList<Trigger>();
+        triggers.add(trigger);
+        beacon.triggers = triggers;
+        return beacon;
+    }
+}
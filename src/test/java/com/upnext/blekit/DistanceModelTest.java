@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class DistanceModelTest {
+
+    private static final String BEACON = "UUID+1+2";
+
+    private final DistanceModel model = new DistanceModel();
+
+    @Test
+    public void fitsExactSamples() {
+        final DistanceModel.Fit fit = DistanceModel.fit(samples(-60, 2.5, 0.5, 1, 2, 4, 8));
+        assertEquals( -60, fit.txPower, 1e-9 );
+        assertEquals( 2.5, fit.pathLossExponent, 1e-9 );
+        assertEquals( 0, fit.rmse, 1e-9 );
+        assertEquals( 5, fit.samples );
+    }
+
+    @Test
+    public void fitsNoisySamples() {
+        final List<DistanceModel.Sample> samples = new ArrayList<DistanceModel.Sample>();
+        final double[] noise = { 2, -2, 1.5, -1.5, 0.5, -0.5 };
+        for( int i=0; i<noise.length; i++ ) {
+            final double distance = 1 + i;
+            samples.add(new DistanceModel.Sample(distance, -65 - 20*Math.log10(distance) + noise[i]));
+        }
+        final DistanceModel.Fit fit = DistanceModel.fit(samples);
+        assertEquals( -65, fit.txPower, 2 );
+        assertEquals( 2, fit.pathLossExponent, 0.3 );
+        assertEquals( 1.4, fit.rmse, 0.3 );
+    }
+
+    @Test
+    public void ignoresSamplesWithoutDistance() {
+        final List<DistanceModel.Sample> samples = samples(-60, 2, 1, 10);
+        samples.add(new DistanceModel.Sample(0, -20));
+        samples.add(new DistanceModel.Sample(-1, -20));
+        final DistanceModel.Fit fit = DistanceModel.fit(samples);
+        assertEquals( -60, fit.txPower, 1e-9 );
+        assertEquals( 2, fit.samples );
+    }
+
+    @Test
+    public void requiresTwoDistances() {
+        assertNotFitted( new ArrayList<DistanceModel.Sample>() );
+        assertNotFitted( samples(-60, 2, 3) );
+        assertNotFitted( samples(-60, 2, 3, 3, 3) );
+        assertNotFitted( Arrays.asList(new DistanceModel.Sample(0, -60), new DistanceModel.Sample(2, -66)) );
+    }
+
+    @Test
+    public void calibratesBeaconWithDeviceOffset() {
+        model.setRssiOffset(3);
+        final DistanceModel.Fit fit = model.calibrateBeacon(BEACON, samples(-70, 3, 1, 2, 5));
+        assertEquals( 3, fit.pathLossExponent, 1e-9 );
+        assertEquals( -67, model.getTxPower(BEACON.toLowerCase(), -59) );
+        assertEquals( DistanceModel.DEFAULT_PATH_LOSS_EXPONENT, model.getPathLossExponent(), 0 );
+        assertEquals( Integer.valueOf(-67), model.getCalibratedTxPowers().get(BEACON.toLowerCase()) );
+    }
+
+    @Test
+    public void calibratesDeviceAgainstReferenceBeacon() {
+        model.setConfiguredTxPower(BEACON, -62);
+        assertEquals( 4, model.calibrateDevice(BEACON, samples(-66, 2, 1, 2, 4)), 1e-9 );
+        assertEquals( 4, model.getRssiOffset(), 0 );
+        assertEquals( 2, model.distance(BEACON, 0, -62 - 4 - 20*Math.log10(2)), 1e-9 );
+    }
+
+    @Test
+    public void prefersCalibratedOverConfiguredOverAdvertisedTxPower() {
+        assertEquals( DistanceModel.DEFAULT_TX_POWER, model.getTxPower(BEACON, 0) );
+        assertEquals( DistanceModel.DEFAULT_TX_POWER, model.getTxPower(BEACON, -10) );
+        assertEquals( -70, model.getTxPower(BEACON, -70) );
+
+        model.setConfiguredTxPower(BEACON, -65);
+        assertEquals( -65, model.getTxPower(BEACON, -70) );
+        model.setCalibratedTxPower(BEACON.toLowerCase(), -61);
+        assertEquals( -61, model.getTxPower(BEACON, -70) );
+
+        model.setConfiguredTxPower(BEACON, null);
+        assertEquals( -61, model.getTxPower(BEACON, -70) );
+        model.setCalibratedTxPower(BEACON, null);
+        assertEquals( -70, model.getTxPower(BEACON, -70) );
+        assertEquals( -70, model.getTxPower(null, -70) );
+    }
+
+    @Test
+    public void estimatesDistance() {
+        assertEquals( 1, model.distance(BEACON, -60, -60), 1e-9 );
+        assertEquals( 10, model.distance(BEACON, -60, -80), 1e-9 );
+        assertEquals( -1, model.distance(BEACON, -60, 0), 0 );
+
+        model.setPathLossExponent(4);
+        assertEquals( Math.sqrt(10), model.distance(BEACON, -60, -80), 1e-9 );
+        try {
+            model.setPathLossExponent(0);
+            fail( "Exponent must be positive" );
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    private static List<DistanceModel.Sample> samples( double txPower, double exponent, double... distances ) {
+        final List<DistanceModel.Sample> samples = new ArrayList<DistanceModel.Sample>();
+        for( double distance : distances ) {
+            samples.add(new DistanceModel.Sample(distance, txPower - 10*exponent*Math.log10(distance)));
+        }
+        return samples;
+    }
+
+    private static void assertNotFitted( List<DistanceModel.Sample> samples ) {
+        try {
+            DistanceModel.fit(samples);
+            fail( "Samples " + samples.size() + " should not be fitted" );
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RegionBudgetTest {
+
+    private static final long MINUTE = 60*1000;
+    private static final Set<String> NONE = Collections.emptySet();
+
+    private final RegionBudget budget = new RegionBudget(4);
+    private final List<String> candidates = ids(0, 10);
+
+    @Test
+    public void registersAllBeaconsWithinBudget() {
+        final List<String> few = ids(0, 4);
+        assertEquals( new HashSet<String>(few), budget.select(few, set("b1"), NONE, 0) );
+
+        final RegionBudget.Stats stats = budget.getStats();
+        assertEquals( 4, stats.registered );
+        assertEquals( 1, stats.pinned );
+        assertEquals( 0, stats.rotating );
+        assertEquals( 0, stats.rotationCycle );
+        assertEquals( 1, stats.getCoverage(), 0 );
+    }
+
+    @Test
+    public void keepsBestRankedBeaconsAndRotatesTheRest() {
+        budget.setTriggerCount("b7", 3);
+        budget.setTriggerCount("b8", 4);
+        budget.setTriggerCount("b9", 5);
+
+        final Set<String> visited = new HashSet<String>();
+        for( int i=0; i<7; i++ ) {
+            final Set<String> selected = budget.select(candidates, NONE, NONE, i*MINUTE);
+            assertEquals( 4, selected.size() );
+            assertTrue( selected.containsAll(set("b7", "b8", "b9")) );
+            visited.addAll(selected);
+            budget.rotate(i*MINUTE);
+        }
+        assertEquals( new HashSet<String>(candidates), visited );
+
+        final RegionBudget.Stats stats = budget.getStats();
+        assertEquals( 10, stats.candidates );
+        assertEquals( 1, stats.rotating );
+        assertEquals( 7, stats.rotationCycle );
+        assertEquals( 6, stats.rotations );
+        assertEquals( 0.4, stats.getCoverage(), 1e-9 );
+        assertEquals( 6*MINUTE, budget.getLastRotation() );
+    }
+
+    @Test
+    public void alwaysRegistersBeaconsInRange() {
+        final Set<String> present = set("b0", "b1", "b2", "b3", "b4");
+        final Set<String> selected = budget.select(candidates, present, NONE, 0);
+        assertEquals( present, selected );
+        assertEquals( 5, budget.getStats().pinned );
+        assertEquals( 0, budget.getStats().rotating );
+
+        budget.setTriggerCount("b9", 10);
+        assertTrue( budget.select(candidates, set("b0"), NONE, 0).contains("b0") );
+    }
+
+    @Test
+    public void ranksForegroundAndRecentlySightedBeaconsHigher() {
+        budget.setTriggerCount("b5", 2);
+        budget.setTriggerCount("b6", 2);
+        budget.sighted("b0", 0);
+        budget.sighted("b0", 0);
+        final Set<String> selected = budget.select(candidates, NONE, set("b1"), MINUTE);
+        assertTrue( selected.containsAll(set("b0", "b1")) );
+        assertTrue( selected.contains("b5") || selected.contains("b6") );
+    }
+
+    @Test
+    public void sightingsDecay() {
+        budget.setTriggerCount("b5", 2);
+        budget.setTriggerCount("b6", 2);
+        budget.setTriggerCount("b7", 2);
+        budget.sighted("b0", 0);
+        budget.sighted("b0", 0);
+
+        assertTrue( budget.select(candidates, NONE, NONE, MINUTE).contains("b0") );
+        final Set<String> later = budget.select(candidates, NONE, NONE, 120*MINUTE);
+        assertTrue( later.containsAll(set("b5", "b6", "b7")) );
+    }
+
+    @Test
+    public void forgetsRemovedBeacons() {
+        budget.setTriggerCount("b9", 5);
+        budget.sighted("b9", 0);
+        budget.remove("b9");
+        budget.setTriggerCount("b0", 2);
+        budget.setTriggerCount("b1", 2);
+        budget.setTriggerCount("b2", 2);
+        assertEquals( set("b0", "b1", "b2", "b3"), budget.select(candidates, NONE, NONE, 0) );
+    }
+
+    @Test
+    public void hasAtLeastOneRegion() {
+        assertEquals( 1, new RegionBudget(0).getMaxRegions() );
+    }
+
+    private static List<String> ids( int from, int to ) {
+        final List<String> ids = new ArrayList<String>();
+        for( int i=from; i<to; i++ ) {
+            ids.add("b" + i);
+        }
+        return ids;
+    }
+
+    private static Set<String> set( String... ids ) {
+        return new HashSet<String>(Arrays.asList(ids));
+    }
+}
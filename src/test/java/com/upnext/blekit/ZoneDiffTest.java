@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.upnext.blekit.model.Action;
+import com.upnext.blekit.model.Beacon;
+import com.upnext.blekit.model.Condition;
+import com.upnext.blekit.model.Trigger;
+import com.upnext.blekit.model.TriggerLimits;
+import com.upnext.blekit.model.Zone;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZoneDiffTest {
+
+    private static final String A = "uuid+1+1";
+    private static final String B = "uuid+1+2";
+    private static final String C = "uuid+1+3";
+
+    @Test
+    public void sameZonesHaveNoDifference() {
+        final ZoneDiff diff = ZoneDiff.compute(zone(beacon(A, 1), beacon(B, 2)), zone(beacon(A, 1), beacon(B, 2)));
+        assertTrue( diff.isEmpty() );
+        assertFalse( diff.hasBeaconIdChanges() );
+    }
+
+    @Test
+    public void findsAddedAndRemovedBeacons() {
+        final ZoneDiff diff = ZoneDiff.compute(zone(beacon(A, 1), beacon(B, 2)), zone(beacon(B, 2), beacon(C, 3)));
+        assertEquals( Arrays.asList(C), diff.getAddedBeaconIds() );
+        assertEquals( Arrays.asList(A), diff.getRemovedBeaconIds() );
+        assertTrue( diff.getChangedBeaconIds().isEmpty() );
+        assertTrue( diff.hasBeaconIdChanges() );
+    }
+
+    @Test
+    public void handlesMissingZones() {
+        assertEquals( Arrays.asList(A), ZoneDiff.compute(null, zone(beacon(A, 1))).getAddedBeaconIds() );
+        assertEquals( Arrays.asList(A), ZoneDiff.compute(zone(beacon(A, 1)), new Zone()).getRemovedBeaconIds() );
+        assertTrue( ZoneDiff.compute(null, null).isEmpty() );
+    }
+
+    @Test
+    public void matchesIdentifiersIgnoringCase() {
+        final Beacon upper = beacon(A.toUpperCase(), 1);
+        final ZoneDiff diff = ZoneDiff.compute(zone(upper), zone(beacon(A, 1)));
+        assertFalse( diff.hasBeaconIdChanges() );
+        assertEquals( Collections.singleton(A), diff.getChangedBeaconIds() );
+    }
+
+    @Test
+    public void ignoresBeaconsWithoutIdentifier() {
+        assertTrue( ZoneDiff.compute(zone(beacon(A, 1)), zone(beacon(A, 1), beacon(null, 2))).isEmpty() );
+    }
+
+    @Test
+    public void findsChangedBeacons() {
+        final Beacon txPower = beacon(A, 1);
+        txPower.tx_power = -60;
+        assertChanged( beacon(A, 1), txPower );
+
+        final Beacon trigger = beacon(A, 1);
+        trigger.triggers.get(0).id = 2;
+        assertChanged( beacon(A, 1), trigger );
+
+        final Beacon action = beacon(A, 1);
+        action.triggers.get(0).action.parameters = JsonNodeFactory.instance.objectNode().put("url", "http://example.com");
+        assertChanged( beacon(A, 1), action );
+
+        final Beacon condition = beacon(A, 1);
+        condition.triggers.get(0).conditions.get(0).expression = "count < 3";
+        assertChanged( beacon(A, 1), condition );
+
+        final Beacon limits = beacon(A, 1);
+        limits.triggers.get(0).limits = new TriggerLimits();
+        assertChanged( beacon(A, 1), limits );
+    }
+
+    @Test
+    public void comparesDuplicateIdentifiersInOrder() {
+        assertTrue( ZoneDiff.compute(zone(beacon(A, 1), beacon(A, 2)), zone(beacon(A, 1), beacon(A, 2))).isEmpty() );
+        assertEquals( Collections.singleton(A), ZoneDiff.compute(zone(beacon(A, 1), beacon(A, 2)), zone(beacon(A, 2), beacon(A, 1))).getChangedBeaconIds() );
+        assertEquals( Collections.singleton(A), ZoneDiff.compute(zone(beacon(A, 1), beacon(A, 2)), zone(beacon(A, 1))).getChangedBeaconIds() );
+    }
+
+    @Test
+    public void comparesActions() {
+        final Action action = beacon(A, 1).triggers.get(0).action;
+        assertTrue( ZoneDiff.sameAction(action, beacon(A, 1).triggers.get(0).action) );
+        assertTrue( ZoneDiff.sameAction(null, null) );
+        assertFalse( ZoneDiff.sameAction(action, null) );
+        assertFalse( ZoneDiff.sameAction(action, beacon(A, 2).triggers.get(0).action) );
+    }
+
+    private static void assertChanged( Beacon oldBeacon, Beacon newBeacon ) {
+        final ZoneDiff diff = ZoneDiff.compute(zone(oldBeacon, beacon(B, 2)), zone(newBeacon, beacon(B, 2)));
+        assertEquals( new HashSet<String>(Arrays.asList(A)), diff.getChangedBeaconIds() );
+        assertFalse( diff.hasBeaconIdChanges() );
+    }
+
+    private static Zone zone( Beacon... beacons ) {
+        final Zone zone = new Zone();
+        zone.id = "zone";
+        zone.beacons = new ArrayList<Beacon>(Arrays.asList(beacons));
+        return zone;
+    }
+
+    private static Beacon beacon( String id, int variant ) {
+        final Action action = new Action();
+        action.id = "action";
+        action.type = "alert";
+        action.parameters = JsonNodeFactory.instance.objectNode().put("message", "hello " + variant);
+
+        final Condition condition = new Condition();
+        condition.id = variant;
+        condition.type = "enter";
+        condition.parameters = JsonNodeFactory.instance.objectNode();
+
+        final Trigger trigger = new Trigger();
+        trigger.id = 1;
+        trigger.name = "trigger";
+        trigger.action = action;
+        trigger.conditions = new ArrayList<Condition>(Arrays.asList(condition));
+
+        final Beacon beacon = new Beacon();
+        beacon.id = id;
+        beacon.name = "beacon";
+        beacon.triggers = new ArrayList<Trigger>(Arrays.asList(trigger));
+        return beacon;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import com.upnext.blekit.model.Zone;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class JsonParserTest {
+
+    @Test
+    public void sharedMapperLeavesStreamsOpen() throws IOException {
+        final Stream in = new Stream("{\"id\":\"zone\"}   ");
+
+        final Zone zone = JsonParser.getObjectMapper().readValue(in, Zone.class);
+
+        assertEquals( "zone", zone.id );
+        assertFalse( in.closed );
+        //rest of the body can still be read, so that the connection is kept alive
+        while( in.read()!=-1 ) {
+            //discard
+        }
+    }
+
+    @Test
+    public void readersLeaveStreamsOpen() throws IOException {
+        final Stream in = new Stream("[{\"id\":\"a\"},{\"id\":\"b\"}]");
+
+        final Zone[] zones = JsonParser.getReader(Zone[].class).readValue(in);
+
+        assertEquals( 2, zones.length );
+        assertFalse( in.closed );
+    }
+
+    @Test
+    public void ignoresUnknownProperties() {
+        assertEquals( "zone", JsonParser.getInstance().parse("{\"id\":\"zone\",\"unknown\":1}").id );
+    }
+
+    /**
+     * Stream failing after close, as a connection stream does.
+     */
+    private static class Stream extends InputStream {
+        private final InputStream in;
+        boolean closed;
+
+        Stream( String content ) throws IOException {
+            in = new ByteArrayInputStream(content.getBytes("UTF-8"));
+        }
+
+        @Override
+        public int read() throws IOException {
+            if( closed ) throw new IOException( "Stream Closed" );
+            return in.read();
+        }
+
+        @Override
+        public int read( byte[] buffer, int offset, int count ) throws IOException {
+            if( closed ) throw new IOException( "Stream Closed" );
+            return in.read(buffer, offset, count);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class JsonPatchTest {
+
+    @Test
+    public void addsMembersAndElements() throws IOException {
+        assertPatched( "{'foo':'bar','baz':'qux'}", "{'foo':'bar'}", "[{'op':'add','path':'/baz','value':'qux'}]" );
+        assertPatched( "{'foo':['bar','qux','baz']}", "{'foo':['bar','baz']}", "[{'op':'add','path':'/foo/1','value':'qux'}]" );
+        assertPatched( "{'foo':['bar','qux']}", "{'foo':['bar']}", "[{'op':'add','path':'/foo/-','value':'qux'}]" );
+        assertPatched( "{'foo':'bar'}", "{'foo':'baz'}", "[{'op':'add','path':'/foo','value':'bar'}]" );
+    }
+
+    @Test
+    public void removesAndReplaces() throws IOException {
+        assertPatched( "{'foo':'bar'}", "{'foo':'bar','baz':'qux'}", "[{'op':'remove','path':'/baz'}]" );
+        assertPatched( "{'foo':['bar','baz']}", "{'foo':['bar','qux','baz']}", "[{'op':'remove','path':'/foo/1'}]" );
+        assertPatched( "{'foo':'bar','baz':'boo'}", "{'foo':'bar','baz':'qux'}", "[{'op':'replace','path':'/baz','value':'boo'}]" );
+        assertPatched( "[1]", "{'foo':'bar'}", "[{'op':'replace','path':'','value':[1]}]" );
+    }
+
+    @Test
+    public void movesAndCopies() throws IOException {
+        assertPatched( "{'foo':{'bar':'baz'},'qux':{'corge':'grault','thud':'fred'}}",
+                "{'foo':{'bar':'baz','waldo':'fred'},'qux':{'corge':'grault'}}",
+                "[{'op':'move','from':'/foo/waldo','path':'/qux/thud'}]" );
+        assertPatched( "{'foo':['all','cows','eat','grass']}", "{'foo':['all','grass','cows','eat']}",
+                "[{'op':'move','from':'/foo/1','path':'/foo/3'}]" );
+        assertPatched( "{'foo':{'a':1},'bar':{'a':1}}", "{'foo':{'a':1}}", "[{'op':'copy','from':'/foo','path':'/bar'}]" );
+    }
+
+    @Test
+    public void copiesAreIndependent() throws IOException {
+        assertPatched( "{'foo':{'a':1},'bar':{'a':2}}", "{'foo':{'a':1}}",
+                "[{'op':'copy','from':'/foo','path':'/bar'},{'op':'replace','path':'/bar/a','value':2}]" );
+    }
+
+    @Test
+    public void unescapesPointers() throws IOException {
+        assertPatched( "{'a/b':1,'m~n':3}", "{'a/b':1,'m~n':2}", "[{'op':'test','path':'/a~1b','value':1},{'op':'replace','path':'/m~0n','value':3}]" );
+    }
+
+    @Test
+    public void rejectsInvalidPatches() {
+        assertRejected( "{'foo':'bar'}", "{'op':'add','path':'/baz','value':1}" );
+        assertRejected( "{'foo':'bar'}", "[{'op':'test','path':'/foo','value':'baz'}]" );
+        assertRejected( "{'foo':'bar'}", "[{'op':'remove','path':'/baz'}]" );
+        assertRejected( "{'foo':'bar'}", "[{'op':'add','path':'/baz/bat','value':1}]" );
+        assertRejected( "{'foo':'bar'}", "[{'op':'add','path':'baz','value':1}]" );
+        assertRejected( "{'foo':'bar'}", "[{'op':'add','path':'/baz'}]" );
+        assertRejected( "{'foo':'bar'}", "[{'op':'merge','path':'/baz','value':1}]" );
+        assertRejected( "{'foo':'bar'}", "[{'op':'remove','path':''}]" );
+        assertRejected( "{'foo':[1,2]}", "[{'op':'add','path':'/foo/3','value':1}]" );
+        assertRejected( "{'foo':[1,2]}", "[{'op':'remove','path':'/foo/2'}]" );
+        assertRejected( "{'foo':[1,2]}", "[{'op':'remove','path':'/foo/01'}]" );
+        assertRejected( "{'foo':[1,2]}", "[{'op':'remove','path':'/foo/-'}]" );
+    }
+
+    private static void assertPatched( String expected, String document, String patch ) throws IOException {
+        assertEquals( tree(expected), JsonPatch.apply(tree(document), tree(patch)) );
+    }
+
+    private static void assertRejected( String document, String patch ) {
+        try {
+            JsonPatch.apply(tree(document), tree(patch));
+            fail( "Patch " + patch + " should be rejected" );
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    private static JsonNode tree( String json ) throws IOException {
+        return JsonParser.getObjectMapper().readTree(json.replace('\'', '"'));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import com.upnext.blekit.BeaconEvent;
+import com.upnext.blekit.EventOccurenceUnit;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class OccurenceCountersTest {
+
+    private static final long MINUTE = 60*1000;
+    private static final long HOUR = 60*MINUTE;
+    private static final long DAY = 24*HOUR;
+    //start of a bucket of every ring
+    private static final long START = 3000*7*DAY;
+
+    private static final String BEACON = "uuid+1+2";
+    private static final String ENTER = BeaconEvent.REGION_ENTER.name();
+
+    private final OccurenceCounters counters = new OccurenceCounters();
+
+    @Test
+    public void countsOccurencesWithinEveryUnit() {
+        counters.add(BEACON, ENTER, START);
+        counters.add(BEACON, ENTER, START + 10*MINUTE, 2);
+
+        assertEquals( 3, count(EventOccurenceUnit.HOUR, START + 10*MINUTE) );
+        assertEquals( 3, count(EventOccurenceUnit.DAY, START + 10*MINUTE) );
+        assertEquals( 3, count(EventOccurenceUnit.MONTH, START + 10*MINUTE) );
+        assertEquals( 3, count(EventOccurenceUnit.YEAR, START + 10*MINUTE) );
+        assertEquals( 3, count(EventOccurenceUnit.TOTAL, START + 10*MINUTE) );
+    }
+
+    @Test
+    public void windowsSlideByWholeBuckets() {
+        counters.add(BEACON, ENTER, START);
+        counters.add(BEACON, ENTER, START + 30*MINUTE);
+
+        assertEquals( 2, count(EventOccurenceUnit.HOUR, START + 59*MINUTE) );
+        assertEquals( 1, count(EventOccurenceUnit.HOUR, START + 60*MINUTE) );
+        assertEquals( 0, count(EventOccurenceUnit.HOUR, START + 90*MINUTE) );
+
+        assertEquals( 2, count(EventOccurenceUnit.DAY, START + DAY - 1) );
+        assertEquals( 1, count(EventOccurenceUnit.DAY, START + DAY) );
+        assertEquals( 2, count(EventOccurenceUnit.MONTH, START + 29*DAY) );
+        assertEquals( 0, count(EventOccurenceUnit.MONTH, START + 30*DAY) );
+        assertEquals( 2, count(EventOccurenceUnit.YEAR, START + 52*7*DAY) );
+        assertEquals( 0, count(EventOccurenceUnit.YEAR, START + 53*7*DAY) );
+        assertEquals( 2, count(EventOccurenceUnit.TOTAL, START + 1000*DAY) );
+    }
+
+    @Test
+    public void ignoresOccurencesOlderThanTheWindow() {
+        counters.add(BEACON, ENTER, START + 2*HOUR);
+        counters.add(BEACON, ENTER, START);
+
+        assertEquals( 1, count(EventOccurenceUnit.HOUR, START + 2*HOUR) );
+        assertEquals( 2, count(EventOccurenceUnit.DAY, START + 2*HOUR) );
+        assertEquals( 2, count(EventOccurenceUnit.TOTAL, START + 2*HOUR) );
+    }
+
+    @Test
+    public void countsPerBeaconAndEvent() {
+        counters.add(BEACON, ENTER, START);
+        counters.add("uuid+1+3", ENTER, START);
+        counters.add(BEACON, BeaconEvent.REGION_LEAVE.name(), START);
+
+        assertEquals( 1, count(EventOccurenceUnit.TOTAL, START) );
+        assertEquals( 0, counters.count("uuid+1+4", BeaconEvent.REGION_ENTER, EventOccurenceUnit.TOTAL, START) );
+        assertEquals( 0, counters.count(BEACON, BeaconEvent.CAME_IMMEDIATE, EventOccurenceUnit.TOTAL, START) );
+        assertEquals( 3, counters.size() );
+    }
+
+    @Test
+    public void survivesCheckpoint() throws IOException {
+        counters.add(BEACON, ENTER, START);
+        counters.add(BEACON, ENTER, START + 40*MINUTE, 4);
+        counters.setLastRowId(42);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        counters.writeTo(new DataOutputStream(bytes));
+        final OccurenceCounters restored = OccurenceCounters.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertNotNull( restored );
+        assertEquals( 42, restored.getLastRowId() );
+        assertEquals( 4, restored.count(BEACON, BeaconEvent.REGION_ENTER, EventOccurenceUnit.HOUR, START + 70*MINUTE) );
+        assertEquals( 5, restored.count(BEACON, BeaconEvent.REGION_ENTER, EventOccurenceUnit.DAY, START + 70*MINUTE) );
+        assertEquals( 5, restored.count(BEACON, BeaconEvent.REGION_ENTER, EventOccurenceUnit.TOTAL, START + 70*MINUTE) );
+    }
+
+    @Test
+    public void rejectsUnknownFormat() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(-1);
+        assertNull( OccurenceCounters.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) );
+    }
+
+    private int count( EventOccurenceUnit unit, long now ) {
+        return counters.count(BEACON, BeaconEvent.REGION_ENTER, unit, now);
+    }
+}
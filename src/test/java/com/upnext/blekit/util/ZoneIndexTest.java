@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util;
+
+import com.upnext.blekit.model.Location;
+import com.upnext.blekit.model.Zone;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ZoneIndexTest {
+
+    //0.01 degree of latitude, in kilometers
+    private static final double KM = 1.112;
+
+    @Test
+    public void findsZonesWithinActivationDistance() {
+        final ZoneIndex index = new ZoneIndex();
+        final Zone zone = zone("zone", 52.5, 13.4, 500);
+        index.put(zone);
+
+        assertEquals( Arrays.asList(zone), index.query(52.5 + 1.3/KM*0.01, 13.4) );
+        assertTrue( index.query(52.5 + 1.7/KM*0.01, 13.4).isEmpty() );
+        assertTrue( index.query(52.5, 13.5).isEmpty() );
+    }
+
+    @Test
+    public void usesRadiusUnit() {
+        final ZoneIndex index = new ZoneIndex(1, ZoneIndex.RADIUS_KILOMETERS);
+        final Zone zone = zone("zone", 52.5, 13.4, 50);
+        index.put(zone);
+
+        assertEquals( Arrays.asList(zone), index.query(52.5 + 0.4, 13.4) );
+        assertTrue( index.query(52.5 + 0.5, 13.4).isEmpty() );
+        assertEquals( ZoneIndex.RADIUS_KILOMETERS, index.getRadiusUnit(), 0 );
+        assertEquals( ZoneIndex.RADIUS_METERS, new ZoneIndex().getRadiusUnit(), 0 );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRadiusUnit() {
+        new ZoneIndex(1, 0);
+    }
+
+    @Test
+    public void findsZonesAcrossCells() {
+        final ZoneIndex index = new ZoneIndex();
+        final Zone zone = zone("zone", 52.55, 13.35, 0);
+        index.put(zone);
+
+        assertEquals( Arrays.asList(zone), index.query(52.5 + 0.049, 13.35) );
+        assertEquals( Arrays.asList(zone), index.query(52.55 + 0.008, 13.35) );
+    }
+
+    @Test
+    public void findsWideZonesEverywhereNear() {
+        final ZoneIndex index = new ZoneIndex(1, ZoneIndex.RADIUS_KILOMETERS);
+        final Zone zone = zone("wide", 0, 0, 2000);
+        index.put(zone);
+
+        assertEquals( Arrays.asList(zone), index.query(10, 10) );
+        assertTrue( index.query(30, 30).isEmpty() );
+    }
+
+    @Test
+    public void keepsZonesWithoutLocationActive() {
+        final ZoneIndex index = new ZoneIndex();
+        final Zone unlocated = zone("unlocated", 0, 0, 0);
+        unlocated.location = null;
+        final Zone located = zone("located", 52.5, 13.4, 0);
+        index.put(located);
+        index.put(unlocated);
+
+        assertEquals( Arrays.asList(unlocated, located), index.query(52.5, 13.4) );
+        assertEquals( Collections.singletonList(unlocated), index.getUnlocated() );
+    }
+
+    @Test
+    public void replacesAndRemovesZones() {
+        final ZoneIndex index = new ZoneIndex();
+        final Zone first = zone("zone", 52.5, 13.4, 0);
+        final Zone second = zone("zone", 10, 10, 0);
+        index.put(first);
+
+        assertEquals( first, index.put(second) );
+        assertTrue( index.query(52.5, 13.4).isEmpty() );
+        assertEquals( Arrays.asList(second), index.query(10, 10) );
+        assertEquals( second, index.remove("zone") );
+        assertTrue( index.isEmpty() );
+        assertTrue( index.query(10, 10).isEmpty() );
+    }
+
+    private static Zone zone( String id, double latitude, double longitude, double radius ) {
+        final Zone zone = new Zone();
+        zone.id = id;
+        zone.radius = radius;
+        zone.location = new Location();
+        zone.location.latitude = latitude;
+        zone.location.longitude = longitude;
+        return zone;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util.expression;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExpressionParserTest {
+
+    public static class Trigger {
+        public String type = "enter";
+        public int count = 2;
+    }
+
+    private final Map<String, Object> values = new HashMap<String, Object>();
+    private final ExpressionNode.Scope scope = new ExpressionNode.Scope() {
+        @Override
+        public boolean has(String name) {
+            return values.containsKey(name);
+        }
+
+        @Override
+        public Object get(String name) {
+            return values.get(name);
+        }
+    };
+
+    @Test
+    public void parsesSupportedSyntax() {
+        for( String expression : new String[] {
+                "occurence > 3 && trigger.type == 'enter'",
+                "!(a || b) && c != null",
+                "x === undefined",
+                "-a + +b * (c - d) / e % f",
+                "custom['param'] >= 1.5e2",
+                "items[0] <= 0x10;",
+                "\"double\" !== 'single'"} ) {
+            assertNotNull( expression, ExpressionParser.parse(expression) );
+        }
+    }
+
+    @Test
+    public void leavesOtherSyntaxForRhino() {
+        for( String expression : new String[] {
+                "Math.max(a, b) > 1",
+                "a = 1",
+                "a++",
+                "a ? b : c",
+                "typeof a == 'number'",
+                "name.indexOf('x') >= 0",
+                "custom[key]",
+                "function() { return true; }",
+                "a > 1 b",
+                "'unterminated"} ) {
+            assertNull( expression, ExpressionParser.parse(expression) );
+        }
+        assertNull( ExpressionParser.parse(null) );
+    }
+
+    @Test
+    public void evaluatesWithOperatorPrecedence() {
+        assertEquals( 7.0, eval("1 + 2 * 3") );
+        assertEquals( 9.0, eval("(1 + 2) * 3") );
+        assertEquals( 3.0, eval("7 % 4") );
+        assertEquals( -1.0, eval("-2 + 1") );
+        assertEquals( true, eval("1 < 2 == true") );
+        assertEquals( true, eval("false || 1 + 1 == 2 && !false") );
+    }
+
+    @Test
+    public void followsJavaScriptConversions() {
+        values.put("occurence", 3);
+        values.put("name", "beacon");
+        values.put("nothing", null);
+
+        assertEquals( "beacon3", eval("name + occurence") );
+        assertEquals( true, eval("occurence == '3'") );
+        assertEquals( false, eval("occurence === '3'") );
+        assertEquals( true, eval("nothing == undefined") );
+        assertEquals( false, eval("nothing == 0") );
+        assertEquals( true, eval("'10' < '9'") );
+        assertEquals( false, eval("'10' < 9") );
+        assertEquals( 6.0, eval("name.length") );
+        assertEquals( "e", eval("name[1]") );
+        assertEquals( true, Double.isNaN((Double) eval("name * 2")) );
+    }
+
+    @Test
+    public void logicalOperatorsReturnOperandsAndShortCircuit() {
+        values.put("name", "beacon");
+
+        assertEquals( "beacon", eval("1 && name") );
+        assertEquals( "x", eval("'' || 'x'") );
+        assertEquals( false, eval("false && undefinedVariable") );
+        assertEquals( true, eval("true || undefinedVariable") );
+    }
+
+    @Test
+    public void readsFieldsOfJavaObjectsAsRhinoWrapsThem() {
+        values.put("trigger", new Trigger());
+
+        assertEquals( true, eval("trigger.type == 'enter'") );
+        assertEquals( false, eval("trigger.type === 'enter'") );
+        assertEquals( true, eval("trigger.count === 2") );
+        assertEquals( "enter!", eval("trigger.type + '!'") );
+        assertNull( eval("trigger.missing") );
+    }
+
+    @Test
+    public void doesNotExposeMapEntries() {
+        final Map<String, Object> custom = new HashMap<String, Object>();
+        custom.put("param", 1);
+        values.put("custom", custom);
+
+        assertNull( eval("custom.param") );
+        assertEquals( false, eval("custom.empty") );
+    }
+
+    @Test
+    public void failsOnUndefinedVariablesAndPropertiesOfNull() {
+        values.put("nothing", null);
+        for( String expression : new String[] { "missing > 1", "nothing.property" } ) {
+            try {
+                eval(expression);
+                fail( expression );
+            } catch (ExpressionNode.EvaluationException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void findsReferencesOfAnyExpression() {
+        assertEquals( new HashSet<String>(Arrays.asList("occurence", "trigger")),
+                ExpressionParser.findReferences("occurence > 3 && trigger.type == 'enter'") );
+
+        //not supported by the parser, detected from tokens
+        final Set<String> references = ExpressionParser.findReferences("Math.max(a, b.c) > 1");
+        assertTrue( references.containsAll(Arrays.asList("Math", "a", "b")) );
+        assertFalse( references.contains("c") );
+        assertFalse( references.contains("max") );
+
+        assertNull( ExpressionParser.findReferences("'unterminated") );
+    }
+
+    private Object eval( String expression ) {
+        final ExpressionNode node = ExpressionParser.parse(expression);
+        assertNotNull( expression, node );
+        final Object result = node.eval(scope);
+        return result instanceof JsValues.JavaObject ? ((JsValues.JavaObject) result).value : result;
+    }
+}
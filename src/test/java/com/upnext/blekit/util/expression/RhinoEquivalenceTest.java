@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2014 UP-NEXT. All rights reserved.
+ * http://www.up-next.com
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.upnext.blekit.util.expression;
+
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Evaluates expressions natively and with Rhino, set up as {@link RhinoEvaluator} does, and compares the results.
+ */
+public class RhinoEquivalenceTest {
+
+    public static class Beacon {
+        public String name = "entrance";
+        public String empty = "";
+        public Integer boxed = 5;
+        public int primitive = 5;
+        public Long id = 7L;
+        public boolean active = true;
+        public Boolean inactive = false;
+        public Double distance = 2.5;
+        public int[] values = { 1, 2 };
+        public String[] tags = { "a", "b" };
+        public List<String> list = Arrays.asList("x", "y");
+        public Map<String, Object> map = new HashMap<String, Object>();
+        public Beacon next;
+
+        public String getLabel() {
+            return "label";
+        }
+
+        public boolean isNear() {
+            return true;
+        }
+    }
+
+    private static final String[] EXPRESSIONS = {
+            //literals and arithmetic
+            "1 + 2 * 3 - 4 / 2", "7 % 3", "-occurence + 1", "occurence / 2", "occurence * ratio", "1 / 0 > 1000", "0.1 + 0.2 == 0.3",
+            "0x10 == 16", "1e3 == 1000", "occurence % 0 == occurence % 0",
+            //conversions
+            "'a' + occurence", "occurence + '1'", "occurence == '3'", "occurence === 3", "occurence !== '3'", "flag == 1", "flag + 1",
+            "'0x10' == 16", "' 12 ' == 12", "true == 'true'", "null == false", "nothing + 1", "nothing == null", "nothing === null",
+            "nothing == undefined", "nothing == 0", "name * 2", "'' == 0",
+            //comparisons
+            "name < 'c'", "'10' < '9'", "'10' < 9", "ratio > 2 && ratio < 3", "occurence >= 3", "occurence <= '3'",
+            //logical operators
+            "!nothing", "!empty", "empty || 'x'", "occurence && name", "0 || nothing", "!(occurence > 1) || flag",
+            "occurence > 3 && name == 'beacon'",
+            //strings
+            "name.length", "name.length == 6", "name[0]", "name[10]",
+            //java objects
+            "beacon.name == 'entrance'", "beacon.name === 'entrance'", "beacon.name + 1", "beacon.name < 'f'", "!beacon.empty",
+            "beacon.boxed + 1", "beacon.boxed === 5", "beacon.boxed == 5", "beacon.boxed > 4", "-beacon.boxed", "beacon.boxed - '1'",
+            "beacon.primitive + 1", "beacon.primitive === 5", "beacon.id * 2", "beacon.id + 1", "beacon.id % 4",
+            "beacon.active === true", "beacon.active && 1", "!beacon.inactive", "beacon.inactive == false", "beacon.inactive + 1",
+            "beacon.distance + 1", "beacon.distance * 2", "beacon.label == 'label'", "beacon.near", "beacon.missing",
+            "beacon.missing == undefined", "beacon.values.length", "beacon.values[1] === 2", "beacon.values[5]",
+            "beacon.tags[0] == 'a'", "beacon.tags[0] === 'a'", "beacon.tags.length", "beacon.list.length", "beacon.map.key",
+            "beacon.map.empty", "beacon.next.name == beacon.name", "beacon.next.boxed == beacon.boxed", "beacon.name", "beacon.active",
+            "beacon.inactive",
+    };
+
+    @Test
+    public void nativeEvaluationMatchesRhino() {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        values.put("occurence", 3);
+        values.put("ratio", 2.5);
+        values.put("name", "beacon");
+        values.put("empty", "");
+        values.put("flag", true);
+        values.put("nothing", null);
+        final Beacon beacon = new Beacon();
+        beacon.map.put("key", "value");
+        beacon.next = new Beacon();
+        values.put("beacon", beacon);
+
+        final ExpressionNode.Scope scope = new ExpressionNode.Scope() {
+            @Override
+            public boolean has(String name) {
+                return values.containsKey(name);
+            }
+
+            @Override
+            public Object get(String name) {
+                return values.get(name);
+            }
+        };
+
+        for( String expression : EXPRESSIONS ) {
+            final ExpressionNode node = ExpressionParser.parse(expression);
+            assertNotNull( expression, node );
+            final Object nativeResult = node.eval(scope);
+            final Object rhinoResult = evalRhino(expression, values);
+
+            assertEquals( expression, normalize(rhinoResult), normalize(nativeResult) );
+            //ExpressionEvaluator accepts only boolean results
+            assertEquals( expression, rhinoResult instanceof Boolean, nativeResult instanceof Boolean );
+        }
+    }
+
+    private static Object evalRhino( String expression, Map<String, Object> values ) {
+        final Context ctx = Context.enter();
+        try {
+            final ScriptableObject shared = ctx.initStandardObjects(null, true);
+            final Scriptable scope = ctx.newObject(shared);
+            scope.setPrototype(shared);
+            scope.setParentScope(null);
+            for( Map.Entry<String, Object> entry : values.entrySet() ) {
+                ScriptableObject.putProperty(scope, entry.getKey(), Context.javaToJS(entry.getValue(), scope));
+            }
+            return ctx.evaluateString(scope, expression, "expression", 1, null);
+        } catch (RhinoException e) {
+            return null;
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /**
+     * Unwraps Java objects and represents undefined as <code>null</code> and all numbers as doubles.
+     */
+    private static Object normalize( Object value ) {
+        if( value instanceof Wrapper ) value = ((Wrapper) value).unwrap();
+        if( value instanceof JsValues.JavaObject ) value = ((JsValues.JavaObject) value).value;
+        if( value instanceof Undefined ) return null;
+        if( value instanceof Number ) return ((Number) value).doubleValue();
+        return value;
+    }
+}